@@ -0,0 +1,99 @@
+/*
+ * JNI side of FrameTimestamps: EGL_ANDROID_get_frame_timestamps for the calling thread's
+ * current draw surface. The entry points are looked up at run time (API 26+ drivers), so the
+ * library loads on any device and reports the extension as missing where it is.
+ */
+
+#include <jni.h>
+#include <stdint.h>
+#include <string.h>
+
+#include <EGL/egl.h>
+#include <EGL/eglext.h>
+#include <android/log.h>
+
+#define TAG "FrameTimestamps"
+
+/* From the extension spec; older NDK headers lack them. */
+#define TIMESTAMPS_ANDROID 0x3430
+#define COMPOSITION_LATCH_TIME_ANDROID 0x3436
+#define DISPLAY_PRESENT_TIME_ANDROID 0x343A
+
+typedef EGLBoolean (EGLAPIENTRYP GetFrameTimestampSupportedFn)(EGLDisplay, EGLSurface, EGLint);
+typedef EGLBoolean (EGLAPIENTRYP GetNextFrameIdFn)(EGLDisplay, EGLSurface, uint64_t *);
+typedef EGLBoolean (EGLAPIENTRYP GetFrameTimestampsFn)(EGLDisplay, EGLSurface, uint64_t, EGLint,
+                                                        const EGLint *, int64_t *);
+
+static GetFrameTimestampSupportedFn getFrameTimestampSupported;
+static GetNextFrameIdFn getNextFrameId;
+static GetFrameTimestampsFn getFrameTimestamps;
+
+static const EGLint TIMESTAMP_NAMES[] = {
+        COMPOSITION_LATCH_TIME_ANDROID,
+        DISPLAY_PRESENT_TIME_ANDROID,
+};
+
+JNIEXPORT jboolean JNICALL
+Java_io_github_metavee_machinetobeanother_FrameTimestamps_nativeEnable(JNIEnv *env, jclass clazz) {
+    EGLDisplay display = eglGetCurrentDisplay();
+    EGLSurface surface = eglGetCurrentSurface(EGL_DRAW);
+    if (display == EGL_NO_DISPLAY || surface == EGL_NO_SURFACE) {
+        return JNI_FALSE;
+    }
+    const char *extensions = eglQueryString(display, EGL_EXTENSIONS);
+    if (extensions == NULL || strstr(extensions, "EGL_ANDROID_get_frame_timestamps") == NULL) {
+        __android_log_print(ANDROID_LOG_INFO, TAG, "EGL_ANDROID_get_frame_timestamps not supported");
+        return JNI_FALSE;
+    }
+    if (getFrameTimestamps == NULL) {
+        getFrameTimestampSupported = (GetFrameTimestampSupportedFn)
+                eglGetProcAddress("eglGetFrameTimestampSupportedANDROID");
+        getNextFrameId = (GetNextFrameIdFn) eglGetProcAddress("eglGetNextFrameIdANDROID");
+        getFrameTimestamps = (GetFrameTimestampsFn)
+                eglGetProcAddress("eglGetFrameTimestampsANDROID");
+    }
+    if (getFrameTimestampSupported == NULL || getNextFrameId == NULL || getFrameTimestamps == NULL) {
+        __android_log_print(ANDROID_LOG_WARN, TAG, "Frame timestamp entry points missing");
+        return JNI_FALSE;
+    }
+    for (size_t i = 0; i < sizeof(TIMESTAMP_NAMES) / sizeof(TIMESTAMP_NAMES[0]); i++) {
+        if (!getFrameTimestampSupported(display, surface, TIMESTAMP_NAMES[i])) {
+            __android_log_print(ANDROID_LOG_INFO, TAG, "Timestamp 0x%x not supported",
+                                TIMESTAMP_NAMES[i]);
+            return JNI_FALSE;
+        }
+    }
+    if (!eglSurfaceAttrib(display, surface, TIMESTAMPS_ANDROID, EGL_TRUE)) {
+        __android_log_print(ANDROID_LOG_WARN, TAG, "eglSurfaceAttrib(EGL_TIMESTAMPS_ANDROID) "
+                            "failed: 0x%x", eglGetError());
+        return JNI_FALSE;
+    }
+    return JNI_TRUE;
+}
+
+JNIEXPORT jlong JNICALL
+Java_io_github_metavee_machinetobeanother_FrameTimestamps_nativeGetNextFrameId(JNIEnv *env,
+                                                                              jclass clazz) {
+    uint64_t id;
+    if (getNextFrameId == NULL
+            || !getNextFrameId(eglGetCurrentDisplay(), eglGetCurrentSurface(EGL_DRAW), &id)) {
+        return -1;
+    }
+    return (jlong) id;
+}
+
+JNIEXPORT jboolean JNICALL
+Java_io_github_metavee_machinetobeanother_FrameTimestamps_nativeGetFrameTimestamps(
+        JNIEnv *env, jclass clazz, jlong frameId, jlongArray out) {
+    int64_t values[sizeof(TIMESTAMP_NAMES) / sizeof(TIMESTAMP_NAMES[0])];
+    if (getFrameTimestamps == NULL
+            || !getFrameTimestamps(eglGetCurrentDisplay(), eglGetCurrentSurface(EGL_DRAW),
+                                   (uint64_t) frameId,
+                                   sizeof(TIMESTAMP_NAMES) / sizeof(TIMESTAMP_NAMES[0]),
+                                   TIMESTAMP_NAMES, values)) {
+        return JNI_FALSE;
+    }
+    (*env)->SetLongArrayRegion(env, out, 0, sizeof(values) / sizeof(values[0]),
+                               (const jlong *) values);
+    return JNI_TRUE;
+}
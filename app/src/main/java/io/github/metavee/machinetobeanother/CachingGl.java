@@ -0,0 +1,628 @@
+package io.github.metavee.machinetobeanother;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+
+import java.nio.Buffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link Gl} that shadows the GL state the renderer touches every frame and drops calls that
+ * would not change it: program, active texture unit, 2D and external texture bindings, array and
+ * element buffer bindings, framebuffer binding, vertex attribute array enables, capability
+ * enables, viewport, scissor, blend function, clear color, and {@code glUniform1i} (sampler
+ * units) per program.
+ *
+ * <p>The cache only knows about calls made through it. Anything else that changes GL state has
+ * to be reported: {@link #invalidate} after a new context (onSurfaceCreated), {@link
+ * #invalidateTextureBindings} after {@code SurfaceTexture.updateTexImage}, which binds the
+ * external texture behind our back. Unknown state is never skipped, so a missed invalidation
+ * costs a redundant call, not a wrong frame, as long as it is reported before the state is
+ * relied on.
+ *
+ * <p>{@link #getSkippedCalls} counts the calls it avoided. Not thread-safe; use it from the GL
+ * thread.
+ */
+public final class CachingGl implements Gl {
+
+    private static final int UNKNOWN = -1;
+
+    private static final byte OFF = 1;
+    private static final byte ON = 2;
+
+    private static final int MAX_TEXTURE_UNITS = 8;
+    private static final int MAX_ATTRIBS = 16;
+    private static final int MAX_CACHED_LOCATIONS = 32;
+
+    private static final int[] CACHED_CAPS = {
+            GLES20.GL_DEPTH_TEST, GLES20.GL_BLEND, GLES20.GL_SCISSOR_TEST, GLES20.GL_CULL_FACE,
+    };
+
+    private final Gl delegate;
+
+    private int currentProgram;
+    private int activeUnit;
+    private final int[] texture2d = new int[MAX_TEXTURE_UNITS];
+    private final int[] textureExternal = new int[MAX_TEXTURE_UNITS];
+    private final int[] arrayBuffer = new int[1];
+    private final int[] elementArrayBuffer = new int[1];
+    private int framebuffer;
+    // 0 = unknown, else OFF or ON.
+    private final byte[] attribArrays = new byte[MAX_ATTRIBS];
+    private final byte[] caps = new byte[CACHED_CAPS.length];
+    private final int[] viewport = new int[4];
+    private boolean viewportKnown;
+    private final int[] scissor = new int[4];
+    private boolean scissorKnown;
+    private int blendSrc;
+    private int blendDst;
+    private final float[] clearColor = new float[4];
+    private boolean clearColorKnown;
+    // glUniform1i values by program, indexed by location (Integer.MIN_VALUE = unknown).
+    private final Map<Integer, int[]> samplerUniforms = new HashMap<>();
+
+    private long skipped;
+
+    public CachingGl(Gl delegate) {
+        this.delegate = delegate;
+        invalidate();
+    }
+
+    /** Forgets all cached state, e.g. for a new EGL context. */
+    public void invalidate() {
+        currentProgram = UNKNOWN;
+        activeUnit = UNKNOWN;
+        invalidateTextureBindings();
+        arrayBuffer[0] = UNKNOWN;
+        elementArrayBuffer[0] = UNKNOWN;
+        framebuffer = UNKNOWN;
+        Arrays.fill(attribArrays, (byte) 0);
+        Arrays.fill(caps, (byte) 0);
+        viewportKnown = false;
+        scissorKnown = false;
+        blendSrc = UNKNOWN;
+        blendDst = UNKNOWN;
+        clearColorKnown = false;
+        samplerUniforms.clear();
+    }
+
+    /** Forgets the texture bindings, after something outside this class bound a texture. */
+    public void invalidateTextureBindings() {
+        Arrays.fill(texture2d, UNKNOWN);
+        Arrays.fill(textureExternal, UNKNOWN);
+    }
+
+    /** Calls dropped because they would not have changed the state, since construction. */
+    public long getSkippedCalls() {
+        return skipped;
+    }
+
+    private static int capIndex(int cap) {
+        for (int i = 0; i < CACHED_CAPS.length; i++) {
+            if (CACHED_CAPS[i] == cap) {
+                return i;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    @Override
+    public void glEnable(int cap) {
+        int i = capIndex(cap);
+        if (i >= 0 && caps[i] == ON) {
+            skipped++;
+            return;
+        }
+        delegate.glEnable(cap);
+        if (i >= 0) {
+            caps[i] = ON;
+        }
+    }
+
+    @Override
+    public void glDisable(int cap) {
+        int i = capIndex(cap);
+        if (i >= 0 && caps[i] == OFF) {
+            skipped++;
+            return;
+        }
+        delegate.glDisable(cap);
+        if (i >= 0) {
+            caps[i] = OFF;
+        }
+    }
+
+    @Override
+    public void glViewport(int x, int y, int width, int height) {
+        if (viewportKnown && viewport[0] == x && viewport[1] == y
+                && viewport[2] == width && viewport[3] == height) {
+            skipped++;
+            return;
+        }
+        delegate.glViewport(x, y, width, height);
+        viewport[0] = x;
+        viewport[1] = y;
+        viewport[2] = width;
+        viewport[3] = height;
+        viewportKnown = true;
+    }
+
+    @Override
+    public void glScissor(int x, int y, int width, int height) {
+        if (scissorKnown && scissor[0] == x && scissor[1] == y
+                && scissor[2] == width && scissor[3] == height) {
+            skipped++;
+            return;
+        }
+        delegate.glScissor(x, y, width, height);
+        scissor[0] = x;
+        scissor[1] = y;
+        scissor[2] = width;
+        scissor[3] = height;
+        scissorKnown = true;
+    }
+
+    @Override
+    public void glBlendFunc(int sfactor, int dfactor) {
+        if (blendSrc == sfactor && blendDst == dfactor) {
+            skipped++;
+            return;
+        }
+        delegate.glBlendFunc(sfactor, dfactor);
+        blendSrc = sfactor;
+        blendDst = dfactor;
+    }
+
+    @Override
+    public void glClearColor(float red, float green, float blue, float alpha) {
+        if (clearColorKnown && clearColor[0] == red && clearColor[1] == green
+                && clearColor[2] == blue && clearColor[3] == alpha) {
+            skipped++;
+            return;
+        }
+        delegate.glClearColor(red, green, blue, alpha);
+        clearColor[0] = red;
+        clearColor[1] = green;
+        clearColor[2] = blue;
+        clearColor[3] = alpha;
+        clearColorKnown = true;
+    }
+
+    @Override
+    public void glClear(int mask) {
+        delegate.glClear(mask);
+    }
+
+    @Override
+    public void glFinish() {
+        delegate.glFinish();
+    }
+
+    @Override
+    public void glFlush() {
+        delegate.glFlush();
+    }
+
+    @Override
+    public int glGetError() {
+        return delegate.glGetError();
+    }
+
+    @Override
+    public String glGetString(int name) {
+        return delegate.glGetString(name);
+    }
+
+    @Override
+    public void glGetIntegerv(int pname, int[] params, int offset) {
+        delegate.glGetIntegerv(pname, params, offset);
+    }
+
+    @Override
+    public int glCreateShader(int type) {
+        return delegate.glCreateShader(type);
+    }
+
+    @Override
+    public void glShaderSource(int shader, String string) {
+        delegate.glShaderSource(shader, string);
+    }
+
+    @Override
+    public void glCompileShader(int shader) {
+        delegate.glCompileShader(shader);
+    }
+
+    @Override
+    public void glGetShaderiv(int shader, int pname, int[] params, int offset) {
+        delegate.glGetShaderiv(shader, pname, params, offset);
+    }
+
+    @Override
+    public void glGetShaderPrecisionFormat(int shaderType, int precisionType, int[] range,
+                                           int rangeOffset, int[] precision, int precisionOffset) {
+        delegate.glGetShaderPrecisionFormat(shaderType, precisionType, range, rangeOffset,
+                precision, precisionOffset);
+    }
+
+    @Override
+    public String glGetShaderInfoLog(int shader) {
+        return delegate.glGetShaderInfoLog(shader);
+    }
+
+    @Override
+    public void glDeleteShader(int shader) {
+        delegate.glDeleteShader(shader);
+    }
+
+    @Override
+    public int glCreateProgram() {
+        return delegate.glCreateProgram();
+    }
+
+    @Override
+    public void glAttachShader(int program, int shader) {
+        delegate.glAttachShader(program, shader);
+    }
+
+    @Override
+    public void glLinkProgram(int program) {
+        // Linking resets the program's uniforms to their defaults.
+        samplerUniforms.remove(program);
+        delegate.glLinkProgram(program);
+    }
+
+    @Override
+    public void glGetProgramiv(int program, int pname, int[] params, int offset) {
+        delegate.glGetProgramiv(program, pname, params, offset);
+    }
+
+    @Override
+    public String glGetProgramInfoLog(int program) {
+        return delegate.glGetProgramInfoLog(program);
+    }
+
+    @Override
+    public void glDeleteProgram(int program) {
+        // The name can be handed out again. A current program stays in use until replaced, so
+        // the program binding itself is still right.
+        samplerUniforms.remove(program);
+        delegate.glDeleteProgram(program);
+    }
+
+    @Override
+    public void glUseProgram(int program) {
+        if (currentProgram == program) {
+            skipped++;
+            return;
+        }
+        delegate.glUseProgram(program);
+        currentProgram = program;
+    }
+
+    @Override
+    public int glGetAttribLocation(int program, String name) {
+        return delegate.glGetAttribLocation(program, name);
+    }
+
+    @Override
+    public int glGetUniformLocation(int program, String name) {
+        return delegate.glGetUniformLocation(program, name);
+    }
+
+    @Override
+    public void glUniform1i(int location, int x) {
+        if (currentProgram == UNKNOWN || location < 0 || location >= MAX_CACHED_LOCATIONS) {
+            delegate.glUniform1i(location, x);
+            return;
+        }
+        int[] values = samplerUniforms.get(currentProgram);
+        if (values == null) {
+            values = new int[MAX_CACHED_LOCATIONS];
+            Arrays.fill(values, Integer.MIN_VALUE);
+            samplerUniforms.put(currentProgram, values);
+        } else if (values[location] == x) {
+            skipped++;
+            return;
+        }
+        delegate.glUniform1i(location, x);
+        values[location] = x;
+    }
+
+    @Override
+    public void glUniform1f(int location, float x) {
+        delegate.glUniform1f(location, x);
+    }
+
+    @Override
+    public void glUniform2f(int location, float x, float y) {
+        delegate.glUniform2f(location, x, y);
+    }
+
+    @Override
+    public void glUniform4fv(int location, int count, float[] v, int offset) {
+        delegate.glUniform4fv(location, count, v, offset);
+    }
+
+    @Override
+    public void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value,
+                                   int offset) {
+        delegate.glUniformMatrix4fv(location, count, transpose, value, offset);
+    }
+
+    @Override
+    public void glGenBuffers(int n, int[] buffers, int offset) {
+        delegate.glGenBuffers(n, buffers, offset);
+    }
+
+    @Override
+    public void glBindBuffer(int target, int buffer) {
+        int[] binding = target == GLES20.GL_ARRAY_BUFFER ? arrayBuffer
+                : target == GLES20.GL_ELEMENT_ARRAY_BUFFER ? elementArrayBuffer : null;
+        if (binding != null && binding[0] == buffer) {
+            skipped++;
+            return;
+        }
+        delegate.glBindBuffer(target, buffer);
+        if (binding != null) {
+            binding[0] = buffer;
+        }
+    }
+
+    @Override
+    public void glBufferData(int target, int size, Buffer data, int usage) {
+        delegate.glBufferData(target, size, data, usage);
+    }
+
+    @Override
+    public void glEnableVertexAttribArray(int index) {
+        boolean cached = index >= 0 && index < MAX_ATTRIBS;
+        if (cached && attribArrays[index] == ON) {
+            skipped++;
+            return;
+        }
+        delegate.glEnableVertexAttribArray(index);
+        if (cached) {
+            attribArrays[index] = ON;
+        }
+    }
+
+    @Override
+    public void glDisableVertexAttribArray(int index) {
+        boolean cached = index >= 0 && index < MAX_ATTRIBS;
+        if (cached && attribArrays[index] == OFF) {
+            skipped++;
+            return;
+        }
+        delegate.glDisableVertexAttribArray(index);
+        if (cached) {
+            attribArrays[index] = OFF;
+        }
+    }
+
+    @Override
+    public void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride,
+                                      int offset) {
+        delegate.glVertexAttribPointer(index, size, type, normalized, stride, offset);
+    }
+
+    @Override
+    public void glDrawArrays(int mode, int first, int count) {
+        delegate.glDrawArrays(mode, first, count);
+    }
+
+    @Override
+    public void glDrawElements(int mode, int count, int type, int offset) {
+        delegate.glDrawElements(mode, count, type, offset);
+    }
+
+    @Override
+    public void glDrawArraysInstanced(int mode, int first, int count, int instanceCount) {
+        delegate.glDrawArraysInstanced(mode, first, count, instanceCount);
+    }
+
+    @Override
+    public void glGenTextures(int n, int[] textures, int offset) {
+        delegate.glGenTextures(n, textures, offset);
+    }
+
+    @Override
+    public void glDeleteTextures(int n, int[] textures, int offset) {
+        delegate.glDeleteTextures(n, textures, offset);
+        // Deleting a bound texture reverts that binding to 0.
+        for (int i = 0; i < n; i++) {
+            int name = textures[offset + i];
+            for (int unit = 0; unit < MAX_TEXTURE_UNITS; unit++) {
+                if (texture2d[unit] == name) {
+                    texture2d[unit] = 0;
+                }
+                if (textureExternal[unit] == name) {
+                    textureExternal[unit] = 0;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void glActiveTexture(int texture) {
+        int unit = texture - GLES20.GL_TEXTURE0;
+        if (unit == activeUnit && unit != UNKNOWN) {
+            skipped++;
+            return;
+        }
+        delegate.glActiveTexture(texture);
+        activeUnit = unit >= 0 && unit < MAX_TEXTURE_UNITS ? unit : UNKNOWN;
+    }
+
+    @Override
+    public void glBindTexture(int target, int texture) {
+        int[] binding = activeUnit == UNKNOWN ? null
+                : target == GLES20.GL_TEXTURE_2D ? texture2d
+                : target == GLES11Ext.GL_TEXTURE_EXTERNAL_OES ? textureExternal : null;
+        if (binding != null && binding[activeUnit] == texture) {
+            skipped++;
+            return;
+        }
+        delegate.glBindTexture(target, texture);
+        if (binding != null) {
+            binding[activeUnit] = texture;
+        }
+    }
+
+    @Override
+    public void glTexParameteri(int target, int pname, int param) {
+        delegate.glTexParameteri(target, pname, param);
+    }
+
+    @Override
+    public void glTexParameterf(int target, int pname, float param) {
+        delegate.glTexParameterf(target, pname, param);
+    }
+
+    @Override
+    public void glTexImage2D(int target, int level, int internalformat, int width, int height,
+                             int border, int format, int type, Buffer pixels) {
+        delegate.glTexImage2D(target, level, internalformat, width, height, border, format, type, pixels);
+    }
+
+    @Override
+    public void glCopyTexSubImage2D(int target, int level, int xoffset, int yoffset, int x, int y,
+                                    int width, int height) {
+        delegate.glCopyTexSubImage2D(target, level, xoffset, yoffset, x, y, width, height);
+    }
+
+    @Override
+    public void texImage2D(int target, int level, Bitmap bitmap, int border) {
+        delegate.texImage2D(target, level, bitmap, border);
+    }
+
+    @Override
+    public void texSubImage2D(int target, int level, int xoffset, int yoffset, Bitmap bitmap) {
+        delegate.texSubImage2D(target, level, xoffset, yoffset, bitmap);
+    }
+
+    @Override
+    public void glGenFramebuffers(int n, int[] framebuffers, int offset) {
+        delegate.glGenFramebuffers(n, framebuffers, offset);
+    }
+
+    @Override
+    public void glDeleteFramebuffers(int n, int[] framebuffers, int offset) {
+        delegate.glDeleteFramebuffers(n, framebuffers, offset);
+        // Deleting the bound framebuffer reverts the binding to the window.
+        for (int i = 0; i < n; i++) {
+            if (framebuffers[offset + i] == framebuffer) {
+                framebuffer = 0;
+            }
+        }
+    }
+
+    @Override
+    public void glBindFramebuffer(int target, int framebuffer) {
+        if (target == GLES20.GL_FRAMEBUFFER && this.framebuffer == framebuffer) {
+            skipped++;
+            return;
+        }
+        delegate.glBindFramebuffer(target, framebuffer);
+        this.framebuffer = target == GLES20.GL_FRAMEBUFFER ? framebuffer : UNKNOWN;
+    }
+
+    @Override
+    public void glFramebufferTexture2D(int target, int attachment, int textarget, int texture,
+                                       int level) {
+        delegate.glFramebufferTexture2D(target, attachment, textarget, texture, level);
+    }
+
+    @Override
+    public void glFramebufferRenderbuffer(int target, int attachment, int renderbuffertarget,
+                                          int renderbuffer) {
+        delegate.glFramebufferRenderbuffer(target, attachment, renderbuffertarget, renderbuffer);
+    }
+
+    @Override
+    public int glCheckFramebufferStatus(int target) {
+        return delegate.glCheckFramebufferStatus(target);
+    }
+
+    @Override
+    public void glGenRenderbuffers(int n, int[] renderbuffers, int offset) {
+        delegate.glGenRenderbuffers(n, renderbuffers, offset);
+    }
+
+    @Override
+    public void glDeleteRenderbuffers(int n, int[] renderbuffers, int offset) {
+        delegate.glDeleteRenderbuffers(n, renderbuffers, offset);
+    }
+
+    @Override
+    public void glBindRenderbuffer(int target, int renderbuffer) {
+        delegate.glBindRenderbuffer(target, renderbuffer);
+    }
+
+    @Override
+    public void glRenderbufferStorage(int target, int internalformat, int width, int height) {
+        delegate.glRenderbufferStorage(target, internalformat, width, height);
+    }
+
+    @Override
+    public void glGenQueries(int n, int[] ids, int offset) {
+        delegate.glGenQueries(n, ids, offset);
+    }
+
+    @Override
+    public void glBeginQuery(int target, int id) {
+        delegate.glBeginQuery(target, id);
+    }
+
+    @Override
+    public void glEndQuery(int target) {
+        delegate.glEndQuery(target);
+    }
+
+    @Override
+    public void glGetQueryObjectuiv(int id, int pname, int[] params, int offset) {
+        delegate.glGetQueryObjectuiv(id, pname, params, offset);
+    }
+
+    @Override
+    public long glFenceSync(int condition, int flags) {
+        return delegate.glFenceSync(condition, flags);
+    }
+
+    @Override
+    public int glClientWaitSync(long sync, int flags, long timeout) {
+        return delegate.glClientWaitSync(sync, flags, timeout);
+    }
+
+    @Override
+    public void glWaitSync(long sync, int flags, long timeout) {
+        delegate.glWaitSync(sync, flags, timeout);
+    }
+
+    @Override
+    public void glDeleteSync(long sync) {
+        delegate.glDeleteSync(sync);
+    }
+
+    @Override
+    public void glProgramParameteri(int program, int pname, int value) {
+        delegate.glProgramParameteri(program, pname, value);
+    }
+
+    @Override
+    public void glGetProgramBinary(int program, int bufSize, int[] length, int lengthOffset,
+                                   int[] binaryFormat, int binaryFormatOffset, Buffer binary) {
+        delegate.glGetProgramBinary(program, bufSize, length, lengthOffset,
+                binaryFormat, binaryFormatOffset, binary);
+    }
+
+    @Override
+    public void glProgramBinary(int program, int binaryFormat, Buffer binary, int length) {
+        // Like linking: the program's uniforms start over.
+        samplerUniforms.remove(program);
+        delegate.glProgramBinary(program, binaryFormat, binary, length);
+    }
+}
@@ -0,0 +1,613 @@
+package io.github.metavee.machinetobeanother;
+
+import android.content.Context;
+import android.graphics.Rect;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraConstrainedHighSpeedCaptureSession;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+import android.util.SizeF;
+import android.view.Surface;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Live camera feed through the camera2 API into the renderer's {@link SurfaceTexture}, set up for
+ * low-latency passthrough.
+ *
+ * <p>The frame rate is the highest the camera sustains at the chosen size, capped at the display
+ * refresh rate (a faster camera only feeds frames that are never shown) and at the thermal
+ * governor's limit. The exception is a constrained high-speed session: on a high-refresh
+ * display (90 Hz and up), a camera that supports one runs at its fastest fixed high-speed rate
+ * (typically 120 fps) within the preview and thermal limits, even above the display's rate.
+ * The renderer latches only the newest frame at each refresh, so the surplus frames are simply
+ * dropped, and the frame that is shown is never more than a camera period old.
+ *
+ * <p>The low-latency preset turns off video stabilization (EIS holds frames back to look ahead)
+ * and uses the fast, not the high-quality, noise reduction, edge enhancement and aberration
+ * correction. It also picks the frame-rate range with the highest minimum (a fixed range where
+ * there is one) before the fastest: auto-exposure may stretch the exposure to the minimum's
+ * frame period in dim light, which blurs motion and delays every frame. Optical stabilization is
+ * left alone: it adds no latency.
+ *
+ * <p>{@link #selectCamera} returns false for LEGACY-level cameras (camera2 on those is a wrapper
+ * around {@code android.hardware.Camera} and gains nothing), and the caller keeps the legacy
+ * path; the failure callback covers errors once the camera is running. Camera callbacks run on
+ * a private thread; the public methods may be called from any one thread. Each configuration
+ * is an immutable {@link StreamConfig} handed to the camera thread, so the two never share
+ * mutable settings.
+ */
+public final class Camera2Source {
+
+    private static final String TAG = "Camera2Source";
+
+    private static final float ASPECT_TOLERANCE = 0.05f;
+    // Only worth a constrained high-speed session above what normal sessions deliver.
+    private static final int HIGH_SPEED_MIN_FPS = 90;
+
+    private final CameraManager manager;
+    private final int displayFps;
+    private final boolean lowLatency;
+    private final Runnable onFailure;
+
+    private String cameraId;
+    private CameraCharacteristics characteristics;
+    // Whether frames are stamped with the boot-time clock, and its lead over nanoTime then.
+    private boolean realtimeTimestamps;
+    private long timestampOffsetNanos;
+
+    // The latest configure(); read on the camera thread for each new session.
+    private volatile StreamConfig config;
+
+    private HandlerThread thread;
+    private Handler handler;
+    private Surface surface;
+    private SurfaceTexture surfaceTexture;
+
+    // Camera thread only.
+    private CameraDevice device;
+    private CameraCaptureSession session;
+    // The session being created, if any; callbacks for any other are stale.
+    private SessionCallback pendingSession;
+    private boolean opening;
+    // A closed device whose onClosed hasn't arrived: it may still write to the surface.
+    private boolean deviceClosing;
+    private boolean closed;
+    private Runnable closedCallback;
+
+    /**
+     * @param displayFps the display refresh rate; the camera isn't run faster, but for a
+     *                   high-speed session (see the class comment).
+     * @param lowLatency whether to apply the low-latency preset (see the class comment).
+     * @param onFailure  called (on the camera thread) if the camera fails after {@link #start}.
+     */
+    public Camera2Source(Context context, int displayFps, boolean lowLatency, Runnable onFailure) {
+        this.manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        this.displayFps = displayFps;
+        this.lowLatency = lowLatency;
+        this.onFailure = onFailure;
+    }
+
+    /** Picks the first back camera; false when the legacy API should be used instead. */
+    public boolean selectCamera() {
+        if (manager == null) {
+            return false;
+        }
+        try {
+            for (String id : manager.getCameraIdList()) {
+                CameraCharacteristics c = manager.getCameraCharacteristics(id);
+                Integer facing = c.get(CameraCharacteristics.LENS_FACING);
+                if (facing == null || facing != CameraCharacteristics.LENS_FACING_BACK) {
+                    continue;
+                }
+                Integer level = c.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+                if (level == null || level == CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY) {
+                    Log.i(TAG, "Back camera " + id + " is LEGACY; using android.hardware.Camera");
+                    return false;
+                }
+                cameraId = id;
+                characteristics = c;
+                Integer source = c.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+                realtimeTimestamps = source != null
+                        && source == CameraMetadata.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+                updateTimestampOffset();
+                return true;
+            }
+        } catch (CameraAccessException | RuntimeException e) {
+            Log.w(TAG, "Failed to query cameras", e);
+            return false;
+        }
+        Log.i(TAG, "No back camera");
+        return false;
+    }
+
+    /**
+     * Chooses the output size and frame-rate range. Call before {@link #start}, or use {@link
+     * #reconfigure} once running.
+     *
+     * @param maxWidth widest output to use, or 0 for no limit.
+     * @param maxFps   frame-rate cap, or 0 for no cap beyond the display's.
+     */
+    public void configure(int maxWidth, int maxFps) {
+        StreamConfigurationMap map =
+                characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        Rect active = characteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+        float sensorAspect = active != null ? (float) active.width() / active.height() : -1f;
+
+        StreamConfig chosen = null;
+        if (lowLatency && displayFps >= HIGH_SPEED_MIN_FPS) {
+            chosen = chooseHighSpeed(map, sensorAspect, maxWidth, maxFps);
+        }
+        if (chosen == null) {
+            Size[] sizes = map.getOutputSizes(SurfaceTexture.class);
+            Size size = chooseWidestSize(sizes, sensorAspect, maxWidth);
+            if (size == null) {
+                size = chooseWidestSize(sizes, sensorAspect, 0);
+            }
+            int fpsLimit = maxFps > 0 ? Math.min(displayFps, maxFps) : displayFps;
+            long minFrameNanos = map.getOutputMinFrameDuration(SurfaceTexture.class, size);
+            if (minFrameNanos > 0) {
+                fpsLimit = Math.min(fpsLimit, (int) Math.round(1e9 / minFrameNanos));
+            }
+            chosen = new StreamConfig(size, chooseFpsRange(characteristics.get(
+                    CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES), fpsLimit,
+                    lowLatency), false);
+        }
+        config = chosen;
+        Log.i(TAG, "Camera " + cameraId + ": " + chosen.size + " at " + chosen.fpsRange + " fps"
+                + (chosen.highSpeed ? " (high-speed session)" : "")
+                + (lowLatency ? ", low-latency preset" : ""));
+    }
+
+    public int getWidth() {
+        return config.size.getWidth();
+    }
+
+    public int getHeight() {
+        return config.size.getHeight();
+    }
+
+    /** Horizontal field of view of the chosen output, in degrees; 0 if unknown. */
+    public float getHorizontalFov() {
+        return fov(true);
+    }
+
+    /** Vertical field of view of the chosen output, in degrees; 0 if unknown. */
+    public float getVerticalFov() {
+        return fov(false);
+    }
+
+    /**
+     * Converts a frame timestamp ({@link SurfaceTexture#getTimestamp}) to the {@link
+     * System#nanoTime} timebase. Cameras that stamp frames with the boot-time clock count deep
+     * sleep, which {@code nanoTime} doesn't. The offset between the clocks is taken when the
+     * camera is selected and again at {@link #start}; the device doesn't sleep while streaming.
+     */
+    public long toNanoTime(long timestampNanos) {
+        return timestampNanos - timestampOffsetNanos;
+    }
+
+    /** Opens the camera and starts streaming into {@code surfaceTexture}. */
+    public void start(SurfaceTexture surfaceTexture) {
+        updateTimestampOffset();
+        this.surfaceTexture = surfaceTexture;
+        surfaceTexture.setDefaultBufferSize(getWidth(), getHeight());
+        surface = new Surface(surfaceTexture);
+        thread = new HandlerThread("Camera2Source");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        handler.post(() -> {
+            opening = true;
+            try {
+                manager.openCamera(cameraId, deviceCallback, handler);
+            } catch (CameraAccessException | SecurityException | IllegalArgumentException e) {
+                opening = false;
+                fail("openCamera", e);
+            }
+        });
+    }
+
+    /**
+     * Applies new limits ({@link #configure}) to a running camera by rebuilding the capture
+     * session. The new size is available from {@link #getWidth}/{@link #getHeight} on return.
+     * Only the latest configuration is applied: a session still being created for an earlier
+     * one is abandoned.
+     */
+    public void reconfigure(int maxWidth, int maxFps) {
+        configure(maxWidth, maxFps);
+        StreamConfig requested = config;
+        handler.post(() -> {
+            if (closed || requested != config) {
+                return; // superseded by a later reconfigure(), which is queued behind this
+            }
+            surfaceTexture.setDefaultBufferSize(requested.size.getWidth(),
+                    requested.size.getHeight());
+            if (device == null) {
+                return; // still opening; onOpened builds the session with the new settings
+            }
+            if (session != null) {
+                session.close();
+                session = null;
+            }
+            createSession(requested);
+        });
+    }
+
+    /** Stops streaming and releases the camera. The source can't be restarted. */
+    public void close() {
+        close(null);
+    }
+
+    /**
+     * Stops streaming and releases the camera, then runs {@code onClosed} (on the camera thread)
+     * once the camera has let go of the output, so the caller can release the {@link
+     * SurfaceTexture}. The source can't be restarted.
+     */
+    public void close(Runnable onClosed) {
+        if (thread == null) {
+            if (onClosed != null) {
+                onClosed.run();
+            }
+            return;
+        }
+        handler.post(() -> {
+            closed = true;
+            closedCallback = onClosed;
+            pendingSession = null;
+            if (session != null) {
+                session.close();
+                session = null;
+            }
+            if (device != null) {
+                device.close();
+                device = null;
+                deviceClosing = true;
+            }
+            if (!opening && !deviceClosing) {
+                finishClose();
+            }
+            // Otherwise the device callbacks finish once the device is closed.
+        });
+    }
+
+    // --- camera thread ----------------------------------------------------------------
+
+    private final CameraDevice.StateCallback deviceCallback = new CameraDevice.StateCallback() {
+        @Override
+        public void onOpened(CameraDevice camera) {
+            opening = false;
+            if (closed) {
+                camera.close();
+                deviceClosing = true;
+                return;
+            }
+            device = camera;
+            createSession(config);
+        }
+
+        @Override
+        public void onClosed(CameraDevice camera) {
+            deviceClosing = false;
+            if (closed) {
+                finishClose();
+            }
+        }
+
+        @Override
+        public void onDisconnected(CameraDevice camera) {
+            Log.w(TAG, "Camera disconnected");
+            release(camera);
+        }
+
+        @Override
+        public void onError(CameraDevice camera, int error) {
+            Log.e(TAG, "Camera error " + error);
+            release(camera);
+            if (!closed) {
+                onFailure.run();
+            }
+        }
+
+        private void release(CameraDevice camera) {
+            opening = false;
+            camera.close();
+            if (device == camera) {
+                device = null;
+                deviceClosing = true;
+            }
+            session = null;
+            pendingSession = null;
+        }
+    };
+
+    /** Session callbacks for one configuration; ignored once a newer session was requested. */
+    private final class SessionCallback extends CameraCaptureSession.StateCallback {
+        private final StreamConfig streamConfig;
+
+        SessionCallback(StreamConfig streamConfig) {
+            this.streamConfig = streamConfig;
+        }
+
+        @Override
+        public void onConfigured(CameraCaptureSession configured) {
+            if (closed || device == null || pendingSession != this) {
+                configured.close();
+                return;
+            }
+            pendingSession = null;
+            session = configured;
+            startRepeating(streamConfig);
+        }
+
+        @Override
+        public void onConfigureFailed(CameraCaptureSession failed) {
+            failed.close();
+            if (pendingSession != this) {
+                return; // replaced by a newer session, which closed this one
+            }
+            pendingSession = null;
+            if (!closed) {
+                fail("Capture session configuration", null);
+            }
+        }
+    }
+
+    private void updateTimestampOffset() {
+        timestampOffsetNanos = realtimeTimestamps
+                ? SystemClock.elapsedRealtimeNanos() - System.nanoTime() : 0;
+    }
+
+    private void finishClose() {
+        surface.release();
+        thread.quitSafely();
+        if (closedCallback != null) {
+            closedCallback.run();
+            closedCallback = null;
+        }
+    }
+
+    private void createSession(StreamConfig streamConfig) {
+        List<Surface> outputs = Collections.singletonList(surface);
+        SessionCallback callback = new SessionCallback(streamConfig);
+        pendingSession = callback;
+        try {
+            if (streamConfig.highSpeed && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                device.createConstrainedHighSpeedCaptureSession(outputs, callback, handler);
+            } else {
+                device.createCaptureSession(outputs, callback, handler);
+            }
+        } catch (CameraAccessException | IllegalArgumentException | IllegalStateException e) {
+            pendingSession = null;
+            fail("createCaptureSession", e);
+        }
+    }
+
+    private void startRepeating(StreamConfig streamConfig) {
+        boolean highSpeed = streamConfig.highSpeed;
+        try {
+            CaptureRequest.Builder builder = device.createCaptureRequest(
+                    highSpeed ? CameraDevice.TEMPLATE_RECORD : CameraDevice.TEMPLATE_PREVIEW);
+            builder.addTarget(surface);
+            builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, streamConfig.fpsRange);
+            int[] afModes = characteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
+            int afMode = pickMode(afModes, CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_VIDEO,
+                    CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+            if (afMode >= 0) {
+                builder.set(CaptureRequest.CONTROL_AF_MODE, afMode);
+            }
+            if (lowLatency) {
+                applyLowLatencyPreset(builder);
+            }
+            if (highSpeed && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                CameraConstrainedHighSpeedCaptureSession hs =
+                        (CameraConstrainedHighSpeedCaptureSession) session;
+                hs.setRepeatingBurst(hs.createHighSpeedRequestList(builder.build()), null, handler);
+            } else {
+                session.setRepeatingRequest(builder.build(), null, handler);
+            }
+        } catch (CameraAccessException | IllegalArgumentException | IllegalStateException e) {
+            fail("setRepeatingRequest", e);
+        }
+    }
+
+    private void applyLowLatencyPreset(CaptureRequest.Builder builder) {
+        builder.set(CaptureRequest.CONTROL_VIDEO_STABILIZATION_MODE,
+                CameraMetadata.CONTROL_VIDEO_STABILIZATION_MODE_OFF);
+        int mode = pickMode(characteristics.get(
+                        CameraCharacteristics.NOISE_REDUCTION_AVAILABLE_NOISE_REDUCTION_MODES),
+                CameraMetadata.NOISE_REDUCTION_MODE_FAST, CameraMetadata.NOISE_REDUCTION_MODE_OFF);
+        if (mode >= 0) {
+            builder.set(CaptureRequest.NOISE_REDUCTION_MODE, mode);
+        }
+        mode = pickMode(characteristics.get(CameraCharacteristics.EDGE_AVAILABLE_EDGE_MODES),
+                CameraMetadata.EDGE_MODE_FAST, CameraMetadata.EDGE_MODE_OFF);
+        if (mode >= 0) {
+            builder.set(CaptureRequest.EDGE_MODE, mode);
+        }
+        mode = pickMode(characteristics.get(
+                        CameraCharacteristics.COLOR_CORRECTION_AVAILABLE_ABERRATION_MODES),
+                CameraMetadata.COLOR_CORRECTION_ABERRATION_MODE_FAST,
+                CameraMetadata.COLOR_CORRECTION_ABERRATION_MODE_OFF);
+        if (mode >= 0) {
+            builder.set(CaptureRequest.COLOR_CORRECTION_ABERRATION_MODE, mode);
+        }
+    }
+
+    private void fail(String what, Exception e) {
+        Log.e(TAG, what + " failed", e);
+        if (!closed) {
+            onFailure.run();
+        }
+    }
+
+    // --- selection --------------------------------------------------------------------
+
+    /** The first of {@code preferred} that {@code available} contains, or -1. */
+    private static int pickMode(int[] available, int... preferred) {
+        if (available == null) {
+            return -1;
+        }
+        for (int p : preferred) {
+            for (int a : available) {
+                if (a == p) {
+                    return p;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Largest size with the sensor's aspect ratio (so the full field of view is used; see
+     * TextureTestActivity#chooseWidestPreviewSize), else the largest overall; sizes wider than
+     * {@code maxWidth} (if positive) are ignored. Null if none is left.
+     */
+    private static Size chooseWidestSize(Size[] sizes, float sensorAspect, int maxWidth) {
+        Size best = null;
+        Size bestAnyAspect = null;
+        for (Size s : sizes) {
+            if (maxWidth > 0 && s.getWidth() > maxWidth) {
+                continue;
+            }
+            long area = (long) s.getWidth() * s.getHeight();
+            if (bestAnyAspect == null
+                    || area > (long) bestAnyAspect.getWidth() * bestAnyAspect.getHeight()) {
+                bestAnyAspect = s;
+            }
+            if (matchesAspect(s, sensorAspect)
+                    && (best == null || area > (long) best.getWidth() * best.getHeight())) {
+                best = s;
+            }
+        }
+        return best != null ? best : bestAnyAspect;
+    }
+
+    private static boolean matchesAspect(Size s, float aspect) {
+        return aspect <= 0f || Math.abs((float) s.getWidth() / s.getHeight() - aspect) <= ASPECT_TOLERANCE;
+    }
+
+    /**
+     * The range with the highest maximum not above {@code maxFps}, preferring the highest minimum;
+     * else the range with the lowest maximum.
+     *
+     * <p>With {@code capExposure}, the highest minimum comes first instead: auto-exposure may
+     * stretch each frame to the range's minimum rate in dim light, so {@code [15, 30]} can expose
+     * for up to 66 ms where {@code [30, 30]} stops at 33 ms. Among ranges with the same minimum,
+     * the highest maximum still wins.
+     */
+    static Range<Integer> chooseFpsRange(Range<Integer>[] ranges, int maxFps,
+                                         boolean capExposure) {
+        Range<Integer> best = null;
+        Range<Integer> slowest = null;
+        for (Range<Integer> r : ranges) {
+            if (slowest == null || r.getUpper() < slowest.getUpper()
+                    || (r.getUpper().equals(slowest.getUpper())
+                    && r.getLower() > slowest.getLower())) {
+                slowest = r;
+            }
+            if (r.getUpper() > maxFps) {
+                continue;
+            }
+            if (best == null) {
+                best = r;
+                continue;
+            }
+            int byUpper = Integer.compare(r.getUpper(), best.getUpper());
+            int byLower = Integer.compare(r.getLower(), best.getLower());
+            int order = capExposure
+                    ? (byLower != 0 ? byLower : byUpper) : (byUpper != 0 ? byUpper : byLower);
+            if (order > 0) {
+                best = r;
+            }
+        }
+        return best != null ? best : slowest;
+    }
+
+    /**
+     * Picks a constrained high-speed size and fixed range of at least {@link #HIGH_SPEED_MIN_FPS},
+     * within the width limit and {@code maxFps} (0 for none) but not the display rate, if the
+     * camera has one; else null.
+     */
+    private StreamConfig chooseHighSpeed(StreamConfigurationMap map, float sensorAspect,
+                                         int maxWidth, int maxFps) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M
+                || (maxFps > 0 && maxFps < HIGH_SPEED_MIN_FPS)
+                || pickMode(characteristics.get(
+                        CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES),
+                CameraMetadata.REQUEST_AVAILABLE_CAPABILITIES_CONSTRAINED_HIGH_SPEED_VIDEO) < 0) {
+            return null;
+        }
+        Size bestSize = null;
+        Range<Integer> bestRange = null;
+        for (Size s : map.getHighSpeedVideoSizes()) {
+            if ((maxWidth > 0 && s.getWidth() > maxWidth) || !matchesAspect(s, sensorAspect)) {
+                continue;
+            }
+            for (Range<Integer> r : map.getHighSpeedVideoFpsRangesFor(s)) {
+                int fps = r.getUpper();
+                if (r.getLower() != fps || fps < HIGH_SPEED_MIN_FPS || (maxFps > 0 && fps > maxFps)) {
+                    continue;
+                }
+                if (bestRange == null || fps > bestRange.getUpper()
+                        || (fps == bestRange.getUpper()
+                        && (long) s.getWidth() * s.getHeight()
+                        > (long) bestSize.getWidth() * bestSize.getHeight())) {
+                    bestSize = s;
+                    bestRange = r;
+                }
+            }
+        }
+        return bestRange != null ? new StreamConfig(bestSize, bestRange, true) : null;
+    }
+
+    /** Field of view of the chosen output along one axis, from the lens and sensor geometry. */
+    private float fov(boolean horizontal) {
+        float[] focalLengths =
+                characteristics.get(CameraCharacteristics.LENS_INFO_AVAILABLE_FOCAL_LENGTHS);
+        SizeF physical = characteristics.get(CameraCharacteristics.SENSOR_INFO_PHYSICAL_SIZE);
+        Size pixels = characteristics.get(CameraCharacteristics.SENSOR_INFO_PIXEL_ARRAY_SIZE);
+        Rect active = characteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+        if (focalLengths == null || focalLengths.length == 0 || physical == null
+                || pixels == null || active == null) {
+            return 0f;
+        }
+        // Active array in millimetres, then cropped to the output's aspect ratio.
+        float activeW = physical.getWidth() * active.width() / pixels.getWidth();
+        float activeH = physical.getHeight() * active.height() / pixels.getHeight();
+        float outAspect = (float) getWidth() / getHeight();
+        if (outAspect > activeW / activeH) {
+            activeH = activeW / outAspect;
+        } else {
+            activeW = activeH * outAspect;
+        }
+        float extent = horizontal ? activeW : activeH;
+        return (float) Math.toDegrees(2 * Math.atan(extent / (2 * focalLengths[0])));
+    }
+
+    /** An output size and frame-rate range, and whether they need a high-speed session. */
+    private static final class StreamConfig {
+        final Size size;
+        final Range<Integer> fpsRange;
+        final boolean highSpeed;
+
+        StreamConfig(Size size, Range<Integer> fpsRange, boolean highSpeed) {
+            this.size = size;
+            this.fpsRange = fpsRange;
+            this.highSpeed = highSpeed;
+        }
+    }
+}
@@ -0,0 +1,848 @@
+package io.github.metavee.machinetobeanother;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+/**
+ * The distortion meshes for one viewer configuration (both eyes and the two-eye atlas), as
+ * uploaded by {@link DistortionRenderer}.
+ *
+ * <p>{@link #build} generates each eye's mesh adaptively instead of as a uniform grid. It starts
+ * from a coarse grid over the rendered FOV and repeatedly halves the cell with the largest
+ * reprojection error, across whichever axis leaves the smaller error, until every cell is within
+ * the tolerance (in pixels of the eye viewport) or the vertex budget is spent. A cell's error is
+ * how far the screen position its two triangles interpolate strays from the inverse distortion
+ * (looked up in {@link RadialDistortion}'s table), at a few points inside it. So the near-linear
+ * middle of the lens stays coarse, the strongly curved edges get the vertices, and cells stretch
+ * along the direction the mapping is straight in. A cell next to finer ones takes in their
+ * vertices on its edges, triangulated without extra points, so there are no cracks at the
+ * T-junctions. That cuts it differently from the two triangles its error was measured for, so
+ * the triangles actually emitted are measured again, along their edges too, and any cell with
+ * one over the tolerance is split and the mesh retriangulated.
+ *
+ * <p>Each eye's triangles are then reordered for the GPU's post-transform vertex cache (Tom
+ * Forsyth's linear-speed algorithm) and its vertices renumbered in order of first use, so the
+ * vertex fetches walk forwards through the buffer.
+ *
+ * <p>Vertices are interleaved (x, y in NDC; u, v texture) in one of three formats: floats (16
+ * bytes), normalized shorts (8 bytes; positions are divided by {@link #positionScale}, which the
+ * shader multiplies back, since they can reach a little past the viewport) or half floats (8
+ * bytes; needs ES 3.0 or {@code OES_vertex_half_float}, and keeps only about 11 bits, so a
+ * fraction of a pixel at the edges).
+ */
+final class DistortionMesh {
+
+    private static final String TAG = "DistortionMesh";
+
+    static final int FORMAT_FLOAT = 0;
+    static final int FORMAT_SHORT = 1;
+    static final int FORMAT_HALF = 2;
+
+    // Refinement starts from BASE_CELLS per side, and each side can be halved MAX_DEPTH times,
+    // so all vertices lie on a LATTICE-per-side grid.
+    private static final int BASE_CELLS = 4;
+    private static final int MAX_DEPTH = 6;
+    private static final int LATTICE = BASE_CELLS << MAX_DEPTH;
+    // The vertices are the cells' corners, about one per cell, which keeps the two-eye atlas
+    // draw well within 16-bit indices.
+    private static final int MAX_LEAVES = 8192;
+    // Error samples per cell side (at 1/4, 1/2 and 3/4).
+    private static final int ERROR_SAMPLES = 3;
+    // Emitted triangles are sampled on a grid of this many steps per side, edges included.
+    private static final int TRIANGLE_STEPS = 6;
+
+    // The post-transform cache Forsyth's scoring assumes, and the FIFO the result is measured
+    // against (a common size on mobile GPUs).
+    private static final int OPTIMIZE_CACHE_SIZE = 32;
+    private static final int MEASURE_CACHE_SIZE = 16;
+
+    private static final int FLOATS_PER_VERTEX = 4;
+
+    final int format;
+    final int stride;
+    // Multiplier for the stored positions: 1 except for normalized shorts.
+    final float positionScale;
+    final int[] eyeVertexCount;
+    final int[] eyeIndexCount;
+    // Largest reprojection error left in either eye, in pixels, at the sample points.
+    final float maxErrorPx;
+    // Average cache miss ratio (vertex transforms per triangle) in a MEASURE_CACHE_SIZE FIFO.
+    final float acmr;
+    // [left eye][right eye][atlas left][atlas right], positioned at 0.
+    final ByteBuffer vertices;
+    // 16-bit indices: [left eye][right eye][atlas], each relative to its first vertex.
+    final ByteBuffer indices;
+
+    DistortionMesh(int format, float positionScale, int[] eyeVertexCount, int[] eyeIndexCount,
+                   float maxErrorPx, float acmr, ByteBuffer vertices, ByteBuffer indices) {
+        this.format = format;
+        this.stride = strideOf(format);
+        this.positionScale = positionScale;
+        this.eyeVertexCount = eyeVertexCount;
+        this.eyeIndexCount = eyeIndexCount;
+        this.maxErrorPx = maxErrorPx;
+        this.acmr = acmr;
+        this.vertices = vertices;
+        this.indices = indices;
+    }
+
+    static int strideOf(int format) {
+        return format == FORMAT_FLOAT ? 16 : 8;
+    }
+
+    int vertexCount() {
+        return 2 * (eyeVertexCount[0] + eyeVertexCount[1]);
+    }
+
+    int indexCount() {
+        return 2 * (eyeIndexCount[0] + eyeIndexCount[1]);
+    }
+
+    int eyeFirstVertex(int eye) {
+        return eye == 0 ? 0 : eyeVertexCount[0];
+    }
+
+    int eyeFirstIndex(int eye) {
+        return eye == 0 ? 0 : eyeIndexCount[0];
+    }
+
+    int atlasFirstVertex() {
+        return eyeVertexCount[0] + eyeVertexCount[1];
+    }
+
+    int atlasFirstIndex() {
+        return eyeIndexCount[0] + eyeIndexCount[1];
+    }
+
+    int atlasIndexCount() {
+        return eyeIndexCount[0] + eyeIndexCount[1];
+    }
+
+    /**
+     * Generates the meshes.
+     *
+     * @param eyeWidthPx  width of one eye viewport, which the tolerance is measured in.
+     * @param eyeHeightPx height of the eye viewport.
+     * @param tolerancePx largest reprojection error to refine away, in pixels.
+     */
+    static DistortionMesh build(CardboardProfile.EyeParams[] eyes, RadialDistortion distortion,
+                                int eyeWidthPx, int eyeHeightPx, float tolerancePx, int format) {
+        float[][] eyeVertices = new float[2][];
+        short[][] eyeIndices = new short[2][];
+        float maxError = 0f;
+        float acmr = 0f;
+        for (int eye = 0; eye < 2; eye++) {
+            EyeBuilder builder = new EyeBuilder(eyes[eye], distortion, eyeWidthPx, eyeHeightPx);
+            builder.refine(tolerancePx);
+            builder.triangulate(tolerancePx);
+            eyeVertices[eye] = builder.vertices;
+            eyeIndices[eye] = builder.indices;
+            maxError = Math.max(maxError, builder.maxError);
+            acmr += builder.acmr / 2f;
+            Log.i(TAG, String.format(Locale.US,
+                    "Eye %d: %d cells, %d vertices, %d triangles, max error %.2f px, ACMR %.2f -> %.2f",
+                    eye, builder.leaves.size(), builder.vertices.length / FLOATS_PER_VERTEX,
+                    builder.indices.length / 3, builder.maxError, builder.unorderedAcmr,
+                    builder.acmr));
+        }
+
+        int[] vertexCount = {eyeVertices[0].length / FLOATS_PER_VERTEX,
+                eyeVertices[1].length / FLOATS_PER_VERTEX};
+        int[] indexCount = {eyeIndices[0].length, eyeIndices[1].length};
+        float[] all = new float[2 * (eyeVertices[0].length + eyeVertices[1].length)];
+        System.arraycopy(eyeVertices[0], 0, all, 0, eyeVertices[0].length);
+        System.arraycopy(eyeVertices[1], 0, all, eyeVertices[0].length, eyeVertices[1].length);
+        buildAtlas(eyeVertices, all, eyeVertices[0].length + eyeVertices[1].length);
+
+        float positionScale = 1f;
+        if (format == FORMAT_SHORT) {
+            for (int n = 0; n < all.length; n += FLOATS_PER_VERTEX) {
+                positionScale = Math.max(positionScale,
+                        Math.max(Math.abs(all[n]), Math.abs(all[n + 1])));
+            }
+        }
+        ByteBuffer vertices = ByteBuffer.allocateDirect(all.length / FLOATS_PER_VERTEX * strideOf(format))
+                .order(ByteOrder.nativeOrder());
+        encode(all, format, positionScale, vertices);
+
+        ByteBuffer indices = ByteBuffer.allocateDirect(2 * 2 * (indexCount[0] + indexCount[1]))
+                .order(ByteOrder.nativeOrder());
+        indices.asShortBuffer().put(eyeIndices[0]).put(eyeIndices[1]).put(eyeIndices[0]);
+        indices.position(2 * (2 * indexCount[0] + indexCount[1]));
+        for (short index : eyeIndices[1]) {
+            indices.putShort((short) (index + vertexCount[0]));
+        }
+        indices.position(0);
+
+        return new DistortionMesh(format, positionScale, vertexCount, indexCount, maxError, acmr,
+                vertices, indices);
+    }
+
+    /**
+     * Writes the two-eye atlas mesh at {@code offset}: positions squeezed into each eye's half of
+     * the full-surface NDC range and texture coordinates into each eye's half of the atlas.
+     */
+    private static void buildAtlas(float[][] eyeVertices, float[] out, int offset) {
+        int n = offset;
+        for (int eye = 0; eye < 2; eye++) {
+            float xOffset = eye == 0 ? -0.5f : 0.5f;
+            float uOffset = eye == 0 ? 0f : 0.5f;
+            float[] src = eyeVertices[eye];
+            for (int k = 0; k < src.length; k += FLOATS_PER_VERTEX) {
+                out[n++] = src[k] * 0.5f + xOffset;
+                out[n++] = src[k + 1];
+                out[n++] = src[k + 2] * 0.5f + uOffset;
+                out[n++] = src[k + 3];
+            }
+        }
+    }
+
+    private static void encode(float[] all, int format, float positionScale, ByteBuffer out) {
+        for (int n = 0; n < all.length; n += FLOATS_PER_VERTEX) {
+            switch (format) {
+                case FORMAT_SHORT:
+                    out.putShort(toNormalizedShort(all[n] / positionScale));
+                    out.putShort(toNormalizedShort(all[n + 1] / positionScale));
+                    out.putShort(toNormalizedUnsignedShort(all[n + 2]));
+                    out.putShort(toNormalizedUnsignedShort(all[n + 3]));
+                    break;
+                case FORMAT_HALF:
+                    for (int k = 0; k < FLOATS_PER_VERTEX; k++) {
+                        out.putShort(toHalf(all[n + k]));
+                    }
+                    break;
+                default:
+                    for (int k = 0; k < FLOATS_PER_VERTEX; k++) {
+                        out.putFloat(all[n + k]);
+                    }
+                    break;
+            }
+        }
+        out.position(0);
+    }
+
+    private static short toNormalizedShort(float f) {
+        return (short) Math.round(Math.max(-1f, Math.min(1f, f)) * Short.MAX_VALUE);
+    }
+
+    private static short toNormalizedUnsignedShort(float f) {
+        return (short) Math.round(Math.max(0f, Math.min(1f, f)) * 0xffff);
+    }
+
+    /** IEEE 754 half float, rounded to nearest (android.util.Half needs API 26). */
+    private static short toHalf(float f) {
+        int bits = Float.floatToRawIntBits(f);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = ((bits >>> 23) & 0xff) - 127 + 15;
+        int mantissa = bits & 0x7fffff;
+        if (exponent >= 31) {
+            return (short) (sign | 0x7c00);
+        }
+        if (exponent <= 0) {
+            if (exponent < -10) {
+                return (short) sign;
+            }
+            mantissa = (mantissa | 0x800000) >> (1 - exponent);
+            return (short) (sign | ((mantissa + 0x1000) >> 13));
+        }
+        // A mantissa rounding up carries into the exponent, as it should.
+        return (short) (sign | ((exponent << 10) + ((mantissa + 0x1000) >> 13)));
+    }
+
+    // --- one eye ----------------------------------------------------------------------
+
+    /** A rectangle of the lattice, {@code w} by {@code h} from ({@code x}, {@code y}). */
+    private static final class Cell {
+        final int x;
+        final int y;
+        final int w;
+        final int h;
+        final float error;
+
+        Cell(int x, int y, int w, int h, float error) {
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+            this.error = error;
+        }
+    }
+
+    private static final class EyeBuilder {
+        private final CardboardProfile.EyeParams ep;
+        private final RadialDistortion distortion;
+        // Pixels per NDC unit.
+        private final float pxPerNdcX;
+        private final float pxPerNdcY;
+
+        // Exact screen position (NDC) of each lattice point, computed on first use.
+        private final float[] latticeNdc = new float[2 * (LATTICE + 1) * (LATTICE + 1)];
+        private final boolean[] latticeKnown = new boolean[(LATTICE + 1) * (LATTICE + 1)];
+        private final float[] sample = new float[2];
+
+        final List<Cell> leaves = new ArrayList<>();
+        // Written by cutLeaves().
+        private int[] triLeaf = new int[4 * LATTICE];
+        private int leafTriCount;
+        // Largest error left in the emitted triangles, in pixels.
+        float maxError;
+        float unorderedAcmr;
+        float acmr;
+        float[] vertices;
+        short[] indices;
+
+        EyeBuilder(CardboardProfile.EyeParams ep, RadialDistortion distortion, int eyeWidthPx,
+                   int eyeHeightPx) {
+            this.ep = ep;
+            this.distortion = distortion;
+            pxPerNdcX = eyeWidthPx / 2f;
+            pxPerNdcY = eyeHeightPx / 2f;
+        }
+
+        /** Splits the worst cell until all are within {@code tolerancePx} or out of budget. */
+        void refine(float tolerancePx) {
+            PriorityQueue<Cell> queue = new PriorityQueue<>(64,
+                    (a, b) -> Float.compare(b.error, a.error));
+            int size = LATTICE / BASE_CELLS;
+            for (int j = 0; j < BASE_CELLS; j++) {
+                for (int i = 0; i < BASE_CELLS; i++) {
+                    queue.add(cell(i * size, j * size, size, size));
+                }
+            }
+            while (!queue.isEmpty()) {
+                Cell worst = queue.peek();
+                if (worst.error <= tolerancePx || queue.size() + leaves.size() + 1 > MAX_LEAVES) {
+                    break;
+                }
+                queue.poll();
+                Cell[] halves = split(worst);
+                if (halves == null) {
+                    leaves.add(worst);
+                    continue;
+                }
+                queue.add(halves[0]);
+                queue.add(halves[1]);
+            }
+            leaves.addAll(queue);
+            sortLeaves();
+        }
+
+        /**
+         * The halves of {@code c} across whichever axis leaves the smaller error; null if it is
+         * a single lattice square.
+         */
+        private Cell[] split(Cell c) {
+            Cell[] halves = null;
+            if (c.w > 1) {
+                int half = c.w / 2;
+                halves = new Cell[] {cell(c.x, c.y, half, c.h), cell(c.x + half, c.y, half, c.h)};
+            }
+            if (c.h > 1) {
+                int half = c.h / 2;
+                Cell bottom = cell(c.x, c.y, c.w, half);
+                Cell top = cell(c.x, c.y + half, c.w, half);
+                if (halves == null || Math.max(bottom.error, top.error)
+                        < Math.max(halves[0].error, halves[1].error)) {
+                    halves = new Cell[] {bottom, top};
+                }
+            }
+            return halves;
+        }
+
+        private void sortLeaves() {
+            // Z order, so neighbouring cells are close in the list.
+            Collections.sort(leaves, (a, b) -> Long.compare(morton(a.x, a.y), morton(b.x, b.y)));
+        }
+
+        private Cell cell(int x, int y, int w, int h) {
+            int p00 = latticePoint(x, y);
+            int p10 = latticePoint(x + w, y);
+            int p01 = latticePoint(x, y + h);
+            int p11 = latticePoint(x + w, y + h);
+            float worst = 0f;
+            for (int b = 1; b <= ERROR_SAMPLES; b++) {
+                float t = b / (float) (ERROR_SAMPLES + 1);
+                for (int a = 1; a <= ERROR_SAMPLES; a++) {
+                    float s = a / (float) (ERROR_SAMPLES + 1);
+                    // The cell's two triangles split it along the (1,0)-(0,1) diagonal.
+                    float ix;
+                    float iy;
+                    if (s + t <= 1f) {
+                        ix = lerp2(p00, p10, p01, s, t, 0);
+                        iy = lerp2(p00, p10, p01, s, t, 1);
+                    } else {
+                        ix = lerp2(p11, p01, p10, 1f - s, 1f - t, 0);
+                        iy = lerp2(p11, p01, p10, 1f - s, 1f - t, 1);
+                    }
+                    exact((x + s * w) / LATTICE, (y + t * h) / LATTICE, sample);
+                    float ex = (ix - sample[0]) * pxPerNdcX;
+                    float ey = (iy - sample[1]) * pxPerNdcY;
+                    worst = Math.max(worst, (float) Math.sqrt(ex * ex + ey * ey));
+                }
+            }
+            return new Cell(x, y, w, h, worst);
+        }
+
+        /** Coordinate {@code k} of {@code origin + a (pa - origin) + b (pb - origin)}. */
+        private float lerp2(int origin, int pa, int pb, float a, float b, int k) {
+            float o = latticeNdc[origin + k];
+            return o + a * (latticeNdc[pa + k] - o) + b * (latticeNdc[pb + k] - o);
+        }
+
+        /** Index into {@link #latticeNdc} of lattice point (x, y), computing it if needed. */
+        private int latticePoint(int x, int y) {
+            int point = y * (LATTICE + 1) + x;
+            if (!latticeKnown[point]) {
+                exact(x / (float) LATTICE, y / (float) LATTICE, sample);
+                latticeNdc[2 * point] = sample[0];
+                latticeNdc[2 * point + 1] = sample[1];
+                latticeKnown[point] = true;
+            }
+            return 2 * point;
+        }
+
+        /** The screen position (NDC) of texture coordinate (u, v). */
+        private void exact(float u, float v, float[] out) {
+            // Tan-angle relative to the lens axis, inverse-distorted to the physical screen.
+            float pxTexture = u * (ep.txLeft + ep.txRight) - ep.txLeft;
+            float pyTexture = v * (ep.txBottom + ep.txTop) - ep.txBottom;
+            float scale = distortion.inverseFactor(pxTexture * pxTexture + pyTexture * pyTexture);
+            float uScreen = (scale * pxTexture + ep.sxLeft) / (ep.sxLeft + ep.sxRight);
+            float vScreen = (scale * pyTexture + ep.sxBottom) / (ep.sxBottom + ep.sxTop);
+            out[0] = 2f * uScreen - 1f;
+            out[1] = 2f * vScreen - 1f;
+        }
+
+        /**
+         * Triangulates the leaves, splitting any whose triangles stray more than {@code
+         * tolerancePx} while the budget lasts, orders the triangles for the vertex cache and
+         * emits the vertex and index arrays.
+         */
+        void triangulate(float tolerancePx) {
+            int[] tris = new int[3 * 4 * LATTICE];
+            int triCount;
+            while (true) {
+                tris = cutLeaves(tris);
+                triCount = leafTriCount;
+                // The worst triangle of each leaf.
+                float[] leafError = new float[leaves.size()];
+                for (int t = 0; t < triCount; t++) {
+                    int leaf = triLeaf[t];
+                    leafError[leaf] = Math.max(leafError[leaf],
+                            triangleError(tris[3 * t], tris[3 * t + 1], tris[3 * t + 2]));
+                }
+                maxError = 0f;
+                List<Cell> refined = new ArrayList<>(leaves.size());
+                int budget = MAX_LEAVES - leaves.size();
+                for (int i = 0; i < leaves.size(); i++) {
+                    Cell[] halves = leafError[i] > tolerancePx && budget > 0
+                            ? split(leaves.get(i)) : null;
+                    if (halves == null) {
+                        refined.add(leaves.get(i));
+                        maxError = Math.max(maxError, leafError[i]);
+                    } else {
+                        refined.add(halves[0]);
+                        refined.add(halves[1]);
+                        budget--;
+                    }
+                }
+                if (refined.size() == leaves.size()) {
+                    break;
+                }
+                leaves.clear();
+                leaves.addAll(refined);
+                sortLeaves();
+            }
+
+            // Triangles as lattice points, then compacted to vertex ids in order of appearance.
+            int[] ids = new int[(LATTICE + 1) * (LATTICE + 1)];
+            Arrays.fill(ids, -1);
+            int[] points = new int[(LATTICE + 1) * (LATTICE + 1)];
+            int vertexCount = 0;
+            for (int k = 0; k < 3 * triCount; k++) {
+                int point = tris[k];
+                if (ids[point] < 0) {
+                    ids[point] = vertexCount;
+                    points[vertexCount++] = point;
+                }
+                tris[k] = ids[point];
+            }
+            tris = Arrays.copyOf(tris, 3 * triCount);
+
+            unorderedAcmr = measureAcmr(tris, vertexCount);
+            int[] ordered = optimizeVertexCache(tris, vertexCount);
+            acmr = measureAcmr(ordered, vertexCount);
+
+            // Renumber in order of first use and emit.
+            int[] remap = new int[vertexCount];
+            Arrays.fill(remap, -1);
+            vertices = new float[vertexCount * FLOATS_PER_VERTEX];
+            indices = new short[ordered.length];
+            int next = 0;
+            for (int k = 0; k < ordered.length; k++) {
+                int id = ordered[k];
+                if (remap[id] < 0) {
+                    remap[id] = next;
+                    int point = points[id];
+                    int x = point % (LATTICE + 1);
+                    int y = point / (LATTICE + 1);
+                    int at = latticePoint(x, y);
+                    int n = next * FLOATS_PER_VERTEX;
+                    vertices[n] = latticeNdc[at];
+                    vertices[n + 1] = latticeNdc[at + 1];
+                    vertices[n + 2] = x / (float) LATTICE;
+                    vertices[n + 3] = y / (float) LATTICE;
+                    next++;
+                }
+                indices[k] = (short) remap[id];
+            }
+        }
+
+        /**
+         * Cuts every leaf into triangles of lattice points, into {@code tris} (grown if needed,
+         * and returned), with {@link #triLeaf} recording each one's leaf and {@link
+         * #leafTriCount} how many there are.
+         */
+        private int[] cutLeaves(int[] tris) {
+            boolean[] corner = new boolean[(LATTICE + 1) * (LATTICE + 1)];
+            for (Cell leaf : leaves) {
+                int x1 = leaf.x + leaf.w;
+                int y1 = leaf.y + leaf.h;
+                corner[leaf.y * (LATTICE + 1) + leaf.x] = true;
+                corner[leaf.y * (LATTICE + 1) + x1] = true;
+                corner[y1 * (LATTICE + 1) + leaf.x] = true;
+                corner[y1 * (LATTICE + 1) + x1] = true;
+            }
+            int[] ring = new int[4 * LATTICE];
+            int triCount = 0;
+            for (int i = 0; i < leaves.size(); i++) {
+                Cell leaf = leaves.get(i);
+                int n = boundary(leaf, corner, ring);
+                if (3 * (triCount + n) > tris.length) {
+                    tris = Arrays.copyOf(tris, Math.max(2 * tris.length, 3 * (triCount + n)));
+                }
+                if (triCount + n > triLeaf.length) {
+                    triLeaf = Arrays.copyOf(triLeaf, Math.max(2 * triLeaf.length, triCount + n));
+                }
+                int first = triCount;
+                // ring: bottom-left, [bottom edge], bottom-right, [right], top-right, [top],
+                // top-left, [left]. Winding matches the uniform grid's (clockwise in u, v).
+                if (n == 4) {
+                    // Split along the diagonal the error was measured for.
+                    int bl = ring[0];
+                    int br = ring[1];
+                    int tr = ring[2];
+                    int tl = ring[3];
+                    tris[3 * triCount] = bl; tris[3 * triCount + 1] = tl; tris[3 * triCount + 2] = br;
+                    triCount++;
+                    tris[3 * triCount] = br; tris[3 * triCount + 1] = tl; tris[3 * triCount + 2] = tr;
+                    triCount++;
+                } else {
+                    triCount = clipEars(leaf, ring, n, tris, triCount);
+                }
+                Arrays.fill(triLeaf, first, triCount, i);
+            }
+            leafTriCount = triCount;
+            return tris;
+        }
+
+        /**
+         * The largest distance, in pixels, between the screen position lattice triangle (a, b, c)
+         * interpolates and the exact one, over a {@link #TRIANGLE_STEPS} grid across it.
+         */
+        private float triangleError(int a, int b, int c) {
+            int ax = a % (LATTICE + 1);
+            int ay = a / (LATTICE + 1);
+            int bx = b % (LATTICE + 1);
+            int by = b / (LATTICE + 1);
+            int cx = c % (LATTICE + 1);
+            int cy = c / (LATTICE + 1);
+            int pa = latticePoint(ax, ay);
+            int pb = latticePoint(bx, by);
+            int pc = latticePoint(cx, cy);
+            float worst = 0f;
+            for (int j = 0; j <= TRIANGLE_STEPS; j++) {
+                for (int i = 0; i + j <= TRIANGLE_STEPS; i++) {
+                    if (i == TRIANGLE_STEPS || j == TRIANGLE_STEPS || i + j == 0) {
+                        continue; // a vertex, exact by construction
+                    }
+                    float s = i / (float) TRIANGLE_STEPS;
+                    float t = j / (float) TRIANGLE_STEPS;
+                    float ix = lerp2(pa, pb, pc, s, t, 0);
+                    float iy = lerp2(pa, pb, pc, s, t, 1);
+                    exact((ax + s * (bx - ax) + t * (cx - ax)) / LATTICE,
+                            (ay + s * (by - ay) + t * (cy - ay)) / LATTICE, sample);
+                    float ex = (ix - sample[0]) * pxPerNdcX;
+                    float ey = (iy - sample[1]) * pxPerNdcY;
+                    worst = Math.max(worst, (float) Math.sqrt(ex * ex + ey * ey));
+                }
+            }
+            return worst;
+        }
+
+        /**
+         * Triangulates the convex polygon {@code ring[0..n)} (counter-clockwise, with runs of
+         * collinear points along the cell's edges) without adding points: repeatedly cuts off the
+         * best-shaped corner that isn't in the middle of a run, and whose cut doesn't run along
+         * an edge (through the points on it). Returns the new triangle count.
+         *
+         * <p>A cell's boundary always has such a corner while more than three points are left.
+         * Should none be found, the rest is fanned out from the first point instead: the fan
+         * keeps every boundary segment as a triangle edge (degenerate triangles along a run
+         * included), so it still matches the neighbours.
+         */
+        private static int clipEars(Cell leaf, int[] ring, int n, int[] tris, int triCount) {
+            while (n > 3) {
+                int best = -1;
+                float bestShape = 0f;
+                for (int k = 0; k < n; k++) {
+                    int a = ring[(k + n - 1) % n];
+                    int b = ring[k];
+                    int c = ring[(k + 1) % n];
+                    if (onSameEdge(leaf, a, c)) {
+                        continue;
+                    }
+                    float shape = shape(a, b, c);
+                    if (shape > bestShape) {
+                        bestShape = shape;
+                        best = k;
+                    }
+                }
+                if (best < 0) {
+                    break;
+                }
+                int a = ring[(best + n - 1) % n];
+                int c = ring[(best + 1) % n];
+                tris[3 * triCount] = a;
+                tris[3 * triCount + 1] = c;
+                tris[3 * triCount + 2] = ring[best];
+                triCount++;
+                System.arraycopy(ring, best + 1, ring, best, n - best - 1);
+                n--;
+            }
+            for (int k = 1; k + 1 < n; k++) {
+                tris[3 * triCount] = ring[0];
+                tris[3 * triCount + 1] = ring[k + 1];
+                tris[3 * triCount + 2] = ring[k];
+                triCount++;
+            }
+            return triCount;
+        }
+
+        private static boolean onSameEdge(Cell leaf, int a, int c) {
+            int ax = a % (LATTICE + 1);
+            int ay = a / (LATTICE + 1);
+            int cx = c % (LATTICE + 1);
+            int cy = c / (LATTICE + 1);
+            return (ax == cx && (ax == leaf.x || ax == leaf.x + leaf.w))
+                    || (ay == cy && (ay == leaf.y || ay == leaf.y + leaf.h));
+        }
+
+        /**
+         * Twice the area of lattice triangle (a, b, c) over its longest edge squared: 0 for a
+         * degenerate triangle, largest for an equilateral one.
+         */
+        private static float shape(int a, int b, int c) {
+            int ax = a % (LATTICE + 1);
+            int ay = a / (LATTICE + 1);
+            int bx = b % (LATTICE + 1) - ax;
+            int by = b / (LATTICE + 1) - ay;
+            int cx = c % (LATTICE + 1) - ax;
+            int cy = c / (LATTICE + 1) - ay;
+            long area = Math.abs((long) bx * cy - (long) by * cx);
+            long ab = (long) bx * bx + (long) by * by;
+            long ac = (long) cx * cx + (long) cy * cy;
+            long bc = (long) (cx - bx) * (cx - bx) + (long) (cy - by) * (cy - by);
+            return area / (float) Math.max(ab, Math.max(ac, bc));
+        }
+
+        /**
+         * Collects the lattice points on the leaf's boundary that are corners of some leaf,
+         * counter-clockwise from its bottom-left corner. Returns how many there are.
+         */
+        private static int boundary(Cell leaf, boolean[] corner, int[] ring) {
+            int x0 = leaf.x;
+            int y0 = leaf.y;
+            int x1 = x0 + leaf.w;
+            int y1 = y0 + leaf.h;
+            int n = 0;
+            for (int x = x0; x < x1; x++) {
+                n = addIfCorner(x, y0, corner, ring, n);
+            }
+            for (int y = y0; y < y1; y++) {
+                n = addIfCorner(x1, y, corner, ring, n);
+            }
+            for (int x = x1; x > x0; x--) {
+                n = addIfCorner(x, y1, corner, ring, n);
+            }
+            for (int y = y1; y > y0; y--) {
+                n = addIfCorner(x0, y, corner, ring, n);
+            }
+            return n;
+        }
+
+        private static int addIfCorner(int x, int y, boolean[] corner, int[] ring, int n) {
+            int point = y * (LATTICE + 1) + x;
+            if (corner[point]) {
+                ring[n++] = point;
+            }
+            return n;
+        }
+    }
+
+    private static long morton(int x, int y) {
+        long code = 0;
+        for (int bit = 0; bit < 16; bit++) {
+            code |= ((long) (x >> bit & 1) << (2 * bit)) | ((long) (y >> bit & 1) << (2 * bit + 1));
+        }
+        return code;
+    }
+
+    // --- vertex cache -----------------------------------------------------------------
+
+    /**
+     * Reorders the triangles for an LRU post-transform cache with Forsyth's greedy scoring:
+     * each step emits the best-scoring triangle among those touching the cached vertices,
+     * favouring vertices used recently and vertices with few triangles left.
+     */
+    static int[] optimizeVertexCache(int[] tris, int vertexCount) {
+        int triCount = tris.length / 3;
+        int[] remaining = new int[vertexCount];
+        for (int index : tris) {
+            remaining[index]++;
+        }
+        // Triangles using each vertex (compressed rows).
+        int[] adjStart = new int[vertexCount + 1];
+        for (int v = 0; v < vertexCount; v++) {
+            adjStart[v + 1] = adjStart[v] + remaining[v];
+        }
+        int[] adjFill = Arrays.copyOf(adjStart, vertexCount);
+        int[] adj = new int[tris.length];
+        for (int t = 0; t < triCount; t++) {
+            for (int k = 0; k < 3; k++) {
+                adj[adjFill[tris[3 * t + k]]++] = t;
+            }
+        }
+
+        int[] cachePos = new int[vertexCount];
+        Arrays.fill(cachePos, -1);
+        float[] vertexScore = new float[vertexCount];
+        for (int v = 0; v < vertexCount; v++) {
+            vertexScore[v] = forsythScore(-1, remaining[v]);
+        }
+        float[] triScore = new float[triCount];
+        boolean[] emitted = new boolean[triCount];
+        int best = 0;
+        for (int t = 0; t < triCount; t++) {
+            triScore[t] = vertexScore[tris[3 * t]] + vertexScore[tris[3 * t + 1]]
+                    + vertexScore[tris[3 * t + 2]];
+            if (triScore[t] > triScore[best]) {
+                best = t;
+            }
+        }
+
+        int[] cache = new int[OPTIMIZE_CACHE_SIZE + 3];
+        int[] nextCache = new int[OPTIMIZE_CACHE_SIZE + 3];
+        int cacheCount = 0;
+        int[] out = new int[tris.length];
+        int scan = 0;
+        for (int emittedCount = 0; emittedCount < triCount; emittedCount++) {
+            if (best < 0) {
+                // Nothing in the cache has triangles left; start from the next unused one.
+                while (emitted[scan]) {
+                    scan++;
+                }
+                best = scan;
+            }
+            emitted[best] = true;
+            int n = 0;
+            for (int k = 0; k < 3; k++) {
+                int v = tris[3 * best + k];
+                out[3 * emittedCount + k] = v;
+                remaining[v]--;
+                nextCache[n++] = v;
+            }
+            for (int k = 0; k < cacheCount; k++) {
+                int v = cache[k];
+                if (v != nextCache[0] && v != nextCache[1] && v != nextCache[2]) {
+                    nextCache[n++] = v;
+                }
+            }
+            for (int k = 0; k < n; k++) {
+                int v = nextCache[k];
+                cachePos[v] = k < OPTIMIZE_CACHE_SIZE ? k : -1;
+                vertexScore[v] = forsythScore(cachePos[v], remaining[v]);
+            }
+
+            best = -1;
+            float bestScore = -1f;
+            for (int k = 0; k < n; k++) {
+                int v = nextCache[k];
+                for (int a = adjStart[v]; a < adjStart[v + 1]; a++) {
+                    int t = adj[a];
+                    if (emitted[t]) {
+                        continue;
+                    }
+                    triScore[t] = vertexScore[tris[3 * t]] + vertexScore[tris[3 * t + 1]]
+                            + vertexScore[tris[3 * t + 2]];
+                    if (triScore[t] > bestScore) {
+                        bestScore = triScore[t];
+                        best = t;
+                    }
+                }
+            }
+
+            cacheCount = Math.min(n, OPTIMIZE_CACHE_SIZE);
+            int[] swap = cache;
+            cache = nextCache;
+            nextCache = swap;
+        }
+        return out;
+    }
+
+    private static float forsythScore(int cachePos, int remaining) {
+        if (remaining == 0) {
+            return -1f;
+        }
+        float score = 0f;
+        if (cachePos >= 0) {
+            // The last triangle's vertices score the same, so they aren't favoured for a strip.
+            score = cachePos < 3 ? 0.75f : (float) Math.pow(
+                    1f - (cachePos - 3) / (float) (OPTIMIZE_CACHE_SIZE - 3), 1.5);
+        }
+        return score + 2f * (float) Math.pow(remaining, -0.5);
+    }
+
+    /** Vertex transforms per triangle for {@code tris} through a FIFO cache. */
+    static float measureAcmr(int[] tris, int vertexCount) {
+        if (tris.length == 0) {
+            return 0f;
+        }
+        int[] fifo = new int[MEASURE_CACHE_SIZE];
+        Arrays.fill(fifo, -1);
+        boolean[] cached = new boolean[vertexCount];
+        int head = 0;
+        int misses = 0;
+        for (int v : tris) {
+            if (cached[v]) {
+                continue;
+            }
+            misses++;
+            if (fifo[head] >= 0) {
+                cached[fifo[head]] = false;
+            }
+            fifo[head] = v;
+            cached[v] = true;
+            head = (head + 1) % MEASURE_CACHE_SIZE;
+        }
+        return misses / (tris.length / 3f);
+    }
+}
@@ -1,17 +1,16 @@
 package io.github.metavee.machinetobeanother;
 
 import android.content.Context;
+import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.nio.ShortBuffer;
+import java.util.Locale;
 
 /**
  * Lens barrel-distortion post-process, following the Google Cardboard SDK model.
@@ -22,70 +21,376 @@ import java.nio.ShortBuffer;
  * distortion cancels out and straight lines look straight, with the perceived field of view equal
  * to the physical screen (no zoom).
  *
- * <p>The mesh is generated once per configuration. It is a uniform grid in <em>texture</em>
+ * <p>The mesh is generated once per configuration. Its vertices lie in <em>texture</em>
  * (rendered-FOV) space; each vertex's screen position is the inverse radial distortion of its
  * texture tan-angle, mapped onto the physical screen extent:
  * <pre>
- *   p_texture = uniform grid over the rendered FOV tangents
+ *   p_texture = vertex over the rendered FOV tangents
  *   p_screen  = DistortInverse(p_texture)                        // radial
  *   ndc       = 2 * (p_screen + screenEyeOffset) / screenSpan - 1
  * </pre>
- * With zero distortion coefficients this reduces to an identity blit.
+ * All the profile's coefficients are used, through one {@link RadialDistortion} table per
+ * configuration. With zero distortion coefficients this reduces to an identity blit. The
+ * vertices are placed adaptively, dense only where the mapping curves, to keep the error within
+ * {@link #setMeshTolerance} (see {@link DistortionMesh}). Generated meshes are kept in a {@link
+ * MeshCache}, so configuring a viewer seen before maps the mesh from disk instead.
+ *
+ * <p>Because the scene is only the textured passthrough quad, there is also a fused mode
+ * ({@link #renderEyeDirect}) that skips the off-screen buffer entirely: the same mesh is drawn
+ * with its rendered-FOV coordinates mapped onto the quad and into camera-texture space, so each
+ * eye is a single pass sampling the camera's external (OES) texture. The FBO path
+ * ({@link #bindEyeBuffer} + {@link #renderEye}) remains for scenes that are not a single quad.
+ *
+ * <p>The FBO path can also run as an eye atlas ({@link #setAtlasMode}): one double-width
+ * off-screen target holds both eyes side by side, filled in a single render pass, and a combined
+ * two-eye mesh distorts it onto the screen in one draw. That halves the framebuffer switches,
+ * clears and resolves per frame, which matters on tile-based mobile GPUs.
+ *
+ * <p>Instead of the mesh, every path can also distort per pixel: each eye is a plain quad and the
+ * fragment shader distorts each pixel's screen tan-angle into the rendered FOV (looking the
+ * factor up in a coarser copy of the same table, as a texture) and samples there. That lookup is
+ * within about 1e-4 of tan-angle, a tenth of a pixel, where fragment shaders have highp floats;
+ * without them only the mesh is used. Which is faster depends on the GPU (the mesh costs
+ * vertices, per-pixel costs fragment math), so by default the two are timed on the device over
+ * the first frames after {@link #configure} ({@link #stepBenchmark}, with the {@link
+ * FrameProfiler}'s GPU timer queries) and the faster one kept for the eye-buffer paths. Only
+ * those are timed: the fused pass samples the camera texture with other shaders, so it keeps the
+ * mesh unless {@link #setTechnique} asks for per-pixel distortion.
+ *
+ * <p>On the FBO paths the eye can be rendered at a fraction of the buffer's size ({@link
+ * #setResolutionScale}): the scene is drawn into the bottom-left part of each eye's region and
+ * the distortion pass scales its texture coordinates to match, so changing the scale neither
+ * reallocates the buffer nor rebuilds the meshes.
  */
 public final class DistortionRenderer {
 
     private static final String TAG = "DistortionRenderer";
 
-    // Distortion mesh resolution (cells per side); (GRID+1)^2 vertices per eye.
-    private static final int GRID = 40;
+    // Largest distortion mesh error (pixels of the eye viewport) and its vertex format.
+    private static final float DEFAULT_MESH_TOLERANCE_PX = 0.5f;
+    private static final float MIN_MESH_TOLERANCE_PX = 0.05f;
+    private float meshTolerance = DEFAULT_MESH_TOLERANCE_PX;
+    private int vertexFormat = DistortionMesh.FORMAT_SHORT;
+    // OES_vertex_half_float's type, for ES 2.0 contexts.
+    private static final int GL_HALF_FLOAT_OES = 0x8D61;
+    // The vertex attribute type for half floats in this context, or 0 if there is none.
+    private int halfFloatType;
 
     private final Context context;
+    private final Gl gl;
+    private final MeshCache meshCache;
 
     private int program;
     private int positionParam;
     private int texCoordParam;
     private int textureUniform;
-
-    // Shared off-screen buffer, sized to a single eye viewport and reused for both eyes.
+    private int texScaleUniform;
+    private int positionScaleUniform;
+
+    // Fused passthrough program (samples the camera OES texture through the mesh). Zero if it
+    // failed to build, in which case only the FBO path is available.
+    private int directProgram;
+    private int directPositionParam;
+    private int directTexCoordParam;
+    private int directTextureUniform;
+    private int directQuadTransformUniform;
+    private int directTexTransformUniform;
+    private int directPositionScaleUniform;
+
+    // Framebuffer binds and distortion draws per frame on the per-eye FBO path (bind the eye
+    // buffer, then the screen, and draw the mesh, once per eye); the baseline the atlas is
+    // measured against.
+    private static final int PER_EYE_FRAMEBUFFER_BINDS = 4;
+    private static final int PER_EYE_DISTORTION_DRAWS = 2;
+
+    // Off-screen buffer: a single eye viewport reused for both eyes, or in atlas mode a
+    // double-width target holding the left eye in its left half and the right eye in its right.
     private int fbo;
     private int fboColorTex;
     private int fboDepthRb;
+    private int fboWidth;
     private int eyeWidth;
     private int eyeHeight;
 
-    // Per-eye mesh: screen positions and texture coordinates. The triangle indices (grid
-    // topology) are shared.
-    private final FloatBuffer[] positionBuffers = new FloatBuffer[2];
-    private final FloatBuffer[] texCoordBuffers = new FloatBuffer[2];
-    private ShortBuffer indexBuffer;
-    private int indexCount;
-
-    // Distortion polynomial coefficients (k1, k2) for the inverse used in the mesh.
-    private float k1;
-    private float k2;
+    // Resolution scale and the part of each eye's region actually rendered (in atlas mode the
+    // two scaled eyes sit side by side from the left edge, so one texture scale fits both).
+    private static final float MIN_RESOLUTION_SCALE = 0.25f;
+    private float resolutionScale = 1f;
+    private int renderWidth;
+    private int renderHeight;
+
+    // Distortion meshes, uploaded once per configure() into GPU buffer objects so no geometry
+    // crosses the bus per frame. Vertices are laid out as [left eye][right eye][atlas], the
+    // atlas being both eyes squeezed into the full surface, and the index buffer likewise, each
+    // list addressed from its own first vertex (see DistortionMesh).
+    private int meshVbo;
+    private int meshIbo;
+    private DistortionMesh mesh;
+
+    private boolean atlasMode;
+
+    public static final int TECHNIQUE_AUTO = 0;
+    public static final int TECHNIQUE_MESH = 1;
+    public static final int TECHNIQUE_PER_PIXEL = 2;
+
+    // Per-pixel programs (null if they failed to build, in which case only the mesh is used),
+    // and their quads: one per eye over the eye viewport, then the two atlas halves, each two
+    // triangles of (x, y in NDC; x, y across the eye; eye index).
+    private PixelProgram pixelProgram;
+    private PixelProgram pixelDirectProgram;
+    private static final int PIXEL_VERTEX_FLOATS = 5;
+    private static final int PIXEL_VERTEX_STRIDE = PIXEL_VERTEX_FLOATS * 4;
+    private static final int PIXEL_QUAD_VERTICES = 6;
+    private int pixelVbo;
+    // Per-eye uniforms (vec4 each, left then right), set by configure().
+    private final float[] screenTan = new float[8];
+    private final float[] texMap = new float[8];
+    private final float[] outMap = new float[8];
+    // The viewer's distortion, and the per-pixel programs' copy of its table (texture unit 1).
+    private RadialDistortion distortion;
+    private int distortionTex;
+    private final float[] distortionMap = new float[4];
+    // Mantissa bits the per-pixel lookup needs: the 16-bit table values and r^2 at the edge of
+    // the FOV. The ES 2.0 minimum for highp; fp16 (mediump) has 10.
+    private static final int MIN_LOOKUP_PRECISION_BITS = 16;
+
+    // The requested technique, the one in use, and the configuration (eye size and lens; not
+    // the mesh tolerance, which the thermal governor changes) the last benchmark was run for,
+    // with its outcome. A benchmark times BENCHMARK_ROUNDS passes of each technique, one pass a
+    // frame, alternating, and keeps each one's fastest; disjoint timings restart it, up to
+    // BENCHMARK_ATTEMPTS times.
+    private static final int BENCHMARK_ROUNDS = 4;
+    private static final int BENCHMARK_ATTEMPTS = 3;
+    private int technique = TECHNIQUE_AUTO;
+    // Per eye-buffer path, and for the fused pass, which the benchmark doesn't time.
+    private boolean perPixel;
+    private boolean directPerPixel;
+    private FrameProfiler profiler;
+    private String benchmarkedFor;
+    private boolean benchmarkPerPixel;
+    // The next pass to issue (its probe slot), 2 * BENCHMARK_ROUNDS once all are, or -1 with
+    // no benchmark running; and the scratch target the passes draw into.
+    private int benchmarkPass = -1;
+    private int benchmarkAttempts;
+    private int benchmarkFbo;
+    private int benchmarkTex;
+
+    // Framebuffer binds and distortion draws issued by the atlas path in the current frame.
+    private int frameFramebufferBinds;
+    private int frameDistortionDraws;
+    private boolean atlasSavingsLogged;
 
     private boolean ready;
 
-    public DistortionRenderer(Context context) {
+    public DistortionRenderer(Context context, Gl gl) {
         this.context = context;
+        this.gl = gl;
+        this.meshCache = MeshCache.get(context);
     }
 
     public boolean isReady() {
         return ready;
     }
 
-    /** Compiles the shader program. Must be called on the GL thread (onSurfaceCreated). */
+    /**
+     * Selects the eye-atlas layout for the FBO path. Takes effect on the next {@link #configure},
+     * which (re)allocates the off-screen buffer at the matching size.
+     */
+    public void setAtlasMode(boolean atlas) {
+        if (atlas != atlasMode) {
+            atlasMode = atlas;
+            fboWidth = 0; // force the buffer to be recreated
+        }
+    }
+
+    public boolean isAtlasMode() {
+        return atlasMode;
+    }
+
+    /** Framebuffer binds the atlas saves per frame compared with the per-eye FBO path. */
+    public int getSavedFramebufferBinds() {
+        return atlasMode ? PER_EYE_FRAMEBUFFER_BINDS - frameFramebufferBinds : 0;
+    }
+
+    /** Draw calls the atlas saves per frame compared with the per-eye FBO path. */
+    public int getSavedDrawCalls() {
+        return atlasMode ? PER_EYE_DISTORTION_DRAWS - frameDistortionDraws : 0;
+    }
+
+    /**
+     * Sets the largest error the distortion mesh may leave, in pixels of the eye viewport (0.5 by
+     * default); a larger tolerance needs fewer vertices. Takes effect on the next {@link
+     * #configure}.
+     */
+    public void setMeshTolerance(float pixels) {
+        meshTolerance = Math.max(MIN_MESH_TOLERANCE_PX, pixels);
+    }
+
+    /**
+     * Sets the mesh vertex format, one of the {@code DistortionMesh.FORMAT_} constants (normalized
+     * shorts by default). Half floats fall back to shorts where the context has no half-float
+     * attributes. Takes effect on the next {@link #configure}.
+     */
+    public void setVertexFormat(int format) {
+        vertexFormat = format;
+    }
+
+    /**
+     * Renders each eye at {@code scale} (of the configured eye size, per axis) on the FBO paths.
+     * Cheap to call per frame: only the viewport and a uniform change. Has no effect on the
+     * fused pass, which has no eye buffer.
+     */
+    public void setResolutionScale(float scale) {
+        resolutionScale = Math.max(MIN_RESOLUTION_SCALE, Math.min(1f, scale));
+        updateRenderSize();
+    }
+
+    public float getResolutionScale() {
+        return resolutionScale;
+    }
+
+    /**
+     * Selects the distortion technique, one of the {@code TECHNIQUE_} constants: mesh, per pixel,
+     * or (the default) whichever a short benchmark finds faster on this device for the eye-buffer
+     * paths, with the mesh for the fused pass. Takes effect on the next {@link #configure}.
+     */
+    public void setTechnique(int technique) {
+        this.technique = technique;
+    }
+
+    /**
+     * The profiler whose GPU timer queries time the benchmark. Without one, or without timer
+     * queries, {@link #TECHNIQUE_AUTO} keeps the mesh.
+     */
+    public void setProfiler(FrameProfiler profiler) {
+        this.profiler = profiler;
+    }
+
+    /** Whether the eye-buffer paths distort per pixel (else through the mesh). */
+    public boolean isPerPixel() {
+        return perPixel;
+    }
+
+    /** Whether the fused pass ({@link #renderEyeDirect}) distorts per pixel. */
+    public boolean isDirectPerPixel() {
+        return directPerPixel;
+    }
+
+    /** Whether the fused passthrough pass ({@link #renderEyeDirect}) is available. */
+    public boolean isDirectSupported() {
+        return directProgram != 0;
+    }
+
+    /**
+     * Compiles the shader programs and creates the mesh buffer objects. Must be called on the GL
+     * thread (onSurfaceCreated).
+     */
     public void init() {
-        int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, R.raw.distortion_vertex);
-        int fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, R.raw.distortion_fragment);
-        program = GLES20.glCreateProgram();
-        GLES20.glAttachShader(program, vertexShader);
-        GLES20.glAttachShader(program, fragmentShader);
-        GLES20.glLinkProgram(program);
+        int[] buffers = new int[2];
+        gl.glGenBuffers(2, buffers, 0);
+        meshVbo = buffers[0];
+        meshIbo = buffers[1];
+
+        program = GlPrograms.link(gl, context, R.raw.distortion_vertex, R.raw.distortion_fragment);
+
+        positionParam = gl.glGetAttribLocation(program, "a_Position");
+        texCoordParam = gl.glGetAttribLocation(program, "a_TexCoordinate");
+        textureUniform = gl.glGetUniformLocation(program, "u_Texture");
+        texScaleUniform = gl.glGetUniformLocation(program, "u_TexScale");
+        positionScaleUniform = gl.glGetUniformLocation(program, "u_PositionScale");
+
+        String version = gl.glGetString(GLES20.GL_VERSION);
+        String extensions = gl.glGetString(GLES20.GL_EXTENSIONS);
+        if (version != null && version.startsWith("OpenGL ES 3")) {
+            halfFloatType = GLES30.GL_HALF_FLOAT;
+        } else if (extensions != null && extensions.contains("GL_OES_vertex_half_float")) {
+            halfFloatType = GL_HALF_FLOAT_OES;
+        } else {
+            halfFloatType = 0;
+        }
+
+        initPerPixel();
 
-        positionParam = GLES20.glGetAttribLocation(program, "a_Position");
-        texCoordParam = GLES20.glGetAttribLocation(program, "a_TexCoordinate");
-        textureUniform = GLES20.glGetUniformLocation(program, "u_Texture");
+        try {
+            directProgram = GlPrograms.link(gl, context, R.raw.distortion_direct_vertex, R.raw.distortion_oes_fragment);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Fused passthrough pass unavailable; using the FBO path", e);
+            directProgram = 0;
+            return;
+        }
+        directPositionParam = gl.glGetAttribLocation(directProgram, "a_Position");
+        directTexCoordParam = gl.glGetAttribLocation(directProgram, "a_TexCoordinate");
+        directTextureUniform = gl.glGetUniformLocation(directProgram, "u_Texture");
+        directQuadTransformUniform = gl.glGetUniformLocation(directProgram, "u_QuadTransform");
+        directTexTransformUniform = gl.glGetUniformLocation(directProgram, "u_TexTransform");
+        directPositionScaleUniform = gl.glGetUniformLocation(directProgram, "u_PositionScale");
+    }
+
+    private void initPerPixel() {
+        // The table lookup needs highp fragment floats: at mediump (fp16) the 16-bit factor and
+        // r^2 lose several pixels of accuracy at the edges. Devices without it report 0 bits.
+        int[] range = new int[2];
+        int[] precision = new int[1];
+        gl.glGetShaderPrecisionFormat(GLES20.GL_FRAGMENT_SHADER, GLES20.GL_HIGH_FLOAT, range, 0,
+                precision, 0);
+        if (precision[0] < MIN_LOOKUP_PRECISION_BITS) {
+            Log.w(TAG, "No highp fragment floats; per-pixel distortion unavailable, using the mesh");
+            pixelProgram = null;
+            pixelDirectProgram = null;
+            return;
+        }
+        try {
+            pixelProgram = new PixelProgram(gl, context, R.raw.distortion_pixel_fragment);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Per-pixel distortion unavailable; using the mesh", e);
+            pixelProgram = null;
+            pixelDirectProgram = null;
+            return;
+        }
+        try {
+            pixelDirectProgram = new PixelProgram(gl, context, R.raw.distortion_pixel_oes_fragment);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Per-pixel fused pass unavailable; it uses the mesh", e);
+            pixelDirectProgram = null;
+        }
+
+        float[] quads = new float[4 * PIXEL_QUAD_VERTICES * PIXEL_VERTEX_FLOATS];
+        int n = 0;
+        n = putPixelQuad(quads, n, -1f, 1f, 0);
+        n = putPixelQuad(quads, n, -1f, 1f, 1);
+        n = putPixelQuad(quads, n, -1f, 0f, 0);
+        putPixelQuad(quads, n, 0f, 1f, 1);
+        FloatBuffer vb = ByteBuffer.allocateDirect(quads.length * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        vb.put(quads).position(0);
+        int[] ids = new int[1];
+        gl.glGenBuffers(1, ids, 0);
+        pixelVbo = ids[0];
+        gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, pixelVbo);
+        gl.glBufferData(GLES20.GL_ARRAY_BUFFER, quads.length * 4, vb, GLES20.GL_STATIC_DRAW);
+        gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+
+        gl.glGenTextures(1, ids, 0);
+        distortionTex = ids[0];
+        gl.glBindTexture(GLES20.GL_TEXTURE_2D, distortionTex);
+        gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        gl.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+    }
+
+    /** Writes a full-height quad from NDC x {@code left} to {@code right} for {@code eye}. */
+    private static int putPixelQuad(float[] out, int n, float left, float right, int eye) {
+        float[][] corners = {{0f, 0f}, {1f, 0f}, {0f, 1f}, {0f, 1f}, {1f, 0f}, {1f, 1f}};
+        for (float[] c : corners) {
+            out[n++] = left + c[0] * (right - left);
+            out[n++] = 2f * c[1] - 1f;
+            out[n++] = c[0];
+            out[n++] = c[1];
+            out[n++] = eye;
+        }
+        return n;
     }
 
     /** Marks the distortion pass as unavailable (caller should render straight to screen). */
@@ -99,7 +404,8 @@ public final class DistortionRenderer {
      * @param eyeWidthPx       width of one eye viewport in pixels (half the surface width).
      * @param eyeHeightPx      height of the eye viewport in pixels (the surface height).
      * @param eyes             per-eye parameters (index 0 left, 1 right); must both be non-null.
-     * @param distortionCoeffs radial polynomial coefficients (k1, k2, ...); may be null/empty.
+     * @param distortionCoeffs radial polynomial coefficients (k1, k2, ...), any number; may be
+     *                         null/empty.
      */
     public void configure(int eyeWidthPx, int eyeHeightPx, CardboardProfile.EyeParams[] eyes,
                           float[] distortionCoeffs) {
@@ -109,28 +415,134 @@ public final class DistortionRenderer {
             return;
         }
 
-        if (eyeWidthPx != eyeWidth || eyeHeightPx != eyeHeight || fbo == 0) {
+        int targetWidth = atlasMode ? eyeWidthPx * 2 : eyeWidthPx;
+        if (eyeWidthPx != eyeWidth || eyeHeightPx != eyeHeight || targetWidth != fboWidth || fbo == 0) {
             eyeWidth = eyeWidthPx;
             eyeHeight = eyeHeightPx;
-            createFbo(eyeWidth, eyeHeight);
+            fboWidth = targetWidth;
+            createFbo(fboWidth, eyeHeight);
         }
+        updateRenderSize();
+
+        distortion = RadialDistortion.forEyes(distortionCoeffs, eyes);
+        int format = vertexFormat == DistortionMesh.FORMAT_HALF && halfFloatType == 0
+                ? DistortionMesh.FORMAT_SHORT : vertexFormat;
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        String key = meshCache.key(eyes, distortion, eyeWidthPx, eyeHeightPx, meshTolerance, format);
+        mesh = key != null ? meshCache.load(key) : null;
+        boolean cached = mesh != null;
+        if (!cached) {
+            mesh = DistortionMesh.build(eyes, distortion, eyeWidthPx, eyeHeightPx, meshTolerance,
+                    format);
+            if (key != null) {
+                meshCache.store(key, mesh);
+            }
+        }
+        uploadMesh();
+        Log.i(TAG, String.format(Locale.US,
+                "Distortion mesh: %d vertices, %d indices, %d bytes/vertex, max error %.2f px, "
+                        + "ACMR %.2f; %s in %.1f ms (cache: %s)",
+                mesh.vertexCount(), mesh.indexCount(), mesh.stride, mesh.maxErrorPx, mesh.acmr,
+                cached ? "mapped" : "built", (SystemClock.elapsedRealtimeNanos() - start) / 1e6,
+                meshCache.getStats()));
 
-        k1 = (distortionCoeffs != null && distortionCoeffs.length > 0) ? distortionCoeffs[0] : 0f;
-        k2 = (distortionCoeffs != null && distortionCoeffs.length > 1) ? distortionCoeffs[1] : 0f;
-
-        buildIndices();
         for (int eye = 0; eye < 2; eye++) {
-            buildMesh(eye, eyes[eye]);
+            CardboardProfile.EyeParams ep = eyes[eye];
+            float texWidth = ep.txLeft + ep.txRight;
+            float texHeight = ep.txBottom + ep.txTop;
+            screenTan[4 * eye] = ep.sxLeft + ep.sxRight;
+            screenTan[4 * eye + 1] = ep.sxBottom + ep.sxTop;
+            screenTan[4 * eye + 2] = -ep.sxLeft;
+            screenTan[4 * eye + 3] = -ep.sxBottom;
+            texMap[4 * eye] = 1f / texWidth;
+            texMap[4 * eye + 1] = 1f / texHeight;
+            texMap[4 * eye + 2] = ep.txLeft / texWidth;
+            texMap[4 * eye + 3] = ep.txBottom / texHeight;
         }
+        if (pixelProgram != null) {
+            gl.glBindTexture(GLES20.GL_TEXTURE_2D, distortionTex);
+            gl.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE_ALPHA,
+                    RadialDistortion.TEXTURE_SIZE, 1, 0, GLES20.GL_LUMINANCE_ALPHA,
+                    GLES20.GL_UNSIGNED_BYTE, distortion.toTexture(distortionMap));
+            gl.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        }
+        perPixel = choosePerPixel(eyeWidthPx + "x" + eyeHeightPx + " " + distortion);
+        directPerPixel = technique == TECHNIQUE_PER_PIXEL && pixelDirectProgram != null;
         ready = true;
     }
 
-    /** Binds the off-screen buffer so the next scene draw is captured for distortion. */
+    /**
+     * Binds the off-screen buffer so the next scene draw is captured for distortion. In atlas
+     * mode this binds and clears the atlas once for both eyes; select each eye's half with
+     * {@link #setAtlasViewport} before drawing it.
+     */
     public void bindEyeBuffer() {
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, fbo);
-        GLES20.glViewport(0, 0, eyeWidth, eyeHeight);
-        GLES20.glEnable(GLES20.GL_DEPTH_TEST);
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+        gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, fbo);
+        gl.glViewport(0, 0, atlasMode ? 2 * renderWidth : renderWidth, renderHeight);
+        gl.glEnable(GLES20.GL_DEPTH_TEST);
+        gl.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+        if (atlasMode) {
+            frameFramebufferBinds = 1;
+            frameDistortionDraws = 0;
+        }
+    }
+
+    /**
+     * Atlas mode: the x (in the bound atlas) where the right eye's rendered part starts, for
+     * drawing both eyes in one pass over the atlas viewport set by {@link #bindEyeBuffer}.
+     */
+    public int getAtlasSplitX() {
+        return renderWidth;
+    }
+
+    /** Atlas mode: the height of the rendered part of the bound atlas. */
+    public int getAtlasHeight() {
+        return renderHeight;
+    }
+
+    /** Atlas mode: restricts scene drawing to one eye's half of the bound atlas. */
+    public void setAtlasViewport(int eye) {
+        gl.glViewport(eye == 0 ? 0 : renderWidth, 0, renderWidth, renderHeight);
+    }
+
+    /**
+     * Atlas mode: draws both eyes from the atlas onto the default framebuffer through the
+     * combined two-eye distortion mesh, in a single draw call.
+     */
+    public void renderAtlas() {
+        gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        gl.glViewport(0, 0, fboWidth, eyeHeight);
+        gl.glDisable(GLES20.GL_DEPTH_TEST);
+
+        if (perPixel) {
+            float sx = renderWidth / (float) eyeWidth;
+            float sy = renderHeight / (float) eyeHeight;
+            for (int eye = 0; eye < 2; eye++) {
+                setOutMap(eye, 0.5f * sx, sy, 0.5f * eye * sx, 0f);
+            }
+            drawPixel(pixelProgram, fboColorTex, 2, 2);
+        } else {
+            gl.glUseProgram(program);
+
+            gl.glActiveTexture(GLES20.GL_TEXTURE0);
+            gl.glBindTexture(GLES20.GL_TEXTURE_2D, fboColorTex);
+            gl.glUniform1i(textureUniform, 0);
+            setTexScale();
+
+            drawMesh(positionParam, texCoordParam, positionScaleUniform, mesh.atlasFirstVertex(),
+                    mesh.atlasFirstIndex(), mesh.atlasIndexCount());
+        }
+
+        frameFramebufferBinds++;
+        frameDistortionDraws++;
+        if (!atlasSavingsLogged) {
+            atlasSavingsLogged = true;
+            Log.i(TAG, "Eye atlas: " + frameFramebufferBinds + " framebuffer binds, "
+                    + frameDistortionDraws + " distortion draw per frame; saves "
+                    + getSavedFramebufferBinds() + " binds and " + getSavedDrawCalls()
+                    + " draw call per frame over the per-eye path");
+        }
     }
 
     /**
@@ -141,211 +553,371 @@ public final class DistortionRenderer {
      * @param screenX x offset of the eye viewport in the default framebuffer.
      */
     public void renderEye(int eye, int screenX) {
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
-        GLES20.glViewport(screenX, 0, eyeWidth, eyeHeight);
-        GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+        gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        gl.glViewport(screenX, 0, eyeWidth, eyeHeight);
+        gl.glDisable(GLES20.GL_DEPTH_TEST);
+        distortEye(eye, perPixel);
+    }
 
-        GLES20.glUseProgram(program);
+    /** Draws one eye from the eye buffer into the current viewport, with either technique. */
+    private void distortEye(int eye, boolean pixel) {
+        if (pixel) {
+            setOutMap(eye, renderWidth / (float) eyeWidth, renderHeight / (float) eyeHeight, 0f, 0f);
+            drawPixel(pixelProgram, fboColorTex, eye, 1);
+            return;
+        }
+        gl.glUseProgram(program);
 
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, fboColorTex);
-        GLES20.glUniform1i(textureUniform, 0);
+        gl.glActiveTexture(GLES20.GL_TEXTURE0);
+        gl.glBindTexture(GLES20.GL_TEXTURE_2D, fboColorTex);
+        gl.glUniform1i(textureUniform, 0);
+        setTexScale();
 
-        GLES20.glEnableVertexAttribArray(positionParam);
-        GLES20.glVertexAttribPointer(positionParam, 2, GLES20.GL_FLOAT, false, 0, positionBuffers[eye]);
+        drawMesh(positionParam, texCoordParam, positionScaleUniform, mesh.eyeFirstVertex(eye),
+                mesh.eyeFirstIndex(eye), mesh.eyeIndexCount[eye]);
+    }
+
+    /**
+     * Fused passthrough: draws one eye straight onto its half of the default framebuffer by
+     * sampling the camera texture through the distortion mesh, with no off-screen render.
+     *
+     * <p>The mesh's texture coordinates span the eye's rendered FOV ([0, 1] across the eye
+     * buffer the FBO path would have used). {@code quadTransform} maps that onto the quad's own
+     * [0, 1] extent (where the quad lands in this eye's projection) and {@code texTransform}
+     * maps quad coordinates to camera texture coordinates (crop and mirror). Both are
+     * {@code {scaleX, scaleY, offsetX, offsetY}}.
+     *
+     * @param eye           0 left, 1 right.
+     * @param screenX       x offset of the eye viewport in the default framebuffer.
+     * @param cameraTexture the external (OES) texture holding the current camera frame.
+     */
+    public void renderEyeDirect(int eye, int screenX, int cameraTexture,
+                                float[] quadTransform, float[] texTransform) {
+        gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        gl.glViewport(screenX, 0, eyeWidth, eyeHeight);
+        gl.glDisable(GLES20.GL_DEPTH_TEST);
+
+        if (directPerPixel) {
+            gl.glUseProgram(pixelDirectProgram.program);
+            gl.glUniform4fv(pixelDirectProgram.quadTransformUniform, 1, quadTransform, 0);
+            gl.glUniform4fv(pixelDirectProgram.texTransformUniform, 1, texTransform, 0);
+            drawPixel(pixelDirectProgram, cameraTexture, eye, 1);
+            return;
+        }
 
-        GLES20.glEnableVertexAttribArray(texCoordParam);
-        GLES20.glVertexAttribPointer(texCoordParam, 2, GLES20.GL_FLOAT, false, 0, texCoordBuffers[eye]);
+        gl.glUseProgram(directProgram);
 
-        GLES20.glDrawElements(GLES20.GL_TRIANGLES, indexCount, GLES20.GL_UNSIGNED_SHORT, indexBuffer);
+        gl.glActiveTexture(GLES20.GL_TEXTURE0);
+        gl.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, cameraTexture);
+        gl.glUniform1i(directTextureUniform, 0);
+        gl.glUniform4fv(directQuadTransformUniform, 1, quadTransform, 0);
+        gl.glUniform4fv(directTexTransformUniform, 1, texTransform, 0);
 
-        GLES20.glDisableVertexAttribArray(positionParam);
-        GLES20.glDisableVertexAttribArray(texCoordParam);
+        drawMesh(directPositionParam, directTexCoordParam, directPositionScaleUniform,
+                mesh.eyeFirstVertex(eye), mesh.eyeFirstIndex(eye), mesh.eyeIndexCount[eye]);
     }
 
-    // --- mesh construction ------------------------------------------------------------
+    private void updateRenderSize() {
+        renderWidth = Math.max(1, Math.round(eyeWidth * resolutionScale));
+        renderHeight = Math.max(1, Math.round(eyeHeight * resolutionScale));
+    }
 
-    private void buildIndices() {
-        if (indexBuffer != null) {
-            return; // grid topology is fixed; build once.
-        }
-        short[] indices = new short[GRID * GRID * 6];
-        int n = 0;
-        int stride = GRID + 1;
-        for (int j = 0; j < GRID; j++) {
-            for (int i = 0; i < GRID; i++) {
-                short tl = (short) (j * stride + i);
-                short tr = (short) (tl + 1);
-                short bl = (short) (tl + stride);
-                short br = (short) (bl + 1);
-                indices[n++] = tl; indices[n++] = bl; indices[n++] = tr;
-                indices[n++] = tr; indices[n++] = bl; indices[n++] = br;
-            }
-        }
-        indexCount = indices.length;
-        ByteBuffer ib = ByteBuffer.allocateDirect(indices.length * 2);
-        ib.order(ByteOrder.nativeOrder());
-        indexBuffer = ib.asShortBuffer();
-        indexBuffer.put(indices);
-        indexBuffer.position(0);
+    /** Maps the mesh's full-buffer texture coordinates onto the rendered part of the buffer. */
+    private void setTexScale() {
+        gl.glUniform2f(texScaleUniform,
+                renderWidth / (float) eyeWidth, renderHeight / (float) eyeHeight);
     }
 
-    private void buildMesh(int eye, CardboardProfile.EyeParams ep) {
-        int verts = (GRID + 1) * (GRID + 1);
-        FloatBuffer pos = allocFloats(verts * 2);
-        FloatBuffer tex = allocFloats(verts * 2);
+    /**
+     * Draws part of the GPU-resident mesh. {@code firstVertex} selects the eye (or the atlas)
+     * by offsetting the attribute pointers into the vertex buffer, so each index list is
+     * relative to its own vertices.
+     *
+     * @param firstIndex offset into the index buffer, in indices.
+     */
+    private void drawMesh(int posParam, int texParam, int positionScale, int firstVertex,
+                          int firstIndex, int count) {
+        gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, meshVbo);
+        gl.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, meshIbo);
+        gl.glUniform1f(positionScale, mesh.positionScale);
+
+        int stride = mesh.stride;
+        int base = firstVertex * stride;
+        int positionType;
+        int texCoordType;
+        if (mesh.format == DistortionMesh.FORMAT_SHORT) {
+            positionType = GLES20.GL_SHORT;
+            texCoordType = GLES20.GL_UNSIGNED_SHORT;
+        } else if (mesh.format == DistortionMesh.FORMAT_HALF) {
+            positionType = halfFloatType;
+            texCoordType = halfFloatType;
+        } else {
+            positionType = GLES20.GL_FLOAT;
+            texCoordType = GLES20.GL_FLOAT;
+        }
+        boolean normalized = mesh.format == DistortionMesh.FORMAT_SHORT;
+        gl.glEnableVertexAttribArray(posParam);
+        gl.glVertexAttribPointer(posParam, 2, positionType, normalized, stride, base);
+        gl.glEnableVertexAttribArray(texParam);
+        gl.glVertexAttribPointer(texParam, 2, texCoordType, normalized, stride, base + stride / 2);
 
-        float texWidth = ep.txLeft + ep.txRight;
-        float texHeight = ep.txBottom + ep.txTop;
-        float screenWidth = ep.sxLeft + ep.sxRight;
-        float screenHeight = ep.sxBottom + ep.sxTop;
+        gl.glDrawElements(GLES20.GL_TRIANGLES, count, GLES20.GL_UNSIGNED_SHORT, firstIndex * 2);
 
-        for (int j = 0; j <= GRID; j++) {
-            float v = (float) j / GRID;
-            for (int i = 0; i <= GRID; i++) {
-                float u = (float) i / GRID;
+        gl.glDisableVertexAttribArray(posParam);
+        gl.glDisableVertexAttribArray(texParam);
+    }
 
-                // Uniform grid over the rendered (distorted) FOV, in tan-angle relative to the
-                // lens axis.
-                float pxTexture = u * texWidth - ep.txLeft;
-                float pyTexture = v * texHeight - ep.txBottom;
+    private void setOutMap(int eye, float scaleX, float scaleY, float offsetX, float offsetY) {
+        outMap[4 * eye] = scaleX;
+        outMap[4 * eye + 1] = scaleY;
+        outMap[4 * eye + 2] = offsetX;
+        outMap[4 * eye + 3] = offsetY;
+    }
 
-                // Inverse-distort to the physical screen tan-angle position (radial).
-                float[] pScreen = distortInverse(pxTexture, pyTexture, k1, k2);
+    /**
+     * Draws {@code quadCount} of the per-pixel quads from quad {@code firstQuad}, sampling
+     * {@code texture} (an OES texture for the fused program).
+     */
+    private void drawPixel(PixelProgram p, int texture, int firstQuad, int quadCount) {
+        gl.glUseProgram(p.program);
+
+        gl.glActiveTexture(GLES20.GL_TEXTURE1);
+        gl.glBindTexture(GLES20.GL_TEXTURE_2D, distortionTex);
+        gl.glUniform1i(p.distortionUniform, 1);
+        gl.glUniform4fv(p.distortionMapUniform, 1, distortionMap, 0);
+        gl.glActiveTexture(GLES20.GL_TEXTURE0);
+        gl.glBindTexture(p == pixelDirectProgram ? GLES11Ext.GL_TEXTURE_EXTERNAL_OES
+                : GLES20.GL_TEXTURE_2D, texture);
+        gl.glUniform1i(p.textureUniform, 0);
+        gl.glUniform4fv(p.screenTanUniform, 2, screenTan, 0);
+        gl.glUniform4fv(p.texMapUniform, 2, texMap, 0);
+        gl.glUniform4fv(p.outMapUniform, 2, outMap, 0);
+
+        gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, pixelVbo);
+        gl.glEnableVertexAttribArray(p.positionParam);
+        gl.glVertexAttribPointer(p.positionParam, 2, GLES20.GL_FLOAT, false, PIXEL_VERTEX_STRIDE, 0);
+        gl.glEnableVertexAttribArray(p.localParam);
+        gl.glVertexAttribPointer(p.localParam, 2, GLES20.GL_FLOAT, false, PIXEL_VERTEX_STRIDE, 8);
+        gl.glEnableVertexAttribArray(p.eyeParam);
+        gl.glVertexAttribPointer(p.eyeParam, 1, GLES20.GL_FLOAT, false, PIXEL_VERTEX_STRIDE, 16);
+
+        gl.glDrawArrays(GLES20.GL_TRIANGLES, firstQuad * PIXEL_QUAD_VERTICES,
+                quadCount * PIXEL_QUAD_VERTICES);
+
+        gl.glDisableVertexAttribArray(p.positionParam);
+        gl.glDisableVertexAttribArray(p.localParam);
+        gl.glDisableVertexAttribArray(p.eyeParam);
+        gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    }
 
-                float uScreen = (pScreen[0] + ep.sxLeft) / screenWidth;
-                float vScreen = (pScreen[1] + ep.sxBottom) / screenHeight;
+    // --- technique selection ----------------------------------------------------------
 
-                pos.put(2f * uScreen - 1f).put(2f * vScreen - 1f);
-                tex.put(u).put(v);
-            }
+    private boolean choosePerPixel(String configuration) {
+        if (pixelProgram == null) {
+            return false;
+        }
+        if (technique != TECHNIQUE_AUTO) {
+            endBenchmark();
+            return technique == TECHNIQUE_PER_PIXEL;
+        }
+        if (!configuration.equals(benchmarkedFor)) {
+            benchmarkedFor = configuration;
+            // The mesh until the benchmark finds otherwise.
+            benchmarkPerPixel = false;
+            startBenchmark();
         }
-        pos.position(0);
-        tex.position(0);
-        positionBuffers[eye] = pos;
-        texCoordBuffers[eye] = tex;
+        return benchmarkPerPixel;
     }
 
     /**
-     * Inverse of the radial distortion {@code r -> r * (1 + k1 r^2 + k2 r^4)}: given a point in
-     * distorted (rendered) tan-angle space, returns the corresponding undistorted (screen)
-     * point. Uses the secant method, matching the Cardboard SDK.
+     * Sets up a benchmark of the per-eye distortion draw with each technique, into a scratch
+     * target the size of the eye viewport. The work is the eye-buffer paths'; the result isn't
+     * applied to the fused pass, whose shaders sample the camera texture instead.
      */
-    private static float[] distortInverse(float x, float y, float k1, float k2) {
-        float radius = (float) Math.sqrt(x * x + y * y);
-        if (radius < 1e-9f) {
-            return new float[] {0f, 0f};
-        }
-        float r0 = radius / 2f;
-        float r1 = radius / 3f;
-        float dr0 = radius - distortRadius(r0, k1, k2);
-        int iter = 0;
-        while (Math.abs(r1 - r0) > 1e-4f && iter++ < 20) {
-            float dr1 = radius - distortRadius(r1, k1, k2);
-            float denom = dr1 - dr0;
-            if (Math.abs(denom) < 1e-9f) {
-                break;
+    private void startBenchmark() {
+        endBenchmark();
+        if (profiler == null || !profiler.isGpuTimed()) {
+            Log.i(TAG, "No GPU timer queries to benchmark the distortion with; using the mesh");
+            return;
+        }
+        int[] ids = new int[1];
+        gl.glGenTextures(1, ids, 0);
+        benchmarkTex = ids[0];
+        gl.glBindTexture(GLES20.GL_TEXTURE_2D, benchmarkTex);
+        gl.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, eyeWidth, eyeHeight, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        gl.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        gl.glGenFramebuffers(1, ids, 0);
+        benchmarkFbo = ids[0];
+        gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, benchmarkFbo);
+        gl.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, benchmarkTex, 0);
+        gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        benchmarkPass = 0;
+        benchmarkAttempts = 1;
+    }
+
+    /**
+     * Advances a running technique benchmark: issues its next timed pass, or once all are
+     * issued and their times are in, switches to the faster technique. Does nothing otherwise.
+     * Call once a frame on the GL thread, after {@link FrameProfiler#beginFrame} and outside
+     * its stages; leaves the default framebuffer bound.
+     */
+    public void stepBenchmark() {
+        if (benchmarkPass < 0) {
+            return;
+        }
+        if (benchmarkPass < 2 * BENCHMARK_ROUNDS) {
+            gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, benchmarkFbo);
+            gl.glViewport(0, 0, eyeWidth, eyeHeight);
+            gl.glDisable(GLES20.GL_DEPTH_TEST);
+            if (profiler.beginProbe(benchmarkPass)) {
+                gl.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+                for (int eye = 0; eye < 2; eye++) {
+                    distortEye(eye, benchmarkPass % 2 == 1);
+                }
+                profiler.endProbe();
+                benchmarkPass++;
             }
-            float r2 = r1 - dr1 * ((r1 - r0) / denom);
-            r0 = r1;
-            r1 = r2;
-            dr0 = dr1;
+            gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            return;
         }
-        float scale = r1 / radius;
-        return new float[] {scale * x, scale * y};
+
+        long[] best = {Long.MAX_VALUE, Long.MAX_VALUE};
+        for (int pass = 0; pass < 2 * BENCHMARK_ROUNDS; pass++) {
+            long nanos = profiler.getProbeNanos(pass);
+            if (nanos == FrameProfiler.PROBE_PENDING) {
+                return; // not in yet
+            }
+            if (nanos == FrameProfiler.PROBE_DISJOINT) {
+                if (benchmarkAttempts++ < BENCHMARK_ATTEMPTS) {
+                    benchmarkPass = 0;
+                } else {
+                    Log.w(TAG, "Distortion benchmark timings kept being disjoint; using the mesh");
+                    endBenchmark();
+                }
+                return;
+            }
+            best[pass % 2] = Math.min(best[pass % 2], nanos);
+        }
+        benchmarkPerPixel = best[1] < best[0];
+        perPixel = benchmarkPerPixel;
+        Log.i(TAG, String.format(Locale.US,
+                "Distortion benchmark at %dx%d per eye: mesh %.3f ms, per-pixel %.3f ms a frame; "
+                        + "the eye buffer uses %s",
+                eyeWidth, eyeHeight, best[0] / 1e6, best[1] / 1e6,
+                benchmarkPerPixel ? "per-pixel" : "mesh"));
+        endBenchmark();
     }
 
-    private static float distortRadius(float r, float k1, float k2) {
-        float r2 = r * r;
-        return r * (1f + k1 * r2 + k2 * r2 * r2);
+    private void endBenchmark() {
+        benchmarkPass = -1;
+        if (benchmarkFbo != 0) {
+            gl.glDeleteFramebuffers(1, new int[] {benchmarkFbo}, 0);
+            benchmarkFbo = 0;
+        }
+        if (benchmarkTex != 0) {
+            gl.glDeleteTextures(1, new int[] {benchmarkTex}, 0);
+            benchmarkTex = 0;
+        }
     }
 
     // --- GL helpers -------------------------------------------------------------------
 
+    private void uploadMesh() {
+        gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, meshVbo);
+        gl.glBufferData(GLES20.GL_ARRAY_BUFFER, mesh.vertices.remaining(), mesh.vertices,
+                GLES20.GL_STATIC_DRAW);
+        gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+
+        gl.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, meshIbo);
+        gl.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, mesh.indices.remaining(), mesh.indices,
+                GLES20.GL_STATIC_DRAW);
+        gl.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+    }
+
     private void createFbo(int width, int height) {
         deleteFbo();
 
         int[] ids = new int[1];
 
-        GLES20.glGenTextures(1, ids, 0);
+        gl.glGenTextures(1, ids, 0);
         fboColorTex = ids[0];
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, fboColorTex);
-        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+        gl.glBindTexture(GLES20.GL_TEXTURE_2D, fboColorTex);
+        gl.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
                 GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
 
-        GLES20.glGenRenderbuffers(1, ids, 0);
+        gl.glGenRenderbuffers(1, ids, 0);
         fboDepthRb = ids[0];
-        GLES20.glBindRenderbuffer(GLES20.GL_RENDERBUFFER, fboDepthRb);
-        GLES20.glRenderbufferStorage(GLES20.GL_RENDERBUFFER, GLES20.GL_DEPTH_COMPONENT16, width, height);
+        gl.glBindRenderbuffer(GLES20.GL_RENDERBUFFER, fboDepthRb);
+        gl.glRenderbufferStorage(GLES20.GL_RENDERBUFFER, GLES20.GL_DEPTH_COMPONENT16, width, height);
 
-        GLES20.glGenFramebuffers(1, ids, 0);
+        gl.glGenFramebuffers(1, ids, 0);
         fbo = ids[0];
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, fbo);
-        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+        gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, fbo);
+        gl.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
                 GLES20.GL_TEXTURE_2D, fboColorTex, 0);
-        GLES20.glFramebufferRenderbuffer(GLES20.GL_FRAMEBUFFER, GLES20.GL_DEPTH_ATTACHMENT,
+        gl.glFramebufferRenderbuffer(GLES20.GL_FRAMEBUFFER, GLES20.GL_DEPTH_ATTACHMENT,
                 GLES20.GL_RENDERBUFFER, fboDepthRb);
 
-        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        int status = gl.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
         if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
             Log.e(TAG, "Framebuffer incomplete: " + status);
         }
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
     }
 
     private void deleteFbo() {
         if (fbo != 0) {
-            GLES20.glDeleteFramebuffers(1, new int[] {fbo}, 0);
+            gl.glDeleteFramebuffers(1, new int[] {fbo}, 0);
             fbo = 0;
         }
         if (fboColorTex != 0) {
-            GLES20.glDeleteTextures(1, new int[] {fboColorTex}, 0);
+            gl.glDeleteTextures(1, new int[] {fboColorTex}, 0);
             fboColorTex = 0;
         }
         if (fboDepthRb != 0) {
-            GLES20.glDeleteRenderbuffers(1, new int[] {fboDepthRb}, 0);
+            gl.glDeleteRenderbuffers(1, new int[] {fboDepthRb}, 0);
             fboDepthRb = 0;
         }
     }
 
-    private static FloatBuffer allocFloats(int count) {
-        ByteBuffer bb = ByteBuffer.allocateDirect(count * 4);
-        bb.order(ByteOrder.nativeOrder());
-        return bb.asFloatBuffer();
-    }
-
-    private int loadShader(int type, int resId) {
-        String code = readRawTextFile(resId);
-        int shader = GLES20.glCreateShader(type);
-        GLES20.glShaderSource(shader, code);
-        GLES20.glCompileShader(shader);
-        int[] status = new int[1];
-        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
-        if (status[0] == 0) {
-            Log.e(TAG, "Error compiling distortion shader: " + GLES20.glGetShaderInfoLog(shader));
-            GLES20.glDeleteShader(shader);
-            throw new RuntimeException("Error compiling distortion shader");
-        }
-        return shader;
-    }
-
-    private String readRawTextFile(int resId) {
-        InputStream inputStream = context.getResources().openRawResource(resId);
-        try {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-            StringBuilder sb = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                sb.append(line).append("\n");
-            }
-            reader.close();
-            return sb.toString();
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to read shader " + resId, e);
+    /** A per-pixel distortion program (2D or OES fragment shader) and its locations. */
+    private static final class PixelProgram {
+        final int program;
+        final int positionParam;
+        final int localParam;
+        final int eyeParam;
+        final int textureUniform;
+        final int distortionUniform;
+        final int distortionMapUniform;
+        final int screenTanUniform;
+        final int texMapUniform;
+        final int outMapUniform;
+        final int quadTransformUniform;
+        final int texTransformUniform;
+
+        PixelProgram(Gl gl, Context context, int fragmentResId) {
+            program = GlPrograms.link(gl, context, R.raw.distortion_pixel_vertex, fragmentResId);
+            positionParam = gl.glGetAttribLocation(program, "a_Position");
+            localParam = gl.glGetAttribLocation(program, "a_Local");
+            eyeParam = gl.glGetAttribLocation(program, "a_Eye");
+            textureUniform = gl.glGetUniformLocation(program, "u_Texture");
+            distortionUniform = gl.glGetUniformLocation(program, "u_Distortion");
+            distortionMapUniform = gl.glGetUniformLocation(program, "u_DistortionMap");
+            screenTanUniform = gl.glGetUniformLocation(program, "u_ScreenTan");
+            texMapUniform = gl.glGetUniformLocation(program, "u_TexMap");
+            outMapUniform = gl.glGetUniformLocation(program, "u_OutMap");
+            quadTransformUniform = gl.glGetUniformLocation(program, "u_QuadTransform");
+            texTransformUniform = gl.glGetUniformLocation(program, "u_TexTransform");
         }
     }
 }
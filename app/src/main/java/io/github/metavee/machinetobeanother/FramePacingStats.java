@@ -0,0 +1,132 @@
+package io.github.metavee.machinetobeanother;
+
+import android.content.Context;
+import android.os.BatteryManager;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Frame-pacing and power counters for the stereo renderer, so the on-demand (frame-available)
+ * mode can be compared with continuous rendering on the same device.
+ *
+ * <p>Every rendered frame is classified as either <em>new</em> (it latched a new camera/video
+ * frame) or <em>repeated</em> (it redrew the previous one). Display refreshes that got no render
+ * at all are <em>skipped</em>; continuous mode would have redrawn them. Alongside this the
+ * battery discharge current is sampled about once a second and averaged, so the two modes'
+ * power draw can be compared directly. A line is logged every {@link #REPORT_INTERVAL_NANOS}, and a session summary by
+ * {@link #logSummary}.
+ *
+ * <p>All methods except the constructor are called on the GL thread.
+ */
+public final class FramePacingStats {
+
+    private static final String TAG = "FramePacing";
+
+    private static final long REPORT_INTERVAL_NANOS = 10_000_000_000L;
+    private static final long BATTERY_SAMPLE_INTERVAL_NANOS = 1_000_000_000L;
+
+    private final String modeName;
+    private final VsyncMonitor vsync;
+    private final BatteryManager battery;
+
+    // Current reporting window.
+    private long windowStartNanos;
+    private long windowStartVsyncs;
+    private int windowNewFrames;
+    private int windowRepeatedFrames;
+    private long windowCurrentSumMicroAmps;
+    private int windowCurrentSamples;
+    private long lastBatterySampleNanos;
+
+    // Whole session.
+    private long sessionStartNanos;
+    private long sessionStartVsyncs;
+    private long sessionNewFrames;
+    private long sessionRepeatedFrames;
+    private long sessionCurrentSumMicroAmps;
+    private int sessionCurrentSamples;
+
+    public FramePacingStats(Context context, String modeName, VsyncMonitor vsync) {
+        this.modeName = modeName;
+        this.vsync = vsync;
+        this.battery = (BatteryManager) context.getSystemService(Context.BATTERY_SERVICE);
+    }
+
+    /** Records one rendered frame. */
+    public void onFrameRendered(boolean newContent, long nowNanos) {
+        if (sessionStartNanos == 0) {
+            sessionStartNanos = nowNanos;
+            sessionStartVsyncs = vsync.getVsyncCount();
+            windowStartNanos = nowNanos;
+            windowStartVsyncs = sessionStartVsyncs;
+        }
+        if (newContent) {
+            windowNewFrames++;
+            sessionNewFrames++;
+        } else {
+            windowRepeatedFrames++;
+            sessionRepeatedFrames++;
+        }
+
+        if (nowNanos - lastBatterySampleNanos >= BATTERY_SAMPLE_INTERVAL_NANOS) {
+            lastBatterySampleNanos = nowNanos;
+            sampleBatteryCurrent();
+        }
+
+        if (nowNanos - windowStartNanos >= REPORT_INTERVAL_NANOS) {
+            long vsyncs = vsync.getVsyncCount() - windowStartVsyncs;
+            Log.i(TAG, format(nowNanos - windowStartNanos, vsyncs, windowNewFrames,
+                    windowRepeatedFrames, windowCurrentSumMicroAmps, windowCurrentSamples));
+            windowStartNanos = nowNanos;
+            windowStartVsyncs = vsync.getVsyncCount();
+            windowNewFrames = 0;
+            windowRepeatedFrames = 0;
+            windowCurrentSumMicroAmps = 0;
+            windowCurrentSamples = 0;
+        }
+    }
+
+    /** Logs the totals for the session so far (call when the stereo view pauses). */
+    public void logSummary() {
+        if (sessionStartNanos == 0) {
+            return;
+        }
+        long vsyncs = vsync.getVsyncCount() - sessionStartVsyncs;
+        Log.i(TAG, "Session summary: " + format(System.nanoTime() - sessionStartNanos, vsyncs,
+                sessionNewFrames, sessionRepeatedFrames, sessionCurrentSumMicroAmps,
+                sessionCurrentSamples));
+    }
+
+    private void sampleBatteryCurrent() {
+        if (battery == null) {
+            return;
+        }
+        // Microamperes; the sign convention for discharge differs between devices.
+        int current = battery.getIntProperty(BatteryManager.BATTERY_PROPERTY_CURRENT_NOW);
+        if (current == Integer.MIN_VALUE || current == 0) {
+            return; // not supported
+        }
+        long magnitude = Math.abs((long) current);
+        windowCurrentSumMicroAmps += magnitude;
+        windowCurrentSamples++;
+        sessionCurrentSumMicroAmps += magnitude;
+        sessionCurrentSamples++;
+    }
+
+    private String format(long elapsedNanos, long vsyncs, long newFrames, long repeatedFrames,
+                          long currentSumMicroAmps, int currentSamples) {
+        double seconds = elapsedNanos / 1e9;
+        long rendered = newFrames + repeatedFrames;
+        long skipped = Math.max(0, vsyncs - rendered);
+        String current = currentSamples > 0
+                ? String.format(Locale.US, "%.0f mA", currentSumMicroAmps / (double) currentSamples / 1000.0)
+                : "n/a";
+        return String.format(Locale.US,
+                "%s: %.1f fps rendered (%.1f new, %.1f repeated) over %.1f Hz refresh; "
+                        + "skipped %d of %d refreshes (%.0f%%); battery %s",
+                modeName, rendered / seconds, newFrames / seconds, repeatedFrames / seconds,
+                vsyncs / seconds, skipped, vsyncs, vsyncs > 0 ? 100.0 * skipped / vsyncs : 0.0,
+                current);
+    }
+}
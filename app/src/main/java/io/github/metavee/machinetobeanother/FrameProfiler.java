@@ -0,0 +1,283 @@
+package io.github.metavee.machinetobeanother;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Per-stage frame timings for the stereo renderer, kept as rolling percentiles for the
+ * performance HUD ({@link PerfHud}).
+ *
+ * <p>GPU stages (eye render, distortion, alignment line) are timed with {@code
+ * EXT_disjoint_timer_query} when the context supports it: each timed interval gets a {@code
+ * GL_TIME_ELAPSED_EXT} query, and results are collected a few frames later, once available, so
+ * reading them never stalls the pipeline. Without the extension they fall back to CPU time spent
+ * issuing the stage. The latch ({@code updateTexImage}) and the buffer swap are always CPU
+ * timings.
+ *
+ * <p>The same queries time one-off GPU intervals for other classes ({@link #beginProbe}), such
+ * as {@link DistortionRenderer}'s technique benchmark: their results are collected with the
+ * stages', so they too are read without stalling and are spoiled by the same disjoint events.
+ *
+ * <p>Samples go into preallocated ring buffers and percentiles are computed into a preallocated
+ * scratch array, so profiling allocates nothing in the frame loop. All methods are called on the
+ * GL thread.
+ */
+public final class FrameProfiler {
+
+    private static final String TAG = "FrameProfiler";
+
+    public static final int STAGE_LATCH = 0;
+    public static final int STAGE_EYE_RENDER = 1;
+    public static final int STAGE_DISTORTION = 2;
+    public static final int STAGE_ALIGNMENT_LINE = 3;
+    public static final int STAGE_SWAP = 4;
+    public static final int STAGE_COUNT = 5;
+
+    static final String[] STAGE_NAMES = {"latch", "eye", "distort", "line", "swap"};
+
+    // Rolling window per stage (about two seconds at 60 Hz).
+    private static final int HISTORY = 128;
+
+    // EXT_disjoint_timer_query enums (not in the GLES20/GLES30 bindings).
+    private static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+    private static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
+
+    // Probe slots, and what getProbeNanos() returns for a probe not collected yet or spoiled.
+    public static final int MAX_PROBES = 16;
+    public static final long PROBE_PENDING = -1;
+    public static final long PROBE_DISJOINT = -2;
+
+    // Frames of GPU queries kept in flight, and timed intervals per frame (the per-eye FBO path
+    // times four intervals per frame; one more for the line).
+    private static final int FRAMES_IN_FLIGHT = 4;
+    private static final int MAX_INTERVALS = 8;
+
+    private final Gl gl;
+
+    private final long[][] samples = new long[STAGE_COUNT][HISTORY];
+    private final int[] sampleCount = new int[STAGE_COUNT];
+    private final int[] sampleNext = new int[STAGE_COUNT];
+    private final long[] scratch = new long[HISTORY];
+
+    // CPU timing of the current frame.
+    private final long[] frameCpuNanos = new long[STAGE_COUNT];
+    private final long[] stageStartNanos = new long[STAGE_COUNT];
+
+    // GPU timer queries: [frame slot][interval], with the stage each interval belongs to.
+    private boolean gpuTimed;
+    private final int[][] queries = new int[FRAMES_IN_FLIGHT][MAX_INTERVALS];
+    private final int[][] queryStages = new int[FRAMES_IN_FLIGHT][MAX_INTERVALS];
+    private final int[] queryCount = new int[FRAMES_IN_FLIGHT];
+    private final boolean[] slotPending = new boolean[FRAMES_IN_FLIGHT];
+    private int slot = -1;
+    private boolean slotRecording;
+    private final long[] gpuStageNanos = new long[STAGE_COUNT];
+    private final int[] queryResult = new int[1];
+    private long lastGpuFrameNanos;
+
+    // One-off intervals (see beginProbe).
+    private final int[] probeQueries = new int[MAX_PROBES];
+    private final boolean[] probePending = new boolean[MAX_PROBES];
+    private final long[] probeNanos = new long[MAX_PROBES];
+    private int activeProbe = -1;
+
+    public FrameProfiler(Gl gl) {
+        this.gl = gl;
+    }
+
+    /**
+     * Detects GPU timer-query support and creates the queries. Must be called on the GL thread
+     * with a current context (onSurfaceCreated).
+     */
+    public void init() {
+        gpuTimed = false;
+        String version = gl.glGetString(GLES20.GL_VERSION);
+        String extensions = gl.glGetString(GLES20.GL_EXTENSIONS);
+        // The query entry points are ES 3.0 functions; the extension supplies the timer target.
+        if (version != null && version.startsWith("OpenGL ES 3")
+                && extensions != null && extensions.contains("GL_EXT_disjoint_timer_query")) {
+            for (int i = 0; i < FRAMES_IN_FLIGHT; i++) {
+                gl.glGenQueries(MAX_INTERVALS, queries[i], 0);
+                slotPending[i] = false;
+            }
+            gl.glGenQueries(MAX_PROBES, probeQueries, 0);
+            Arrays.fill(probePending, false);
+            Arrays.fill(probeNanos, PROBE_PENDING);
+            activeProbe = -1;
+            gpuTimed = gl.glGetError() == GLES20.GL_NO_ERROR;
+        }
+        Log.i(TAG, gpuTimed ? "GPU stage timing via EXT_disjoint_timer_query"
+                : "GPU timer queries unavailable; timing GPU stages on the CPU");
+    }
+
+    public boolean isGpuTimed() {
+        return gpuTimed;
+    }
+
+    /**
+     * Total GPU time of the most recent frame whose queries have completed (a few frames old),
+     * or 0 without GPU timing.
+     */
+    public long getLastGpuFrameNanos() {
+        return lastGpuFrameNanos;
+    }
+
+    /** Starts a frame; collects any GPU results that have become available. */
+    public void beginFrame() {
+        Arrays.fill(frameCpuNanos, 0);
+        if (!gpuTimed) {
+            return;
+        }
+        collectGpuResults();
+        slot = (slot + 1) % FRAMES_IN_FLIGHT;
+        // If this slot's queries from FRAMES_IN_FLIGHT frames ago still aren't done, skip GPU
+        // timing this frame rather than wait for them.
+        slotRecording = !slotPending[slot];
+        queryCount[slot] = 0;
+    }
+
+    public void begin(int stage) {
+        stageStartNanos[stage] = System.nanoTime();
+        if (slotRecording && queryCount[slot] < MAX_INTERVALS) {
+            gl.glBeginQuery(GL_TIME_ELAPSED_EXT, queries[slot][queryCount[slot]]);
+        }
+    }
+
+    public void end(int stage) {
+        if (slotRecording && queryCount[slot] < MAX_INTERVALS) {
+            gl.glEndQuery(GL_TIME_ELAPSED_EXT);
+            queryStages[slot][queryCount[slot]] = stage;
+            queryCount[slot]++;
+        }
+        frameCpuNanos[stage] += System.nanoTime() - stageStartNanos[stage];
+    }
+
+    /**
+     * Starts timing a GPU interval outside the stages, into probe slot {@code probe} (0 to
+     * {@link #MAX_PROBES} - 1); end it with {@link #endProbe}. One probe at a time, and not
+     * while a stage is being timed (a query target takes one interval at a time).
+     *
+     * @return false, timing nothing, without GPU timer queries.
+     */
+    public boolean beginProbe(int probe) {
+        if (!gpuTimed || activeProbe >= 0) {
+            return false;
+        }
+        gl.glBeginQuery(GL_TIME_ELAPSED_EXT, probeQueries[probe]);
+        probeNanos[probe] = PROBE_PENDING;
+        activeProbe = probe;
+        return true;
+    }
+
+    public void endProbe() {
+        if (activeProbe < 0) {
+            return;
+        }
+        gl.glEndQuery(GL_TIME_ELAPSED_EXT);
+        probePending[activeProbe] = true;
+        activeProbe = -1;
+    }
+
+    /**
+     * The GPU time of the last interval timed into probe slot {@code probe}, once collected
+     * (some frames after {@link #endProbe}); {@link #PROBE_PENDING} until then, or {@link
+     * #PROBE_DISJOINT} if a disjoint event made it meaningless.
+     */
+    public long getProbeNanos(int probe) {
+        return probeNanos[probe];
+    }
+
+    /** Records a stage that is only ever timed on the CPU (the latch and the swap). */
+    public void recordCpu(int stage, long nanos) {
+        push(stage, nanos);
+    }
+
+    /** Ends the frame: without GPU timing, the CPU times of the GPU stages become the samples. */
+    public void endFrame() {
+        if (gpuTimed) {
+            if (slotRecording) {
+                slotPending[slot] = true;
+            }
+            return;
+        }
+        push(STAGE_EYE_RENDER, frameCpuNanos[STAGE_EYE_RENDER]);
+        push(STAGE_DISTORTION, frameCpuNanos[STAGE_DISTORTION]);
+        push(STAGE_ALIGNMENT_LINE, frameCpuNanos[STAGE_ALIGNMENT_LINE]);
+    }
+
+    /**
+     * The given percentile (0-100) of the stage's recent samples, in nanoseconds, or -1 when
+     * there are none yet.
+     */
+    public long percentile(int stage, int pct) {
+        int n = sampleCount[stage];
+        if (n == 0) {
+            return -1;
+        }
+        System.arraycopy(samples[stage], 0, scratch, 0, n);
+        Arrays.sort(scratch, 0, n);
+        int index = Math.min(n - 1, (pct * n) / 100);
+        return scratch[index];
+    }
+
+    private void push(int stage, long nanos) {
+        samples[stage][sampleNext[stage]] = nanos;
+        sampleNext[stage] = (sampleNext[stage] + 1) % HISTORY;
+        if (sampleCount[stage] < HISTORY) {
+            sampleCount[stage]++;
+        }
+    }
+
+    private void collectGpuResults() {
+        // Any disjoint event (frequency change, context switch) invalidates pending results.
+        gl.glGetIntegerv(GL_GPU_DISJOINT_EXT, queryResult, 0);
+        boolean disjoint = queryResult[0] != 0;
+
+        for (int p = 0; p < MAX_PROBES; p++) {
+            if (!probePending[p]) {
+                continue;
+            }
+            if (!disjoint) {
+                gl.glGetQueryObjectuiv(probeQueries[p], GLES30.GL_QUERY_RESULT_AVAILABLE,
+                        queryResult, 0);
+                if (queryResult[0] == 0) {
+                    continue;
+                }
+                gl.glGetQueryObjectuiv(probeQueries[p], GLES30.GL_QUERY_RESULT, queryResult, 0);
+            }
+            probePending[p] = false;
+            probeNanos[p] = disjoint ? PROBE_DISJOINT : queryResult[0] & 0xFFFFFFFFL;
+        }
+
+        for (int s = 0; s < FRAMES_IN_FLIGHT; s++) {
+            if (!slotPending[s]) {
+                continue;
+            }
+            int count = queryCount[s];
+            if (count > 0) {
+                gl.glGetQueryObjectuiv(queries[s][count - 1],
+                        GLES30.GL_QUERY_RESULT_AVAILABLE, queryResult, 0);
+                if (queryResult[0] == 0) {
+                    continue; // not ready yet; try again next frame
+                }
+            }
+            slotPending[s] = false;
+            if (disjoint) {
+                continue;
+            }
+            Arrays.fill(gpuStageNanos, 0);
+            for (int q = 0; q < count; q++) {
+                gl.glGetQueryObjectuiv(queries[s][q], GLES30.GL_QUERY_RESULT, queryResult, 0);
+                gpuStageNanos[queryStages[s][q]] += queryResult[0] & 0xFFFFFFFFL;
+            }
+            push(STAGE_EYE_RENDER, gpuStageNanos[STAGE_EYE_RENDER]);
+            push(STAGE_DISTORTION, gpuStageNanos[STAGE_DISTORTION]);
+            push(STAGE_ALIGNMENT_LINE, gpuStageNanos[STAGE_ALIGNMENT_LINE]);
+            lastGpuFrameNanos = gpuStageNanos[STAGE_EYE_RENDER] + gpuStageNanos[STAGE_DISTORTION]
+                    + gpuStageNanos[STAGE_ALIGNMENT_LINE];
+        }
+    }
+}
@@ -0,0 +1,421 @@
+package io.github.metavee.machinetobeanother;
+
+import android.content.Context;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records what the renderer shows, from the render loop rather than from the camera, into a
+ * {@link VideoEncoder.Sink}: an MP4, or a {@link PreRollBuffer} that keeps the last seconds.
+ *
+ * <p>On the GL thread, each recorded frame is captured into one of two textures: either copied
+ * from the window (the distorted, mirrored stereo frame as it is on screen) or rendered into
+ * directly through {@link #bindTarget} (e.g. the undistorted mono view). The capture is fenced
+ * and handed to an encoder thread, which has its own EGL context sharing those textures. That
+ * thread waits for the fence, scales the texture into the input surface of a {@link
+ * VideoEncoder}, stamps it with the camera frame time and swaps. The encoder picks its codec and
+ * settings from the device's capabilities and feeds the sink on a thread of its own.
+ *
+ * <p>The GL thread never blocks on the encoder: a frame is simply not recorded when both
+ * textures are still in use. Reuse is fenced the other way too: the encoder thread fences its
+ * read of a texture before handing it back, and the GL thread queues a server-side wait
+ * ({@code glWaitSync}) on that fence before capturing into it again, so the GPU, not the CPU,
+ * orders the two contexts. Without ES 3.0 fences both threads only flush, relying on the
+ * driver running the contexts' submitted work in order, and the encoder thread (never the GL
+ * thread) finishes its draw before handing the texture back. Frames arrive at most at {@link
+ * #FRAME_RATE}, or the lower rate the encoder supports at the chosen size; faster camera frames
+ * are skipped.
+ */
+public final class FrameRecorder {
+
+    private static final String TAG = "FrameRecorder";
+
+    public static final int FRAME_RATE = 30;
+    private static final long FENCE_TIMEOUT_NANOS = 100_000_000L;
+
+    private static final int EGL_RECORDABLE_ANDROID = 0x3142;
+    private static final int EGL_OPENGL_ES3_BIT_KHR = 0x0040;
+
+    private static final int SLOTS = 2;
+
+    // Full-viewport quad: x, y, u, v per vertex (triangle strip).
+    private static final float[] QUAD = {
+            -1f, -1f, 0f, 0f,
+            -1f, 1f, 0f, 1f,
+            1f, -1f, 1f, 0f,
+            1f, 1f, 1f, 1f,
+    };
+
+    private final Context context;
+    private final Gl gl;
+    private final Executor glThread;
+    private final Gl encoderGl;
+    private final boolean es3;
+    private final VideoEncoder.Sink sink;
+    private final int width;
+    private final int height;
+    private final int sourceWidth;
+    private final int sourceHeight;
+
+    // GL thread.
+    private final int[] slotTextures = new int[SLOTS];
+    private final int[] slotFramebuffers = new int[SLOTS];
+    private final AtomicBoolean[] slotBusy = new AtomicBoolean[SLOTS];
+    // The encoder thread's fence after its last read of each slot (ES 3.0), 0 if none pending.
+    private final AtomicLong[] slotReadFences = new AtomicLong[SLOTS];
+    // The GL thread's fence after creating the textures, until the encoder thread waits on it.
+    private final AtomicLong texturesFence = new AtomicLong();
+    private EGLContext glContext;
+    private int currentSlot = -1;
+    private long lastFrameNanos;
+    private int framesRecorded;
+    private int framesSkipped;
+    private boolean stopped;
+
+    private final HandlerThread thread = new HandlerThread("FrameRecorder");
+    private Handler handler;
+
+    // Encoder thread.
+    private volatile boolean ready;
+    // Set before ready; read by the GL thread once it is.
+    private VideoEncoder encoder;
+    private long minFrameIntervalNanos;
+    private boolean finished;
+    private EGLDisplay eglDisplay = EGL14.EGL_NO_DISPLAY;
+    private EGLContext eglContext = EGL14.EGL_NO_CONTEXT;
+    private EGLSurface eglSurface = EGL14.EGL_NO_SURFACE;
+    private Surface inputSurface;
+    private int program;
+    private int positionParam;
+    private int texCoordParam;
+    private int textureUniform;
+    private int quadVbo;
+
+    /**
+     * @param gl           the GL thread's GL.
+     * @param glThread     runs tasks on the GL thread (e.g. {@code GLSurfaceView::queueEvent});
+     *                     the capture textures are deleted there once the encoder is done.
+     * @param encoderGl    GL for the encoder thread's context (not a {@link CachingGl}: its state
+     *                     is per context).
+     * @param es3          whether the GL thread's context is ES 3.0 (fences; shared context
+     *                     version).
+     * @param sink         where the encoded stream goes (a file, or a {@link PreRollBuffer}).
+     * @param width        requested encoded size; the encoder may lower it ({@link
+     *                     VideoEncoder#chooseConfig}).
+     * @param sourceWidth  size of the captured frame (the window for {@link #copyFromScreen}).
+     */
+    public FrameRecorder(Context context, Gl gl, Executor glThread, Gl encoderGl, boolean es3,
+                         VideoEncoder.Sink sink, int width, int height, int sourceWidth,
+                         int sourceHeight) {
+        this.context = context.getApplicationContext();
+        this.gl = gl;
+        this.glThread = glThread;
+        this.encoderGl = encoderGl;
+        this.es3 = es3;
+        this.sink = sink;
+        this.width = width;
+        this.height = height;
+        this.sourceWidth = sourceWidth;
+        this.sourceHeight = sourceHeight;
+        for (int i = 0; i < SLOTS; i++) {
+            slotBusy[i] = new AtomicBoolean();
+            slotReadFences[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Creates the capture textures and starts the encoder thread. Call on the GL thread; the
+     * encoder is set up in the background and frames before it is ready are skipped.
+     */
+    public void start() {
+        gl.glGenTextures(SLOTS, slotTextures, 0);
+        gl.glGenFramebuffers(SLOTS, slotFramebuffers, 0);
+        for (int i = 0; i < SLOTS; i++) {
+            gl.glBindTexture(GLES20.GL_TEXTURE_2D, slotTextures[i]);
+            gl.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, sourceWidth, sourceHeight, 0,
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+            gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+            gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+            gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+            gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+            gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, slotFramebuffers[i]);
+            gl.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                    GLES20.GL_TEXTURE_2D, slotTextures[i], 0);
+        }
+        gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        // The encoder thread samples these; it waits for them to exist before it starts.
+        if (es3) {
+            texturesFence.set(gl.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0));
+        }
+        gl.glFlush();
+
+        glContext = EGL14.eglGetCurrentContext();
+        EGLContext shareContext = glContext;
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        handler.post(() -> setUp(shareContext));
+    }
+
+    /**
+     * Starts a recorded frame if one is due at {@code timestampNanos} (the camera frame time) and
+     * a capture texture is free. When true, capture with {@link #copyFromScreen} or {@link
+     * #bindTarget} and then call {@link #endFrame}.
+     */
+    public boolean beginFrame(long timestampNanos) {
+        if (stopped || !ready || timestampNanos <= lastFrameNanos
+                || timestampNanos - lastFrameNanos < minFrameIntervalNanos) {
+            return false;
+        }
+        for (int i = 0; i < SLOTS; i++) {
+            if (!slotBusy[i].get()) {
+                currentSlot = i;
+                lastFrameNanos = timestampNanos;
+                long readFence = slotReadFences[i].getAndSet(0);
+                if (readFence != 0) {
+                    // The GPU holds the capture back until the encoder's read is done; this
+                    // thread doesn't wait.
+                    gl.glWaitSync(readFence, 0, GLES30.GL_TIMEOUT_IGNORED);
+                    gl.glDeleteSync(readFence);
+                }
+                return true;
+            }
+        }
+        framesSkipped++;
+        encoder.onFrameDropped();
+        return false;
+    }
+
+    /** Copies the window (the default framebuffer, which must be bound) into the frame. */
+    public void copyFromScreen() {
+        gl.glActiveTexture(GLES20.GL_TEXTURE0);
+        gl.glBindTexture(GLES20.GL_TEXTURE_2D, slotTextures[currentSlot]);
+        gl.glCopyTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, 0, 0, sourceWidth, sourceHeight);
+    }
+
+    /** Binds the frame as the render target, with a full viewport, to draw it directly. */
+    public void bindTarget() {
+        gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, slotFramebuffers[currentSlot]);
+        gl.glViewport(0, 0, sourceWidth, sourceHeight);
+    }
+
+    /** Whether this recorder encodes {@code width} x {@code height} from a source of that size. */
+    public boolean hasSize(int width, int height, int sourceWidth, int sourceHeight) {
+        return this.width == width && this.height == height && this.sourceWidth == sourceWidth
+                && this.sourceHeight == sourceHeight;
+    }
+
+    /** Hands the captured frame to the encoder thread. */
+    public void endFrame() {
+        int slot = currentSlot;
+        long timestamp = lastFrameNanos;
+        long fence = es3 ? gl.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0) : 0;
+        gl.glFlush();
+        slotBusy[slot].set(true);
+        framesRecorded++;
+        handler.post(() -> encodeFrame(slot, fence, timestamp));
+        currentSlot = -1;
+    }
+
+    /**
+     * Finishes the file: the frames already handed over are encoded, then the stream is ended and
+     * the encoder thread exits. Call on the GL thread.
+     */
+    public void stop() {
+        if (stopped) {
+            return;
+        }
+        stopped = true;
+        Log.i(TAG, String.format(Locale.US, "%d frames recorded, %d skipped (encoder busy)",
+                framesRecorded, framesSkipped));
+        handler.post(this::endStream);
+        // The textures are still read by the frames queued on the encoder thread; finish()
+        // hands them back here to be deleted (releaseTextures).
+        gl.glDeleteFramebuffers(SLOTS, slotFramebuffers, 0);
+    }
+
+    /** Deletes the capture textures and any pending read fences once the encoder is done. */
+    private void releaseTextures() {
+        if (!glContext.equals(EGL14.eglGetCurrentContext())) {
+            return; // the context went away, and its textures with it
+        }
+        long fence = texturesFence.getAndSet(0);
+        if (fence != 0) {
+            gl.glDeleteSync(fence); // the encoder failed before waiting on it
+        }
+        for (int i = 0; i < SLOTS; i++) {
+            long readFence = slotReadFences[i].getAndSet(0);
+            if (readFence != 0) {
+                gl.glDeleteSync(readFence);
+            }
+        }
+        gl.glDeleteTextures(SLOTS, slotTextures, 0);
+    }
+
+    // --- encoder thread ---------------------------------------------------------------
+
+    private void setUp(EGLContext shareContext) {
+        VideoEncoder.Config config;
+        try {
+            config = VideoEncoder.chooseConfig(width, height, FRAME_RATE);
+            if (config == null) {
+                throw new IOException("No video encoder");
+            }
+            encoder = new VideoEncoder(config, sink);
+            inputSurface = encoder.start();
+            setUpEgl(shareContext);
+            long fence = texturesFence.getAndSet(0);
+            if (fence != 0) {
+                encoderGl.glClientWaitSync(fence, 0, FENCE_TIMEOUT_NANOS);
+                encoderGl.glDeleteSync(fence);
+            }
+            setUpBlit(config.width, config.height);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Failed to start the encoder", e);
+            finish();
+            return;
+        }
+        // A little under the frame interval, so camera jitter doesn't halve the rate.
+        minFrameIntervalNanos = 900_000_000L / config.frameRate;
+        ready = true;
+    }
+
+    private void setUpEgl(EGLContext shareContext) {
+        eglDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        int[] version = new int[2];
+        if (!EGL14.eglInitialize(eglDisplay, version, 0, version, 1)) {
+            throw new RuntimeException("eglInitialize failed");
+        }
+        int[] attribs = {
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_RENDERABLE_TYPE, es3 ? EGL_OPENGL_ES3_BIT_KHR : EGL14.EGL_OPENGL_ES2_BIT,
+                EGL_RECORDABLE_ANDROID, 1,
+                EGL14.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] count = new int[1];
+        if (!EGL14.eglChooseConfig(eglDisplay, attribs, 0, configs, 0, 1, count, 0) || count[0] == 0) {
+            throw new RuntimeException("No recordable EGL config");
+        }
+        int[] contextAttribs = {EGL14.EGL_CONTEXT_CLIENT_VERSION, es3 ? 3 : 2, EGL14.EGL_NONE};
+        eglContext = EGL14.eglCreateContext(eglDisplay, configs[0], shareContext, contextAttribs, 0);
+        if (eglContext == EGL14.EGL_NO_CONTEXT) {
+            throw new RuntimeException("eglCreateContext failed: 0x"
+                    + Integer.toHexString(EGL14.eglGetError()));
+        }
+        eglSurface = EGL14.eglCreateWindowSurface(eglDisplay, configs[0], inputSurface,
+                new int[] {EGL14.EGL_NONE}, 0);
+        if (eglSurface == EGL14.EGL_NO_SURFACE
+                || !EGL14.eglMakeCurrent(eglDisplay, eglSurface, eglSurface, eglContext)) {
+            throw new RuntimeException("Encoder surface setup failed: 0x"
+                    + Integer.toHexString(EGL14.eglGetError()));
+        }
+    }
+
+    private void setUpBlit(int width, int height) {
+        program = GlPrograms.link(encoderGl, context, R.raw.blit_vertex, R.raw.blit_fragment);
+        positionParam = encoderGl.glGetAttribLocation(program, "a_Position");
+        texCoordParam = encoderGl.glGetAttribLocation(program, "a_TexCoordinate");
+        textureUniform = encoderGl.glGetUniformLocation(program, "u_Texture");
+
+        FloatBuffer quad = ByteBuffer.allocateDirect(QUAD.length * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        quad.put(QUAD).position(0);
+        int[] ids = new int[1];
+        encoderGl.glGenBuffers(1, ids, 0);
+        quadVbo = ids[0];
+        encoderGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, quadVbo);
+        encoderGl.glBufferData(GLES20.GL_ARRAY_BUFFER, QUAD.length * 4, quad, GLES20.GL_STATIC_DRAW);
+
+        // Nothing else is drawn in this context, so the state set here stays.
+        encoderGl.glViewport(0, 0, width, height);
+        encoderGl.glUseProgram(program);
+        encoderGl.glEnableVertexAttribArray(positionParam);
+        encoderGl.glVertexAttribPointer(positionParam, 2, GLES20.GL_FLOAT, false, 16, 0);
+        encoderGl.glEnableVertexAttribArray(texCoordParam);
+        encoderGl.glVertexAttribPointer(texCoordParam, 2, GLES20.GL_FLOAT, false, 16, 8);
+        encoderGl.glActiveTexture(GLES20.GL_TEXTURE0);
+        encoderGl.glUniform1i(textureUniform, 0);
+    }
+
+    private void encodeFrame(int slot, long fence, long timestampNanos) {
+        if (finished) {
+            return;
+        }
+        if (fence != 0) {
+            encoderGl.glClientWaitSync(fence, 0, FENCE_TIMEOUT_NANOS);
+            encoderGl.glDeleteSync(fence);
+        }
+        encoderGl.glBindTexture(GLES20.GL_TEXTURE_2D, slotTextures[slot]);
+        encoderGl.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        // The slot may be captured into again once this read is done: the GL thread waits on
+        // the fence (flushed by the swap), or, without fences, this thread finishes the read.
+        long readFence = 0;
+        if (es3) {
+            readFence = encoderGl.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        } else {
+            encoderGl.glFinish();
+        }
+        EGLExt.eglPresentationTimeANDROID(eglDisplay, eglSurface, timestampNanos);
+        // May wait for the encoder to free an input buffer; only this thread waits.
+        EGL14.eglSwapBuffers(eglDisplay, eglSurface);
+        encoder.onFrameSubmitted(timestampNanos);
+        slotReadFences[slot].set(readFence);
+        slotBusy[slot].set(false);
+    }
+
+    private void endStream() {
+        // The swaps for every frame handed over came first, so the encoder has them all.
+        finish();
+    }
+
+    /** Releases everything on the encoder thread and ends it. */
+    private void finish() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        ready = false;
+        if (encoder != null) {
+            // Drains to the end of the stream first: the surface must outlive the last frames.
+            encoder.stop();
+        }
+        if (eglDisplay != EGL14.EGL_NO_DISPLAY) {
+            EGL14.eglMakeCurrent(eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
+                    EGL14.EGL_NO_CONTEXT);
+            if (eglSurface != EGL14.EGL_NO_SURFACE) {
+                EGL14.eglDestroySurface(eglDisplay, eglSurface);
+            }
+            if (eglContext != EGL14.EGL_NO_CONTEXT) {
+                EGL14.eglDestroyContext(eglDisplay, eglContext);
+            }
+            EGL14.eglReleaseThread();
+        }
+        if (inputSurface != null) {
+            inputSurface.release();
+        }
+        // Nothing reads the capture textures any more; they belong to the GL thread.
+        glThread.execute(this::releaseTextures);
+        thread.quitSafely();
+    }
+}
@@ -0,0 +1,446 @@
+package io.github.metavee.machinetobeanother;
+
+import android.content.Context;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Draws one stereo frame of the passthrough scene: the camera quad for each eye, the lens
+ * distortion ({@link DistortionRenderer}) and the alignment line between the eyes.
+ *
+ * <p>{@link TextureTestActivity} keeps everything around the draw (latching the camera or video
+ * frame, pacing, timing, latency and the performance HUD) and hands the scene to this class
+ * through the setters: eye projections, the quad's model matrix, the camera texture and its
+ * crop. Every call goes through the {@link Gl} it was built with, so a whole frame can run
+ * headless against a {@link RecordingGl}. All methods except the constructor and the setters
+ * run on the GL thread.
+ */
+final class FrameRenderer {
+
+    private static final String TAG = "FrameRenderer";
+
+    // Eye position on the z axis; the quad sits in front of it (see WorldLayoutData.RECT_Z).
+    static final float CAMERA_Z = 0.01f;
+
+    private final Context context;
+    private final Gl gl;
+    private final FrameProfiler frameProfiler;
+    // Whether to poll glGetError after each draw (debug builds): every poll is a round trip
+    // to the driver, and can stall until the GPU catches up.
+    private final boolean checkErrors;
+
+    // Forward-facing eye view. This renderer intentionally does not head-track: the
+    // passthrough image is pinned in front of the viewer, matching the original app.
+    private final float[] fixedEyeView = {
+            1f, 0f, 0f, 0f,
+            0f, 1f, 0f, 0f,
+            0f, 0f, 1f, 0f,
+            0f, 0f, 0f, 1f
+    };
+    private final float[] camera = new float[16];
+    private final float[] view = new float[16];
+    private final float[] modelView = new float[16];
+    private final float[] modelViewProjection = new float[16];
+    private final float[] modelRect = new float[16];
+    private final float[][] eyePerspective = new float[][] {new float[16], new float[16]};
+    // Both eyes' model-view-projection matrices, left then right, for the stereo draw.
+    private final float[] eyeMvps = new float[32];
+
+    // Transforms, {scaleX, scaleY, offsetX, offsetY}: rendered-FOV -> quad-local for the fused
+    // pass (per eye, rebuilt each frame), and quad-local -> camera texture (crop and mirror),
+    // shared by the quad shader and the fused pass.
+    private final float[] quadTransform = new float[4];
+    private float[] texTransform = new float[] {1f, -1f, 0f, 1f};
+    private final float[] quadCorner = new float[4];
+    private final float[] clipCorner = new float[4];
+
+    private int surfaceWidth;
+    private int surfaceHeight;
+
+    // Fused passthrough-distortion: see TextureTestActivity.
+    private boolean fusedPassthrough = true;
+
+    private DistortionRenderer distortionRenderer;
+    private StereoRectRenderer stereoRenderer;
+    // Only in front-buffer mode; the HUD is drawn per half there (see drawFrameRacing).
+    private FrontBufferRacer frontBuffer;
+    private PerfHud perfHud;
+
+    // Vertex buffer object holding the passthrough quad (WorldLayoutData.RECT_VERTICES),
+    // uploaded once in init.
+    private int rectVbo;
+
+    private int rectProgram;
+    private int cameraTexture;
+
+    private int rectPositionParam;
+    private int rectModelViewProjectionParam;
+
+    private int textureUniformParam;
+    private int textureCoordinateParam;
+    private int textureTransformParam;
+
+    FrameRenderer(Context context, Gl gl, FrameProfiler frameProfiler, boolean checkErrors) {
+        this.context = context;
+        this.gl = gl;
+        this.frameProfiler = frameProfiler;
+        this.checkErrors = checkErrors;
+        // The camera matrix, shared by both eyes.
+        Matrix.setLookAtM(camera, 0, 0.0f, 0.0f, CAMERA_Z, 0.0f, 0.0f, 0.0f, 0.0f, 1.0f, 0.0f);
+        Matrix.setIdentityM(modelRect, 0);
+    }
+
+    /** Uploads the quad and builds its program (onSurfaceCreated). */
+    void init() {
+        ByteBuffer bbVertices = ByteBuffer.allocateDirect(WorldLayoutData.RECT_VERTICES.length * 4);
+        bbVertices.order(ByteOrder.nativeOrder());
+        FloatBuffer rectVertices = bbVertices.asFloatBuffer();
+        rectVertices.put(WorldLayoutData.RECT_VERTICES);
+        rectVertices.position(0);
+
+        // Upload the quad once; every size, crop and mirror variant is a uniform from here on.
+        int[] buffers = new int[1];
+        gl.glGenBuffers(1, buffers, 0);
+        rectVbo = buffers[0];
+        gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, rectVbo);
+        gl.glBufferData(GLES20.GL_ARRAY_BUFFER, WorldLayoutData.RECT_VERTICES.length * 4,
+                rectVertices, GLES20.GL_STATIC_DRAW);
+        gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+
+        rectProgram = GlPrograms.link(gl, context, R.raw.rect_vertex, R.raw.rect_fragment);
+        checkGLError("Rect program");
+
+        rectPositionParam = gl.glGetAttribLocation(rectProgram, "a_Position");
+        textureCoordinateParam = gl.glGetAttribLocation(rectProgram, "a_TexCoordinate");
+
+        rectModelViewProjectionParam = gl.glGetUniformLocation(rectProgram, "u_MVP");
+        textureUniformParam = gl.glGetUniformLocation(rectProgram, "u_Texture");
+        textureTransformParam = gl.glGetUniformLocation(rectProgram, "u_TexTransform");
+
+        checkGLError("Rect program params");
+    }
+
+    void setSurfaceSize(int width, int height) {
+        surfaceWidth = width;
+        surfaceHeight = height;
+    }
+
+    /** Sets one eye's projection (0 = left, 1 = right); the matrix is copied. */
+    void setEyeProjection(int eye, float[] projection) {
+        System.arraycopy(projection, 0, eyePerspective[eye], 0, 16);
+    }
+
+    /** Sets the quad's model matrix, which scales the unit quad to its size; it is copied. */
+    void setModel(float[] model) {
+        System.arraycopy(model, 0, modelRect, 0, 16);
+    }
+
+    /** Sets the quad-local to camera texture mapping (crop and mirror). */
+    void setTextureTransform(float[] transform) {
+        texTransform = transform;
+    }
+
+    /** Sets the external (OES) texture to draw: the camera's, or in playback the current frame. */
+    void setCameraTexture(int texture) {
+        cameraTexture = texture;
+    }
+
+    void setFusedPassthrough(boolean fused) {
+        fusedPassthrough = fused;
+    }
+
+    void setDistortionRenderer(DistortionRenderer renderer) {
+        distortionRenderer = renderer;
+    }
+
+    /** The ES 3.0 stereo backend, or null to draw the quad once per eye. */
+    void setStereoRenderer(StereoRectRenderer renderer) {
+        stereoRenderer = renderer;
+    }
+
+    /** Front-buffer mode: the racer that paces racing frames, and the HUD drawn per half. */
+    void setFrontBuffer(FrontBufferRacer racer, PerfHud hud) {
+        frontBuffer = racer;
+        perfHud = hud;
+    }
+
+    private boolean isDistorting() {
+        return distortionRenderer != null && distortionRenderer.isReady();
+    }
+
+    private boolean isFused() {
+        return fusedPassthrough && distortionRenderer.isDirectSupported();
+    }
+
+    /** Whether frames go through the off-screen eye buffer (distortion on, not fused). */
+    boolean usesEyeBuffer() {
+        return isDistorting() && !isFused();
+    }
+
+    /**
+     * Draws the frame into the default framebuffer.
+     *
+     * @param racing          a front-buffer frame: each half is drawn while the raster scans
+     *                        the other, overlays included.
+     * @param frameStartNanos when the frame started, for the HUD of a racing frame.
+     */
+    void drawFrame(boolean racing, long frameStartNanos) {
+        int halfWidth = surfaceWidth / 2;
+        boolean distort = isDistorting();
+
+        if (distort && racing) {
+            drawFrameRacing(halfWidth, frameStartNanos);
+        } else if (distort) {
+            // Clear the on-screen buffer once; each eye is rendered off-screen and then
+            // drawn back through the distortion mesh.
+            gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            gl.glViewport(0, 0, surfaceWidth, surfaceHeight);
+            gl.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+            checkGLError("onDrawFrame");
+
+            if (isFused()) {
+                // No separate eye render: the distortion pass samples the camera directly.
+                frameProfiler.begin(FrameProfiler.STAGE_DISTORTION);
+                for (int eye = 0; eye < 2; eye++) {
+                    buildEyeMvp(eye);
+                    updateQuadTransform();
+                    distortionRenderer.renderEyeDirect(eye, eye == 0 ? 0 : halfWidth,
+                            cameraTexture, quadTransform, texTransform);
+                }
+                frameProfiler.end(FrameProfiler.STAGE_DISTORTION);
+            } else if (distortionRenderer.isAtlasMode()) {
+                // One bind and clear for both eyes, then a single distortion draw.
+                frameProfiler.begin(FrameProfiler.STAGE_EYE_RENDER);
+                distortionRenderer.bindEyeBuffer();
+                if (stereoRenderer != null) {
+                    drawRectStereo(distortionRenderer.getAtlasSplitX(),
+                            distortionRenderer.getAtlasHeight());
+                } else {
+                    for (int eye = 0; eye < 2; eye++) {
+                        distortionRenderer.setAtlasViewport(eye);
+                        buildEyeMvp(eye);
+                        drawRect();
+                    }
+                }
+                frameProfiler.end(FrameProfiler.STAGE_EYE_RENDER);
+                frameProfiler.begin(FrameProfiler.STAGE_DISTORTION);
+                distortionRenderer.renderAtlas();
+                frameProfiler.end(FrameProfiler.STAGE_DISTORTION);
+            } else {
+                for (int eye = 0; eye < 2; eye++) {
+                    frameProfiler.begin(FrameProfiler.STAGE_EYE_RENDER);
+                    distortionRenderer.bindEyeBuffer();
+                    buildEyeMvp(eye);
+                    drawRect();
+                    frameProfiler.end(FrameProfiler.STAGE_EYE_RENDER);
+                    frameProfiler.begin(FrameProfiler.STAGE_DISTORTION);
+                    distortionRenderer.renderEye(eye, eye == 0 ? 0 : halfWidth);
+                    frameProfiler.end(FrameProfiler.STAGE_DISTORTION);
+                }
+            }
+        } else {
+            // Fallback (distortion not ready): draw each eye straight to its half.
+            gl.glEnable(GLES20.GL_DEPTH_TEST);
+            gl.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+            checkGLError("onDrawFrame");
+
+            frameProfiler.begin(FrameProfiler.STAGE_EYE_RENDER);
+            if (stereoRenderer != null) {
+                gl.glViewport(0, 0, 2 * halfWidth, surfaceHeight);
+                drawRectStereo(halfWidth, surfaceHeight);
+            } else {
+                for (int eye = 0; eye < 2; eye++) {
+                    gl.glViewport(eye == 0 ? 0 : halfWidth, 0, halfWidth, surfaceHeight);
+                    buildEyeMvp(eye);
+                    drawRect();
+                }
+            }
+            frameProfiler.end(FrameProfiler.STAGE_EYE_RENDER);
+        }
+
+        if (!racing) {
+            // (A racing frame draws each half's share of it in drawFrameRacing.)
+            frameProfiler.begin(FrameProfiler.STAGE_ALIGNMENT_LINE);
+            drawAlignmentLine(0, surfaceWidth);
+            frameProfiler.end(FrameProfiler.STAGE_ALIGNMENT_LINE);
+        }
+    }
+
+    /**
+     * Front-buffer mode: draws each eye straight into the buffer being scanned out, one half
+     * while the raster is on the other (see FrontBufferRacer).
+     */
+    private void drawFrameRacing(int halfWidth, long frameStartNanos) {
+        boolean fused = isFused();
+        for (int step = 0; step < 2; step++) {
+            frontBuffer.awaitStep(step);
+            int eye = frontBuffer.eyeForStep(step);
+            int screenX = eye == 0 ? 0 : halfWidth;
+
+            // Clear only this eye's half; the other one is on its way to the glass.
+            gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            gl.glEnable(GLES20.GL_SCISSOR_TEST);
+            gl.glScissor(screenX, 0, halfWidth, surfaceHeight);
+            gl.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+            gl.glDisable(GLES20.GL_SCISSOR_TEST);
+
+            buildEyeMvp(eye);
+            if (fused) {
+                frameProfiler.begin(FrameProfiler.STAGE_DISTORTION);
+                updateQuadTransform();
+                distortionRenderer.renderEyeDirect(eye, screenX,
+                        cameraTexture, quadTransform, texTransform);
+                frameProfiler.end(FrameProfiler.STAGE_DISTORTION);
+            } else {
+                frameProfiler.begin(FrameProfiler.STAGE_EYE_RENDER);
+                distortionRenderer.bindEyeBuffer();
+                drawRect();
+                frameProfiler.end(FrameProfiler.STAGE_EYE_RENDER);
+                frameProfiler.begin(FrameProfiler.STAGE_DISTORTION);
+                distortionRenderer.renderEye(eye, screenX);
+                frameProfiler.end(FrameProfiler.STAGE_DISTORTION);
+            }
+            // The overlays too, or they would be drawn over a half already being scanned out.
+            frameProfiler.begin(FrameProfiler.STAGE_ALIGNMENT_LINE);
+            drawAlignmentLine(screenX, screenX + halfWidth);
+            frameProfiler.end(FrameProfiler.STAGE_ALIGNMENT_LINE);
+            perfHud.drawEye(eye, surfaceWidth, surfaceHeight, frameStartNanos);
+            frontBuffer.endStep(step);
+        }
+    }
+
+    /**
+     * Draws a thin white vertical line down the center of the screen, between the two eyes, to
+     * help center the phone in the Cardboard viewer; only the part of it between columns {@code
+     * left} and {@code right}.
+     */
+    private void drawAlignmentLine(int left, int right) {
+        int lineWidth = Math.max(2, surfaceWidth / 400);
+        int lineLeft = Math.max(left, (surfaceWidth - lineWidth) / 2);
+        int lineRight = Math.min(right, (surfaceWidth - lineWidth) / 2 + lineWidth);
+        if (lineRight <= lineLeft) {
+            return;
+        }
+        gl.glViewport(0, 0, surfaceWidth, surfaceHeight);
+        gl.glEnable(GLES20.GL_SCISSOR_TEST);
+        gl.glScissor(lineLeft, 0, lineRight - lineLeft, surfaceHeight);
+        gl.glClearColor(1f, 1f, 1f, 1f);
+        gl.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        gl.glDisable(GLES20.GL_SCISSOR_TEST);
+        gl.glClearColor(0.1f, 0.1f, 0.1f, 0.5f); // restore the normal frame clear color
+    }
+
+    /**
+     * Builds the ModelViewProjection matrix for one eye (forward-facing, no head tracking).
+     *
+     * @param eye 0 for the left eye, 1 for the right eye.
+     */
+    private void buildEyeMvp(int eye) {
+        Matrix.multiplyMM(view, 0, fixedEyeView, 0, camera, 0);
+        Matrix.multiplyMM(modelView, 0, view, 0, modelRect, 0);
+        Matrix.multiplyMM(modelViewProjection, 0, eyePerspective[eye], 0, modelView, 0);
+    }
+
+    /**
+     * Locates the passthrough quad in the current eye's projection (from {@code
+     * modelViewProjection}) and stores the mapping from the eye's rendered-FOV coordinates
+     * ([0, 1] across the eye buffer) to quad-local coordinates in {@code quadTransform}. The quad
+     * faces the viewer head-on, so this mapping is affine.
+     */
+    private void updateQuadTransform() {
+        // Corners of the unit quad; the model matrix scales them to the quad's half-extents.
+        quadCorner[0] = -1f;
+        quadCorner[1] = -1f;
+        quadCorner[2] = WorldLayoutData.RECT_Z;
+        quadCorner[3] = 1f;
+        Matrix.multiplyMV(clipCorner, 0, modelViewProjection, 0, quadCorner, 0);
+        float u0 = (clipCorner[0] / clipCorner[3] + 1f) / 2f;
+        float v0 = (clipCorner[1] / clipCorner[3] + 1f) / 2f;
+
+        quadCorner[0] = 1f;
+        quadCorner[1] = 1f;
+        Matrix.multiplyMV(clipCorner, 0, modelViewProjection, 0, quadCorner, 0);
+        float u1 = (clipCorner[0] / clipCorner[3] + 1f) / 2f;
+        float v1 = (clipCorner[1] / clipCorner[3] + 1f) / 2f;
+
+        quadTransform[0] = 1f / (u1 - u0);
+        quadTransform[1] = 1f / (v1 - v0);
+        quadTransform[2] = -u0 / (u1 - u0);
+        quadTransform[3] = -v0 / (v1 - v0);
+    }
+
+    /** Draws the quad undistorted, filling the current viewport (mono recording). */
+    void drawMono() {
+        // The unit quad straight onto the viewport: it sits at z = RECT_Z, so move it to 0.
+        Matrix.setIdentityM(modelViewProjection, 0);
+        modelViewProjection[14] = -WorldLayoutData.RECT_Z;
+        drawRect();
+    }
+
+    /** Draws the quad with {@code modelViewProjection} into the current viewport. */
+    private void drawRect() {
+        gl.glUseProgram(rectProgram);
+
+        // Position and quad-local texture coordinates, interleaved in the quad's vertex buffer.
+        gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, rectVbo);
+        gl.glVertexAttribPointer(rectPositionParam, WorldLayoutData.RECT_POSITION_SIZE,
+                GLES20.GL_FLOAT, false, WorldLayoutData.RECT_VERTEX_STRIDE, 0);
+        gl.glVertexAttribPointer(textureCoordinateParam, WorldLayoutData.RECT_TEX_COORD_SIZE,
+                GLES20.GL_FLOAT, false, WorldLayoutData.RECT_VERTEX_STRIDE,
+                WorldLayoutData.RECT_POSITION_SIZE * 4);
+
+        // Set the ModelViewProjection matrix in the shader.
+        gl.glUniformMatrix4fv(rectModelViewProjectionParam, 1, false, modelViewProjection, 0);
+
+        // Crop and mirror.
+        gl.glUniform4fv(textureTransformParam, 1, texTransform, 0);
+
+        // pass in texture
+        gl.glActiveTexture(GLES20.GL_TEXTURE0);
+        gl.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, cameraTexture);
+        gl.glUniform1i(textureUniformParam, 0);
+
+        // Enable vertex arrays
+        gl.glEnableVertexAttribArray(rectPositionParam);
+        gl.glEnableVertexAttribArray(textureCoordinateParam);
+
+        gl.glDrawArrays(GLES20.GL_TRIANGLES, 0, WorldLayoutData.RECT_VERTEX_COUNT);
+
+        // Disable vertex arrays. The buffer stays bound: nothing draws from client memory, and
+        // the next eye's rebind is then dropped by the state cache.
+        gl.glDisableVertexAttribArray(rectPositionParam);
+        gl.glDisableVertexAttribArray(textureCoordinateParam);
+
+        checkGLError("Drawing rect");
+    }
+
+    /**
+     * Draws the quad for both eyes in one instanced submission across the current (side-by-side)
+     * viewport; the right eye's half starts at window x {@code splitX}.
+     */
+    private void drawRectStereo(int splitX, int height) {
+        for (int eye = 0; eye < 2; eye++) {
+            buildEyeMvp(eye);
+            System.arraycopy(modelViewProjection, 0, eyeMvps, eye * 16, 16);
+        }
+        stereoRenderer.draw(rectVbo, eyeMvps, texTransform, cameraTexture, splitX, height);
+        checkGLError("Drawing stereo rect");
+    }
+
+    private void checkGLError(String label) {
+        if (!checkErrors) {
+            return;
+        }
+        int error;
+        while ((error = gl.glGetError()) != GLES20.GL_NO_ERROR) {
+            Log.e(TAG, label + ": glError " + error);
+            throw new RuntimeException(label + ": glError " + error);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package io.github.metavee.machinetobeanother;
+
+import android.util.Log;
+
+/**
+ * Measured compositor latch and display present times for the frames the renderer queues,
+ * through EGL_ANDROID_get_frame_timestamps, feeding the latency samples of a
+ * {@link LatencyRecorder}.
+ *
+ * <p>The extension has no Java binding, so the EGL calls go through a small JNI library
+ * ({@code src/main/cpp}). Timestamps arrive a few frames after the swap, so each newly latched
+ * camera frame is remembered by its EGL frame id and {@link #poll}ed for on later frames until
+ * the display reports it. Where the extension (or the library) is missing, or the display
+ * never reports a frame (dropped, or the surface went away), the sample is recorded with the
+ * present time {@link LatencyRecorder#UNAVAILABLE} rather than a predicted one.
+ *
+ * <p>All methods run on the GL thread, with the window surface current. The times are
+ * CLOCK_MONOTONIC, the {@link System#nanoTime} time base.
+ */
+final class FrameTimestamps {
+
+    private static final String TAG = "FrameTimestamps";
+
+    // Values the extension reports for a timestamp not known yet, or never coming.
+    private static final long TIMESTAMP_PENDING = -2;
+    private static final long TIMESTAMP_INVALID = -1;
+
+    // Frames awaiting timestamps. Displays report within a few frames; anything still pending
+    // when the queue is full is given up on.
+    private static final int MAX_PENDING = 16;
+
+    private static final boolean LIBRARY_LOADED = loadLibrary();
+
+    private final LatencyRecorder latencyRecorder;
+    private final long[] frameIds = new long[MAX_PENDING];
+    private final long[] captureNanos = new long[MAX_PENDING];
+    private final long[] latchNanos = new long[MAX_PENDING];
+    private int head;
+    private int count;
+    private boolean enabled;
+    private final long[] timestamps = new long[2];
+
+    FrameTimestamps(LatencyRecorder latencyRecorder) {
+        this.latencyRecorder = latencyRecorder;
+    }
+
+    /**
+     * Turns timestamp collection on for the current window surface (after it is created or
+     * resized). Frames still pending on a previous surface are recorded as unavailable.
+     *
+     * @return whether present times will be measured.
+     */
+    boolean enable() {
+        flush();
+        enabled = LIBRARY_LOADED && nativeEnable();
+        Log.i(TAG, enabled ? "Measuring present times" : "Present times unavailable");
+        return enabled;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Records a newly latched camera frame that is about to be queued by the next swap: its
+     * present time is looked up by later {@link #poll} calls.
+     */
+    void onFrameQueued(long capture, long latch) {
+        long frameId = enabled ? nativeGetNextFrameId() : -1;
+        if (frameId < 0) {
+            latencyRecorder.record(capture, latch, LatencyRecorder.UNAVAILABLE,
+                    LatencyRecorder.UNAVAILABLE);
+            return;
+        }
+        if (count == MAX_PENDING) {
+            recordOldest(LatencyRecorder.UNAVAILABLE, LatencyRecorder.UNAVAILABLE);
+        }
+        int i = (head + count) % MAX_PENDING;
+        frameIds[i] = frameId;
+        captureNanos[i] = capture;
+        latchNanos[i] = latch;
+        count++;
+    }
+
+    /** Records every pending frame whose timestamps have arrived, oldest first. */
+    void poll() {
+        while (count > 0) {
+            if (!nativeGetFrameTimestamps(frameIds[head], timestamps)) {
+                // Too old for the driver's history, or the surface changed underneath.
+                recordOldest(LatencyRecorder.UNAVAILABLE, LatencyRecorder.UNAVAILABLE);
+                continue;
+            }
+            long latch = timestamps[0];
+            long present = timestamps[1];
+            if (latch == TIMESTAMP_PENDING || present == TIMESTAMP_PENDING) {
+                // Frames are presented in order, so later ones are pending too.
+                return;
+            }
+            recordOldest(latch == TIMESTAMP_INVALID ? LatencyRecorder.UNAVAILABLE : latch,
+                    present == TIMESTAMP_INVALID ? LatencyRecorder.UNAVAILABLE : present);
+        }
+    }
+
+    /** Records every pending frame as unavailable, e.g. before the surface goes away. */
+    void flush() {
+        while (count > 0) {
+            recordOldest(LatencyRecorder.UNAVAILABLE, LatencyRecorder.UNAVAILABLE);
+        }
+    }
+
+    private void recordOldest(long compositeNanos, long presentNanos) {
+        latencyRecorder.record(captureNanos[head], latchNanos[head], compositeNanos, presentNanos);
+        head = (head + 1) % MAX_PENDING;
+        count--;
+    }
+
+    private static boolean loadLibrary() {
+        try {
+            System.loadLibrary("frametimestamps");
+            return true;
+        } catch (UnsatisfiedLinkError e) {
+            Log.w(TAG, "Frame timestamp library unavailable", e);
+            return false;
+        }
+    }
+
+    private static native boolean nativeEnable();
+
+    private static native long nativeGetNextFrameId();
+
+    private static native boolean nativeGetFrameTimestamps(long frameId, long[] out);
+}
@@ -0,0 +1,279 @@
+package io.github.metavee.machinetobeanother;
+
+import android.opengl.EGL14;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLSurface;
+import android.opengl.GLSurfaceView;
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+
+/**
+ * Front-buffer ("beam racing") rendering through {@code EGL_KHR_mutable_render_buffer}.
+ *
+ * <p>With the window surface switched to {@code EGL_SINGLE_BUFFER}, rendering goes straight into
+ * the buffer being scanned out instead of a back buffer that waits a refresh for the compositor
+ * and another for scanout. The panel scans the landscape image one half at a time, so each frame
+ * is drawn in two steps locked to the vsync timeline:
+ * <pre>
+ *   vsync V          V + P/2          V + P
+ *   |-- raster: half A --|-- raster: half B --|
+ *   |  draw half B       |  draw half A       |
+ * </pre>
+ * Each half is redrawn while the raster is on the other one and must be finished (the step ends
+ * with {@code glFinish}) before the raster reaches it; the time left is the step's margin, and a
+ * negative margin means the raster overtook the draw (a tear). Margins are logged every ten
+ * seconds.
+ *
+ * <p>Phone panels scan from their natural (portrait) top edge, so which eye is scanned first
+ * depends on the landscape rotation: the left eye for {@code ROTATION_90}, the right eye for
+ * {@code ROTATION_270}.
+ *
+ * <p>The surface needs an EGL config with {@code EGL_MUTABLE_RENDER_BUFFER_BIT_KHR}, picked by
+ * {@link ConfigChooser}. When the extension or such a config is missing, or the surface never
+ * switches to single buffering, {@link #isActive} stays (or becomes) false and the caller keeps
+ * the normal swap chain. Everything except the constructor runs on the GL thread.
+ */
+public final class FrontBufferRacer {
+
+    private static final String TAG = "FrontBufferRacer";
+
+    private static final String EXTENSION = "EGL_KHR_mutable_render_buffer";
+    private static final int EGL_MUTABLE_RENDER_BUFFER_BIT_KHR = 0x1000;
+    private static final int EGL_OPENGL_ES2_BIT = 0x0004;
+    private static final int EGL_OPENGL_ES3_BIT_KHR = 0x0040;
+
+    // The switch to single buffering takes effect on the next swap; give it a few frames.
+    private static final int MAX_CONFIRM_FRAMES = 3;
+
+    private static final long REPORT_INTERVAL_NANOS = 10_000_000_000L;
+
+    /**
+     * GLSurfaceView config chooser (RGBA8888, 16-bit depth, 8-bit stencil) that prefers a config
+     * whose window surfaces can switch to single buffering.
+     */
+    public static final class ConfigChooser implements GLSurfaceView.EGLConfigChooser {
+
+        private final int renderableType;
+        private boolean mutable;
+
+        /** @param es3 whether the config must support ES 3.0 contexts (else ES 2.0). */
+        public ConfigChooser(boolean es3) {
+            renderableType = es3 ? EGL_OPENGL_ES3_BIT_KHR : EGL_OPENGL_ES2_BIT;
+        }
+
+        /** Whether the chosen config supports {@code EGL_MUTABLE_RENDER_BUFFER_BIT_KHR}. */
+        public boolean hasMutableConfig() {
+            return mutable;
+        }
+
+        @Override
+        public EGLConfig chooseConfig(EGL10 egl, javax.microedition.khronos.egl.EGLDisplay display) {
+            mutable = false;
+            String extensions = egl.eglQueryString(display, EGL10.EGL_EXTENSIONS);
+            if (extensions != null && extensions.contains(EXTENSION)) {
+                EGLConfig config = choose(egl, display,
+                        EGL10.EGL_WINDOW_BIT | EGL_MUTABLE_RENDER_BUFFER_BIT_KHR, renderableType);
+                if (config != null) {
+                    mutable = true;
+                    return config;
+                }
+                Log.w(TAG, EXTENSION + " present but no config supports it");
+            } else {
+                Log.i(TAG, EXTENSION + " not supported");
+            }
+            EGLConfig config = choose(egl, display, EGL10.EGL_WINDOW_BIT, renderableType);
+            if (config == null) {
+                throw new IllegalArgumentException("No EGL config chosen");
+            }
+            return config;
+        }
+
+        private static EGLConfig choose(EGL10 egl, javax.microedition.khronos.egl.EGLDisplay display,
+                                        int surfaceType, int renderableType) {
+            int[] attribs = {
+                    EGL10.EGL_RED_SIZE, 8,
+                    EGL10.EGL_GREEN_SIZE, 8,
+                    EGL10.EGL_BLUE_SIZE, 8,
+                    EGL10.EGL_ALPHA_SIZE, 8,
+                    EGL10.EGL_DEPTH_SIZE, 16,
+                    EGL10.EGL_STENCIL_SIZE, 8,
+                    EGL10.EGL_RENDERABLE_TYPE, renderableType,
+                    EGL10.EGL_SURFACE_TYPE, surfaceType,
+                    EGL10.EGL_NONE
+            };
+            EGLConfig[] configs = new EGLConfig[1];
+            int[] count = new int[1];
+            if (!egl.eglChooseConfig(display, attribs, configs, 1, count) || count[0] == 0) {
+                return null;
+            }
+            return configs[0];
+        }
+    }
+
+    private final VsyncMonitor vsync;
+    private final boolean leftEyeScannedFirst;
+    private final Gl gl;
+
+    private boolean active;
+    private boolean confirmed;
+    private int confirmFrames;
+    private final int[] queryValue = new int[1];
+
+    // Vsync that starts the scanout of the frame being drawn.
+    private long frameVsyncNanos;
+    private long framePeriodNanos;
+
+    // Per-step margin statistics for the current reporting window.
+    private long windowStartNanos;
+    private final long[] marginSum = new long[2];
+    private final long[] marginMin = new long[2];
+    private final int[] misses = new int[2];
+    private int windowFrames;
+
+    /**
+     * @param leftEyeScannedFirst whether the raster reaches the left eye's half first (see the
+     *                            class comment).
+     */
+    public FrontBufferRacer(VsyncMonitor vsync, boolean leftEyeScannedFirst, Gl gl) {
+        this.vsync = vsync;
+        this.leftEyeScannedFirst = leftEyeScannedFirst;
+        this.gl = gl;
+    }
+
+    /**
+     * Switches the current window surface to single buffering. Call on the GL thread once the
+     * surface exists (onSurfaceCreated).
+     *
+     * @param mutableConfig whether the surface's config supports it ({@link
+     *                      ConfigChooser#hasMutableConfig}).
+     * @return false when front-buffer rendering is unavailable and the normal path must be used.
+     */
+    public boolean enable(boolean mutableConfig) {
+        active = false;
+        if (!mutableConfig) {
+            Log.i(TAG, "No mutable render buffer config; front-buffer mode off");
+            return false;
+        }
+        if (!EGL14.eglSurfaceAttrib(EGL14.eglGetCurrentDisplay(),
+                EGL14.eglGetCurrentSurface(EGL14.EGL_DRAW),
+                EGL14.EGL_RENDER_BUFFER, EGL14.EGL_SINGLE_BUFFER)) {
+            Log.w(TAG, "eglSurfaceAttrib(EGL_SINGLE_BUFFER) failed: 0x"
+                    + Integer.toHexString(EGL14.eglGetError()) + "; front-buffer mode off");
+            return false;
+        }
+        active = true;
+        confirmed = false;
+        confirmFrames = 0;
+        windowStartNanos = 0;
+        resetWindow();
+        return true;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Starts a frame. Once the surface is confirmed single-buffered, waits for the next vsync
+     * (the start of a scanout) and returns true: the frame must then be drawn with {@link
+     * #awaitStep}, {@link #eyeForStep} and {@link #endStep}. Returns false while the switch is
+     * pending, or after giving up on it ({@link #isActive} becomes false); draw normally then.
+     */
+    public boolean beginFrame() {
+        if (!active) {
+            return false;
+        }
+        if (!confirmed) {
+            EGLDisplay display = EGL14.eglGetCurrentDisplay();
+            EGLSurface surface = EGL14.eglGetCurrentSurface(EGL14.EGL_DRAW);
+            EGL14.eglQuerySurface(display, surface, EGL14.EGL_RENDER_BUFFER, queryValue, 0);
+            if (queryValue[0] != EGL14.EGL_SINGLE_BUFFER) {
+                if (++confirmFrames >= MAX_CONFIRM_FRAMES) {
+                    Log.w(TAG, "Surface did not switch to single buffering; front-buffer mode off");
+                    EGL14.eglSurfaceAttrib(display, surface,
+                            EGL14.EGL_RENDER_BUFFER, EGL14.EGL_BACK_BUFFER);
+                    active = false;
+                }
+                return false;
+            }
+            confirmed = true;
+            Log.i(TAG, "Rendering to the front buffer, "
+                    + (leftEyeScannedFirst ? "left" : "right") + " eye scanned first");
+        }
+        framePeriodNanos = vsync.getRefreshPeriodNanos();
+        frameVsyncNanos = vsync.nextVsyncAfter(System.nanoTime());
+        sleepUntil(frameVsyncNanos);
+        return true;
+    }
+
+    /** The eye to draw in the given step: first the half scanned second, then the other. */
+    public int eyeForStep(int step) {
+        int first = leftEyeScannedFirst ? 0 : 1;
+        return step == 0 ? 1 - first : first;
+    }
+
+    /** Waits until the raster has left the half drawn in {@code step}. */
+    public void awaitStep(int step) {
+        if (step == 1) {
+            sleepUntil(frameVsyncNanos + framePeriodNanos / 2);
+        }
+    }
+
+    /** Finishes the step's GPU work and records how far ahead of the raster it completed. */
+    public void endStep(int step) {
+        gl.glFinish();
+        long done = System.nanoTime();
+        long deadline = frameVsyncNanos + (step == 0 ? framePeriodNanos / 2 : framePeriodNanos);
+        long margin = deadline - done;
+        marginSum[step] += margin;
+        marginMin[step] = Math.min(marginMin[step], margin);
+        if (margin < 0) {
+            misses[step]++;
+        }
+        if (step == 1) {
+            endFrame(done);
+        }
+    }
+
+    private void endFrame(long nowNanos) {
+        windowFrames++;
+        if (windowStartNanos == 0) {
+            windowStartNanos = nowNanos;
+        }
+        if (nowNanos - windowStartNanos < REPORT_INTERVAL_NANOS) {
+            return;
+        }
+        Log.i(TAG, String.format(Locale.US,
+                "%d frames; margin ahead of raster (mean/min ms): first step %.2f/%.2f, "
+                        + "second step %.2f/%.2f; raster overtook %d + %d draws; "
+                        + "draw-to-scanout %.1f ms (vs %.1f ms through the swap chain)",
+                windowFrames,
+                marginSum[0] / 1e6 / windowFrames, marginMin[0] / 1e6,
+                marginSum[1] / 1e6 / windowFrames, marginMin[1] / 1e6,
+                misses[0], misses[1],
+                framePeriodNanos / 2 / 1e6, 2 * framePeriodNanos / 1e6));
+        windowStartNanos = nowNanos;
+        resetWindow();
+    }
+
+    private void resetWindow() {
+        windowFrames = 0;
+        for (int i = 0; i < 2; i++) {
+            marginSum[i] = 0;
+            marginMin[i] = Long.MAX_VALUE;
+            misses[i] = 0;
+        }
+    }
+
+    private static void sleepUntil(long nanos) {
+        long wait;
+        while ((wait = nanos - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package io.github.metavee.machinetobeanother;
+
+import android.graphics.Bitmap;
+
+import java.nio.Buffer;
+
+/**
+ * The OpenGL ES entry points the renderer uses, so render code can run against something other
+ * than the device driver.
+ *
+ * <p>Signatures mirror {@link android.opengl.GLES20} (and the few {@link android.opengl.GLES30}
+ * and {@link android.opengl.GLUtils} calls), and the enums are still the {@code GLES20.GL_*}
+ * constants. Implementations:
+ * <ul>
+ *   <li>{@link AndroidGl}: the real driver, used by the app;</li>
+ *   <li>{@link RecordingGl}: counts calls (draws, uploads, {@code glGetError} round trips, ...)
+ *       on top of another implementation, for per-frame call budgets;</li>
+ *   <li>{@link NoOpGl}: does nothing but hand out object names and report success, so render
+ *       logic can run headless on a JVM.</li>
+ * </ul>
+ */
+public interface Gl {
+
+    // --- state ------------------------------------------------------------------------
+
+    void glEnable(int cap);
+
+    void glDisable(int cap);
+
+    void glViewport(int x, int y, int width, int height);
+
+    void glScissor(int x, int y, int width, int height);
+
+    void glBlendFunc(int sfactor, int dfactor);
+
+    void glClearColor(float red, float green, float blue, float alpha);
+
+    void glClear(int mask);
+
+    void glFinish();
+
+    void glFlush();
+
+    int glGetError();
+
+    String glGetString(int name);
+
+    void glGetIntegerv(int pname, int[] params, int offset);
+
+    // --- shaders and programs ---------------------------------------------------------
+
+    int glCreateShader(int type);
+
+    void glShaderSource(int shader, String string);
+
+    void glCompileShader(int shader);
+
+    void glGetShaderiv(int shader, int pname, int[] params, int offset);
+
+    void glGetShaderPrecisionFormat(int shaderType, int precisionType, int[] range,
+                                    int rangeOffset, int[] precision, int precisionOffset);
+
+    String glGetShaderInfoLog(int shader);
+
+    void glDeleteShader(int shader);
+
+    int glCreateProgram();
+
+    void glAttachShader(int program, int shader);
+
+    void glLinkProgram(int program);
+
+    void glGetProgramiv(int program, int pname, int[] params, int offset);
+
+    String glGetProgramInfoLog(int program);
+
+    void glDeleteProgram(int program);
+
+    void glUseProgram(int program);
+
+    int glGetAttribLocation(int program, String name);
+
+    int glGetUniformLocation(int program, String name);
+
+    void glUniform1i(int location, int x);
+
+    void glUniform1f(int location, float x);
+
+    void glUniform2f(int location, float x, float y);
+
+    void glUniform4fv(int location, int count, float[] v, int offset);
+
+    void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value, int offset);
+
+    // --- buffers and vertex input -----------------------------------------------------
+
+    void glGenBuffers(int n, int[] buffers, int offset);
+
+    void glBindBuffer(int target, int buffer);
+
+    void glBufferData(int target, int size, Buffer data, int usage);
+
+    void glEnableVertexAttribArray(int index);
+
+    void glDisableVertexAttribArray(int index);
+
+    void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride,
+                               int offset);
+
+    void glDrawArrays(int mode, int first, int count);
+
+    void glDrawElements(int mode, int count, int type, int offset);
+
+    void glDrawArraysInstanced(int mode, int first, int count, int instanceCount);
+
+    // --- textures ---------------------------------------------------------------------
+
+    void glGenTextures(int n, int[] textures, int offset);
+
+    void glDeleteTextures(int n, int[] textures, int offset);
+
+    void glActiveTexture(int texture);
+
+    void glBindTexture(int target, int texture);
+
+    void glTexParameteri(int target, int pname, int param);
+
+    void glTexParameterf(int target, int pname, float param);
+
+    void glTexImage2D(int target, int level, int internalformat, int width, int height,
+                      int border, int format, int type, Buffer pixels);
+
+    void glCopyTexSubImage2D(int target, int level, int xoffset, int yoffset, int x, int y,
+                             int width, int height);
+
+    /** {@link android.opengl.GLUtils#texImage2D(int, int, Bitmap, int)}. */
+    void texImage2D(int target, int level, Bitmap bitmap, int border);
+
+    /** {@link android.opengl.GLUtils#texSubImage2D(int, int, int, int, Bitmap)}. */
+    void texSubImage2D(int target, int level, int xoffset, int yoffset, Bitmap bitmap);
+
+    // --- framebuffers -----------------------------------------------------------------
+
+    void glGenFramebuffers(int n, int[] framebuffers, int offset);
+
+    void glDeleteFramebuffers(int n, int[] framebuffers, int offset);
+
+    void glBindFramebuffer(int target, int framebuffer);
+
+    void glFramebufferTexture2D(int target, int attachment, int textarget, int texture, int level);
+
+    void glFramebufferRenderbuffer(int target, int attachment, int renderbuffertarget,
+                                   int renderbuffer);
+
+    int glCheckFramebufferStatus(int target);
+
+    void glGenRenderbuffers(int n, int[] renderbuffers, int offset);
+
+    void glDeleteRenderbuffers(int n, int[] renderbuffers, int offset);
+
+    void glBindRenderbuffer(int target, int renderbuffer);
+
+    void glRenderbufferStorage(int target, int internalformat, int width, int height);
+
+    // --- queries (ES 3.0 / EXT_disjoint_timer_query) ----------------------------------
+
+    void glGenQueries(int n, int[] ids, int offset);
+
+    void glBeginQuery(int target, int id);
+
+    void glEndQuery(int target);
+
+    void glGetQueryObjectuiv(int id, int pname, int[] params, int offset);
+
+    // --- sync objects (ES 3.0) ----------------------------------------------------------
+
+    long glFenceSync(int condition, int flags);
+
+    int glClientWaitSync(long sync, int flags, long timeout);
+
+    void glWaitSync(long sync, int flags, long timeout);
+
+    void glDeleteSync(long sync);
+
+    // --- program binaries (ES 3.0) ----------------------------------------------------
+
+    void glProgramParameteri(int program, int pname, int value);
+
+    void glGetProgramBinary(int program, int bufSize, int[] length, int lengthOffset,
+                            int[] binaryFormat, int binaryFormatOffset, Buffer binary);
+
+    void glProgramBinary(int program, int binaryFormat, Buffer binary, int length);
+}
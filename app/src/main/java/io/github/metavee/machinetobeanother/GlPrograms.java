@@ -0,0 +1,105 @@
+package io.github.metavee.machinetobeanother;
+
+import android.content.Context;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+/**
+ * Builds GL programs from GLSL kept as raw resources, for the renderer and its helper passes
+ * ({@link DistortionRenderer}, {@link PerfHud}, {@link FrameRecorder}, ...). Linked programs are
+ * cached as binaries where the context allows ({@link ProgramCache}). Must be called on a thread
+ * with a current GL context.
+ */
+final class GlPrograms {
+
+    private static final String TAG = "GlPrograms";
+
+    private GlPrograms() {}
+
+    /**
+     * Compiles and links a program from a vertex and a fragment shader resource, or loads it from
+     * the program cache.
+     *
+     * @throws RuntimeException if either shader fails to compile or the program fails to link.
+     */
+    static int link(Gl gl, Context context, int vertexResId, int fragmentResId) {
+        long start = SystemClock.elapsedRealtimeNanos();
+        String vertexSource = readRawTextFile(context, vertexResId);
+        String fragmentSource = readRawTextFile(context, fragmentResId);
+        ProgramCache cache = ProgramCache.get(context);
+        String key = cache.key(gl, vertexSource, fragmentSource);
+        int prog = key != null ? cache.load(gl, key) : 0;
+        boolean cached = prog != 0;
+        if (!cached) {
+            prog = compileAndLink(gl, vertexSource, fragmentSource, key != null);
+            if (key != null) {
+                cache.store(gl, prog, key);
+            }
+        }
+        long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+        Log.i(TAG, String.format(Locale.US, "%s: %s in %.1f ms (cache: %s)",
+                context.getResources().getResourceEntryName(vertexResId),
+                cached ? "cached binary" : "compiled", elapsed / 1e6,
+                key != null ? cache.getStats() : "unsupported"));
+        return prog;
+    }
+
+    private static int compileAndLink(Gl gl, String vertexSource, String fragmentSource,
+                                      boolean retrievable) {
+        int vertexShader = loadShader(gl, GLES20.GL_VERTEX_SHADER, vertexSource);
+        int fragmentShader = loadShader(gl, GLES20.GL_FRAGMENT_SHADER, fragmentSource);
+        int prog = gl.glCreateProgram();
+        gl.glAttachShader(prog, vertexShader);
+        gl.glAttachShader(prog, fragmentShader);
+        if (retrievable) {
+            gl.glProgramParameteri(prog, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GLES20.GL_TRUE);
+        }
+        gl.glLinkProgram(prog);
+        // Attached to the program, they live on until it is deleted; flag them now.
+        gl.glDeleteShader(vertexShader);
+        gl.glDeleteShader(fragmentShader);
+        int[] status = new int[1];
+        gl.glGetProgramiv(prog, GLES20.GL_LINK_STATUS, status, 0);
+        if (status[0] == 0) {
+            Log.e(TAG, "Error linking program: " + gl.glGetProgramInfoLog(prog));
+            gl.glDeleteProgram(prog);
+            throw new RuntimeException("Error linking program");
+        }
+        return prog;
+    }
+
+    private static int loadShader(Gl gl, int type, String code) {
+        int shader = gl.glCreateShader(type);
+        gl.glShaderSource(shader, code);
+        gl.glCompileShader(shader);
+        int[] status = new int[1];
+        gl.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
+        if (status[0] == 0) {
+            Log.e(TAG, "Error compiling shader: " + gl.glGetShaderInfoLog(shader));
+            gl.glDeleteShader(shader);
+            throw new RuntimeException("Error compiling shader");
+        }
+        return shader;
+    }
+
+    private static String readRawTextFile(Context context, int resId) {
+        try (InputStream in = context.getResources().openRawResource(resId)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(in.available());
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toString("UTF-8");
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read shader " + resId, e);
+        }
+    }
+}
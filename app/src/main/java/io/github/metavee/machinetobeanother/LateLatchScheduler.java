@@ -0,0 +1,173 @@
+package io.github.metavee.machinetobeanother;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Vsync-aligned frame scheduler that latches the camera image as late as possible.
+ *
+ * <p>GLSurfaceView on its own starts a frame whenever it is asked to, so a camera frame latched
+ * at the start of a refresh interval waits out the rest of it, and one arriving just after the
+ * latch waits a whole extra refresh. Instead, at every vsync this scheduler (if a new camera
+ * frame or a view change is pending) requests the render at
+ * <pre>
+ *   start = nextVsync - predictedRenderTime - SAFETY_MARGIN
+ * </pre>
+ * just early enough for the frame to be queued before the compositor latches it at the next
+ * vsync. The render time is learned from recent frames (the 90th percentile of the last
+ * {@link #HISTORY}), so the start time tracks the device and the current load.
+ *
+ * <p>It also reports the latency won back: a camera frame that arrived after the vsync
+ * preceding its latch would, in the free-running loop that latches at the start of the
+ * interval, have waited for the next interval, i.e. one full refresh longer.
+ *
+ * <p>{@link #start}/{@link #stop} and the vsync callbacks run on the main thread; {@link
+ * #markDirty} may be called from any thread and {@link #onFrameRendered} on the GL thread.
+ */
+public final class LateLatchScheduler implements Choreographer.FrameCallback {
+
+    private static final String TAG = "LateLatchScheduler";
+
+    private static final int HISTORY = 64;
+    private static final long SAFETY_MARGIN_NANOS = 2_000_000L;
+    private static final long INITIAL_RENDER_ESTIMATE_NANOS = 6_000_000L;
+    private static final long REPORT_INTERVAL_NANOS = 10_000_000_000L;
+
+    private final VsyncMonitor vsync;
+    private final Runnable requestRender;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable fire = this::fire;
+
+    private volatile boolean dirty;
+    private boolean scheduled;
+    private boolean running;
+
+    // Target vsync of the render most recently requested (the compositor latch it aims for).
+    private volatile long targetVsyncNanos;
+
+    // Render-time history (GL thread) and the resulting prediction (read on the main thread).
+    private final long[] renderNanos = new long[HISTORY];
+    private final long[] scratch = new long[HISTORY];
+    private int renderCount;
+    private int renderNext;
+    private volatile long predictedRenderNanos = INITIAL_RENDER_ESTIMATE_NANOS;
+
+    // Latency won back over the free-running loop, per reporting window (GL thread).
+    private long windowStartNanos;
+    private int windowFrames;
+    private int windowCaught;
+    private long windowLatchToTargetNanos;
+
+    /**
+     * @param requestRender asks the GL view to render (e.g. {@code glView::requestRender}).
+     */
+    public LateLatchScheduler(VsyncMonitor vsync, Runnable requestRender) {
+        this.vsync = vsync;
+        this.requestRender = requestRender;
+    }
+
+    public void start() {
+        if (!running) {
+            running = true;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    public void stop() {
+        if (running) {
+            running = false;
+            Choreographer.getInstance().removeFrameCallback(this);
+            handler.removeCallbacks(fire);
+            scheduled = false;
+        }
+    }
+
+    /** A new camera frame (or view change) is waiting to be shown. */
+    public void markDirty() {
+        dirty = true;
+    }
+
+    /** The GL thread latched the pending content; later arrivals need another render. */
+    public void onLatched() {
+        dirty = false;
+    }
+
+    public long getPredictedRenderNanos() {
+        return predictedRenderNanos;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!running) {
+            return;
+        }
+        if (dirty && !scheduled) {
+            long period = vsync.getRefreshPeriodNanos();
+            long deadline = frameTimeNanos + period;
+            long start = deadline - predictedRenderNanos - SAFETY_MARGIN_NANOS;
+            long delayMillis = Math.max(0, (start - System.nanoTime()) / 1_000_000L);
+            targetVsyncNanos = deadline;
+            scheduled = true;
+            handler.postDelayed(fire, delayMillis);
+        }
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    private void fire() {
+        scheduled = false;
+        requestRender.run();
+    }
+
+    /**
+     * Records a rendered frame: how long it took, and for a newly latched camera frame when it
+     * arrived and when it was latched.
+     *
+     * @param arrivalNanos when the camera frame became available, or 0 for a repeated frame.
+     */
+    public void onFrameRendered(long durationNanos, long arrivalNanos, long latchNanos) {
+        renderNanos[renderNext] = durationNanos;
+        renderNext = (renderNext + 1) % HISTORY;
+        if (renderCount < HISTORY) {
+            renderCount++;
+        }
+        System.arraycopy(renderNanos, 0, scratch, 0, renderCount);
+        Arrays.sort(scratch, 0, renderCount);
+        predictedRenderNanos = scratch[Math.min(renderCount - 1, renderCount * 9 / 10)];
+
+        if (arrivalNanos == 0) {
+            return;
+        }
+        if (windowStartNanos == 0) {
+            windowStartNanos = latchNanos;
+        }
+        long period = vsync.getRefreshPeriodNanos();
+        long target = targetVsyncNanos;
+        windowFrames++;
+        if (target != 0) {
+            windowLatchToTargetNanos += target - latchNanos;
+            // Arrived after the interval began: the free-running loop had already latched.
+            if (arrivalNanos > target - period) {
+                windowCaught++;
+            }
+        }
+
+        if (latchNanos - windowStartNanos >= REPORT_INTERVAL_NANOS) {
+            Log.i(TAG, String.format(Locale.US,
+                    "predicted render %.1f ms; latch %.1f ms before the compositor deadline "
+                            + "(vs ~%.1f ms latching at interval start); %d of %d frames "
+                            + "caught late, avg %.1f ms latency won back per frame",
+                    predictedRenderNanos / 1e6, windowLatchToTargetNanos / 1e6 / windowFrames,
+                    period / 1e6, windowCaught, windowFrames,
+                    windowCaught * (period / 1e6) / windowFrames));
+            windowStartNanos = latchNanos;
+            windowFrames = 0;
+            windowCaught = 0;
+            windowLatchToTargetNanos = 0;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package io.github.metavee.machinetobeanother;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * Camera-to-display latency for a passthrough session.
+ *
+ * <p>For every camera frame that is shown, up to four timestamps are recorded (all in the
+ * {@link System#nanoTime} time base):
+ * <ul>
+ *   <li><b>capture</b>: the frame's {@code SurfaceTexture.getTimestamp()} (sensor timestamp);</li>
+ *   <li><b>latch</b>: when onDrawFrame latched it with {@code updateTexImage};</li>
+ *   <li><b>composite</b>: when the compositor latched the buffer it was drawn into, and</li>
+ *   <li><b>present</b>: when the display reported it on the glass, both measured through
+ *       EGL_ANDROID_get_frame_timestamps ({@link FrameTimestamps}).</li>
+ * </ul>
+ * The last two are {@link #UNAVAILABLE} where the display does not report them, and for
+ * front-buffer frames, which bypass the compositor; those frames count towards capture-to-latch
+ * only, and the report says how many there were rather than filling in a predicted time.
+ * Each series is accumulated into a fixed-size histogram (no allocation per frame) and written,
+ * with percentiles, to a text file next to the session recordings when the session ends.
+ *
+ * <p>{@link #record} is called on the GL thread; {@link #writeReport} once the GL thread is
+ * paused.
+ */
+public final class LatencyRecorder {
+
+    private static final String TAG = "LatencyRecorder";
+
+    // Histogram resolution and range; anything slower lands in the last (overflow) bucket.
+    private static final long BUCKET_NANOS = 1_000_000L;
+    private static final int BUCKETS = 250;
+
+    // Frames whose capture timestamp is implausible (a camera HAL using a different clock,
+    // or a stale frame) are counted but not binned.
+    private static final long MAX_PLAUSIBLE_NANOS = 1_000_000_000L;
+
+    /** A composite or present time that was not measured. */
+    public static final long UNAVAILABLE = -1;
+
+    private static final int CAPTURE_TO_LATCH = 0;
+    private static final int LATCH_TO_COMPOSITE = 1;
+    private static final int LATCH_TO_PRESENT = 2;
+    private static final int CAPTURE_TO_PRESENT = 3;
+    private static final String[] SERIES_NAMES = {"capture->latch", "latch->composite",
+            "latch->present", "capture->present"};
+    private static final int SERIES = SERIES_NAMES.length;
+
+    private final long[][] histograms = new long[SERIES][BUCKETS];
+    private final long[] sums = new long[SERIES];
+    private final long[] counts = new long[SERIES];
+    private long frames;
+    private long rejectedFrames;
+
+    /**
+     * Records one newly shown camera frame.
+     *
+     * @param compositeNanos when the compositor latched it, or {@link #UNAVAILABLE}.
+     * @param presentNanos when it reached the display, or {@link #UNAVAILABLE}.
+     */
+    public void record(long captureNanos, long latchNanos, long compositeNanos, long presentNanos) {
+        long captureToLatch = latchNanos - captureNanos;
+        if (captureNanos <= 0 || captureToLatch < 0 || captureToLatch > MAX_PLAUSIBLE_NANOS) {
+            rejectedFrames++;
+            return;
+        }
+        frames++;
+        add(CAPTURE_TO_LATCH, captureToLatch);
+        if (compositeNanos != UNAVAILABLE) {
+            add(LATCH_TO_COMPOSITE, compositeNanos - latchNanos);
+        }
+        if (presentNanos != UNAVAILABLE) {
+            add(LATCH_TO_PRESENT, presentNanos - latchNanos);
+            add(CAPTURE_TO_PRESENT, presentNanos - captureNanos);
+        }
+    }
+
+    public long getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * The given percentile (0-100) of capture-to-present latency in nanoseconds, at histogram
+     * resolution, or -1 before any frame with a measured present time.
+     */
+    public long captureToPresentPercentile(int pct) {
+        return percentile(histograms[CAPTURE_TO_PRESENT], pct);
+    }
+
+    /** Writes the session's latency percentiles and histograms to {@code file}. */
+    public void writeReport(File file) {
+        if (frames == 0) {
+            return;
+        }
+        try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+            out.printf(Locale.US, "# Camera-to-display latency, %d frames (%d rejected), "
+                    + "%d without a measured present time%n",
+                    frames, rejectedFrames, frames - counts[CAPTURE_TO_PRESENT]);
+            out.println("# series, frames, mean ms, p50 ms, p90 ms, p99 ms, max-bucket ms");
+            for (int s = 0; s < SERIES; s++) {
+                long[] h = histograms[s];
+                if (counts[s] == 0) {
+                    out.printf(Locale.US, "%s, 0, unavailable%n", SERIES_NAMES[s]);
+                    continue;
+                }
+                out.printf(Locale.US, "%s, %d, %.2f, %.1f, %.1f, %.1f, %.1f%n", SERIES_NAMES[s],
+                        counts[s], sums[s] / (double) counts[s] / 1e6, percentile(h, 50) / 1e6,
+                        percentile(h, 90) / 1e6, percentile(h, 99) / 1e6,
+                        percentile(h, 100) / 1e6);
+            }
+            out.println();
+            out.println("# histogram: bucket start ms, " + String.join(", ", SERIES_NAMES));
+            for (int b = 0; b < BUCKETS; b++) {
+                boolean empty = true;
+                StringBuilder row = new StringBuilder().append(b * BUCKET_NANOS / 1_000_000L);
+                for (int s = 0; s < SERIES; s++) {
+                    empty &= histograms[s][b] == 0;
+                    row.append(", ").append(histograms[s][b]);
+                }
+                if (!empty) {
+                    out.println(row);
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write latency report " + file, e);
+            return;
+        }
+        if (counts[CAPTURE_TO_PRESENT] == 0) {
+            Log.i(TAG, "Wrote latency report " + file + ": capture->present unavailable over "
+                    + frames + " frames");
+            return;
+        }
+        Log.i(TAG, "Wrote latency report " + file + ": capture->present p50 "
+                + captureToPresentPercentile(50) / 1_000_000L + " ms, p99 "
+                + captureToPresentPercentile(99) / 1_000_000L + " ms over "
+                + counts[CAPTURE_TO_PRESENT] + " of " + frames + " frames");
+    }
+
+    private void add(int series, long nanos) {
+        int bucket = (int) Math.min(BUCKETS - 1, Math.max(0, nanos / BUCKET_NANOS));
+        histograms[series][bucket]++;
+        sums[series] += nanos;
+        counts[series]++;
+    }
+
+    /** Midpoint of the bucket holding the given percentile, or -1 for an empty histogram. */
+    private static long percentile(long[] histogram, int pct) {
+        long total = 0;
+        for (long c : histogram) {
+            total += c;
+        }
+        if (total == 0) {
+            return -1;
+        }
+        long rank = Math.max(1, (total * pct + 99) / 100);
+        long seen = 0;
+        for (int b = 0; b < histogram.length; b++) {
+            seen += histogram[b];
+            if (seen >= rank) {
+                return b * BUCKET_NANOS + BUCKET_NANOS / 2;
+            }
+        }
+        return (histogram.length - 1) * BUCKET_NANOS;
+    }
+}
@@ -0,0 +1,207 @@
+package io.github.metavee.machinetobeanother;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Distortion meshes on disk, so {@link DistortionRenderer#configure} can skip generating them
+ * (refining it against the inverse distortion, see {@link DistortionMesh}) on later starts and
+ * when switching back to a viewer profile.
+ *
+ * <p>A mesh is keyed by a hash of everything it is generated from: both eyes' tan-angle extents
+ * (which follow from the profile and the screen geometry), every distortion coefficient, the
+ * eye viewport size and error tolerance the refinement works to, and the vertex format. The file
+ * holds the vertex and index buffers exactly as uploaded, in native byte order, and a hit is
+ * memory-mapped and handed to {@code glBufferData} as is, with no parsing or copying on the Java
+ * heap.
+ *
+ * <p>The directory is capped at {@link #MAX_BYTES}; past that the least recently used meshes (by
+ * file modification time, which a hit refreshes) are deleted. One instance per process, shared
+ * by the GL threads.
+ */
+final class MeshCache {
+
+    private static final String TAG = "MeshCache";
+
+    private static final String DIR_NAME = "meshes";
+    private static final int MAGIC = 0x4d455348;
+    private static final int VERSION = 3;
+    // Magic, version, format, vertex and index counts per eye, position scale, error, ACMR.
+    private static final int HEADER_BYTES = 40;
+    // A mesh is typically 50-150 KB, so this keeps a few dozen configurations.
+    private static final long MAX_BYTES = 4L << 20;
+
+    private static MeshCache instance;
+
+    private final File dir;
+    private int hits;
+    private int misses;
+
+    private MeshCache(File dir) {
+        this.dir = dir;
+    }
+
+    static synchronized MeshCache get(Context context) {
+        if (instance == null) {
+            instance = new MeshCache(new File(context.getApplicationContext().getCacheDir(),
+                    DIR_NAME));
+        }
+        return instance;
+    }
+
+    /** The cache key for a mesh generated from these inputs, or null if it can't be hashed. */
+    String key(CardboardProfile.EyeParams[] eyes, RadialDistortion distortion, int eyeWidthPx,
+               int eyeHeightPx, float tolerancePx, int format) {
+        float[] coefficients = distortion.getCoefficients();
+        ByteBuffer inputs = ByteBuffer.allocate(4 * (2 * 8 + 6 + coefficients.length))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        inputs.putInt(VERSION).putInt(format).putInt(eyeWidthPx).putInt(eyeHeightPx)
+                .putFloat(tolerancePx).putInt(coefficients.length);
+        for (float k : coefficients) {
+            inputs.putFloat(k);
+        }
+        for (CardboardProfile.EyeParams ep : eyes) {
+            inputs.putFloat(ep.txLeft).putFloat(ep.txRight).putFloat(ep.txBottom).putFloat(ep.txTop);
+            inputs.putFloat(ep.sxLeft).putFloat(ep.sxRight).putFloat(ep.sxBottom).putFloat(ep.sxTop);
+        }
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(inputs.array())) {
+                sb.append(String.format(Locale.US, "%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    /** The mesh for {@code key}, mapped from disk, or null on a miss. */
+    synchronized DistortionMesh load(String key) {
+        File file = new File(dir, key);
+        if (!file.exists()) {
+            misses++;
+            return null;
+        }
+        MappedByteBuffer map;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            // The mapping stays valid after the channel is closed.
+            map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to map " + file + ": " + e);
+            misses++;
+            return null;
+        }
+        map.order(ByteOrder.nativeOrder());
+        int format = map.capacity() >= HEADER_BYTES ? map.getInt(8) : -1;
+        int[] vertexCount = new int[2];
+        int[] indexCount = new int[2];
+        long vertexBytes = 0;
+        long indexBytes = 0;
+        if (format >= 0) {
+            for (int eye = 0; eye < 2; eye++) {
+                vertexCount[eye] = map.getInt(12 + 4 * eye);
+                indexCount[eye] = map.getInt(20 + 4 * eye);
+                vertexBytes += 2L * vertexCount[eye] * DistortionMesh.strideOf(format);
+                indexBytes += 2L * 2 * indexCount[eye];
+            }
+        }
+        if (format < 0 || map.getInt(0) != MAGIC || map.getInt(4) != VERSION
+                || map.capacity() != HEADER_BYTES + vertexBytes + indexBytes) {
+            Log.w(TAG, "Discarding mismatched " + file);
+            file.delete();
+            misses++;
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        hits++;
+        map.position(HEADER_BYTES).limit(HEADER_BYTES + (int) vertexBytes);
+        ByteBuffer vertices = map.slice().order(ByteOrder.nativeOrder());
+        map.limit(map.capacity()).position(HEADER_BYTES + (int) vertexBytes);
+        ByteBuffer indices = map.slice().order(ByteOrder.nativeOrder());
+        return new DistortionMesh(format, map.getFloat(28), vertexCount, indexCount,
+                map.getFloat(32), map.getFloat(36), vertices, indices);
+    }
+
+    /** Saves a freshly built mesh under {@code key}, trimming the cache to its cap. */
+    synchronized void store(String key, DistortionMesh mesh) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.nativeOrder());
+        header.putInt(MAGIC).putInt(VERSION).putInt(mesh.format)
+                .putInt(mesh.eyeVertexCount[0]).putInt(mesh.eyeVertexCount[1])
+                .putInt(mesh.eyeIndexCount[0]).putInt(mesh.eyeIndexCount[1])
+                .putFloat(mesh.positionScale).putFloat(mesh.maxErrorPx).putFloat(mesh.acmr);
+        header.position(0);
+        ByteBuffer[] parts = {header, mesh.vertices.duplicate(), mesh.indices.duplicate()};
+
+        dir.mkdirs();
+        File file = new File(dir, key);
+        File tmp = new File(dir, key + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            FileChannel channel = out.getChannel();
+            while (parts[2].hasRemaining()) {
+                channel.write(parts);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write " + file, e);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            Log.w(TAG, "Failed to replace " + file);
+            return;
+        }
+        trim(file);
+    }
+
+    synchronized String getStats() {
+        return hits + " hits, " + misses + " misses";
+    }
+
+    /** Deletes the least recently used meshes until the directory fits in {@link #MAX_BYTES}. */
+    private void trim(File keep) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File f : files) {
+            total += f.length();
+        }
+        if (total <= MAX_BYTES) {
+            return;
+        }
+        // Snapshot the times; they must not change while sorting.
+        long[] times = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            times[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(times[a], times[b]));
+        int evicted = 0;
+        for (int i = 0; i < order.length && total > MAX_BYTES; i++) {
+            File f = files[order[i]];
+            if (f.equals(keep)) {
+                continue;
+            }
+            long length = f.length();
+            if (f.delete()) {
+                total -= length;
+                evicted++;
+            }
+        }
+        Log.i(TAG, "Evicted " + evicted + " meshes; " + total / 1024 + " KB cached");
+    }
+}
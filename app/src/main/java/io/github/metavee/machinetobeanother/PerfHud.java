@@ -0,0 +1,270 @@
+package io.github.metavee.machinetobeanother;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * In-headset performance overlay: per-stage frame timings from a {@link FrameProfiler} as
+ * rolling p50 / p90 / p99 milliseconds, plus the current eye-buffer resolution scale and the
+ * redundant GL calls dropped by {@link CachingGl}, drawn into both eyes after distortion.
+ *
+ * <p>The text is rendered with a {@link Canvas} into a preallocated bitmap and uploaded into a
+ * texture a couple of times a second; numbers are formatted by hand into preallocated char
+ * buffers. Nothing is allocated per frame. All methods except the constructor run on the GL
+ * thread.
+ */
+public final class PerfHud {
+
+    private static final long UPDATE_INTERVAL_NANOS = 500_000_000L;
+
+    private static final int TEX_WIDTH = 512;
+    private static final int TEX_HEIGHT = 256;
+    private static final float TEXT_SIZE = 24f;
+    private static final int LINE_CHARS = 48;
+    // Header, one line per stage, the eye-buffer scale and the state cache's savings.
+    private static final int LINES = 3 + FrameProfiler.STAGE_COUNT;
+    private static final float LINE_SPACING = TEXT_SIZE + 4f;
+
+    // Overlay placement in each eye's NDC: centered horizontally, below the lens center.
+    // x, y, u, v per vertex (triangle strip); bitmap row 0 is texture t = 0, at the top.
+    private static final float[] QUAD = {
+            -0.45f, -0.2f, 0f, 0f,
+            -0.45f, -0.66f, 0f, 1f,
+             0.45f, -0.2f, 1f, 0f,
+             0.45f, -0.66f, 1f, 1f,
+    };
+
+    private static final int[] PERCENTILES = {50, 90, 99};
+
+    private final Context context;
+    private final FrameProfiler profiler;
+    private final Gl gl;
+
+    private final Bitmap bitmap = Bitmap.createBitmap(TEX_WIDTH, TEX_HEIGHT, Bitmap.Config.ARGB_8888);
+    private final Canvas canvas = new Canvas(bitmap);
+    private final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final char[][] lines = new char[LINES][LINE_CHARS];
+    private final int[] lineLengths = new int[LINES];
+
+    private boolean visible;
+    private long lastUpdateNanos;
+    private float eyeBufferScale = -1f;
+    private int glCallsSkipped = -1;
+
+    private int program;
+    private int positionParam;
+    private int texCoordParam;
+    private int textureUniform;
+    private int texture;
+    private int vbo;
+
+    public PerfHud(Context context, FrameProfiler profiler, Gl gl) {
+        this.context = context;
+        this.profiler = profiler;
+        this.gl = gl;
+        paint.setColor(Color.WHITE);
+        paint.setTextSize(TEXT_SIZE);
+        paint.setTypeface(Typeface.MONOSPACE);
+    }
+
+    /** Creates the GL resources. Must be called on the GL thread (onSurfaceCreated). */
+    public void init() {
+        program = GlPrograms.link(gl, context, R.raw.hud_vertex, R.raw.hud_fragment);
+        positionParam = gl.glGetAttribLocation(program, "a_Position");
+        texCoordParam = gl.glGetAttribLocation(program, "a_TexCoordinate");
+        textureUniform = gl.glGetUniformLocation(program, "u_Texture");
+
+        int[] ids = new int[1];
+        gl.glGenTextures(1, ids, 0);
+        texture = ids[0];
+        gl.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        bitmap.eraseColor(Color.TRANSPARENT);
+        gl.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+
+        FloatBuffer quad = ByteBuffer.allocateDirect(QUAD.length * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        quad.put(QUAD).position(0);
+        gl.glGenBuffers(1, ids, 0);
+        vbo = ids[0];
+        gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vbo);
+        gl.glBufferData(GLES20.GL_ARRAY_BUFFER, QUAD.length * 4, quad, GLES20.GL_STATIC_DRAW);
+        gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        lastUpdateNanos = 0;
+    }
+
+    public boolean isVisible() {
+        return visible;
+    }
+
+    /** The eye-buffer resolution scale to show, or a negative value when there is no eye buffer. */
+    public void setEyeBufferScale(float scale) {
+        eyeBufferScale = scale;
+    }
+
+    /** Redundant GL calls the state cache dropped last frame, or negative if not known. */
+    public void setGlCallsSkipped(int calls) {
+        glCallsSkipped = calls;
+    }
+
+    public void toggle() {
+        visible = !visible;
+        lastUpdateNanos = 0; // refresh as soon as it is shown
+    }
+
+    /**
+     * Draws the overlay into both eye halves of the default framebuffer, refreshing its text
+     * first if it is due.
+     */
+    public void draw(int surfaceWidth, int surfaceHeight, long nowNanos) {
+        draw(0, 2, surfaceWidth, surfaceHeight, nowNanos);
+    }
+
+    /**
+     * Draws the overlay into one eye's half only, for front-buffer rendering, where each half
+     * has to be finished while the raster is on the other one.
+     */
+    public void drawEye(int eye, int surfaceWidth, int surfaceHeight, long nowNanos) {
+        draw(eye, eye + 1, surfaceWidth, surfaceHeight, nowNanos);
+    }
+
+    private void draw(int firstEye, int endEye, int surfaceWidth, int surfaceHeight,
+                      long nowNanos) {
+        if (!visible) {
+            return;
+        }
+        if (nowNanos - lastUpdateNanos >= UPDATE_INTERVAL_NANOS) {
+            lastUpdateNanos = nowNanos;
+            updateTexture();
+        }
+
+        gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        gl.glDisable(GLES20.GL_DEPTH_TEST);
+        gl.glEnable(GLES20.GL_BLEND);
+        gl.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA); // premultiplied bitmap
+
+        gl.glUseProgram(program);
+        gl.glActiveTexture(GLES20.GL_TEXTURE0);
+        gl.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        gl.glUniform1i(textureUniform, 0);
+
+        gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vbo);
+        gl.glEnableVertexAttribArray(positionParam);
+        gl.glVertexAttribPointer(positionParam, 2, GLES20.GL_FLOAT, false, 16, 0);
+        gl.glEnableVertexAttribArray(texCoordParam);
+        gl.glVertexAttribPointer(texCoordParam, 2, GLES20.GL_FLOAT, false, 16, 8);
+
+        int halfWidth = surfaceWidth / 2;
+        for (int eye = firstEye; eye < endEye; eye++) {
+            gl.glViewport(eye == 0 ? 0 : halfWidth, 0, halfWidth, surfaceHeight);
+            gl.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        }
+
+        gl.glDisableVertexAttribArray(positionParam);
+        gl.glDisableVertexAttribArray(texCoordParam);
+        gl.glDisable(GLES20.GL_BLEND);
+    }
+
+    private void updateTexture() {
+        int n = 0;
+        char[] header = lines[0];
+        n = appendText(header, n, profiler.isGpuTimed() ? "GPU" : "CPU");
+        n = appendText(header, n, " timings  p50/p90/p99 ms");
+        lineLengths[0] = n;
+
+        for (int stage = 0; stage < FrameProfiler.STAGE_COUNT; stage++) {
+            char[] line = lines[stage + 1];
+            n = appendText(line, 0, FrameProfiler.STAGE_NAMES[stage]);
+            while (n < 9) {
+                line[n++] = ' ';
+            }
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                if (i > 0) {
+                    n = appendText(line, n, " / ");
+                }
+                n = appendMillis(line, n, profiler.percentile(stage, PERCENTILES[i]));
+            }
+            lineLengths[stage + 1] = n;
+        }
+
+        char[] line = lines[LINES - 2];
+        n = appendText(line, 0, "eye buffer ");
+        if (eyeBufferScale < 0) {
+            n = appendText(line, n, "-- (fused pass)");
+        } else {
+            n = appendLong(line, n, Math.round(eyeBufferScale * 100));
+            n = appendText(line, n, "%");
+        }
+        lineLengths[LINES - 2] = n;
+
+        line = lines[LINES - 1];
+        n = appendText(line, 0, "gl calls skipped ");
+        if (glCallsSkipped < 0) {
+            n = appendText(line, n, "--");
+        } else {
+            n = appendLong(line, n, glCallsSkipped);
+            n = appendText(line, n, "/frame");
+        }
+        lineLengths[LINES - 1] = n;
+
+        bitmap.eraseColor(0xA0000000);
+        float y = TEXT_SIZE + 8f;
+        for (int i = 0; i < LINES; i++) {
+            canvas.drawText(lines[i], 0, lineLengths[i], 12f, y, paint);
+            y += LINE_SPACING;
+        }
+        gl.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        gl.texSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, bitmap);
+    }
+
+    private static int appendText(char[] buf, int pos, String text) {
+        int len = Math.min(text.length(), buf.length - pos);
+        text.getChars(0, len, buf, pos);
+        return pos + len;
+    }
+
+    /** Appends nanoseconds as milliseconds with two decimals ("--" when unknown). */
+    private static int appendMillis(char[] buf, int pos, long nanos) {
+        if (nanos < 0) {
+            return appendText(buf, pos, "--");
+        }
+        long hundredths = (nanos + 5_000L) / 10_000L;
+        pos = appendLong(buf, pos, hundredths / 100);
+        if (pos < buf.length) {
+            buf[pos++] = '.';
+        }
+        long frac = hundredths % 100;
+        if (pos + 1 < buf.length) {
+            buf[pos++] = (char) ('0' + frac / 10);
+            buf[pos++] = (char) ('0' + frac % 10);
+        }
+        return pos;
+    }
+
+    private static int appendLong(char[] buf, int pos, long value) {
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        if (pos + digits > buf.length) {
+            return pos;
+        }
+        for (int i = digits - 1; i >= 0; i--) {
+            buf[pos + i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return pos + digits;
+    }
+}
@@ -0,0 +1,255 @@
+package io.github.metavee.machinetobeanother;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Keeps the last few seconds of an encoded stream in memory, so a recording can start before the
+ * moment it was asked for.
+ *
+ * <p>Access units go into a ring: one direct buffer for the data (sized from the encoder's
+ * bitrate for the window plus a keyframe interval, with headroom) and fixed arrays for each
+ * unit's offset, size, time and flags. Nothing else is allocated per frame, and memory stays at
+ * what {@link #open} allocated however long it runs. The ring always starts at a keyframe:
+ * units are evicted a whole GOP at a time, when the next keyframe is already {@code seconds} old
+ * or when the space is needed (VBR peaks then shorten the window rather than grow the buffer).
+ *
+ * <p>{@link #save} muxes what the ring holds into a new MP4, from its oldest keyframe, and then
+ * keeps appending the live stream until {@link #stopSaving}. Nothing touches the disk until
+ * then. If the ring is still empty (the encoder has only just started), the file instead starts
+ * at the next live keyframe, at most a keyframe interval later. Both may be called from any thread; the work runs on the encoder thread.
+ */
+public final class PreRollBuffer implements VideoEncoder.Sink {
+
+    private static final String TAG = "PreRollBuffer";
+
+    // Over the nominal bitrate, for VBR peaks and keyframes.
+    private static final float HEADROOM = 1.5f;
+
+    private final int seconds;
+
+    // Encoder thread.
+    private VideoEncoder.Config config;
+    private MediaFormat format;
+    private ByteBuffer data;
+    private int[] offsets;
+    private int[] sizes;
+    private long[] times;
+    private int[] flags;
+    private int head;
+    private int count;
+    // Where the next unit goes in data; the oldest unit starts at offsets[head].
+    private int dataTail;
+    private final MediaCodec.BufferInfo replayInfo = new MediaCodec.BufferInfo();
+    private VideoEncoder.FileSink saving;
+    // Nothing was replayed into saving, so it must not take live units before a keyframe.
+    private boolean savingAwaitsKeyFrame;
+    private boolean overflowLogged;
+
+    // Requests made before the encoder thread exists.
+    private Handler handler;
+    private final List<Runnable> pending = new ArrayList<>();
+
+    /** @param seconds how much of the stream before {@link #save} goes into the file. */
+    public PreRollBuffer(int seconds) {
+        this.seconds = seconds;
+    }
+
+    /** Starts a file with the buffered seconds; it then follows the live stream. */
+    public void save(File file) {
+        post(() -> startSaving(file));
+    }
+
+    /** Ends the file started by {@link #save}; buffering goes on. */
+    public void stopSaving() {
+        post(this::endSaving);
+    }
+
+    private synchronized void post(Runnable r) {
+        if (handler != null) {
+            handler.post(r);
+        } else {
+            pending.add(r);
+        }
+    }
+
+    // --- VideoEncoder.Sink (encoder thread) -------------------------------------------
+
+    @Override
+    public void open(VideoEncoder.Config config) {
+        this.config = config;
+        float window = seconds + VideoEncoder.IFRAME_INTERVAL_SECONDS;
+        int bytes = (int) (config.bitrate / 8f * window * HEADROOM);
+        int units = (int) (config.frameRate * window * HEADROOM) + 1;
+        data = ByteBuffer.allocateDirect(bytes);
+        offsets = new int[units];
+        sizes = new int[units];
+        times = new long[units];
+        flags = new int[units];
+        Log.i(TAG, String.format(Locale.US, "%d s pre-roll: %.1f MB for up to %d frames",
+                seconds, bytes / 1e6, units));
+        synchronized (this) {
+            handler = new Handler(Looper.myLooper());
+            for (Runnable r : pending) {
+                handler.post(r);
+            }
+            pending.clear();
+        }
+    }
+
+    @Override
+    public void onFormat(MediaFormat format) {
+        this.format = format;
+        if (saving != null) {
+            saving.onFormat(format);
+        }
+    }
+
+    @Override
+    public void onSample(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+        boolean keyframe = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        if (saving != null) {
+            savingAwaitsKeyFrame &= !keyframe;
+            if (!savingAwaitsKeyFrame) {
+                saving.onSample(buffer, info);
+            }
+        }
+        if (count == offsets.length) {
+            evictGop();
+        }
+        int offset = allocate(info.size);
+        if (count == 0 && !keyframe) {
+            return; // the ring must start at a keyframe
+        }
+        if (offset < 0) {
+            if (!overflowLogged) {
+                Log.w(TAG, info.size + "-byte frame doesn't fit the ring");
+                overflowLogged = true;
+            }
+            return;
+        }
+        ByteBuffer src = buffer.duplicate();
+        src.limit(info.offset + info.size).position(info.offset);
+        ByteBuffer dst = data.duplicate();
+        dst.position(offset);
+        dst.put(src);
+
+        int i = (head + count) % offsets.length;
+        offsets[i] = offset;
+        sizes[i] = info.size;
+        times[i] = info.presentationTimeUs;
+        flags[i] = info.flags;
+        count++;
+        dataTail = offset + info.size;
+        trimToWindow(info.presentationTimeUs);
+    }
+
+    @Override
+    public void close() {
+        endSaving();
+        data = null;
+        count = 0;
+    }
+
+    // --- ring ---------------------------------------------------------------------------
+
+    /** Offset for {@code size} contiguous bytes, evicting GOPs as needed; -1 if it can't fit. */
+    private int allocate(int size) {
+        while (true) {
+            if (count == 0) {
+                dataTail = 0;
+                return size <= data.capacity() ? 0 : -1;
+            }
+            int dataHead = offsets[head];
+            if (dataTail >= dataHead) {
+                // Free: [dataTail, capacity) and [0, dataHead).
+                if (data.capacity() - dataTail >= size) {
+                    return dataTail;
+                }
+                if (dataHead > size) {
+                    return 0;
+                }
+            } else if (dataHead - dataTail > size) {
+                return dataTail;
+            }
+            evictGop();
+        }
+    }
+
+    /** Drops the oldest unit and everything up to the next keyframe. */
+    private void evictGop() {
+        do {
+            head = (head + 1) % offsets.length;
+            count--;
+        } while (count > 0 && (flags[head] & MediaCodec.BUFFER_FLAG_KEY_FRAME) == 0);
+    }
+
+    /** Drops the oldest GOP while the one after it alone still covers the window. */
+    private void trimToWindow(long newestUs) {
+        long windowStartUs = newestUs - seconds * 1_000_000L;
+        while (true) {
+            int next = -1;
+            for (int k = 1; k < count; k++) {
+                int i = (head + k) % offsets.length;
+                if ((flags[i] & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+                    next = i;
+                    break;
+                }
+            }
+            if (next < 0 || times[next] > windowStartUs) {
+                return;
+            }
+            evictGop();
+        }
+    }
+
+    // --- saving -------------------------------------------------------------------------
+
+    private void startSaving(File file) {
+        endSaving();
+        if (data == null) {
+            return; // closed
+        }
+        VideoEncoder.FileSink sink = new VideoEncoder.FileSink(file);
+        try {
+            sink.open(config);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open " + file, e);
+            return;
+        }
+        saving = sink;
+        // The ring always starts at a keyframe; without one, the live stream has to.
+        savingAwaitsKeyFrame = count == 0;
+        if (format == null) {
+            return; // nothing buffered yet; onFormat starts the file
+        }
+        sink.onFormat(format);
+        for (int k = 0; k < count; k++) {
+            int i = (head + k) % offsets.length;
+            replayInfo.set(offsets[i], sizes[i], times[i], flags[i]);
+            sink.onSample(data, replayInfo);
+        }
+        if (count > 0) {
+            int last = (head + count - 1) % offsets.length;
+            Log.i(TAG, String.format(Locale.US, "Saving from %.1f s back, %d frames",
+                    (times[last] - times[head]) / 1e6, count));
+        }
+    }
+
+    private void endSaving() {
+        if (saving != null) {
+            saving.close();
+            saving = null;
+        }
+    }
+}
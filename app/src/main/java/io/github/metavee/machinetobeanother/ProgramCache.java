@@ -0,0 +1,269 @@
+package io.github.metavee.machinetobeanother;
+
+import android.content.Context;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Linked program binaries on disk, so {@link GlPrograms} can skip compiling and linking GLSL on
+ * later starts and after a lost context.
+ *
+ * <p>A binary is keyed by a hash of both shader sources and the driver (GL vendor, renderer and
+ * version strings). The driver is also recorded next to the binaries, and when it changes (a
+ * driver update, or another GPU) they are all deleted. A binary the driver rejects is deleted
+ * and the program compiled from source.
+ *
+ * <p>Edited shaders get new keys, so the binaries of their old versions are never read again.
+ * The cache therefore keeps at most {@link #MAX_ENTRIES} binaries, dropping the least recently
+ * used (a hit touches the file's modification time), and deletes anything else it finds in its
+ * directory, such as a temporary file left by a write that was cut short. It is pruned when
+ * first used in a process and after each new binary.
+ *
+ * <p>Only ES 3.0 contexts are cached ({@code glProgramBinary}); {@code OES_get_program_binary}
+ * has no Java binding, so ES 2.0 contexts always compile. One instance per process, shared by
+ * the GL threads.
+ */
+final class ProgramCache {
+
+    private static final String TAG = "ProgramCache";
+
+    private static final String DIR_NAME = "programs";
+    private static final String DRIVER_FILE = "driver";
+    private static final int MAGIC = 0x50524f47;
+    // Several times the programs the app links, so every shader variant in use stays cached.
+    static final int MAX_ENTRIES = 32;
+    // Hex SHA-256.
+    private static final int KEY_LENGTH = 64;
+
+    private static ProgramCache instance;
+
+    private final File dir;
+    // The driver the files in dir are for, once checked.
+    private String driver;
+    private int hits;
+    private int misses;
+
+    private ProgramCache(File dir) {
+        this.dir = dir;
+    }
+
+    static synchronized ProgramCache get(Context context) {
+        if (instance == null) {
+            instance = new ProgramCache(new File(context.getApplicationContext().getCacheDir(),
+                    DIR_NAME));
+        }
+        return instance;
+    }
+
+    /**
+     * The cache key for these sources in the current context, or null if binaries can't be
+     * cached there.
+     */
+    synchronized String key(Gl gl, String vertexSource, String fragmentSource) {
+        String version = gl.glGetString(GLES20.GL_VERSION);
+        if (version == null || !version.startsWith("OpenGL ES 3")) {
+            return null;
+        }
+        int[] formats = new int[1];
+        gl.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, formats, 0);
+        if (formats[0] <= 0) {
+            return null;
+        }
+        String current = gl.glGetString(GLES20.GL_VENDOR) + "|"
+                + gl.glGetString(GLES20.GL_RENDERER) + "|" + version;
+        checkDriver(current);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(current.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(vertexSource.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(fragmentSource.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(String.format(Locale.US, "%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    /** A program loaded from the binary for {@code key}, or 0 on a miss. */
+    synchronized int load(Gl gl, String key) {
+        File file = new File(dir, key);
+        if (!file.exists()) {
+            misses++;
+            return 0;
+        }
+        int format;
+        ByteBuffer binary;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("bad header");
+            }
+            format = in.readInt();
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            binary = ByteBuffer.allocateDirect(bytes.length).order(ByteOrder.nativeOrder());
+            binary.put(bytes).position(0);
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable " + file + ": " + e);
+            file.delete();
+            misses++;
+            return 0;
+        }
+        int program = gl.glCreateProgram();
+        gl.glProgramBinary(program, format, binary, binary.capacity());
+        int[] status = new int[1];
+        gl.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+        if (status[0] == 0) {
+            Log.w(TAG, "Driver rejected cached binary " + key + "; recompiling");
+            gl.glDeleteProgram(program);
+            file.delete();
+            misses++;
+            return 0;
+        }
+        hits++;
+        file.setLastModified(System.currentTimeMillis());
+        return program;
+    }
+
+    /** Saves the binary of a program just linked (with the retrievable hint set). */
+    synchronized void store(Gl gl, int program, String key) {
+        int[] length = new int[1];
+        gl.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0);
+        if (length[0] <= 0) {
+            return;
+        }
+        ByteBuffer binary = ByteBuffer.allocateDirect(length[0]).order(ByteOrder.nativeOrder());
+        int[] format = new int[1];
+        gl.glGetProgramBinary(program, length[0], length, 0, format, 0, binary);
+        if (length[0] <= 0) {
+            return;
+        }
+        byte[] bytes = new byte[length[0]];
+        binary.get(bytes);
+        dir.mkdirs();
+        File file = new File(dir, key);
+        File tmp = new File(dir, key + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+            out.writeInt(MAGIC);
+            out.writeInt(format[0]);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write " + file, e);
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            Log.w(TAG, "Failed to replace " + file);
+            tmp.delete();
+        }
+        prune(dir, MAX_ENTRIES);
+    }
+
+    synchronized String getStats() {
+        return hits + " hits, " + misses + " misses";
+    }
+
+    /** Deletes every binary if they were made by another driver than {@code current}. */
+    private void checkDriver(String current) {
+        if (current.equals(driver)) {
+            return;
+        }
+        File driverFile = new File(dir, DRIVER_FILE);
+        String saved = null;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(driverFile))) {
+            saved = in.readUTF();
+        } catch (IOException e) {
+            // None yet.
+        }
+        if (!current.equals(saved)) {
+            File[] files = dir.listFiles();
+            if (files != null && files.length > 0) {
+                Log.i(TAG, "Driver changed; dropping " + files.length + " cached programs");
+                for (File f : files) {
+                    f.delete();
+                }
+            }
+            dir.mkdirs();
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(driverFile))) {
+                out.writeUTF(current);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to write " + driverFile, e);
+            }
+        } else if (driver == null) {
+            prune(dir, MAX_ENTRIES);
+        }
+        driver = current;
+    }
+
+    /**
+     * Deletes every file in {@code dir} but the driver record and the {@code maxEntries} most
+     * recently used binaries.
+     *
+     * @return how many files were deleted.
+     */
+    static int prune(File dir, int maxEntries) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int deleted = 0;
+        List<File> binaries = new ArrayList<>();
+        for (File f : files) {
+            if (f.getName().equals(DRIVER_FILE)) {
+                continue;
+            }
+            if (isKey(f.getName()) && f.isFile()) {
+                binaries.add(f);
+            } else if (f.delete()) {
+                deleted++;
+            }
+        }
+        if (binaries.size() > maxEntries) {
+            // Most recently used first.
+            binaries.sort((a, b) -> Long.compare(b.lastModified(), a.lastModified()));
+            for (File f : binaries.subList(maxEntries, binaries.size())) {
+                if (f.delete()) {
+                    deleted++;
+                }
+            }
+        }
+        if (deleted > 0) {
+            Log.i(TAG, "Pruned " + deleted + " cached program files");
+        }
+        return deleted;
+    }
+
+    private static boolean isKey(String name) {
+        if (name.length() != KEY_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
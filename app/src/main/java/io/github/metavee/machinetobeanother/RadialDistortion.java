@@ -0,0 +1,229 @@
+package io.github.metavee.machinetobeanother;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * A viewer's radial lens distortion, {@code r -> r * (1 + k1 r^2 + k2 r^4 + ...)} in tan-angle
+ * space with any number of coefficients, tabulated once so the mesh builder and the per-pixel
+ * shader can look it up instead of evaluating or solving it.
+ *
+ * <p>Both tables hold a factor against a squared radius, so a lookup takes {@code x^2 + y^2}
+ * directly, with no square root, and the factor is smooth there (a polynomial in r^2, for the
+ * forward one) and so interpolates well: {@link #distortionFactor} scales a screen point to
+ * where the lens shows it, {@link #inverseFactor} a distorted point back to the screen. The
+ * forward table is sampled from the polynomial; the inverse one is read off it (the forward
+ * radius rises monotonically, so one walk finds every bracket) and polished with a Newton step,
+ * so there is no root finding per lookup. Past the table the factor holds its last value.
+ *
+ * <p>If the distortion stops rising (negative coefficients) the range ends there, as the lens
+ * has no inverse beyond it.
+ */
+final class RadialDistortion {
+
+    // Samples per table. Linear interpolation between them (the lookups here, which the mesh is
+    // built from) stays within about 1e-5 of tan-angle (a hundredth of a pixel) even for strong
+    // lenses over a wide range.
+    private static final int TABLE_SIZE = 4096;
+    // Texels in the shader's copy. It is coarser: the 16-bit values and the spacing cost a few
+    // 1e-5 of tan-angle for strong lenses, and the GPU's filtering weights (often 8-bit) up to
+    // about 1e-4, a tenth of a pixel; more texels would barely help. That is at highp: at
+    // mediump the lookup is off by pixels.
+    static final int TEXTURE_SIZE = 256;
+    // Coverage asked of forEyes() is padded by this, and the search for it capped.
+    private static final float RANGE_MARGIN = 1.05f;
+    private static final float MAX_RADIUS = 16f;
+
+    private final float[] coefficients;
+    // Largest screen radius, squared, and the distorted radius it maps to, squared.
+    private final float maxR2;
+    private final float maxDistortedR2;
+    // forward[i] is the factor at r^2 = i * maxR2 / (TABLE_SIZE - 1); inverse[i] at distorted
+    // r^2 = i * maxDistortedR2 / (TABLE_SIZE - 1).
+    private final float[] forward = new float[TABLE_SIZE];
+    private final float[] inverse = new float[TABLE_SIZE];
+
+    /**
+     * Tabulates the distortion for screen radii up to {@code maxRadius} (tan-angle), or up to
+     * where it stops rising if that comes first.
+     *
+     * @param coefficients k1, k2, ...; may be null or empty (no distortion).
+     */
+    RadialDistortion(float[] coefficients, float maxRadius) {
+        this.coefficients = coefficients != null ? coefficients.clone() : new float[0];
+        // Some range even for nonsense coefficients, so the tables stay finite.
+        float radius = Math.max(1e-3f,
+                Math.min(maxRadius, peakRadius(this.coefficients, maxRadius)));
+        maxR2 = radius * radius;
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            forward[i] = factor(this.coefficients, maxR2 * i / (TABLE_SIZE - 1));
+        }
+        float maxDistorted = radius * forward[TABLE_SIZE - 1];
+        maxDistortedR2 = maxDistorted * maxDistorted;
+        buildInverse();
+    }
+
+    /**
+     * The distortion for a viewer configuration: covers both eyes' screen extents, and the
+     * rendered extents the mesh inverts from.
+     */
+    static RadialDistortion forEyes(float[] coefficients, CardboardProfile.EyeParams[] eyes) {
+        float screen = 0f;
+        float rendered = 0f;
+        for (CardboardProfile.EyeParams ep : eyes) {
+            screen = Math.max(screen, cornerRadius(ep.sxLeft, ep.sxRight, ep.sxBottom, ep.sxTop));
+            rendered = Math.max(rendered, cornerRadius(ep.txLeft, ep.txRight, ep.txBottom, ep.txTop));
+        }
+        float[] k = coefficients != null ? coefficients : new float[0];
+        float peak = peakRadius(k, MAX_RADIUS);
+        float radius = Math.max(screen * RANGE_MARGIN, 1e-3f);
+        while (radius < peak && radius * factor(k, radius * radius) < rendered * RANGE_MARGIN) {
+            radius *= 1.25f;
+        }
+        return new RadialDistortion(k, Math.min(radius, MAX_RADIUS));
+    }
+
+    float[] getCoefficients() {
+        return coefficients.clone();
+    }
+
+    /** The factor scaling a screen point at squared radius {@code r2} to its distorted point. */
+    float distortionFactor(float r2) {
+        return lookup(forward, r2 / maxR2);
+    }
+
+    /**
+     * The factor scaling a distorted (rendered) point at squared radius {@code r2} back to its
+     * screen point.
+     */
+    float inverseFactor(float r2) {
+        return lookup(inverse, r2 / maxDistortedR2);
+    }
+
+    /**
+     * The forward table resampled for the shader, as a {@link #TEXTURE_SIZE} by 1
+     * {@code GL_LUMINANCE_ALPHA} texture: each factor as 16 bits of fixed point over the table's
+     * range, high byte in luminance, low in alpha. Decoding is linear in both channels, so
+     * filtering the bytes separately still interpolates the factor.
+     *
+     * @param mapping receives the shader's {@code u_DistortionMap}: r^2 to texture coordinate
+     *                (xy scale, offset, texel centres to texel centres), and the decoded 16-bit
+     *                value to factor (zw scale, offset; the value being {@code hi + lo / 256}).
+     */
+    ByteBuffer toTexture(float[] mapping) {
+        float min = Float.MAX_VALUE;
+        float max = -Float.MAX_VALUE;
+        for (float f : forward) {
+            min = Math.min(min, f);
+            max = Math.max(max, f);
+        }
+        float range = Math.max(max - min, 1e-6f);
+        ByteBuffer texels = ByteBuffer.allocateDirect(2 * TEXTURE_SIZE).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < TEXTURE_SIZE; i++) {
+            float f = lookup(forward, i / (float) (TEXTURE_SIZE - 1));
+            int v = Math.round((f - min) / range * 65535f);
+            v = Math.max(0, Math.min(65535, v));
+            texels.put((byte) (v >> 8)).put((byte) v);
+        }
+        texels.position(0);
+        mapping[0] = (TEXTURE_SIZE - 1) / (TEXTURE_SIZE * maxR2);
+        mapping[1] = 0.5f / TEXTURE_SIZE;
+        // hi and lo are each sampled as byte / 255.
+        mapping[2] = range * 255f * 256f / 65535f;
+        mapping[3] = min;
+        return texels;
+    }
+
+    /** Reads {@code table} at {@code t} in [0, 1] across it, interpolating linearly. */
+    private static float lookup(float[] table, float t) {
+        float x = t * (TABLE_SIZE - 1);
+        if (!(x > 0f)) {
+            return table[0];
+        }
+        if (x >= TABLE_SIZE - 1) {
+            return table[TABLE_SIZE - 1];
+        }
+        int i = (int) x;
+        float a = x - i;
+        return table[i] + a * (table[i + 1] - table[i]);
+    }
+
+    private void buildInverse() {
+        inverse[0] = 1f;
+        int j = 0;
+        for (int i = 1; i < TABLE_SIZE; i++) {
+            float distorted = (float) Math.sqrt(maxDistortedR2 * i / (TABLE_SIZE - 1));
+            // Bracket it between forward samples j and j + 1 (distorted radii only rise).
+            while (j < TABLE_SIZE - 2 && forwardRadius(j + 1) < distorted) {
+                j++;
+            }
+            float d0 = forwardRadius(j);
+            float d1 = forwardRadius(j + 1);
+            float r0 = sampleRadius(j);
+            float r1 = sampleRadius(j + 1);
+            float r = d1 > d0 ? r0 + (distorted - d0) / (d1 - d0) * (r1 - r0) : r1;
+            // One Newton step on r * factor(r^2) = distorted, against the exact polynomial.
+            float r2 = r * r;
+            float slope = factor(coefficients, r2) + 2f * r2 * factorSlope(coefficients, r2);
+            if (slope > 0f) {
+                r -= (r * factor(coefficients, r2) - distorted) / slope;
+            }
+            inverse[i] = r / distorted;
+        }
+    }
+
+    private float sampleRadius(int i) {
+        return (float) Math.sqrt(maxR2 * i / (TABLE_SIZE - 1));
+    }
+
+    private float forwardRadius(int i) {
+        return sampleRadius(i) * forward[i];
+    }
+
+    private static float cornerRadius(float left, float right, float bottom, float top) {
+        float x = Math.max(left, right);
+        float y = Math.max(bottom, top);
+        return (float) Math.sqrt(x * x + y * y);
+    }
+
+    /** {@code 1 + k1 r2 + k2 r2^2 + ...}, by Horner's rule. */
+    private static float factor(float[] k, float r2) {
+        float sum = 0f;
+        for (int i = k.length - 1; i >= 0; i--) {
+            sum = (sum + k[i]) * r2;
+        }
+        return 1f + sum;
+    }
+
+    /** The derivative of {@link #factor} with respect to r2. */
+    private static float factorSlope(float[] k, float r2) {
+        float sum = 0f;
+        for (int i = k.length - 1; i >= 0; i--) {
+            sum = sum * r2 + (i + 1) * k[i];
+        }
+        return sum;
+    }
+
+    /**
+     * The first radius below {@code limit} where the distorted radius stops rising, or
+     * {@code limit} if it rises throughout.
+     */
+    private static float peakRadius(float[] k, float limit) {
+        int steps = 4 * TABLE_SIZE;
+        for (int i = 1; i <= steps; i++) {
+            float r = limit * i / steps;
+            float r2 = r * r;
+            if (factor(k, r2) + 2f * r2 * factorSlope(k, r2) <= 0f) {
+                return limit * (i - 1) / steps;
+            }
+        }
+        return limit;
+    }
+
+    @Override
+    public String toString() {
+        return "RadialDistortion" + Arrays.toString(coefficients) + " to r "
+                + (float) Math.sqrt(maxR2);
+    }
+}
@@ -0,0 +1,550 @@
+package io.github.metavee.machinetobeanother;
+
+import android.graphics.Bitmap;
+
+import java.nio.Buffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * {@link Gl} that counts every call before passing it on to another implementation ({@link
+ * NoOpGl} by default), so a frame's GL traffic can be measured and held to a budget, e.g. "at
+ * most N draw calls, no buffer uploads and no {@code glGetError} round trips per frame".
+ *
+ * <p>Besides per-entry-point counts it keeps three totals: draw calls ({@code glDrawArrays},
+ * {@code glDrawElements}, {@code glDrawArraysInstanced}), uploads ({@code glBufferData} and the
+ * texture image calls) and error checks ({@code glGetError}). {@link #reset} starts a new count,
+ * typically once per frame. Not thread-safe; use it from the GL thread.
+ */
+public final class RecordingGl implements Gl {
+
+    private final Gl delegate;
+
+    private final Map<String, int[]> counts = new HashMap<>();
+    private int totalCalls;
+    private int drawCalls;
+    private int uploads;
+    private int errorChecks;
+
+    public RecordingGl() {
+        this(new NoOpGl());
+    }
+
+    public RecordingGl(Gl delegate) {
+        this.delegate = delegate;
+    }
+
+    /** Calls to the given entry point (e.g. {@code "glBindTexture"}) since the last reset. */
+    public int getCount(String name) {
+        int[] count = counts.get(name);
+        return count != null ? count[0] : 0;
+    }
+
+    public int getTotalCalls() {
+        return totalCalls;
+    }
+
+    public int getDrawCalls() {
+        return drawCalls;
+    }
+
+    public int getUploads() {
+        return uploads;
+    }
+
+    public int getErrorChecks() {
+        return errorChecks;
+    }
+
+    public void reset() {
+        counts.clear();
+        totalCalls = 0;
+        drawCalls = 0;
+        uploads = 0;
+        errorChecks = 0;
+    }
+
+    /** Totals and per-entry-point counts, sorted by name. */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(totalCalls).append(" calls, ").append(drawCalls).append(" draws, ")
+                .append(uploads).append(" uploads, ").append(errorChecks).append(" error checks");
+        for (Map.Entry<String, int[]> e : new TreeMap<>(counts).entrySet()) {
+            sb.append("\n  ").append(e.getKey()).append(": ").append(e.getValue()[0]);
+        }
+        return sb.toString();
+    }
+
+    private void record(String name) {
+        totalCalls++;
+        counts.computeIfAbsent(name, k -> new int[1])[0]++;
+        switch (name) {
+            case "glDrawArrays":
+            case "glDrawElements":
+            case "glDrawArraysInstanced":
+                drawCalls++;
+                break;
+            case "glBufferData":
+            case "glTexImage2D":
+            case "texImage2D":
+            case "texSubImage2D":
+                uploads++;
+                break;
+            case "glGetError":
+                errorChecks++;
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public void glEnable(int cap) {
+        record("glEnable");
+        delegate.glEnable(cap);
+    }
+
+    @Override
+    public void glDisable(int cap) {
+        record("glDisable");
+        delegate.glDisable(cap);
+    }
+
+    @Override
+    public void glViewport(int x, int y, int width, int height) {
+        record("glViewport");
+        delegate.glViewport(x, y, width, height);
+    }
+
+    @Override
+    public void glScissor(int x, int y, int width, int height) {
+        record("glScissor");
+        delegate.glScissor(x, y, width, height);
+    }
+
+    @Override
+    public void glBlendFunc(int sfactor, int dfactor) {
+        record("glBlendFunc");
+        delegate.glBlendFunc(sfactor, dfactor);
+    }
+
+    @Override
+    public void glClearColor(float red, float green, float blue, float alpha) {
+        record("glClearColor");
+        delegate.glClearColor(red, green, blue, alpha);
+    }
+
+    @Override
+    public void glClear(int mask) {
+        record("glClear");
+        delegate.glClear(mask);
+    }
+
+    @Override
+    public void glFinish() {
+        record("glFinish");
+        delegate.glFinish();
+    }
+
+    @Override
+    public void glFlush() {
+        record("glFlush");
+        delegate.glFlush();
+    }
+
+    @Override
+    public int glGetError() {
+        record("glGetError");
+        return delegate.glGetError();
+    }
+
+    @Override
+    public String glGetString(int name) {
+        record("glGetString");
+        return delegate.glGetString(name);
+    }
+
+    @Override
+    public void glGetIntegerv(int pname, int[] params, int offset) {
+        record("glGetIntegerv");
+        delegate.glGetIntegerv(pname, params, offset);
+    }
+
+    @Override
+    public int glCreateShader(int type) {
+        record("glCreateShader");
+        return delegate.glCreateShader(type);
+    }
+
+    @Override
+    public void glShaderSource(int shader, String string) {
+        record("glShaderSource");
+        delegate.glShaderSource(shader, string);
+    }
+
+    @Override
+    public void glCompileShader(int shader) {
+        record("glCompileShader");
+        delegate.glCompileShader(shader);
+    }
+
+    @Override
+    public void glGetShaderiv(int shader, int pname, int[] params, int offset) {
+        record("glGetShaderiv");
+        delegate.glGetShaderiv(shader, pname, params, offset);
+    }
+
+    @Override
+    public void glGetShaderPrecisionFormat(int shaderType, int precisionType, int[] range,
+                                           int rangeOffset, int[] precision, int precisionOffset) {
+        record("glGetShaderPrecisionFormat");
+        delegate.glGetShaderPrecisionFormat(shaderType, precisionType, range, rangeOffset,
+                precision, precisionOffset);
+    }
+
+    @Override
+    public String glGetShaderInfoLog(int shader) {
+        record("glGetShaderInfoLog");
+        return delegate.glGetShaderInfoLog(shader);
+    }
+
+    @Override
+    public void glDeleteShader(int shader) {
+        record("glDeleteShader");
+        delegate.glDeleteShader(shader);
+    }
+
+    @Override
+    public int glCreateProgram() {
+        record("glCreateProgram");
+        return delegate.glCreateProgram();
+    }
+
+    @Override
+    public void glAttachShader(int program, int shader) {
+        record("glAttachShader");
+        delegate.glAttachShader(program, shader);
+    }
+
+    @Override
+    public void glLinkProgram(int program) {
+        record("glLinkProgram");
+        delegate.glLinkProgram(program);
+    }
+
+    @Override
+    public void glGetProgramiv(int program, int pname, int[] params, int offset) {
+        record("glGetProgramiv");
+        delegate.glGetProgramiv(program, pname, params, offset);
+    }
+
+    @Override
+    public String glGetProgramInfoLog(int program) {
+        record("glGetProgramInfoLog");
+        return delegate.glGetProgramInfoLog(program);
+    }
+
+    @Override
+    public void glDeleteProgram(int program) {
+        record("glDeleteProgram");
+        delegate.glDeleteProgram(program);
+    }
+
+    @Override
+    public void glUseProgram(int program) {
+        record("glUseProgram");
+        delegate.glUseProgram(program);
+    }
+
+    @Override
+    public int glGetAttribLocation(int program, String name) {
+        record("glGetAttribLocation");
+        return delegate.glGetAttribLocation(program, name);
+    }
+
+    @Override
+    public int glGetUniformLocation(int program, String name) {
+        record("glGetUniformLocation");
+        return delegate.glGetUniformLocation(program, name);
+    }
+
+    @Override
+    public void glUniform1i(int location, int x) {
+        record("glUniform1i");
+        delegate.glUniform1i(location, x);
+    }
+
+    @Override
+    public void glUniform1f(int location, float x) {
+        record("glUniform1f");
+        delegate.glUniform1f(location, x);
+    }
+
+    @Override
+    public void glUniform2f(int location, float x, float y) {
+        record("glUniform2f");
+        delegate.glUniform2f(location, x, y);
+    }
+
+    @Override
+    public void glUniform4fv(int location, int count, float[] v, int offset) {
+        record("glUniform4fv");
+        delegate.glUniform4fv(location, count, v, offset);
+    }
+
+    @Override
+    public void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value,
+                                   int offset) {
+        record("glUniformMatrix4fv");
+        delegate.glUniformMatrix4fv(location, count, transpose, value, offset);
+    }
+
+    @Override
+    public void glGenBuffers(int n, int[] buffers, int offset) {
+        record("glGenBuffers");
+        delegate.glGenBuffers(n, buffers, offset);
+    }
+
+    @Override
+    public void glBindBuffer(int target, int buffer) {
+        record("glBindBuffer");
+        delegate.glBindBuffer(target, buffer);
+    }
+
+    @Override
+    public void glBufferData(int target, int size, Buffer data, int usage) {
+        record("glBufferData");
+        delegate.glBufferData(target, size, data, usage);
+    }
+
+    @Override
+    public void glEnableVertexAttribArray(int index) {
+        record("glEnableVertexAttribArray");
+        delegate.glEnableVertexAttribArray(index);
+    }
+
+    @Override
+    public void glDisableVertexAttribArray(int index) {
+        record("glDisableVertexAttribArray");
+        delegate.glDisableVertexAttribArray(index);
+    }
+
+    @Override
+    public void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride,
+                                      int offset) {
+        record("glVertexAttribPointer");
+        delegate.glVertexAttribPointer(index, size, type, normalized, stride, offset);
+    }
+
+    @Override
+    public void glDrawArrays(int mode, int first, int count) {
+        record("glDrawArrays");
+        delegate.glDrawArrays(mode, first, count);
+    }
+
+    @Override
+    public void glDrawElements(int mode, int count, int type, int offset) {
+        record("glDrawElements");
+        delegate.glDrawElements(mode, count, type, offset);
+    }
+
+    @Override
+    public void glDrawArraysInstanced(int mode, int first, int count, int instanceCount) {
+        record("glDrawArraysInstanced");
+        delegate.glDrawArraysInstanced(mode, first, count, instanceCount);
+    }
+
+    @Override
+    public void glGenTextures(int n, int[] textures, int offset) {
+        record("glGenTextures");
+        delegate.glGenTextures(n, textures, offset);
+    }
+
+    @Override
+    public void glDeleteTextures(int n, int[] textures, int offset) {
+        record("glDeleteTextures");
+        delegate.glDeleteTextures(n, textures, offset);
+    }
+
+    @Override
+    public void glActiveTexture(int texture) {
+        record("glActiveTexture");
+        delegate.glActiveTexture(texture);
+    }
+
+    @Override
+    public void glBindTexture(int target, int texture) {
+        record("glBindTexture");
+        delegate.glBindTexture(target, texture);
+    }
+
+    @Override
+    public void glTexParameteri(int target, int pname, int param) {
+        record("glTexParameteri");
+        delegate.glTexParameteri(target, pname, param);
+    }
+
+    @Override
+    public void glTexParameterf(int target, int pname, float param) {
+        record("glTexParameterf");
+        delegate.glTexParameterf(target, pname, param);
+    }
+
+    @Override
+    public void glTexImage2D(int target, int level, int internalformat, int width, int height,
+                             int border, int format, int type, Buffer pixels) {
+        record("glTexImage2D");
+        delegate.glTexImage2D(target, level, internalformat, width, height, border, format, type, pixels);
+    }
+
+    @Override
+    public void glCopyTexSubImage2D(int target, int level, int xoffset, int yoffset, int x, int y,
+                                    int width, int height) {
+        record("glCopyTexSubImage2D");
+        delegate.glCopyTexSubImage2D(target, level, xoffset, yoffset, x, y, width, height);
+    }
+
+    @Override
+    public void texImage2D(int target, int level, Bitmap bitmap, int border) {
+        record("texImage2D");
+        delegate.texImage2D(target, level, bitmap, border);
+    }
+
+    @Override
+    public void texSubImage2D(int target, int level, int xoffset, int yoffset, Bitmap bitmap) {
+        record("texSubImage2D");
+        delegate.texSubImage2D(target, level, xoffset, yoffset, bitmap);
+    }
+
+    @Override
+    public void glGenFramebuffers(int n, int[] framebuffers, int offset) {
+        record("glGenFramebuffers");
+        delegate.glGenFramebuffers(n, framebuffers, offset);
+    }
+
+    @Override
+    public void glDeleteFramebuffers(int n, int[] framebuffers, int offset) {
+        record("glDeleteFramebuffers");
+        delegate.glDeleteFramebuffers(n, framebuffers, offset);
+    }
+
+    @Override
+    public void glBindFramebuffer(int target, int framebuffer) {
+        record("glBindFramebuffer");
+        delegate.glBindFramebuffer(target, framebuffer);
+    }
+
+    @Override
+    public void glFramebufferTexture2D(int target, int attachment, int textarget, int texture,
+                                       int level) {
+        record("glFramebufferTexture2D");
+        delegate.glFramebufferTexture2D(target, attachment, textarget, texture, level);
+    }
+
+    @Override
+    public void glFramebufferRenderbuffer(int target, int attachment, int renderbuffertarget,
+                                          int renderbuffer) {
+        record("glFramebufferRenderbuffer");
+        delegate.glFramebufferRenderbuffer(target, attachment, renderbuffertarget, renderbuffer);
+    }
+
+    @Override
+    public int glCheckFramebufferStatus(int target) {
+        record("glCheckFramebufferStatus");
+        return delegate.glCheckFramebufferStatus(target);
+    }
+
+    @Override
+    public void glGenRenderbuffers(int n, int[] renderbuffers, int offset) {
+        record("glGenRenderbuffers");
+        delegate.glGenRenderbuffers(n, renderbuffers, offset);
+    }
+
+    @Override
+    public void glDeleteRenderbuffers(int n, int[] renderbuffers, int offset) {
+        record("glDeleteRenderbuffers");
+        delegate.glDeleteRenderbuffers(n, renderbuffers, offset);
+    }
+
+    @Override
+    public void glBindRenderbuffer(int target, int renderbuffer) {
+        record("glBindRenderbuffer");
+        delegate.glBindRenderbuffer(target, renderbuffer);
+    }
+
+    @Override
+    public void glRenderbufferStorage(int target, int internalformat, int width, int height) {
+        record("glRenderbufferStorage");
+        delegate.glRenderbufferStorage(target, internalformat, width, height);
+    }
+
+    @Override
+    public void glGenQueries(int n, int[] ids, int offset) {
+        record("glGenQueries");
+        delegate.glGenQueries(n, ids, offset);
+    }
+
+    @Override
+    public void glBeginQuery(int target, int id) {
+        record("glBeginQuery");
+        delegate.glBeginQuery(target, id);
+    }
+
+    @Override
+    public void glEndQuery(int target) {
+        record("glEndQuery");
+        delegate.glEndQuery(target);
+    }
+
+    @Override
+    public void glGetQueryObjectuiv(int id, int pname, int[] params, int offset) {
+        record("glGetQueryObjectuiv");
+        delegate.glGetQueryObjectuiv(id, pname, params, offset);
+    }
+
+    @Override
+    public long glFenceSync(int condition, int flags) {
+        record("glFenceSync");
+        return delegate.glFenceSync(condition, flags);
+    }
+
+    @Override
+    public int glClientWaitSync(long sync, int flags, long timeout) {
+        record("glClientWaitSync");
+        return delegate.glClientWaitSync(sync, flags, timeout);
+    }
+
+    @Override
+    public void glWaitSync(long sync, int flags, long timeout) {
+        record("glWaitSync");
+        delegate.glWaitSync(sync, flags, timeout);
+    }
+
+    @Override
+    public void glDeleteSync(long sync) {
+        record("glDeleteSync");
+        delegate.glDeleteSync(sync);
+    }
+
+    @Override
+    public void glProgramParameteri(int program, int pname, int value) {
+        record("glProgramParameteri");
+        delegate.glProgramParameteri(program, pname, value);
+    }
+
+    @Override
+    public void glGetProgramBinary(int program, int bufSize, int[] length, int lengthOffset,
+                                   int[] binaryFormat, int binaryFormatOffset, Buffer binary) {
+        record("glGetProgramBinary");
+        delegate.glGetProgramBinary(program, bufSize, length, lengthOffset,
+                binaryFormat, binaryFormatOffset, binary);
+    }
+
+    @Override
+    public void glProgramBinary(int program, int binaryFormat, Buffer binary, int length) {
+        record("glProgramBinary");
+        delegate.glProgramBinary(program, binaryFormat, binary, length);
+    }
+}
@@ -0,0 +1,107 @@
+package io.github.metavee.machinetobeanother;
+
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Adaptive eye-buffer resolution: picks the {@link DistortionRenderer#setResolutionScale scale}
+ * (50% to 100% per axis) from the measured frame time.
+ *
+ * <p>The frame time is smoothed and compared with a budget of 85% of the refresh period. When it
+ * stays over budget for a quarter second the scale steps down by 10%; only after it has stayed
+ * under 70% of the budget for two seconds does it step back up, by 5%. The dead band between
+ * the two thresholds, the asymmetric steps and hold times, and a settling period after each
+ * change (the GPU timings lag a few frames) keep the scale from oscillating.
+ *
+ * <p>{@link #onFrame} is called on the GL thread; {@link #getScale} may be read from any thread.
+ */
+public final class ResolutionController {
+
+    private static final String TAG = "ResolutionController";
+
+    private static final float MIN_SCALE = 0.5f;
+    private static final float MAX_SCALE = 1f;
+    private static final float STEP_DOWN = 0.1f;
+    private static final float STEP_UP = 0.05f;
+
+    private static final float BUDGET_FRACTION = 0.85f;
+    private static final float LOW_WATER = 0.7f;
+
+    private static final long DOWN_HOLD_NANOS = 250_000_000L;
+    private static final long UP_HOLD_NANOS = 2_000_000_000L;
+    private static final long SETTLE_NANOS = 500_000_000L;
+
+    private volatile float scale = MAX_SCALE;
+    // Upper limit set by the thermal governor; the controller never scales above it.
+    private float maxScale = MAX_SCALE;
+
+    private long averageNanos;
+    private long overBudgetSinceNanos;
+    private long underBudgetSinceNanos;
+    private long settleUntilNanos;
+
+    public float getScale() {
+        return scale;
+    }
+
+    /** Caps the scale (GL thread); the current scale drops to the cap right away if above it. */
+    public void setMaxScale(float cap) {
+        maxScale = Math.max(MIN_SCALE, Math.min(MAX_SCALE, cap));
+        if (scale > maxScale) {
+            scale = maxScale;
+            averageNanos = 0;
+        }
+    }
+
+    /**
+     * Feeds one frame's render time.
+     *
+     * @param workNanos   time the frame took to render (the slower of CPU and GPU).
+     * @param periodNanos the display refresh period.
+     * @return whether the scale changed.
+     */
+    public boolean onFrame(long workNanos, long periodNanos, long nowNanos) {
+        if (nowNanos < settleUntilNanos) {
+            return false;
+        }
+        averageNanos = averageNanos == 0 ? workNanos : averageNanos + (workNanos - averageNanos) / 8;
+        long budget = (long) (periodNanos * BUDGET_FRACTION);
+
+        if (averageNanos > budget) {
+            underBudgetSinceNanos = 0;
+            if (overBudgetSinceNanos == 0) {
+                overBudgetSinceNanos = nowNanos;
+            }
+            if (nowNanos - overBudgetSinceNanos >= DOWN_HOLD_NANOS && scale > MIN_SCALE) {
+                return change(scale - STEP_DOWN, budget, nowNanos);
+            }
+        } else if (averageNanos < budget * LOW_WATER) {
+            overBudgetSinceNanos = 0;
+            if (underBudgetSinceNanos == 0) {
+                underBudgetSinceNanos = nowNanos;
+            }
+            if (nowNanos - underBudgetSinceNanos >= UP_HOLD_NANOS && scale < maxScale) {
+                return change(scale + STEP_UP, budget, nowNanos);
+            }
+        } else {
+            overBudgetSinceNanos = 0;
+            underBudgetSinceNanos = 0;
+        }
+        return false;
+    }
+
+    private boolean change(float target, long budgetNanos, long nowNanos) {
+        // Whole percent, so repeated steps don't drift past the limits.
+        float next = Math.max(MIN_SCALE, Math.min(maxScale, Math.round(target * 100) / 100f));
+        Log.i(TAG, String.format(Locale.US, "Eye buffer %d%% -> %d%% (frame %.1f ms, budget %.1f ms)",
+                Math.round(scale * 100), Math.round(next * 100),
+                averageNanos / 1e6, budgetNanos / 1e6));
+        scale = next;
+        averageNanos = 0;
+        overBudgetSinceNanos = 0;
+        underBudgetSinceNanos = 0;
+        settleUntilNanos = nowNanos + SETTLE_NANOS;
+        return true;
+    }
+}
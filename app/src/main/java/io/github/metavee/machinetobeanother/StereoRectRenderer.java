@@ -0,0 +1,148 @@
+package io.github.metavee.machinetobeanother;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.util.Log;
+
+/**
+ * OpenGL ES 3.0 backend that draws the passthrough quad for both eyes in a single submission.
+ *
+ * <p>The {@code OVR_multiview} entry points ({@code glFramebufferTextureMultiviewOVR}) have no
+ * Java binding in the Android SDK, so instead of a layered eye texture this uses instanced stereo
+ * into the side-by-side eye atlas (or straight into the two halves of the screen): one {@code
+ * glDrawArraysInstanced} with two instances, where the vertex shader picks the eye's matrix from
+ * a {@code u_EyeMVP[2]} uniform array by {@code gl_InstanceID} and squeezes it into that eye's
+ * half of the viewport. The result is the same as multiview for this scene: one program bind,
+ * one set of uniform and attribute updates, and one draw call for both eyes.
+ *
+ * <p>Each eye is kept out of the other's half before rasterization, never by discarding
+ * fragments (which would turn off early depth testing and hidden-surface removal on tiled
+ * GPUs). With {@code GL_EXT_clip_cull_distance} the vertex shader writes a clip distance at
+ * the split; without it the eyes are drawn as two draws, each scissored to its half.
+ *
+ * <p>Requires an ES 3.0 context and {@code GL_OES_EGL_image_external_essl3} (to sample the
+ * camera texture from GLSL ES 3.00); {@link #isReady} is false otherwise and the caller keeps
+ * the per-eye path. All methods except {@link #isEs3Supported} run on the GL thread.
+ */
+public final class StereoRectRenderer {
+
+    private static final String TAG = "StereoRectRenderer";
+
+    private static final int ES3_VERSION = 0x30000;
+
+    private static final String CLIP_DISTANCE_EXTENSION = "GL_EXT_clip_cull_distance";
+    // GL_CLIP_DISTANCE0_EXT, not in the SDK's GLES30.
+    private static final int GL_CLIP_DISTANCE0 = 0x3000;
+
+    private final Context context;
+    private final Gl gl;
+
+    private int program;
+    private int positionParam;
+    private int texCoordParam;
+    private int eyeMvpUniform;
+    private int texTransformUniform;
+    private int textureUniform;
+    private int firstEyeUniform;
+    // Whether one instanced draw can clip each eye to its half (else one scissored draw per eye).
+    private boolean clipDistance;
+
+    public StereoRectRenderer(Context context, Gl gl) {
+        this.context = context;
+        this.gl = gl;
+    }
+
+    /** Whether the device advertises ES 3.0, i.e. whether to ask GLSurfaceView for it. */
+    public static boolean isEs3Supported(Context context) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        return am != null && am.getDeviceConfigurationInfo().reqGlEsVersion >= ES3_VERSION;
+    }
+
+    public boolean isReady() {
+        return program != 0;
+    }
+
+    /** Builds the program if the current context supports it (onSurfaceCreated). */
+    public void init() {
+        program = 0;
+        String version = gl.glGetString(GLES20.GL_VERSION);
+        String extensions = gl.glGetString(GLES20.GL_EXTENSIONS);
+        if (version == null || !version.startsWith("OpenGL ES 3")
+                || extensions == null || !extensions.contains("GL_OES_EGL_image_external_essl3")) {
+            Log.i(TAG, "ES 3.0 stereo unavailable (" + version + "); drawing eyes one at a time");
+            return;
+        }
+        try {
+            program = GlPrograms.link(gl, context, R.raw.rect_stereo_vertex, R.raw.rect_stereo_fragment);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "ES 3.0 stereo program failed; drawing eyes one at a time", e);
+            return;
+        }
+        positionParam = gl.glGetAttribLocation(program, "a_Position");
+        texCoordParam = gl.glGetAttribLocation(program, "a_TexCoordinate");
+        eyeMvpUniform = gl.glGetUniformLocation(program, "u_EyeMVP");
+        texTransformUniform = gl.glGetUniformLocation(program, "u_TexTransform");
+        textureUniform = gl.glGetUniformLocation(program, "u_Texture");
+        firstEyeUniform = gl.glGetUniformLocation(program, "u_FirstEye");
+        clipDistance = extensions.contains(CLIP_DISTANCE_EXTENSION);
+        if (clipDistance) {
+            Log.i(TAG, "Drawing both eyes per submission with instanced stereo");
+        } else {
+            Log.i(TAG, "Drawing both eyes with one program setup, one scissored draw per eye ("
+                    + CLIP_DISTANCE_EXTENSION + " unavailable)");
+        }
+    }
+
+    /**
+     * Draws the quad for both eyes into the current viewport, left eye in the left half. The
+     * viewport must be the side-by-side target {@code 2 * splitX} wide, at the origin.
+     *
+     * @param rectVbo       the quad's vertex buffer (see {@link WorldLayoutData#RECT_VERTICES}).
+     * @param eyeMvps       the two eyes' model-view-projection matrices, left then right.
+     * @param texTransform  quad-local to camera texture coordinates (crop and mirror).
+     * @param cameraTexture the external (OES) camera texture.
+     * @param splitX        window x where the right eye's half starts.
+     * @param height        height of the target.
+     */
+    public void draw(int rectVbo, float[] eyeMvps, float[] texTransform, int cameraTexture,
+                     int splitX, int height) {
+        gl.glUseProgram(program);
+
+        gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, rectVbo);
+        gl.glEnableVertexAttribArray(positionParam);
+        gl.glVertexAttribPointer(positionParam, WorldLayoutData.RECT_POSITION_SIZE,
+                GLES20.GL_FLOAT, false, WorldLayoutData.RECT_VERTEX_STRIDE, 0);
+        gl.glEnableVertexAttribArray(texCoordParam);
+        gl.glVertexAttribPointer(texCoordParam, WorldLayoutData.RECT_TEX_COORD_SIZE,
+                GLES20.GL_FLOAT, false, WorldLayoutData.RECT_VERTEX_STRIDE,
+                WorldLayoutData.RECT_POSITION_SIZE * 4);
+
+        gl.glUniformMatrix4fv(eyeMvpUniform, 2, false, eyeMvps, 0);
+        gl.glUniform4fv(texTransformUniform, 1, texTransform, 0);
+
+        gl.glActiveTexture(GLES20.GL_TEXTURE0);
+        gl.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, cameraTexture);
+        gl.glUniform1i(textureUniform, 0);
+
+        if (clipDistance) {
+            gl.glUniform1i(firstEyeUniform, 0);
+            gl.glEnable(GL_CLIP_DISTANCE0);
+            gl.glDrawArraysInstanced(GLES20.GL_TRIANGLES, 0, WorldLayoutData.RECT_VERTEX_COUNT,
+                    2);
+            gl.glDisable(GL_CLIP_DISTANCE0);
+        } else {
+            gl.glEnable(GLES20.GL_SCISSOR_TEST);
+            for (int eye = 0; eye < 2; eye++) {
+                gl.glScissor(eye == 0 ? 0 : splitX, 0, splitX, height);
+                gl.glUniform1i(firstEyeUniform, eye);
+                gl.glDrawArrays(GLES20.GL_TRIANGLES, 0, WorldLayoutData.RECT_VERTEX_COUNT);
+            }
+            gl.glDisable(GLES20.GL_SCISSOR_TEST);
+        }
+
+        gl.glDisableVertexAttribArray(positionParam);
+        gl.glDisableVertexAttribArray(texCoordParam);
+    }
+}
@@ -19,8 +19,8 @@ package io.github.metavee.machinetobeanother;
 import android.content.Intent;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
-import android.media.MediaPlayer;
-import android.media.MediaRecorder;
+import android.opengl.EGL14;
+import android.opengl.EGLExt;
 import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
@@ -31,6 +31,7 @@ import android.os.Environment;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.GestureDetector;
+import android.view.KeyEvent;
 import android.view.MotionEvent;
 import android.view.Surface;
 import android.view.WindowManager;
@@ -41,17 +42,12 @@ import androidx.core.view.WindowCompat;
 import androidx.core.view.WindowInsetsCompat;
 import androidx.core.view.WindowInsetsControllerCompat;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -72,18 +68,116 @@ import javax.microedition.khronos.opengles.GL10;
  */
 public class TextureTestActivity extends AppCompatActivity implements GLSurfaceView.Renderer {
 
-    private MediaRecorder MR;
-
-    private MediaPlayer MP;
+    // Playback mode's decoder (see VideoPlayer); created on the GL thread, driven from the UI.
+    private volatile VideoPlayer player;
     private String media_path;
+    // Where playback resumes after a pause, and the starting speed ("speed" float extra).
+    private long playbackPositionUs;
+    private float playbackSpeed = 1f;
+    public static final String EXTRA_SPEED = "speed";
+    // External textures the player decodes into: its cache of recent frames for stepping back.
+    private static final int PLAYBACK_CACHE_FRAMES = 8;
+    private int[] playbackTextures;
 
     public static final int MODE_VIEW = 0;
     public static final int MODE_RECORD = 1;
     public static final int MODE_PLAYBACK = 2;
 
+    // Frame pacing, selected with the "pacing" intent extra. Continuous redraws at the display
+    // refresh rate whether or not the camera/video delivered a new frame; on-demand renders only
+    // when SurfaceTexture reports a new frame (or the view itself changed); late-latch also only
+    // renders new frames, but holds each render until just before the vsync deadline (see
+    // LateLatchScheduler) so the newest camera image is latched.
+    public static final String EXTRA_PACING = "pacing";
+    public static final int PACING_CONTINUOUS = 0;
+    public static final int PACING_ON_DEMAND = 1;
+    public static final int PACING_LATE_LATCH = 2;
+
+    // Optional front-buffer (beam racing) rendering, with the "front_buffer" boolean extra. Falls
+    // back to the pacing mode above when the device can't render single-buffered.
+    public static final String EXTRA_FRONT_BUFFER = "front_buffer";
+
+    // The camera feed uses camera2 (see Camera2Source) unless the device only has a LEGACY
+    // camera or the "legacy_camera" boolean extra is set.
+    public static final String EXTRA_LEGACY_CAMERA = "legacy_camera";
+
+    // Record mode records the stereo frame as shown; with the "record_mono" boolean extra, the
+    // undistorted view of the camera quad instead. See FrameRecorder.
+    public static final String EXTRA_RECORD_MONO = "record_mono";
+    // With the "pre_roll" int extra (seconds), record mode encodes all the time into a
+    // PreRollBuffer, and a recording starts that many seconds before the tap.
+    public static final String EXTRA_PRE_ROLL = "pre_roll";
+    // Distortion mesh vertex format, with the "mesh_format" int extra: 0 floats, 1 normalized
+    // shorts (the default), 2 half floats. See DistortionMesh.
+    public static final String EXTRA_MESH_FORMAT = "mesh_format";
+    private int meshFormat;
+    // Distortion technique, with the "distortion" int extra: 0 benchmarks both on the eye buffer
+    // and keeps the faster there (the default), 1 mesh, 2 per-pixel. See
+    // DistortionRenderer.setTechnique.
+    public static final String EXTRA_DISTORTION = "distortion";
+    private int distortionTechnique;
+    private static final int RECORD_MAX_WIDTH = 1920;
+    private static final int RECORD_MONO_WIDTH = 1280;
+
     private int mode;
+    private int pacing;
+
+    // Set by the SurfaceTexture frame-available callback, consumed by onDrawFrame, so a frame
+    // is only latched (updateTexImage) when there is one.
+    private final AtomicBoolean frameAvailable = new AtomicBoolean();
+    // When the pending frame arrived (System.nanoTime), for the late-latch report.
+    private volatile long frameArrivalNanos;
+
+    private VsyncMonitor vsyncMonitor;
+    private FramePacingStats pacingStats;
+    // Only in PACING_LATE_LATCH.
+    private LateLatchScheduler lateLatch;
+    // Only when front-buffer rendering was requested.
+    private FrontBufferRacer frontBuffer;
+    private FrontBufferRacer.ConfigChooser frontBufferConfigChooser;
+    // Whether the frame being drawn races the raster in the front buffer.
+    private boolean racingFrame;
+
+    // All GL calls go through this (see Gl): a state cache in front of the createGl()
+    // implementation, so redundant binds and enables never reach the driver.
+    private Gl gl;
+    private CachingGl glCache;
+    private long lastSkippedGlCalls;
+
+    // Toggleable in-headset performance HUD (long-press) and the stage timings it shows.
+    private FrameProfiler frameProfiler;
+    private PerfHud perfHud;
+    // Adapts the eye-buffer resolution to the measured frame time (FBO paths only).
+    private final ResolutionController resolutionController = new ResolutionController();
+
+    // Steps the load down when the phone heats up; see ThermalGovernor for the tiers. The
+    // preview limits are read by configureCamera and Camera2Source (0 = no limit).
+    private ThermalGovernor thermalGovernor;
+    private volatile int loadTier;
+    private int previewMaxWidth;
+    private int previewMaxFps;
+    private int[] defaultPreviewFpsRange;
+    // When the last frame ended (its swap began), and when a render was last requested; used
+    // to tell swap time from idle time between frames.
+    private long swapStartNanos;
+    private volatile long renderRequestNanos;
+
+    // Camera-to-display latency for this session, written next to the recordings on pause.
+    private LatencyRecorder latencyRecorder;
+    private String sessionName;
+    // Set when the just-drawn frame latched a new camera image that still needs a latency
+    // sample once its present time is measured.
+    private long pendingCaptureNanos;
+    private long pendingLatchNanos;
+    // GL thread; measures when those frames actually reach the display.
+    private FrameTimestamps frameTimestamps;
 
     private boolean recording = false;
+    private boolean recordMono;
+    // GL thread; non-null while recording, or all the time with a pre-roll.
+    private FrameRecorder recorder;
+    private int preRollSeconds;
+    private PreRollBuffer preRoll;
 
     private boolean LR_inversion = false;
 
@@ -93,14 +187,10 @@ public class TextureTestActivity extends AppCompatActivity implements GLSurfaceV
 
     private Camera Webcam;
     private SurfaceTexture WebcamSurface;
-    // forward-facing eye view. This renderer intentionally does not head-track: the
-    // passthrough image is pinned in front of the viewer, matching the original app.
-    private final float[] fixed_eye_view = {
-            1f, 0f, 0f, 0f,
-            0f, 1f, 0f, 0f,
-            0f, 0f, 1f, 0f,
-            0f, 0f, 0f, 1f
-    };
+    // The camera2 source, when used instead of Webcam.
+    private Camera2Source cameraSource;
+    private boolean legacyCamera;
+    private int displayFps;
     float Webcam_AR;
 
     protected float[] modelRect;
@@ -111,14 +201,10 @@ public class TextureTestActivity extends AppCompatActivity implements GLSurfaceV
     private static final float Z_NEAR = 0.1f;
     private static final float Z_FAR = 100.0f;
 
-    private static final float CAMERA_Z = 0.01f;
-
     // Default per-eye vertical field of view (degrees), used until a scanned viewer
     // profile supplies real FOV angles (Phase 2). Roughly matches a Cardboard v2 view.
     private static final float DEFAULT_FOV_Y = 80.0f;
 
-    private static final int COORDS_PER_VERTEX = 3;
-
     private static final float MAX_MODEL_DISTANCE = 7.0f;
 
     private GLSurfaceView glView;
@@ -142,33 +228,53 @@ public class TextureTestActivity extends AppCompatActivity implements GLSurfaceV
     private DistortionRenderer distortionRenderer;
     private final CardboardProfile.EyeParams[] eyeParamsArr = new CardboardProfile.EyeParams[2];
 
-    private FloatBuffer rectVertices;
+    // Fused passthrough-distortion: since the scene is only the textured quad, each eye is drawn
+    // in one pass that samples the camera texture straight through the distortion mesh, with
+    // no intermediate eye framebuffer. Set to false to use the FBO path (needed as soon as the
+    // scene is more than a single quad).
+    private boolean fusedPassthrough = true;
 
-    private FloatBuffer rectTextureCoordinates;
+    // Draws each frame's eyes, distortion and alignment line (see FrameRenderer).
+    private FrameRenderer frameRenderer;
 
-    private int rectProgram;
-    private int textureDataHandle;
+    // When the FBO path is in use, render both eyes into one side-by-side eye atlas and distort
+    // it in a single draw, instead of reusing one eye-sized buffer twice.
+    private boolean eyeAtlas = true;
 
-    private int rectPositionParam;
-    private int rectModelViewProjectionParam;
+    // Where the device supports OpenGL ES 3.0, draw the quad for both eyes in one instanced
+    // submission (StereoRectRenderer) instead of once per eye. Falls back automatically.
+    private boolean instancedStereo = true;
+    private boolean es3Context;
 
-    private int textureUniformParam;
-    private int textureCoordinateParam;
-    private final int textureCoordinateDataSize = 2;
+    // Half-extents of the passthrough quad in model space. The unit quad in the vertex buffer is
+    // scaled to this size by the model matrix (see updateModelPosition).
+    private float rectHalfX = WorldLayoutData.RECT_HALF_SIZE;
+    private float rectHalfY = WorldLayoutData.RECT_HALF_SIZE;
 
-    private float[] camera;
-    private float[] view;
-    private float[] modelViewProjection;
-    private float[] modelView;
+    private int textureDataHandle;
 
     public void startCamera(int texture) {
-        if (Webcam != null) {
+        if (Webcam != null || cameraSource != null) {
             // Already running (e.g. onSurfaceCreated started it before the queued
             // resume runnable fired). Nothing to do.
             return;
         }
 
         WebcamSurface = new SurfaceTexture(texture);
+        WebcamSurface.setOnFrameAvailableListener(st -> onFrameAvailable());
+
+        if (!legacyCamera) {
+            Camera2Source source = new Camera2Source(this, displayFps, true,
+                    () -> onCameraSourceFailed(texture));
+            if (source.selectCamera()) {
+                source.configure(previewMaxWidth, previewMaxFps);
+                source.start(WebcamSurface);
+                cameraSource = source;
+                applyCameraGeometry(source.getWidth(), source.getHeight(),
+                        source.getHorizontalFov(), source.getVerticalFov());
+                return;
+            }
+        }
 
         Webcam = Camera.open();
 
@@ -183,32 +289,62 @@ public class TextureTestActivity extends AppCompatActivity implements GLSurfaceV
 
         Camera.Parameters camParams = Webcam.getParameters();
         Camera.Size dims = camParams.getPreviewSize();
-        Webcam_AR = (float) dims.height / dims.width;
+        applyCameraGeometry(dims.width, dims.height,
+                camParams.getHorizontalViewAngle(), camParams.getVerticalViewAngle());
+    }
 
-        float camHFov = camParams.getHorizontalViewAngle();
-        float camVFov = camParams.getVerticalViewAngle();
+    /**
+    * Sizes the quad and texture mapping for a camera preview of the given size and field of view
+    * (degrees; anything outside (0, 180) means unknown).
+    */
+    private void applyCameraGeometry(int width, int height, float camHFov, float camVFov) {
+        Webcam_AR = (float) height / width;
 
         if (camHFov > 0f && camHFov < 180f && camVFov > 0f && camVFov < 180f) {
             // Life-size passthrough: show the full camera frame on a quad sized so the camera's
             // field of view maps 1:1 to the eye, so objects appear their real-world size.
-            float distance = Math.abs(modelPosition[2] + WorldLayoutData.RECT_Z - CAMERA_Z);
+            float distance = Math.abs(modelPosition[2] + WorldLayoutData.RECT_Z
+                    - FrameRenderer.CAMERA_Z);
             float halfX = distance * (float) Math.tan(Math.toRadians(camHFov / 2.0));
             float halfY = distance * (float) Math.tan(Math.toRadians(camVFov / 2.0));
 
-            rectVertices.position(0);
-            rectVertices.put(WorldLayoutData.getRectCoords(halfX, halfY));
-            rectVertices.position(0);
-
+            rectHalfX = halfX;
+            rectHalfY = halfY;
             lifeSize = true;
-            rectTextureCoordinates.put(WorldLayoutData.getFullTextureCoords(this.LR_inversion));
-            rectTextureCoordinates.position(0);
         } else {
             // No reliable camera FOV: fall back to center-cropping onto the default square quad.
+            rectHalfX = WorldLayoutData.RECT_HALF_SIZE;
+            rectHalfY = WorldLayoutData.RECT_HALF_SIZE;
             lifeSize = false;
-            rectTextureCoordinates.put(WorldLayoutData.getRectTextureCoords(Webcam_AR, this.LR_inversion));
-            rectTextureCoordinates.position(0);
         }
+        // The quad's size lives in the model matrix and the crop in a uniform, so neither
+        // touches the (GPU-resident) vertex data.
+        updateModelPosition();
+        updateTextureTransform();
+    }
 
+    /**
+    * Camera2Source failure callback (camera thread): switches to the legacy camera for the rest
+    * of the session, once camera2 has let go of the SurfaceTexture.
+    */
+    private void onCameraSourceFailed(int texture) {
+        glView.queueEvent(() -> {
+            Camera2Source failed = cameraSource;
+            if (failed == null) {
+                return; // paused in the meantime
+            }
+            Log.w(TAG, "camera2 failed; falling back to android.hardware.Camera");
+            cameraSource = null;
+            legacyCamera = true;
+            SurfaceTexture surfaceTexture = WebcamSurface;
+            failed.close(() -> glView.queueEvent(() -> {
+                surfaceTexture.release();
+                if (WebcamSurface == surfaceTexture) {
+                    // (Otherwise a pause and resume already restarted the camera.)
+                    startCamera(texture);
+                }
+            }));
+        });
     }
 
     /**
@@ -219,11 +355,25 @@ public class TextureTestActivity extends AppCompatActivity implements GLSurfaceV
     private void configureCamera(Camera camera) {
         Camera.Parameters params = camera.getParameters();
 
-        Camera.Size previewSize = chooseWidestPreviewSize(params);
+        Camera.Size previewSize = chooseWidestPreviewSize(params, previewMaxWidth);
+        if (previewSize == null) {
+            previewSize = chooseWidestPreviewSize(params, 0);
+        }
         if (previewSize != null) {
             params.setPreviewSize(previewSize.width, previewSize.height);
         }
 
+        // Frame rate: the camera's default unless the thermal governor has capped it.
+        if (defaultPreviewFpsRange == null) {
+            defaultPreviewFpsRange = new int[2];
+            params.getPreviewFpsRange(defaultPreviewFpsRange);
+        }
+        int[] fpsRange = previewMaxFps > 0
+                ? chooseFpsRange(params, previewMaxFps) : defaultPreviewFpsRange;
+        if (fpsRange != null) {
+            params.setPreviewFpsRange(fpsRange[0], fpsRange[1]);
+        }
+
         List<String> focusModes = params.getSupportedFocusModes();
         if (focusModes != null) {
             if (focusModes.contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO)) {
@@ -238,12 +388,13 @@ public class TextureTestActivity extends AppCompatActivity implements GLSurfaceV
 
     /**
     * Picks the preview size that preserves the most field of view. The renderer center-crops each
-    * frame to a square (see WorldLayoutData.getRectTextureCoords), so the widest result comes from
+    * frame to a square (see WorldLayoutData.getTextureTransform), so the widest result comes from
     * matching the sensor's native aspect ratio — approximated here by the largest supported picture
     * size, which always uses the full sensor. Among preview sizes with that aspect ratio we take the
-    * largest; failing that, the largest preview size overall.
+    * largest; failing that, the largest preview size overall. Sizes wider than {@code maxWidth}
+    * (if positive) are ignored; null if none is left.
     */
-    private Camera.Size chooseWidestPreviewSize(Camera.Parameters params) {
+    private Camera.Size chooseWidestPreviewSize(Camera.Parameters params, int maxWidth) {
         List<Camera.Size> previewSizes = params.getSupportedPreviewSizes();
         if (previewSizes == null || previewSizes.isEmpty()) {
             return null;
@@ -263,6 +414,9 @@ public class TextureTestActivity extends AppCompatActivity implements GLSurfaceV
 
         Camera.Size best = null;
         for (Camera.Size s : previewSizes) {
+            if (maxWidth > 0 && s.width > maxWidth) {
+                continue;
+            }
             if (targetAspect > 0f) {
                 float aspect = (float) s.width / s.height;
                 if (Math.abs(aspect - targetAspect) > 0.05f) {
@@ -277,6 +431,9 @@ public class TextureTestActivity extends AppCompatActivity implements GLSurfaceV
         if (best == null) {
             // No preview size matched the sensor aspect ratio; fall back to the largest available.
             for (Camera.Size s : previewSizes) {
+                if (maxWidth > 0 && s.width > maxWidth) {
+                    continue;
+                }
                 if (best == null || (long) s.width * s.height > (long) best.width * best.height) {
                     best = s;
                 }
@@ -287,62 +444,118 @@ public class TextureTestActivity extends AppCompatActivity implements GLSurfaceV
     }
 
     /**
-    * Converts a raw text file, saved as a resource, into an OpenGL ES shader.
-    *
-    * @param type The type of shader we will be creating.
-    * @param resId The resource ID of the raw text file about to be turned into a shader.
-    * @return The shader object handler.
+    * The supported preview frame-rate range (fps x 1000) with the highest maximum not above
+    * {@code maxFps}, preferring the steadiest (highest minimum); null if none qualifies.
     */
-    private int loadGLShader(int type, int resId) {
-        String code = readRawTextFile(resId);
-        int shader = GLES20.glCreateShader(type);
-        GLES20.glShaderSource(shader, code);
-        GLES20.glCompileShader(shader);
-
-        // Get the compilation status.
-        final int[] compileStatus = new int[1];
-        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compileStatus, 0);
-
-        // If the compilation failed, delete the shader.
-        if (compileStatus[0] == 0) {
-            Log.e(TAG, "Error compiling shader: " + GLES20.glGetShaderInfoLog(shader));
-            GLES20.glDeleteShader(shader);
-            shader = 0;
+    private int[] chooseFpsRange(Camera.Parameters params, int maxFps) {
+        List<int[]> ranges = params.getSupportedPreviewFpsRange();
+        if (ranges == null) {
+            return null;
+        }
+        int[] best = null;
+        for (int[] r : ranges) {
+            int min = r[Camera.Parameters.PREVIEW_FPS_MIN_INDEX];
+            int max = r[Camera.Parameters.PREVIEW_FPS_MAX_INDEX];
+            if (max > maxFps * 1000) {
+                continue;
+            }
+            if (best == null || max > best[1] || (max == best[1] && min > best[0])) {
+                best = new int[] {min, max};
+            }
         }
+        return best;
+    }
 
-        if (shader == 0) {
-            throw new RuntimeException("Error creating shader.");
+    /**
+    * Re-applies the camera configuration (after the preview limits changed) by restarting the
+    * preview.
+    */
+    private void restartPreview() {
+        if (cameraSource != null) {
+            cameraSource.reconfigure(previewMaxWidth, previewMaxFps);
+            applyCameraGeometry(cameraSource.getWidth(), cameraSource.getHeight(),
+                    cameraSource.getHorizontalFov(), cameraSource.getVerticalFov());
+            return;
         }
+        if (Webcam == null || mode == MODE_PLAYBACK) {
+            return;
+        }
+        Webcam.stopPreview();
+        configureCamera(Webcam);
+        Webcam.startPreview();
+        // A different preview size can come with a different field of view (another crop).
+        Camera.Parameters params = Webcam.getParameters();
+        Camera.Size dims = params.getPreviewSize();
+        applyCameraGeometry(dims.width, dims.height,
+                params.getHorizontalViewAngle(), params.getVerticalViewAngle());
+    }
 
-        return shader;
+    /**
+    * ThermalGovernor callback (main thread): applies a load tier's camera, eye-buffer and mesh
+    * limits on the GL thread.
+    */
+    private void applyLoadTier(int tier) {
+        loadTier = tier;
+        if (glView == null) {
+            return;
+        }
+        glView.queueEvent(() -> {
+            resolutionController.setMaxScale(ThermalGovernor.maxEyeScale(tier));
+            if (distortionRenderer != null) {
+                distortionRenderer.setMeshTolerance(ThermalGovernor.meshTolerance(tier));
+                updateEyeProjections();
+            }
+            int width = ThermalGovernor.maxPreviewWidth(tier);
+            int fps = ThermalGovernor.maxPreviewFps(tier);
+            if (width != previewMaxWidth || fps != previewMaxFps) {
+                previewMaxWidth = width;
+                previewMaxFps = fps;
+                restartPreview();
+            }
+        });
+        requestRender();
     }
 
-    static private int createTexture()
+    private int createTexture()
     {
         int[] texture = new int[1];
 
-        GLES20.glGenTextures(1,texture, 0);
-        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, texture[0]);
-        GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+        gl.glGenTextures(1,texture, 0);
+        gl.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, texture[0]);
+        gl.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
                 GL10.GL_TEXTURE_MIN_FILTER,GL10.GL_LINEAR);
-        GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+        gl.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
                 GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_LINEAR);
-        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+        gl.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
                 GL10.GL_TEXTURE_WRAP_S, GL10.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
+        gl.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
                 GL10.GL_TEXTURE_WRAP_T, GL10.GL_CLAMP_TO_EDGE);
 
         return texture[0];
     }
 
+    /**
+    * The GL implementation the renderer uses: the device driver. Overridable so the render path
+    * can run against a recording or no-op implementation.
+    */
+    protected Gl createGl() {
+        return AndroidGl.INSTANCE;
+    }
+
     /**
     * Checks if we've had an error inside of OpenGL ES, and if so what that error is.
     *
+    * <p>Debug builds only: {@code glGetError} can stall until the GPU catches up, which is too
+    * much to pay several times a frame in a release build.
+    *
     * @param label Label to report in case of error.
     */
-    private static void checkGLError(String label) {
+    private void checkGLError(String label) {
+        if (!BuildConfig.DEBUG) {
+            return;
+        }
         int error;
-        while ((error = GLES20.glGetError()) != GLES20.GL_NO_ERROR) {
+        while ((error = gl.glGetError()) != GLES20.GL_NO_ERROR) {
             Log.e(TAG, label + ": glError " + error);
             throw new RuntimeException(label + ": glError " + error);
         }
@@ -355,12 +568,10 @@ public class TextureTestActivity extends AppCompatActivity implements GLSurfaceV
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        glCache = new CachingGl(createGl());
+        gl = glCache;
 
         modelRect = new float[16];
-        camera = new float[16];
-        view = new float[16];
-        modelViewProjection = new float[16];
-        modelView = new float[16];
         // Model first appears directly in front of user.
         modelPosition = new float[] {0.0f, 0.0f, -MAX_MODEL_DISTANCE / 2.0f};
 
@@ -370,7 +581,49 @@ public class TextureTestActivity extends AppCompatActivity implements GLSurfaceV
 
         if (mode == MODE_PLAYBACK) {
             media_path = intent.getStringExtra("filename");
+            playbackSpeed = intent.getFloatExtra(EXTRA_SPEED, 1f);
+        }
+        pacing = intent.getIntExtra(EXTRA_PACING, PACING_LATE_LATCH);
+
+        float refreshRate = getWindowManager().getDefaultDisplay().getRefreshRate();
+        vsyncMonitor = new VsyncMonitor(refreshRate);
+        displayFps = Math.round(refreshRate);
+        legacyCamera = intent.getBooleanExtra(EXTRA_LEGACY_CAMERA, false);
+        recordMono = intent.getBooleanExtra(EXTRA_RECORD_MONO, false);
+        meshFormat = intent.getIntExtra(EXTRA_MESH_FORMAT, DistortionMesh.FORMAT_SHORT);
+        distortionTechnique = intent.getIntExtra(EXTRA_DISTORTION,
+                DistortionRenderer.TECHNIQUE_AUTO);
+        if (mode == MODE_RECORD) {
+            preRollSeconds = intent.getIntExtra(EXTRA_PRE_ROLL, 0);
+        }
+        String pacingName = pacing == PACING_CONTINUOUS ? "continuous"
+                : pacing == PACING_ON_DEMAND ? "on-demand" : "late-latch";
+        pacingStats = new FramePacingStats(this, pacingName, vsyncMonitor);
+        if (pacing == PACING_LATE_LATCH) {
+            lateLatch = new LateLatchScheduler(vsyncMonitor, this::requestRender);
         }
+        es3Context = instancedStereo && StereoRectRenderer.isEs3Supported(this);
+        if (intent.getBooleanExtra(EXTRA_FRONT_BUFFER, false)) {
+            int rotation = getWindowManager().getDefaultDisplay().getRotation();
+            frontBuffer = new FrontBufferRacer(vsyncMonitor, rotation != Surface.ROTATION_270, gl);
+            frontBufferConfigChooser = new FrontBufferRacer.ConfigChooser(es3Context);
+        }
+        frameProfiler = new FrameProfiler(gl);
+        perfHud = new PerfHud(this, frameProfiler, gl);
+        frameRenderer = new FrameRenderer(this, gl, frameProfiler, BuildConfig.DEBUG);
+        frameRenderer.setFusedPassthrough(fusedPassthrough);
+        frameRenderer.setFrontBuffer(frontBuffer, perfHud);
+        latencyRecorder = new LatencyRecorder();
+        frameTimestamps = new FrameTimestamps(latencyRecorder);
+        sessionName = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss").format(new Date());
+
+        File outdir = getApplicationContext().getExternalFilesDir(Environment.DIRECTORY_MOVIES);
+        File thermalLog = null;
+        if (outdir != null) {
+            outdir.mkdirs();
+            thermalLog = new File(outdir, sessionName + "-thermal.txt");
+        }
+        thermalGovernor = new ThermalGovernor(this, thermalLog, this::applyLoadTier);
 
         // Load the scanned viewer calibration (or the built-in default) that drives the
         // per-eye stereo geometry.
@@ -392,13 +645,17 @@ public class TextureTestActivity extends AppCompatActivity implements GLSurfaceV
         enableImmersiveMode();
 
         glView = (GLSurfaceView) findViewById(R.id.gl_view);
-        glView.setEGLContextClientVersion(2);
-        glView.setEGLConfigChooser(8, 8, 8, 8, 16, 8);
+        glView.setEGLContextClientVersion(es3Context ? 3 : 2);
+        if (frontBufferConfigChooser != null) {
+            glView.setEGLConfigChooser(frontBufferConfigChooser);
+        } else {
+            glView.setEGLConfigChooser(8, 8, 8, 8, 16, 8);
+        }
         // Keep the GL context (and its textures) across pause/resume where supported,
         // so we don't have to rebuild everything each time the app is resumed.
         glView.setPreserveEGLContextOnPause(true);
         glView.setRenderer(this);
-        glView.setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
+        applyRenderMode();
 
         // A tap anywhere is the trigger, replacing the Cardboard magnet/button. Modern
         // Cardboard viewers press a conductive lever onto the screen, which the system
@@ -410,6 +667,13 @@ public class TextureTestActivity extends AppCompatActivity implements GLSurfaceV
                         onTriggerTap();
                         return true;
                     }
+
+                    @Override
+                    public void onLongPress(MotionEvent e) {
+                        // Long-press toggles the performance HUD.
+                        glView.queueEvent(perfHud::toggle);
+                        requestRender();
+                    }
                 });
         // Return true so we keep receiving the whole gesture: if we returned the detector's
         // result, the initial DOWN (false from SimpleOnGestureListener) would stop delivery
@@ -420,6 +684,18 @@ public class TextureTestActivity extends AppCompatActivity implements GLSurfaceV
         });
     }
 
+    /**
+    * Continuous rendering for PACING_CONTINUOUS and while racing the raster (which draws every
+    * refresh, throttled by its own vsync waits); render-when-dirty otherwise.
+    */
+    private void applyRenderMode() {
+        boolean continuous = pacing == PACING_CONTINUOUS
+                || (frontBuffer != null && frontBuffer.isActive());
+        glView.setRenderMode(continuous
+                ? GLSurfaceView.RENDERMODE_CONTINUOUSLY
+                : GLSurfaceView.RENDERMODE_WHEN_DIRTY);
+    }
+
     /** Hides the system bars and lets the window extend into the display cutout, so the GL
      *  surface fills the entire physical screen. */
     private void enableImmersiveMode() {
@@ -450,23 +726,40 @@ public class TextureTestActivity extends AppCompatActivity implements GLSurfaceV
         if (mode == MODE_RECORD && recording) {
             this.stopRecording();
         }
+        if (preRollSeconds > 0 && glView != null) {
+            glView.queueEvent(this::stopRecorder);
+        }
+        if (glView != null) {
+            // Frames still waiting for their timestamps won't get them from a paused surface.
+            glView.queueEvent(frameTimestamps::flush);
+        }
 
         if (glView != null) {
             glView.onPause();
         }
+        vsyncMonitor.stop();
+        thermalGovernor.stop();
+        if (lateLatch != null) {
+            lateLatch.stop();
+        }
+        pacingStats.logSummary();
+        writeLatencyReport();
 
         if (mode != MODE_PLAYBACK) {
             if (Webcam != null) {
                 Webcam.release();
                 Webcam = null;
             }
+            if (cameraSource != null) {
+                // Camera2Source is otherwise only touched on the GL thread, which is paused now.
+                cameraSource.close();
+                cameraSource = null;
+            }
         } else {
-            if (MP != null) {
-                if (MP.isPlaying()) {
-                    MP.stop();
-                }
-                MP.release();
-                MP = null;
+            if (player != null) {
+                playbackPositionUs = player.getPositionUs();
+                player.release();
+                player = null;
             }
         }
 
@@ -475,6 +768,11 @@ public class TextureTestActivity extends AppCompatActivity implements GLSurfaceV
     @Override
     protected void onResume() {
         super.onResume();
+        vsyncMonitor.start();
+        thermalGovernor.start();
+        if (lateLatch != null) {
+            lateLatch.start();
+        }
         if (glView != null) {
             glView.onResume();
             // Re-acquire the camera / media player on the GL thread once the surface
@@ -485,11 +783,11 @@ public class TextureTestActivity extends AppCompatActivity implements GLSurfaceV
                     return;
                 }
                 if (mode == MODE_PLAYBACK) {
-                    if (MP == null) {
+                    if (player == null) {
                         startPlayback(textureDataHandle);
                     }
                 } else {
-                    if (Webcam == null) {
+                    if (Webcam == null && cameraSource == null) {
                         startCamera(textureDataHandle);
                     }
                 }
@@ -498,11 +796,24 @@ public class TextureTestActivity extends AppCompatActivity implements GLSurfaceV
     }
 
     @Override
-    public void onSurfaceChanged(GL10 gl, int width, int height) {
+    public void onSurfaceChanged(GL10 unused, int width, int height) {
         Log.i(TAG, "onSurfaceChanged");
         surfaceWidth = width;
         surfaceHeight = height;
+        frameRenderer.setSurfaceSize(width, height);
         updateEyeProjections();
+        frameTimestamps.enable();
+        if (preRollSeconds > 0) {
+            // The capture is sized from the surface. A new size needs a new stream, and so a new
+            // buffer; otherwise (the same size again, or a flip to the other landscape) keep the
+            // seconds already buffered.
+            int[] size = recordingSize();
+            if (recorder == null || size == null
+                    || !recorder.hasSize(size[0], size[1], size[2], size[3])) {
+                stopRecorder();
+                startPreRoll();
+            }
+        }
     }
 
     /**
@@ -547,6 +858,7 @@ public class TextureTestActivity extends AppCompatActivity implements GLSurfaceV
                 float r = t * eyeAspect;
                 Matrix.frustumM(eyePerspective[eye], 0, -r, r, -t, t, Z_NEAR, Z_FAR);
             }
+            frameRenderer.setEyeProjection(eye, eyePerspective[eye]);
         }
 
         if (distortionRenderer != null) {
@@ -603,62 +915,60 @@ public class TextureTestActivity extends AppCompatActivity implements GLSurfaceV
     }
 
     /**
-    * Creates the buffers we use to store information about the 3D world.
-    *
-    * <p>OpenGL doesn't use Java arrays, but rather needs data in a format it can understand.
-    * Hence we use ByteBuffers.
+    * Creates the GL resources: the quad and its program (FrameRenderer), the camera texture,
+    * and the distortion, stereo and profiling passes.
     *
     * @param config The EGL configuration used when creating the surface.
     */
     @Override
-    public void onSurfaceCreated(GL10 gl, EGLConfig config) {
+    public void onSurfaceCreated(GL10 unused, EGLConfig config) {
         Log.i(TAG, "onSurfaceCreated");
-        GLES20.glClearColor(0.1f, 0.1f, 0.1f, 0.5f); // Dark background so text shows up well.
-
-        ByteBuffer bbVertices = ByteBuffer.allocateDirect(WorldLayoutData.RECT_COORDS.length * 4);
-        bbVertices.order(ByteOrder.nativeOrder());
-        rectVertices = bbVertices.asFloatBuffer();
-        rectVertices.put(WorldLayoutData.RECT_COORDS);
-        rectVertices.position(0);
-
-        float[] RECT_TEXTURE_COORDS = WorldLayoutData.getRectTextureCoords(Webcam_AR, this.LR_inversion);
-
-        ByteBuffer bbTexture = ByteBuffer.allocateDirect(RECT_TEXTURE_COORDS.length * 4);
-        bbTexture.order(ByteOrder.nativeOrder());
-        rectTextureCoordinates = bbTexture.asFloatBuffer();
-//        rectTextureCoordinates.put(RECT_TEXTURE_COORDS);
-//        rectTextureCoordinates.position(0);
+        glCache.invalidate(); // new context
+        gl.glClearColor(0.1f, 0.1f, 0.1f, 0.5f); // Dark background so text shows up well.
 
-        int vertexShader = loadGLShader(GLES20.GL_VERTEX_SHADER, R.raw.rect_vertex);
-        int passthroughShader = loadGLShader(GLES20.GL_FRAGMENT_SHADER, R.raw.rect_fragment);
-
-        rectProgram = GLES20.glCreateProgram();
-        GLES20.glAttachShader(rectProgram, vertexShader);
-        GLES20.glAttachShader(rectProgram, passthroughShader);
-        GLES20.glLinkProgram(rectProgram);
-        GLES20.glUseProgram(rectProgram);
-
-        checkGLError("Rect program");
-
-        rectPositionParam = GLES20.glGetAttribLocation(rectProgram, "a_Position");
-        textureCoordinateParam = GLES20.glGetAttribLocation(rectProgram, "a_TexCoordinate");
-
-        rectModelViewProjectionParam = GLES20.glGetUniformLocation(rectProgram, "u_MVP");
-        textureUniformParam = GLES20.glGetUniformLocation(rectProgram, "u_Texture");
-
-        checkGLError("Rect program params");
+        frameRenderer.init();
 
         textureDataHandle = createTexture();
+        frameRenderer.setCameraTexture(textureDataHandle);
+        playbackTextures = null; // from the previous context, if any
 
         checkGLError("Texture loading");
 
         // Set up the lens-distortion post-process. The off-screen buffer and distortion
         // meshes are (re)built later in onSurfaceChanged, once the surface size is known.
-        distortionRenderer = new DistortionRenderer(this);
+        distortionRenderer = new DistortionRenderer(this, gl);
         distortionRenderer.init();
+        distortionRenderer.setMeshTolerance(ThermalGovernor.meshTolerance(loadTier));
+        distortionRenderer.setVertexFormat(meshFormat);
+        distortionRenderer.setTechnique(distortionTechnique);
+        distortionRenderer.setProfiler(frameProfiler);
+        frameRenderer.setDistortionRenderer(distortionRenderer);
+
+        // Front-buffer rendering draws one eye at a time, so it can't use the eye atlas.
+        boolean frontBufferEnabled = frontBuffer != null
+                && frontBuffer.enable(frontBufferConfigChooser.hasMutableConfig());
+        applyRenderMode();
+        distortionRenderer.setAtlasMode(eyeAtlas && !frontBufferEnabled
+                && !(fusedPassthrough && distortionRenderer.isDirectSupported()));
 
         checkGLError("Distortion program");
 
+        StereoRectRenderer stereoRenderer = null;
+        if (es3Context) {
+            stereoRenderer = new StereoRectRenderer(this, gl);
+            stereoRenderer.init();
+            if (!stereoRenderer.isReady()) {
+                stereoRenderer = null;
+            }
+        }
+        frameRenderer.setStereoRenderer(stereoRenderer);
+
+        frameProfiler.init();
+        perfHud.init();
+        swapStartNanos = 0;
+
+        checkGLError("Performance HUD");
+
         updateModelPosition();
 
         checkGLError("onSurfaceCreated");
@@ -672,149 +982,162 @@ public class TextureTestActivity extends AppCompatActivity implements GLSurfaceV
     }
 
     /**
-    * Updates the rect model position.
+    * Updates the rect model position, scaling the unit quad to its current half-extents.
     */
     protected void updateModelPosition() {
         Matrix.setIdentityM(modelRect, 0);
         Matrix.translateM(modelRect, 0, modelPosition[0], modelPosition[1], modelPosition[2]);
+        Matrix.scaleM(modelRect, 0, rectHalfX, rectHalfY, 1f);
+        frameRenderer.setModel(modelRect);
 
         checkGLError("updateRectPosition");
     }
 
     /**
-    * Converts a raw text file into a string.
-    *
-    * @param resId The resource ID of the raw text file about to be turned into a shader.
-    * @return The context of the text file, or null in case of error.
+    * Draws a frame: updates the camera texture, then has the FrameRenderer draw the scene once
+    * per eye into its half of the surface, and times the result.
     */
-    private String readRawTextFile(int resId) {
-        InputStream inputStream = getResources().openRawResource(resId);
-        try {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-            StringBuilder sb = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                sb.append(line).append("\n");
+    @Override
+    public void onDrawFrame(GL10 unused) {
+        racingFrame = false;
+        if (frontBuffer != null && frontBuffer.isActive()) {
+            // Waits for the scanout this frame races.
+            racingFrame = frontBuffer.beginFrame();
+            if (!frontBuffer.isActive()) {
+                applyRenderMode();
             }
-            reader.close();
-            return sb.toString();
-        } catch (IOException e) {
-            e.printStackTrace();
         }
-        return null;
-    }
 
-    /**
-    * Draws a frame: updates the camera texture, then draws the scene once per eye into
-    * its half of the surface.
-    */
-    @Override
-    public void onDrawFrame(GL10 gl) {
-        // update webcam stream
-        if (WebcamSurface != null) {
+        long frameStartNanos = System.nanoTime();
+        recordSwapTime(frameStartNanos);
+        frameProfiler.beginFrame();
+
+        // Latch the newest camera/video frame, if one has arrived. Otherwise this is a repeat of
+        // the previous frame: continuous mode redraws every refresh, and on-demand mode only
+        // repeats when the view itself changed (mirror toggle, surface resize).
+        long arrivalNanos = frameArrivalNanos;
+        boolean newFrame = frameAvailable.getAndSet(false);
+        if (lateLatch != null) {
+            lateLatch.onLatched();
+        }
+        pendingLatchNanos = 0;
+        long latchNanos = 0;
+        if (newFrame && WebcamSurface != null) {
             WebcamSurface.updateTexImage();
+            glCache.invalidateTextureBindings(); // it binds the external texture itself
+            latchNanos = System.nanoTime();
+            frameProfiler.recordCpu(FrameProfiler.STAGE_LATCH, latchNanos - frameStartNanos);
+            if (mode != MODE_PLAYBACK) {
+                // Video frames carry stream timestamps, so only live camera frames are timed.
+                pendingCaptureNanos = cameraSource != null
+                        ? cameraSource.toNanoTime(WebcamSurface.getTimestamp())
+                        : WebcamSurface.getTimestamp();
+                pendingLatchNanos = latchNanos;
+            }
+        } else if (newFrame && player != null) {
+            newFrame = player.latch();
+            glCache.invalidateTextureBindings();
+            frameRenderer.setCameraTexture(player.getTexture());
+            latchNanos = System.nanoTime();
+            frameProfiler.recordCpu(FrameProfiler.STAGE_LATCH, latchNanos - frameStartNanos);
         }
+        pacingStats.onFrameRendered(newFrame, frameStartNanos);
 
-        // Build the camera matrix (shared by both eyes; this renderer does not head-track).
-        Matrix.setLookAtM(camera, 0, 0.0f, 0.0f, CAMERA_Z, 0.0f, 0.0f, 0.0f, 0.0f, 1.0f, 0.0f);
+        boolean eyeBuffer = frameRenderer.usesEyeBuffer();
+        if (eyeBuffer) {
+            distortionRenderer.setResolutionScale(resolutionController.getScale());
+        }
+        perfHud.setEyeBufferScale(eyeBuffer ? distortionRenderer.getResolutionScale() : -1f);
+        if (!racingFrame && distortionRenderer != null && distortionRenderer.isReady()) {
+            // Outside the profiled stages; racing frames have no time to spare for it.
+            distortionRenderer.stepBenchmark();
+        }
 
-        int halfWidth = surfaceWidth / 2;
-        boolean distort = distortionRenderer != null && distortionRenderer.isReady();
+        frameRenderer.drawFrame(racingFrame, frameStartNanos);
 
-        if (distort) {
-            // Clear the on-screen buffer once; each eye is rendered off-screen and then
-            // drawn back through the distortion mesh.
-            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
-            GLES20.glViewport(0, 0, surfaceWidth, surfaceHeight);
-            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
-            checkGLError("onDrawFrame");
+        // Record new camera frames, stamped with their capture time, before the HUD goes on.
+        if (recorder != null && pendingLatchNanos != 0 && recorder.beginFrame(pendingCaptureNanos)) {
+            recordFrame();
+        }
 
-            for (int eye = 0; eye < 2; eye++) {
-                distortionRenderer.bindEyeBuffer();
-                buildEyeMvp(eye);
-                drawRect();
-                distortionRenderer.renderEye(eye, eye == 0 ? 0 : halfWidth);
-            }
-        } else {
-            // Fallback (distortion not ready): draw each eye straight to its half.
-            GLES20.glEnable(GLES20.GL_DEPTH_TEST);
-            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
-            checkGLError("onDrawFrame");
-
-            for (int eye = 0; eye < 2; eye++) {
-                GLES20.glViewport(eye == 0 ? 0 : halfWidth, 0, halfWidth, surfaceHeight);
-                buildEyeMvp(eye);
-                drawRect();
-            }
+        frameProfiler.endFrame();
+        long skippedGlCalls = glCache.getSkippedCalls();
+        perfHud.setGlCallsSkipped((int) (skippedGlCalls - lastSkippedGlCalls));
+        lastSkippedGlCalls = skippedGlCalls;
+        if (!racingFrame) {
+            perfHud.draw(surfaceWidth, surfaceHeight, frameStartNanos);
         }
 
-        drawAlignmentLine();
+        // GLSurfaceView swaps buffers as soon as this returns.
+        recordLatency();
+        swapStartNanos = System.nanoTime();
+
+        // CPU and GPU work overlap, so the frame is done when the slower of the two is.
+        long renderNanos = Math.max(swapStartNanos - frameStartNanos,
+                frameProfiler.getLastGpuFrameNanos());
+        if (lateLatch != null && !racingFrame) {
+            lateLatch.onFrameRendered(renderNanos, latchNanos != 0 ? arrivalNanos : 0, latchNanos);
+        }
+        if (eyeBuffer && !racingFrame) {
+            // (A racing frame's time includes its waits for the raster.)
+            resolutionController.onFrame(renderNanos, vsyncMonitor.getRefreshPeriodNanos(),
+                    swapStartNanos);
+        }
     }
 
     /**
-    * Draws a thin white vertical line down the center of the screen, between the two eyes, to
-    * help center the phone in the Cardboard viewer.
+    * Collects the latency samples whose display timestamps have arrived, and queues one for a
+    * newly latched camera frame, to be matched with the present time of the buffer about to be
+    * swapped. A front-buffer frame is never queued to the compositor, so it has no measured
+    * present time and is recorded as such.
     */
-    private void drawAlignmentLine() {
-        int lineWidth = Math.max(2, surfaceWidth / 400);
-        GLES20.glViewport(0, 0, surfaceWidth, surfaceHeight);
-        GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
-        GLES20.glScissor((surfaceWidth - lineWidth) / 2, 0, lineWidth, surfaceHeight);
-        GLES20.glClearColor(1f, 1f, 1f, 1f);
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-        GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
-        GLES20.glClearColor(0.1f, 0.1f, 0.1f, 0.5f); // restore the normal frame clear color
+    private void recordLatency() {
+        frameTimestamps.poll();
+        if (pendingLatchNanos == 0) {
+            return;
+        }
+        if (racingFrame) {
+            latencyRecorder.record(pendingCaptureNanos, pendingLatchNanos,
+                    LatencyRecorder.UNAVAILABLE, LatencyRecorder.UNAVAILABLE);
+        } else {
+            frameTimestamps.onFrameQueued(pendingCaptureNanos, pendingLatchNanos);
+        }
     }
 
-    /**
-    * Builds the ModelViewProjection matrix for one eye (forward-facing, no head tracking).
-    *
-    * @param eye 0 for the left eye, 1 for the right eye.
-    */
-    private void buildEyeMvp(int eye) {
-        Matrix.multiplyMM(view, 0, fixed_eye_view, 0, camera, 0);
-        Matrix.multiplyMM(modelView, 0, view, 0, modelRect, 0);
-        Matrix.multiplyMM(modelViewProjection, 0, eyePerspective[eye], 0, modelView, 0);
+    /** Saves the session's latency histogram next to the recordings (GL thread paused). */
+    private void writeLatencyReport() {
+        if (latencyRecorder.getFrameCount() == 0) {
+            return;
+        }
+        File outdir = getApplicationContext().getExternalFilesDir(Environment.DIRECTORY_MOVIES);
+        if (outdir == null) {
+            return;
+        }
+        outdir.mkdirs();
+        latencyRecorder.writeReport(new File(outdir, sessionName + "-latency.txt"));
     }
 
     /**
-    * Draw the rect.
-    *
-    * <p>We've set all of our transformation matrices. Now we simply pass them into the shader.
+    * Records how long the previous frame's buffer swap took: the gap between the end of the
+    * previous onDrawFrame and the start of this one. That gap only measures the swap when the
+    * GL thread went straight from the swap into this frame; in on-demand mode it may instead
+    * have idled waiting for a render request, so the sample is dropped unless the request that
+    * triggered this frame arrived before the swap started.
     */
-    public void drawRect() {
-        GLES20.glUseProgram(rectProgram);
-
-        // Set the position of the rect
-        GLES20.glVertexAttribPointer(
-                rectPositionParam, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, rectVertices);
-
-        // Set the texture coordinates
-        GLES20.glVertexAttribPointer(
-                textureCoordinateParam, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, rectTextureCoordinates);
-
-        // Set the ModelViewProjection matrix in the shader.
-        GLES20.glUniformMatrix4fv(rectModelViewProjectionParam, 1, false, modelViewProjection, 0);
-
-        // pass in texture
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureDataHandle);
-        GLES20.glUniform1i(textureUniformParam, 0);
-
-        rectTextureCoordinates.position(0);
-        GLES20.glVertexAttribPointer(textureCoordinateParam, textureCoordinateDataSize, GLES20.GL_FLOAT, false, 0, rectTextureCoordinates);
-
-        // Enable vertex arrays
-        GLES20.glEnableVertexAttribArray(rectPositionParam);
-        GLES20.glEnableVertexAttribArray(textureCoordinateParam);
-
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, 6);
-
-        // Disable vertex arrays
-        GLES20.glDisableVertexAttribArray(rectPositionParam);
-        GLES20.glDisableVertexAttribArray(textureCoordinateParam);
+    private void recordSwapTime(long frameStartNanos) {
+        if (swapStartNanos == 0) {
+            return;
+        }
+        long requested = renderRequestNanos;
+        if (pacing == PACING_CONTINUOUS || (requested != 0 && requested <= swapStartNanos)) {
+            frameProfiler.recordCpu(FrameProfiler.STAGE_SWAP, frameStartNanos - swapStartNanos);
+        }
+    }
 
-        checkGLError("Drawing rect");
+    /** Refreshes the camera-texture mapping (crop and mirror) after a view or source change. */
+    private void updateTextureTransform() {
+        frameRenderer.setTextureTransform(
+                WorldLayoutData.getTextureTransform(Webcam_AR, lifeSize, this.LR_inversion));
     }
 
     /**
@@ -824,28 +1147,85 @@ public class TextureTestActivity extends AppCompatActivity implements GLSurfaceV
         Log.i(TAG, "onTriggerTap");
         switch (mode) {
             case MODE_VIEW:
-                // toggleView mutates the GL texture-coordinate buffer, so run it on the
-                // GL thread.
+                // toggleView changes the texture mapping used by the renderer, so run it on
+                // the GL thread.
                 if (glView != null) {
                     glView.queueEvent(this::toggleView);
                 }
                 break;
             case MODE_RECORD:
-                // Camera / MediaRecorder work stays off the GL thread.
+                // The recorder itself is started and stopped on the GL thread.
                 this.toggleRecord();
                 break;
+            case MODE_PLAYBACK:
+                if (player != null) {
+                    player.togglePlayPause();
+                }
+                break;
         }
     }
 
+    /**
+    * Playback transport from a paired controller: left/right step a frame (pausing), up/down
+    * double or halve the speed, play/pause or space toggles.
+    */
+    @Override
+    public boolean onKeyDown(int keyCode, KeyEvent event) {
+        VideoPlayer p = player;
+        if (mode == MODE_PLAYBACK && p != null) {
+            switch (keyCode) {
+                case KeyEvent.KEYCODE_DPAD_RIGHT:
+                    p.step(1);
+                    return true;
+                case KeyEvent.KEYCODE_DPAD_LEFT:
+                    p.step(-1);
+                    return true;
+                case KeyEvent.KEYCODE_DPAD_UP:
+                case KeyEvent.KEYCODE_MEDIA_FAST_FORWARD:
+                    p.scaleSpeed(2f);
+                    return true;
+                case KeyEvent.KEYCODE_DPAD_DOWN:
+                case KeyEvent.KEYCODE_MEDIA_REWIND:
+                    p.scaleSpeed(0.5f);
+                    return true;
+                case KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE:
+                case KeyEvent.KEYCODE_SPACE:
+                    p.togglePlayPause();
+                    return true;
+            }
+        }
+        return super.onKeyDown(keyCode, event);
+    }
+
     private void toggleView() {
+        // The mirror is a uniform (see WorldLayoutData.getTextureTransform); no vertex data
+        // changes.
         this.LR_inversion = !this.LR_inversion;
+        updateTextureTransform();
+        // Show the flip right away rather than waiting for the next camera frame.
+        requestRender();
+    }
 
-        float[] texCoords = lifeSize
-                ? WorldLayoutData.getFullTextureCoords(this.LR_inversion)
-                : WorldLayoutData.getRectTextureCoords(Webcam_AR, this.LR_inversion);
+    /**
+    * SurfaceTexture callback: a new camera/video frame is ready to be latched. Arrives on the
+    * main thread (the GL thread has no Looper).
+    */
+    private void onFrameAvailable() {
+        frameArrivalNanos = System.nanoTime();
+        frameAvailable.set(true);
+        if (pacing == PACING_LATE_LATCH) {
+            // Rendered just before the next vsync deadline, not right away.
+            lateLatch.markDirty();
+        } else if (pacing == PACING_ON_DEMAND) {
+            requestRender();
+        }
+    }
 
-        rectTextureCoordinates.put(texCoords);
-        rectTextureCoordinates.position(0);
+    private void requestRender() {
+        if (glView != null) {
+            renderRequestNanos = System.nanoTime();
+            glView.requestRender();
+        }
     }
 
     private void toggleRecord() {
@@ -857,80 +1237,148 @@ public class TextureTestActivity extends AppCompatActivity implements GLSurfaceV
     }
 
     private void startPlayback(int texture) {
-        if (MP != null) {
+        if (player != null) {
             return;
         }
-
-        MP = new MediaPlayer();
-        try {
-            MP.setDataSource(media_path);
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (playbackTextures == null) {
+            playbackTextures = new int[PLAYBACK_CACHE_FRAMES];
+            playbackTextures[0] = texture;
+            for (int i = 1; i < playbackTextures.length; i++) {
+                playbackTextures[i] = createTexture();
+            }
         }
+        player = new VideoPlayer(media_path, playbackTextures, new VideoPlayer.Listener() {
+            @Override
+            public void onVideoSize(int width, int height) {
+                glView.queueEvent(() -> {
+                    Webcam_AR = (float) height / width;
+                    updateTextureTransform();
+                });
+            }
 
-        WebcamSurface = new SurfaceTexture(texture);
-
-        Surface surf = new Surface(WebcamSurface);
-        MP.setSurface(surf);
-        surf.release();
+            @Override
+            public void onFrameAvailable() {
+                TextureTestActivity.this.onFrameAvailable();
+            }
+        });
+        player.start(playbackPositionUs, playbackSpeed);
+    }
 
-        try {
-            MP.prepare();
-        } catch (IOException e) {
-            e.printStackTrace();
+    private void startRecording() {
+        if (glView == null) {
+            return;
         }
+        this.recording = true;
+        glView.queueEvent(this::startRecorder);
+    }
 
-        float h = MP.getVideoHeight();
-        float w = MP.getVideoWidth();
-        Webcam_AR = h / w;
-
-        float[] RECT_TEXTURE_COORDS = WorldLayoutData.getRectTextureCoords(Webcam_AR, false);
-
-        rectTextureCoordinates.put(RECT_TEXTURE_COORDS);
-        rectTextureCoordinates.position(0);
-
-        MP.start();
+    private void stopRecording() {
+        this.recording = false;
+        // Runs before the GL thread pauses, if called from onPause.
+        glView.queueEvent(() -> {
+            if (preRoll != null) {
+                preRoll.stopSaving();
+            } else {
+                stopRecorder();
+            }
+        });
     }
 
-    private void startRecording() {
-        MR = new MediaRecorder();
-        Webcam.unlock();
-        MR.setCamera(Webcam);
+    /** Starts a recording of the current view (GL thread). */
+    private void startRecorder() {
+        if (!recording) {
+            return;
+        }
+        if (preRoll != null) {
+            preRoll.save(newRecordingFile());
+        } else if (recorder == null && preRollSeconds <= 0) {
+            createRecorder(new VideoEncoder.FileSink(newRecordingFile()));
+        }
+    }
 
-        MR.setVideoSource(MediaRecorder.VideoSource.CAMERA);
+    /** Starts encoding into the pre-roll ring, and saving if a recording is on (GL thread). */
+    private void startPreRoll() {
+        preRoll = new PreRollBuffer(preRollSeconds);
+        createRecorder(preRoll);
+        if (recorder == null) {
+            preRoll = null;
+        } else if (recording) {
+            preRoll.save(newRecordingFile());
+        }
+    }
 
-        MR.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
-        MR.setVideoEncoder(MediaRecorder.VideoEncoder.H264);
-        MR.setVideoSize(1280, 720);
-        MR.setVideoFrameRate(30);
-        MR.setVideoEncodingBitRate(3000000);
+    private void stopRecorder() {
+        if (recorder != null) {
+            recorder.stop();
+            recorder = null;
+        }
+        preRoll = null;
+    }
 
+    private File newRecordingFile() {
         SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss");
-        Date now = new Date();
-
         File outdir = getApplicationContext().getExternalFilesDir(Environment.DIRECTORY_MOVIES);
-        assert outdir.mkdirs();
-        String fn = new File(outdir, sdf.format(now) + ".mp4").toString();
-        MR.setOutputFile(fn);
+        outdir.mkdirs();
+        return new File(outdir, sdf.format(new Date()) + ".mp4");
+    }
 
-        // set preview output
+    /** Starts a FrameRecorder for the current view into {@code sink} (GL thread). */
+    private void createRecorder(VideoEncoder.Sink sink) {
+        int[] size = recordingSize();
+        if (size == null) {
+            return;
+        }
+        recorder = new FrameRecorder(this, gl, glView::queueEvent, createGl(), es3Context, sink,
+                size[0], size[1], size[2], size[3]);
+        recorder.start();
+    }
 
-        try {
-            MR.prepare();
-            MR.start();
-            this.recording = true;
-        } catch (IOException ioe) {
-            this.stopRecording();
+    /**
+    * The recorded frame's width and height, and the captured source's, for the current view; null
+    * before the surface is sized.
+    */
+    private int[] recordingSize() {
+        if (surfaceWidth <= 0) {
+            return null;
         }
+        int sourceWidth;
+        int sourceHeight;
+        int width;
+        int height;
+        if (recordMono) {
+            // The camera quad, undistorted, filling the frame at its own aspect ratio.
+            sourceWidth = width = RECORD_MONO_WIDTH;
+            sourceHeight = height = align16(RECORD_MONO_WIDTH * rectHalfY / rectHalfX);
+        } else {
+            // The whole screen, scaled down for the encoder if it is wider than RECORD_MAX_WIDTH.
+            sourceWidth = surfaceWidth;
+            sourceHeight = surfaceHeight;
+            float scale = Math.min(1f, (float) RECORD_MAX_WIDTH / surfaceWidth);
+            width = align16(surfaceWidth * scale);
+            height = align16(surfaceHeight * scale);
+        }
+        return new int[] {width, height, sourceWidth, sourceHeight};
     }
 
-    private void stopRecording() {
-        MR.stop();
-        MR.reset();
-        MR.release();
-        Webcam.lock();
+    private static int align16(float size) {
+        return Math.max(16, Math.round(size / 16f) * 16);
+    }
 
-        this.recording = false;
+    /**
+    * Captures the frame just drawn into the recorder: a copy of the screen, or for mono recording
+    * the camera quad drawn again without distortion to fill the recorded frame.
+    */
+    private void recordFrame() {
+        if (recordMono) {
+            recorder.bindTarget();
+            gl.glDisable(GLES20.GL_DEPTH_TEST);
+            frameRenderer.drawMono();
+            gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        } else {
+            gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            recorder.copyFromScreen();
+        }
+        recorder.endFrame();
     }
 
 }
@@ -0,0 +1,298 @@
+package io.github.metavee.machinetobeanother;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Steps the renderer's load down (and back up) over long sessions before the phone throttles on
+ * its own and the frame rate collapses.
+ *
+ * <p>Every few seconds it reads the {@link PowerManager} thermal status (API 29+) and thermal
+ * headroom forecast (API 30+), the battery temperature, and the battery drain rate, and maps each
+ * to a load tier; the most severe one wins. The tiers are cumulative:
+ * <ol start="0">
+ *   <li>nominal: widest camera preview at its default rate, full eye buffer, full mesh;</li>
+ *   <li>camera preview capped at 1280 pixels wide and 30 fps;</li>
+ *   <li>eye buffer capped at 75% resolution;</li>
+ *   <li>distortion mesh error tolerance raised from 0.5 to 1.5 pixels (fewer vertices);</li>
+ *   <li>preview at 640 pixels and 20 fps, eye buffer at 50%, mesh tolerance 3 pixels.</li>
+ * </ol>
+ * A hotter reading raises the tier at once; the tier only comes down one step at a time, after
+ * the readings have stayed below it for a minute, so it doesn't bounce at a threshold.
+ *
+ * <p>Every tier change is logged with a timestamp and the readings behind it, to logcat and to a
+ * per-session text file. Runs on the main thread; the {@link Listener} is called there too.
+ */
+public final class ThermalGovernor {
+
+    private static final String TAG = "ThermalGovernor";
+
+    public static final int TIER_COUNT = 5;
+
+    // Per-tier limits (0 = leave the camera's choice alone).
+    private static final int[] MAX_PREVIEW_WIDTH = {0, 1280, 1280, 1280, 640};
+    private static final int[] MAX_PREVIEW_FPS = {0, 30, 30, 30, 20};
+    private static final float[] MAX_EYE_SCALE = {1f, 1f, 0.75f, 0.75f, 0.5f};
+    private static final float[] MESH_TOLERANCE_PX = {0.5f, 0.5f, 0.5f, 1.5f, 3f};
+
+    private static final long POLL_INTERVAL_MS = 5_000L;
+    private static final long STEP_DOWN_HOLD_MS = 60_000L;
+    private static final int HEADROOM_FORECAST_SECONDS = 10;
+
+    // Battery thresholds: temperature (tenths of a degree C) and drain (percent per hour),
+    // judged once the drain has been measured over a few minutes.
+    private static final int BATTERY_WARM_DECI_C = 400;
+    private static final int BATTERY_HOT_DECI_C = 430;
+    private static final float FAST_DRAIN_PERCENT_PER_HOUR = 30f;
+    private static final long MIN_DRAIN_WINDOW_MS = 5 * 60_000L;
+
+    /** Applies a tier's limits. */
+    public interface Listener {
+        void onTierChanged(int tier);
+    }
+
+    private final Context context;
+    private final PowerManager powerManager;
+    private final BatteryManager batteryManager;
+    private final File logFile;
+    private final Listener listener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable poll = this::poll;
+
+    private boolean running;
+    private int tier;
+    private long belowTierSinceMs;
+
+    private long startMs;
+    private int startBatteryPercent = -1;
+
+    /**
+     * @param logFile where tier changes are appended, or null for logcat only.
+     */
+    public ThermalGovernor(Context context, File logFile, Listener listener) {
+        this.context = context.getApplicationContext();
+        this.powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        this.batteryManager = (BatteryManager) context.getSystemService(Context.BATTERY_SERVICE);
+        this.logFile = logFile;
+        this.listener = listener;
+    }
+
+    public int getTier() {
+        return tier;
+    }
+
+    public static int maxPreviewWidth(int tier) {
+        return MAX_PREVIEW_WIDTH[tier];
+    }
+
+    public static int maxPreviewFps(int tier) {
+        return MAX_PREVIEW_FPS[tier];
+    }
+
+    public static float maxEyeScale(int tier) {
+        return MAX_EYE_SCALE[tier];
+    }
+
+    public static float meshTolerance(int tier) {
+        return MESH_TOLERANCE_PX[tier];
+    }
+
+    public void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        startMs = SystemClock.elapsedRealtime();
+        startBatteryPercent = batteryPercent();
+        belowTierSinceMs = 0;
+        log(String.format(Locale.US, "start at tier %d (thermal status %s, headroom %s, battery %d%%)",
+                tier, thermalStatusName(), headroomText(), startBatteryPercent));
+        handler.post(poll);
+    }
+
+    public void stop() {
+        if (running) {
+            running = false;
+            handler.removeCallbacks(poll);
+            log("stop at tier " + tier);
+        }
+    }
+
+    private void poll() {
+        if (!running) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        int statusTier = thermalStatusTier();
+        int headroomTier = headroomTier();
+        int batteryTier = batteryTier(now);
+        int wanted = Math.max(statusTier, Math.max(headroomTier, batteryTier));
+
+        if (wanted > tier) {
+            changeTier(wanted, now, statusTier, headroomTier, batteryTier);
+        } else if (wanted < tier) {
+            if (belowTierSinceMs == 0) {
+                belowTierSinceMs = now;
+            } else if (now - belowTierSinceMs >= STEP_DOWN_HOLD_MS) {
+                changeTier(tier - 1, now, statusTier, headroomTier, batteryTier);
+            }
+        } else {
+            belowTierSinceMs = 0;
+        }
+        handler.postDelayed(poll, POLL_INTERVAL_MS);
+    }
+
+    private void changeTier(int next, long now, int statusTier, int headroomTier, int batteryTier) {
+        log(String.format(Locale.US,
+                "tier %d -> %d after %ds (thermal status %s -> %d, headroom %s -> %d, "
+                        + "battery %s -> %d)",
+                tier, next, (now - startMs) / 1000, thermalStatusName(), statusTier,
+                headroomText(), headroomTier, batteryText(now), batteryTier));
+        tier = next;
+        belowTierSinceMs = 0;
+        listener.onTierChanged(tier);
+    }
+
+    // --- signals ----------------------------------------------------------------------
+
+    private int thermalStatusTier() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q || powerManager == null) {
+            return 0;
+        }
+        switch (powerManager.getCurrentThermalStatus()) {
+            case PowerManager.THERMAL_STATUS_NONE:
+                return 0;
+            case PowerManager.THERMAL_STATUS_LIGHT:
+                return 1;
+            case PowerManager.THERMAL_STATUS_MODERATE:
+                return 2;
+            case PowerManager.THERMAL_STATUS_SEVERE:
+                return 3;
+            default: // critical, emergency, shutdown
+                return 4;
+        }
+    }
+
+    private String thermalStatusName() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q || powerManager == null) {
+            return "n/a";
+        }
+        return Integer.toString(powerManager.getCurrentThermalStatus());
+    }
+
+    /** Forecast headroom: 1.0 is where the device starts severe throttling. NaN if unknown. */
+    private float headroom() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.R || powerManager == null) {
+            return Float.NaN;
+        }
+        return powerManager.getThermalHeadroom(HEADROOM_FORECAST_SECONDS);
+    }
+
+    private int headroomTier() {
+        float h = headroom();
+        if (Float.isNaN(h) || h < 0.7f) {
+            return 0;
+        }
+        if (h < 0.8f) {
+            return 1;
+        }
+        if (h < 0.9f) {
+            return 2;
+        }
+        return h < 1f ? 3 : 4;
+    }
+
+    private String headroomText() {
+        float h = headroom();
+        return Float.isNaN(h) ? "n/a" : String.format(Locale.US, "%.2f", h);
+    }
+
+    private int batteryTier(long now) {
+        int tierFromBattery = 0;
+        int temperature = batteryTemperature();
+        if (temperature >= BATTERY_HOT_DECI_C) {
+            tierFromBattery = 3;
+        } else if (temperature >= BATTERY_WARM_DECI_C) {
+            tierFromBattery = 2;
+        }
+        float drain = drainPercentPerHour(now);
+        if (drain >= FAST_DRAIN_PERCENT_PER_HOUR) {
+            tierFromBattery = Math.max(tierFromBattery, 1);
+        }
+        return tierFromBattery;
+    }
+
+    private String batteryText(long now) {
+        int temperature = batteryTemperature();
+        float drain = drainPercentPerHour(now);
+        String current = "n/a";
+        if (batteryManager != null) {
+            int microAmps = batteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CURRENT_NOW);
+            if (microAmps != Integer.MIN_VALUE && microAmps != 0) {
+                current = Math.abs(microAmps) / 1000 + " mA";
+            }
+        }
+        return String.format(Locale.US, "%s C, %s, drain %s",
+                temperature == Integer.MIN_VALUE ? "n/a" : String.format(Locale.US, "%.1f", temperature / 10f),
+                current,
+                Float.isNaN(drain) ? "n/a" : String.format(Locale.US, "%.0f%%/h", drain));
+    }
+
+    /** Battery temperature in tenths of a degree Celsius, or Integer.MIN_VALUE if unknown. */
+    private int batteryTemperature() {
+        Intent status = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (status == null) {
+            return Integer.MIN_VALUE;
+        }
+        return status.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, Integer.MIN_VALUE);
+    }
+
+    private int batteryPercent() {
+        if (batteryManager == null) {
+            return -1;
+        }
+        int percent = batteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY);
+        return percent == Integer.MIN_VALUE ? -1 : percent;
+    }
+
+    /** Percent of charge used per hour since start, or NaN until measurable. */
+    private float drainPercentPerHour(long now) {
+        long elapsed = now - startMs;
+        int percent = batteryPercent();
+        if (startBatteryPercent < 0 || percent < 0 || elapsed < MIN_DRAIN_WINDOW_MS) {
+            return Float.NaN;
+        }
+        return (startBatteryPercent - percent) * 3_600_000f / elapsed;
+    }
+
+    // --- log --------------------------------------------------------------------------
+
+    private void log(String message) {
+        Log.i(TAG, message);
+        if (logFile == null) {
+            return;
+        }
+        String stamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US).format(new Date());
+        try (PrintWriter out = new PrintWriter(new FileWriter(logFile, true))) {
+            out.println(stamp + " " + message);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to append to " + logFile, e);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package io.github.metavee.machinetobeanother;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.MediaMetadataRetriever;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Thumbnails for the recordings list: one frame from early in each recording, {@link
+ * #THUMB_SIZE} px on its long side.
+ *
+ * <p>There are two tiers. Memory is an LRU of bitmaps, limited to 1/16 of the heap. Disk is
+ * JPEGs in a {@code .thumbs} dir next to the recordings, and a JPEG is stale once the recording
+ * is newer than it. Anything not in memory is loaded on a pool of {@link #THREADS} threads, from
+ * disk, or else decoded from the video and saved to disk. So the main thread only ever does the
+ * memory lookup, however many recordings there are. Each recording has at most one load in
+ * flight, shared by every view showing it, and each {@link ImageView} waits on at most one:
+ * binding a recycled row to another recording detaches it from the load for the one that
+ * scrolled away, which is cancelled if nothing else waits on it and it hasn't started. Results
+ * arriving after {@link #shutdown} are dropped.
+ */
+public final class ThumbnailCache {
+
+    private static final String TAG = "ThumbnailCache";
+
+    private static final int THUMB_SIZE = 256;
+    private static final int THREADS = 2;
+    private static final int JPEG_QUALITY = 80;
+    // Where in the recording to take the frame: a little in, past any start-up frames.
+    private static final long FRAME_TIME_US = 2_000_000L;
+
+    private final LruCache<String, Bitmap> memory;
+    private final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Main thread: the load in flight for each key.
+    private final Map<String, Load> loading = new HashMap<>();
+    private volatile boolean shutDown;
+
+    public ThumbnailCache() {
+        int maxKb = (int) (Runtime.getRuntime().maxMemory() / 1024 / 16);
+        memory = new LruCache<String, Bitmap>(maxKb) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount() / 1024;
+            }
+        };
+    }
+
+    /** Shows the entry's thumbnail in {@code view}, now or once loaded. Main thread. */
+    public void bind(ImageView view, VideoCatalog.Entry entry) {
+        Object previous = view.getTag();
+        if (previous instanceof Load) {
+            ((Load) previous).detach(view);
+        }
+        view.setTag(null);
+        String key = entry.file.getName() + "@" + entry.modifiedMillis;
+        Bitmap bitmap = memory.get(key);
+        view.setImageBitmap(bitmap);
+        if (bitmap != null || entry.mime == null || shutDown) {
+            return;
+        }
+        Load load = loading.get(key);
+        if (load == null) {
+            load = new Load(entry, key);
+            loading.put(key, load);
+            load.future = executor.submit(load);
+        }
+        load.views.add(view);
+        view.setTag(load);
+    }
+
+    /** Cancels the pending loads; call when the list goes away. Main thread. */
+    public void shutdown() {
+        shutDown = true;
+        executor.shutdownNow();
+        loading.clear();
+        memory.evictAll();
+    }
+
+    /** One recording's load, shared by the views waiting for it. */
+    private final class Load implements Runnable {
+        final VideoCatalog.Entry entry;
+        final String key;
+        // Main thread.
+        final List<ImageView> views = new ArrayList<>();
+        Future<?> future;
+
+        Load(VideoCatalog.Entry entry, String key) {
+            this.entry = entry;
+            this.key = key;
+        }
+
+        /** {@code view} no longer shows this recording. Main thread. */
+        void detach(ImageView view) {
+            views.remove(view);
+            // One already running still finishes, and fills the memory tier.
+            if (views.isEmpty() && future.cancel(false)) {
+                loading.remove(key);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (shutDown) {
+                return;
+            }
+            Bitmap bitmap = load(entry);
+            mainHandler.post(() -> deliver(bitmap));
+        }
+
+        private void deliver(Bitmap bitmap) {
+            if (loading.get(key) == this) {
+                loading.remove(key);
+            }
+            if (shutDown) {
+                return;
+            }
+            if (bitmap != null) {
+                memory.put(key, bitmap);
+            }
+            for (ImageView view : views) {
+                if (view.getTag() == this) {
+                    view.setImageBitmap(bitmap);
+                    view.setTag(null);
+                }
+            }
+            views.clear();
+        }
+    }
+
+    // --- pool threads -------------------------------------------------------------------
+
+    private static Bitmap load(VideoCatalog.Entry entry) {
+        File dir = new File(entry.file.getParentFile(), ".thumbs");
+        File thumb = new File(dir, entry.file.getName() + ".jpg");
+        if (thumb.lastModified() >= entry.modifiedMillis) {
+            Bitmap bitmap = BitmapFactory.decodeFile(thumb.getPath());
+            if (bitmap != null) {
+                return bitmap;
+            }
+        }
+        Bitmap bitmap = decodeFrame(entry);
+        if (bitmap != null) {
+            save(bitmap, dir, thumb);
+        }
+        return bitmap;
+    }
+
+    private static Bitmap decodeFrame(VideoCatalog.Entry entry) {
+        long timeUs = entry.durationUs > 0 ? Math.min(entry.durationUs / 10, FRAME_TIME_US) : 0;
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(entry.file.getPath());
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+                return retriever.getScaledFrameAtTime(timeUs,
+                        MediaMetadataRetriever.OPTION_CLOSEST_SYNC, THUMB_SIZE, THUMB_SIZE);
+            }
+            Bitmap frame = retriever.getFrameAtTime(timeUs, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
+            if (frame == null) {
+                return null;
+            }
+            float scale = (float) THUMB_SIZE / Math.max(frame.getWidth(), frame.getHeight());
+            if (scale >= 1f) {
+                return frame;
+            }
+            Bitmap scaled = Bitmap.createScaledBitmap(frame, Math.round(frame.getWidth() * scale),
+                    Math.round(frame.getHeight() * scale), true);
+            frame.recycle();
+            return scaled;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "No thumbnail for " + entry.file + ": " + e);
+            return null;
+        } finally {
+            try {
+                retriever.release();
+            } catch (IOException e) {
+                Log.w(TAG, "MediaMetadataRetriever.release failed", e);
+            }
+        }
+    }
+
+    private static void save(Bitmap bitmap, File dir, File thumb) {
+        dir.mkdirs();
+        // A file of its own, in case another cache (a recreated list) writes the same thumbnail.
+        File tmp;
+        try {
+            tmp = File.createTempFile(thumb.getName(), ".tmp", dir);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write " + thumb, e);
+            return;
+        }
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write " + thumb, e);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(thumb)) {
+            Log.w(TAG, "Failed to replace " + thumb);
+            tmp.delete();
+        }
+    }
+}
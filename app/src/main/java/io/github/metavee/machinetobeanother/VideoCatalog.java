@@ -0,0 +1,240 @@
+package io.github.metavee.machinetobeanother;
+
+import android.content.Context;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Index of the session recordings (the MP4s in the app's Movies dir): duration, resolution,
+ * codec, size and creation time for each, kept in a small binary file so the list can be shown
+ * before anything is probed.
+ *
+ * <p>{@link #load} runs on a background thread. It first delivers the saved index, then lists
+ * the directory and probes ({@link MediaExtractor}, container headers only) just the files whose
+ * size or modification time changed. If anything did, it delivers the new list and rewrites the
+ * index. Lists are sorted newest first and delivered on the main thread.
+ */
+public final class VideoCatalog {
+
+    private static final String TAG = "VideoCatalog";
+
+    private static final String INDEX_NAME = "video_catalog.bin";
+    private static final int MAGIC = 0x4d32424d;
+    private static final int VERSION = 1;
+
+    /** One recording. {@code mime} is null and the video fields -1 if it couldn't be read. */
+    public static final class Entry {
+        public final File file;
+        public final long sizeBytes;
+        public final long modifiedMillis;
+        public final long createdMillis;
+        public final long durationUs;
+        public final int width;
+        public final int height;
+        public final String mime;
+
+        Entry(File file, long sizeBytes, long modifiedMillis, long createdMillis, long durationUs,
+              int width, int height, String mime) {
+            this.file = file;
+            this.sizeBytes = sizeBytes;
+            this.modifiedMillis = modifiedMillis;
+            this.createdMillis = createdMillis;
+            this.durationUs = durationUs;
+            this.width = width;
+            this.height = height;
+            this.mime = mime;
+        }
+    }
+
+    /** Receives the catalog, on the main thread. */
+    public interface Listener {
+        void onCatalog(List<Entry> entries);
+    }
+
+    private final File dir;
+    private final File indexFile;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private volatile boolean cancelled;
+
+    public VideoCatalog(Context context) {
+        dir = context.getApplicationContext().getExternalFilesDir(Environment.DIRECTORY_MOVIES);
+        indexFile = new File(context.getApplicationContext().getFilesDir(), INDEX_NAME);
+    }
+
+    /** Delivers the saved catalog, then the rescanned one if it differs. */
+    public void load(Listener listener) {
+        new Thread(() -> scan(listener), "VideoCatalog").start();
+    }
+
+    /** Stops delivering to the listener (e.g. the activity is going away). */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    private void scan(Listener listener) {
+        long start = SystemClock.elapsedRealtime();
+        Map<String, Entry> saved = readIndex();
+        if (!saved.isEmpty()) {
+            deliver(listener, new ArrayList<>(saved.values()));
+        }
+
+        File[] files = dir != null ? dir.listFiles((d, name) -> name.endsWith(".mp4")) : null;
+        if (files == null) {
+            files = new File[0];
+        }
+        List<Entry> entries = new ArrayList<>(files.length);
+        int probed = 0;
+        for (File file : files) {
+            if (cancelled) {
+                return;
+            }
+            Entry entry = saved.get(file.getName());
+            if (entry == null || entry.sizeBytes != file.length()
+                    || entry.modifiedMillis != file.lastModified()) {
+                entry = probe(file);
+                probed++;
+            }
+            entries.add(entry);
+        }
+        if (probed > 0 || entries.size() != saved.size()) {
+            deliver(listener, entries);
+            writeIndex(entries);
+        }
+        Log.i(TAG, String.format(Locale.US, "%d recordings, %d probed, in %d ms",
+                entries.size(), probed, SystemClock.elapsedRealtime() - start));
+    }
+
+    private void deliver(Listener listener, List<Entry> entries) {
+        Collections.sort(entries, (a, b) -> Long.compare(b.createdMillis, a.createdMillis));
+        mainHandler.post(() -> {
+            if (!cancelled) {
+                listener.onCatalog(entries);
+            }
+        });
+    }
+
+    private static Entry probe(File file) {
+        long durationUs = -1;
+        int width = -1;
+        int height = -1;
+        String mime = null;
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(file.getPath());
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                MediaFormat format = extractor.getTrackFormat(i);
+                String trackMime = format.getString(MediaFormat.KEY_MIME);
+                if (trackMime != null && trackMime.startsWith("video/")) {
+                    mime = trackMime;
+                    width = format.getInteger(MediaFormat.KEY_WIDTH);
+                    height = format.getInteger(MediaFormat.KEY_HEIGHT);
+                    if (format.containsKey(MediaFormat.KEY_DURATION)) {
+                        durationUs = format.getLong(MediaFormat.KEY_DURATION);
+                    }
+                    break;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // E.g. a recording still being written (no index yet).
+            Log.w(TAG, "Can't read " + file + ": " + e);
+        } finally {
+            extractor.release();
+        }
+        return new Entry(file, file.length(), file.lastModified(), creationTime(file),
+                durationUs, width, height, mime);
+    }
+
+    /** From the recording's name (its start time, see TextureTestActivity), else its mtime. */
+    private static long creationTime(File file) {
+        String name = file.getName();
+        try {
+            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss", Locale.US);
+            return sdf.parse(name.substring(0, name.length() - ".mp4".length())).getTime();
+        } catch (ParseException | RuntimeException e) {
+            return file.lastModified();
+        }
+    }
+
+    // --- index file ---------------------------------------------------------------------
+
+    private Map<String, Entry> readIndex() {
+        Map<String, Entry> entries = new HashMap<>();
+        if (dir == null) {
+            return entries;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return entries;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                long size = in.readLong();
+                long modified = in.readLong();
+                long created = in.readLong();
+                long duration = in.readLong();
+                int width = in.readInt();
+                int height = in.readInt();
+                String mime = in.readUTF();
+                entries.put(name, new Entry(new File(dir, name), size, modified, created, duration,
+                        width, height, mime.isEmpty() ? null : mime));
+            }
+        } catch (FileNotFoundException e) {
+            // First run.
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable " + indexFile, e);
+            entries.clear();
+        }
+        return entries;
+    }
+
+    private void writeIndex(List<Entry> entries) {
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Entry e : entries) {
+                out.writeUTF(e.file.getName());
+                out.writeLong(e.sizeBytes);
+                out.writeLong(e.modifiedMillis);
+                out.writeLong(e.createdMillis);
+                out.writeLong(e.durationUs);
+                out.writeInt(e.width);
+                out.writeInt(e.height);
+                out.writeUTF(e.mime != null ? e.mime : "");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write " + indexFile, e);
+            return;
+        }
+        if (!tmp.renameTo(indexFile)) {
+            Log.w(TAG, "Failed to replace " + indexFile);
+        }
+    }
+}
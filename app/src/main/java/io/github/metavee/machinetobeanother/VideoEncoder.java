@@ -0,0 +1,489 @@
+package io.github.metavee.machinetobeanother;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.util.Range;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Surface-input video encoder: a {@link MediaCodec} in asynchronous mode feeding a {@link Sink}
+ * (an MP4 through {@link FileSink}, or a {@link PreRollBuffer}), configured from what the
+ * device's encoders report rather than fixed settings.
+ *
+ * <p>{@link #chooseConfig} walks {@link MediaCodecList} for a hardware HEVC encoder (API 24+, where
+ * MP4 muxing supports it), else hardware H.264, else any H.264 encoder. The size is the requested
+ * one scaled down until the encoder supports it at its alignment; an encoder that takes no such
+ * size is passed over for the next one. The frame rate is capped at what it sustains at that
+ * size. The bitrate is sized per pixel for the codec and clamped to its range, in VBR mode where
+ * available (CBR otherwise).
+ *
+ * <p>The codec is created and its callbacks run on the encoder's own thread, which also writes
+ * the sink, so neither the producer nor the GL thread ever handles a buffer. Every ten seconds,
+ * and when the stream ends, it logs throughput (frames and bitrate per second), the time
+ * from a frame's submission to its encoded output, and frames dropped, by the producer ({@link
+ * #onFrameDropped}) or by the encoder (submitted but never output).
+ */
+public final class VideoEncoder {
+
+    private static final String TAG = "VideoEncoder";
+
+    static final int IFRAME_INTERVAL_SECONDS = 1;
+    private static final long EOS_TIMEOUT_MS = 2_000L;
+    private static final long REPORT_INTERVAL_NANOS = 10_000_000_000L;
+    private static final int MIN_DIMENSION = 128;
+
+    /** Encoder settings chosen by {@link #chooseConfig}. */
+    public static final class Config {
+        public final String codecName;
+        public final String mime;
+        public final int width;
+        public final int height;
+        public final int frameRate;
+        public final int bitrate;
+        public final int bitrateMode;
+
+        Config(String codecName, String mime, int width, int height, int frameRate, int bitrate,
+               int bitrateMode) {
+            this.codecName = codecName;
+            this.mime = mime;
+            this.width = width;
+            this.height = height;
+            this.frameRate = frameRate;
+            this.bitrate = bitrate;
+            this.bitrateMode = bitrateMode;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s (%s) %dx%d at %d fps, %.1f Mbps %s", codecName,
+                    mime, width, height, frameRate, bitrate / 1e6,
+                    bitrateMode == MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR ? "VBR"
+                            : bitrateMode == MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR
+                            ? "CBR" : "default");
+        }
+    }
+
+    /**
+     * Receives the encoded stream, on the encoder thread: {@link #open} before the codec starts,
+     * then the track format once, then the access units in order, then {@link #close} (also after
+     * a failed start).
+     */
+    public interface Sink {
+        void open(Config config) throws IOException;
+
+        void onFormat(MediaFormat format);
+
+        /** One access unit, {@code info.size} bytes at {@code info.offset} in {@code data}. */
+        void onSample(ByteBuffer data, MediaCodec.BufferInfo info);
+
+        void close();
+    }
+
+    /** Muxes the stream into an MP4 file. */
+    public static final class FileSink implements Sink {
+
+        private final File file;
+        private MediaMuxer muxer;
+        private int track = -1;
+
+        public FileSink(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public void open(Config config) throws IOException {
+            muxer = new MediaMuxer(file.getPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            Log.i(TAG, "Writing " + file);
+        }
+
+        @Override
+        public void onFormat(MediaFormat format) {
+            track = muxer.addTrack(format);
+            muxer.start();
+        }
+
+        @Override
+        public void onSample(ByteBuffer data, MediaCodec.BufferInfo info) {
+            if (track >= 0) {
+                muxer.writeSampleData(track, data, info);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (muxer == null) {
+                return;
+            }
+            try {
+                if (track >= 0) {
+                    muxer.stop();
+                }
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "MediaMuxer.stop failed; " + file + " may be unplayable", e);
+            }
+            muxer.release();
+            muxer = null;
+            Log.i(TAG, "Closed " + file);
+        }
+    }
+
+    private final Config config;
+    private final Sink sink;
+
+    private final HandlerThread thread = new HandlerThread("VideoEncoder");
+    private Handler handler;
+
+    // Producer thread(s).
+    private final AtomicInteger framesSubmitted = new AtomicInteger();
+    private final AtomicInteger framesDropped = new AtomicInteger();
+    private final AtomicBoolean stopping = new AtomicBoolean();
+    private final CountDownLatch finishedLatch = new CountDownLatch(1);
+    // Submission times by presentation time, for the encode latency; a small ring is enough
+    // since the encoder runs only a few frames behind.
+    private final long[] submitPts = new long[32];
+    private final long[] submitNanos = new long[32];
+
+    // Encoder thread.
+    private MediaCodec codec;
+    private boolean finished;
+    private int framesEncoded;
+    private long bytesEncoded;
+    private long latencySumNanos;
+    private int latencySamples;
+    private long windowStartNanos;
+    private int windowFrames;
+    private long windowBytes;
+
+    public VideoEncoder(Config config, Sink sink) {
+        this.config = config;
+        this.sink = sink;
+    }
+
+    public Config getConfig() {
+        return config;
+    }
+
+    /**
+     * Picks the codec and settings for encoding frames of about {@code width} x {@code height} at
+     * up to {@code frameRate} fps; null if no video encoder on the device takes any size near it.
+     */
+    public static Config chooseConfig(int width, int height, int frameRate) {
+        List<MediaCodecInfo> candidates = new ArrayList<>();
+        List<String> mimes = new ArrayList<>();
+        List<Integer> ranks = new ArrayList<>();
+        for (MediaCodecInfo info : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+            if (!info.isEncoder()) {
+                continue;
+            }
+            for (String type : info.getSupportedTypes()) {
+                int rank = rank(info, type);
+                if (rank < 0) {
+                    continue;
+                }
+                // Best first; equal ranks keep the list's (the platform's preference) order.
+                int at = 0;
+                while (at < ranks.size() && ranks.get(at) >= rank) {
+                    at++;
+                }
+                candidates.add(at, info);
+                mimes.add(at, type);
+                ranks.add(at, rank);
+            }
+        }
+        for (int i = 0; i < candidates.size(); i++) {
+            Config config = configFor(candidates.get(i), mimes.get(i), width, height, frameRate);
+            if (config != null) {
+                return config;
+            }
+            Log.w(TAG, "No supported size near " + width + "x" + height + " for "
+                    + candidates.get(i).getName() + " (" + mimes.get(i) + ")");
+        }
+        return null;
+    }
+
+    /** Settings for one codec and type, or null if it takes no size near the requested one. */
+    private static Config configFor(MediaCodecInfo info, String mime, int width, int height,
+                                    int frameRate) {
+        MediaCodecInfo.CodecCapabilities caps = info.getCapabilitiesForType(mime);
+        MediaCodecInfo.VideoCapabilities video = caps.getVideoCapabilities();
+        if (video == null) {
+            return null;
+        }
+        int wAlign = video.getWidthAlignment();
+        int hAlign = video.getHeightAlignment();
+        int w = 0;
+        int h = 0;
+        // Scale down, keeping the aspect ratio, until the encoder takes it.
+        boolean supported = false;
+        for (float scale = 1f; scale > 0.1f && !supported; scale *= 0.9f) {
+            w = Math.max(MIN_DIMENSION, Math.round(width * scale / wAlign) * wAlign);
+            h = Math.max(MIN_DIMENSION, Math.round(height * scale / hAlign) * hAlign);
+            supported = video.isSizeSupported(w, h);
+        }
+        if (!supported) {
+            return null;
+        }
+        int fps = frameRate;
+        try {
+            Range<Double> rates = video.getSupportedFrameRatesFor(w, h);
+            fps = (int) Math.min(frameRate, Math.floor(rates.getUpper()));
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "No frame rates reported for " + w + "x" + h, e);
+        }
+
+        boolean hevc = MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mime);
+        float bitsPerPixel = hevc ? 0.07f : 0.11f; // ~3 Mbps for H.264 at 720p30
+        int bitrate = video.getBitrateRange().clamp((int) (bitsPerPixel * w * h * fps));
+
+        MediaCodecInfo.EncoderCapabilities encoder = caps.getEncoderCapabilities();
+        int mode = -1;
+        if (encoder.isBitrateModeSupported(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR)) {
+            mode = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR;
+        } else if (encoder.isBitrateModeSupported(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR)) {
+            mode = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR;
+        }
+        return new Config(info.getName(), mime, w, h, fps, bitrate, mode);
+    }
+
+    /** Preference for a codec and type: hardware HEVC, hardware H.264, software H.264; -1 = no. */
+    private static int rank(MediaCodecInfo info, String type) {
+        boolean hardware = isHardware(info);
+        if (MediaFormat.MIMETYPE_VIDEO_HEVC.equalsIgnoreCase(type)
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N && hardware) {
+            return 3;
+        }
+        if (MediaFormat.MIMETYPE_VIDEO_AVC.equalsIgnoreCase(type)) {
+            return hardware ? 2 : 1;
+        }
+        return -1;
+    }
+
+    private static boolean isHardware(MediaCodecInfo info) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return info.isHardwareAccelerated();
+        }
+        String name = info.getName().toLowerCase(Locale.US);
+        return !name.startsWith("omx.google.") && !name.startsWith("c2.android.");
+    }
+
+    /**
+     * Starts the encoder thread and the codec, and returns the codec's input surface. Blocks until
+     * the codec is configured (a few milliseconds); don't call on the GL thread.
+     *
+     * @throws IOException if the codec or the sink can't be set up.
+     */
+    public Surface start() throws IOException {
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        Surface[] surface = new Surface[1];
+        Exception[] error = new Exception[1];
+        CountDownLatch started = new CountDownLatch(1);
+        handler.post(() -> {
+            try {
+                surface[0] = startCodec();
+            } catch (IOException | RuntimeException e) {
+                error[0] = e;
+                finish();
+            }
+            started.countDown();
+        });
+        try {
+            started.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted starting the encoder", e);
+        }
+        if (error[0] != null) {
+            throw new IOException("Failed to start " + config, error[0]);
+        }
+        return surface[0];
+    }
+
+    private Surface startCodec() throws IOException {
+        MediaFormat format = MediaFormat.createVideoFormat(config.mime, config.width, config.height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, config.bitrate);
+        if (config.bitrateMode >= 0) {
+            format.setInteger(MediaFormat.KEY_BITRATE_MODE, config.bitrateMode);
+        }
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, config.frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL_SECONDS);
+        sink.open(config);
+        codec = MediaCodec.createByCodecName(config.codecName);
+        // Created on this thread (it has a Looper), so the callbacks arrive here.
+        codec.setCallback(callback);
+        codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        Surface surface = codec.createInputSurface();
+        codec.start();
+        Log.i(TAG, "Encoding " + config);
+        return surface;
+    }
+
+    /** The producer submitted (swapped) the frame with this presentation time. */
+    public void onFrameSubmitted(long ptsNanos) {
+        int i = framesSubmitted.getAndIncrement() % submitPts.length;
+        synchronized (submitPts) {
+            submitPts[i] = ptsNanos / 1000;
+            submitNanos[i] = System.nanoTime();
+        }
+    }
+
+    /** The producer had a frame due but couldn't hand it over (e.g. the encoder was behind). */
+    public void onFrameDropped() {
+        framesDropped.incrementAndGet();
+    }
+
+    /**
+     * Ends the stream: frames already submitted are encoded, then the sink is closed and the
+     * thread exits. Blocks until the encoder flags the end of the stream (or gives up after
+     * {@link #EOS_TIMEOUT_MS}), so the input surface can be torn down afterwards without losing
+     * the last frames. Call after the last frame, from any thread but the encoder's (and not the
+     * GL thread); later calls do nothing.
+     */
+    public void stop() {
+        if (stopping.getAndSet(true)) {
+            return;
+        }
+        handler.post(() -> {
+            if (finished) {
+                return;
+            }
+            try {
+                codec.signalEndOfInputStream();
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "signalEndOfInputStream failed", e);
+                finish();
+                return;
+            }
+            // Some encoders never flag the end of stream; don't wait for ever.
+            handler.postDelayed(this::finish, EOS_TIMEOUT_MS);
+        });
+        try {
+            if (!finishedLatch.await(2 * EOS_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Encoder thread didn't finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // --- encoder thread ---------------------------------------------------------------
+
+    private final MediaCodec.Callback callback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(MediaCodec mc, int index) {
+            // Input comes through the surface.
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec mc, int index, MediaCodec.BufferInfo info) {
+            if (finished) {
+                return;
+            }
+            ByteBuffer data = mc.getOutputBuffer(index);
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                info.size = 0; // already in the track format
+            }
+            if (info.size > 0 && data != null) {
+                data.position(info.offset);
+                data.limit(info.offset + info.size);
+                sink.onSample(data, info);
+                onFrameEncoded(info.presentationTimeUs, info.size);
+            }
+            mc.releaseOutputBuffer(index, false);
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                finish();
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec mc, MediaFormat format) {
+            sink.onFormat(format);
+        }
+
+        @Override
+        public void onError(MediaCodec mc, MediaCodec.CodecException e) {
+            Log.e(TAG, "Encoder error", e);
+            finish();
+        }
+    };
+
+    private void onFrameEncoded(long ptsUs, int size) {
+        long now = System.nanoTime();
+        framesEncoded++;
+        bytesEncoded += size;
+        windowFrames++;
+        windowBytes += size;
+        synchronized (submitPts) {
+            for (int i = 0; i < submitPts.length; i++) {
+                if (submitPts[i] == ptsUs && submitNanos[i] != 0) {
+                    latencySumNanos += now - submitNanos[i];
+                    latencySamples++;
+                    submitNanos[i] = 0;
+                    break;
+                }
+            }
+        }
+        if (windowStartNanos == 0) {
+            windowStartNanos = now;
+        } else if (now - windowStartNanos >= REPORT_INTERVAL_NANOS) {
+            report(now - windowStartNanos, windowFrames, windowBytes);
+            windowStartNanos = now;
+            windowFrames = 0;
+            windowBytes = 0;
+        }
+    }
+
+    private void report(long spanNanos, int frames, long bytes) {
+        double seconds = spanNanos / 1e9;
+        Log.i(TAG, String.format(Locale.US,
+                "%.1f fps, %.2f Mbps; submit-to-output %.1f ms mean; dropped %d by producer, "
+                        + "%d by encoder (%d submitted, %d encoded)",
+                frames / seconds, bytes * 8 / seconds / 1e6,
+                latencySamples > 0 ? latencySumNanos / 1e6 / latencySamples : 0.0,
+                framesDropped.get(), Math.max(0, framesSubmitted.get() - framesEncoded),
+                framesSubmitted.get(), framesEncoded));
+    }
+
+    private void finish() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (codec != null) {
+            try {
+                codec.stop();
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "MediaCodec.stop failed", e);
+            }
+            codec.release();
+        }
+        sink.close();
+        if (windowStartNanos != 0) {
+            report(System.nanoTime() - windowStartNanos, windowFrames, windowBytes);
+        }
+        Log.i(TAG, String.format(Locale.US, "Finished %s: %d frames, %.1f MB",
+                config.mime, framesEncoded, bytesEncoded / 1e6));
+        thread.quitSafely();
+        finishedLatch.countDown();
+    }
+}
@@ -1,23 +1,31 @@
 package io.github.metavee.machinetobeanother;
 
 import android.content.Intent;
-import android.os.Environment;
 import androidx.appcompat.app.AppCompatActivity;
 import android.os.Bundle;
+import android.view.LayoutInflater;
 import android.view.View;
+import android.view.ViewGroup;
 import android.widget.AdapterView;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
+import android.widget.ImageView;
 import android.widget.ListView;
+import android.widget.TextView;
 
-import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 
 // with help from https://github.com/codepath/android_guides/wiki/Using-an-ArrayAdapter-with-ListView
 
 public class VideoListActivity extends AppCompatActivity implements AdapterView.OnItemClickListener {
 
-    private File[] items;
+    // The recordings, newest first, from the VideoCatalog (filled in once it has loaded).
+    private final List<VideoCatalog.Entry> items = new ArrayList<>();
+    private VideoCatalog catalog;
+    private final ThumbnailCache thumbnails = new ThumbnailCache();
 
-    ArrayAdapter<File> itemsAdapter;
+    CatalogAdapter itemsAdapter;
     ListView list;
 
     @Override
@@ -25,29 +33,97 @@ public class VideoListActivity extends AppCompatActivity implements AdapterView.
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_video_list);
 
-        File outdir = getApplicationContext().getExternalFilesDir(Environment.DIRECTORY_MOVIES);
-        // listFiles() returns null if the directory does not exist yet (e.g. a
-        // fresh install that has never recorded a video), which would crash the
-        // ArrayAdapter below, so fall back to an empty list.
-        items = outdir != null ? outdir.listFiles() : null;
-        if (items == null) {
-            items = new File[0];
-        }
-
-        itemsAdapter = new ArrayAdapter<File>(this, R.layout.simple_list_item_1, items);
+        itemsAdapter = new CatalogAdapter();
 
         list = (ListView) findViewById(R.id.video_list);
         list.setAdapter(itemsAdapter);
 
         list.setOnItemClickListener(this);
+
+        // Listing and probing the files happens in the background; the saved index shows
+        // first, so the list appears at once however many recordings there are.
+        catalog = new VideoCatalog(this);
+        catalog.load(entries -> {
+            items.clear();
+            items.addAll(entries);
+            itemsAdapter.notifyDataSetChanged();
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        catalog.cancel();
+        thumbnails.shutdown();
     }
 
     @Override
     public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-        String item = items[position].toString();
+        String item = items.get(position).file.toString();
         Intent intent = new Intent(this, TextureTestActivity.class);
         intent.putExtra("mode", TextureTestActivity.MODE_PLAYBACK);
         intent.putExtra("filename", item);
         startActivity(intent);
     }
+
+    /** One row per recording; rows are recycled, so only the visible ones are ever inflated. */
+    private final class CatalogAdapter extends BaseAdapter {
+
+        @Override
+        public int getCount() {
+            return items.size();
+        }
+
+        @Override
+        public VideoCatalog.Entry getItem(int position) {
+            return items.get(position);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return position;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            View row = convertView;
+            if (row == null) {
+                row = LayoutInflater.from(parent.getContext())
+                        .inflate(R.layout.video_list_item, parent, false);
+                row.setTag(new RowViews(row));
+            }
+            RowViews views = (RowViews) row.getTag();
+            VideoCatalog.Entry entry = getItem(position);
+            views.title.setText(entry.file.getName());
+            views.details.setText(describe(entry));
+            thumbnails.bind(views.thumbnail, entry);
+            return row;
+        }
+    }
+
+    private static final class RowViews {
+        final ImageView thumbnail;
+        final TextView title;
+        final TextView details;
+
+        RowViews(View row) {
+            thumbnail = row.findViewById(R.id.video_thumbnail);
+            title = row.findViewById(R.id.video_title);
+            details = row.findViewById(R.id.video_details);
+        }
+    }
+
+    /** E.g. "1:23  1920x1080  HEVC  45.2 MB". */
+    private static String describe(VideoCatalog.Entry entry) {
+        String size = String.format(Locale.US, "%.1f MB", entry.sizeBytes / 1e6);
+        if (entry.mime == null) {
+            return "unreadable  " + size;
+        }
+        long seconds = Math.max(0, entry.durationUs) / 1_000_000L;
+        String codec = entry.mime.equals("video/avc") ? "H.264"
+                : entry.mime.equals("video/hevc") ? "HEVC"
+                : entry.mime.substring(entry.mime.indexOf('/') + 1);
+        return String.format(Locale.US, "%d:%02d  %dx%d  %s  %s",
+                seconds / 60, seconds % 60, entry.width, entry.height, codec, size);
+    }
 }
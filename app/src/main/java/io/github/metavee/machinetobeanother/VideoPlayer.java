@@ -0,0 +1,502 @@
+package io.github.metavee.machinetobeanother;
+
+import android.graphics.SurfaceTexture;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Plays a video into external (OES) textures with frame-exact control: a {@link MediaExtractor}
+ * and a {@link MediaCodec} decoder on their own thread, in place of {@code MediaPlayer}.
+ *
+ * <p>Frames are released to the display when due on the playback clock, {@code (pts - anchor) /
+ * speed} after the anchor, at 0.1x to 4x. Frames more than {@link #LATE_DROP_NANOS} late are
+ * dropped. Seeks are exact. When opened, the extractor's sample times give an index of every
+ * frame. A seek goes to the keyframe before the target and decodes, without rendering, up to
+ * it; forward steps within {@link #DECODE_AHEAD_US} just keep decoding.
+ *
+ * <p>Decoded frames stay on the GPU in a small pool of SurfaceTextures, one per texture passed
+ * in. The decoder switches its output between them ({@code setOutputSurface}, API 23+). Each
+ * SurfaceTexture keeps the last image it latched, so the pool is an LRU cache of recent frames.
+ * Stepping back onto one of them just switches the texture to sample; nothing is re-decoded from
+ * the previous keyframe. Before API 23 the pool is one texture and there is no cache. The decoder
+ * runs in synchronous mode, since a seek flushes it and the work loop then simply starts over.
+ *
+ * <p>{@link #latch} and {@link #getTexture} are for the GL thread. The transport controls may be
+ * called from any thread. Only the video track is played.
+ */
+public final class VideoPlayer {
+
+    private static final String TAG = "VideoPlayer";
+
+    public static final float MIN_SPEED = 0.1f;
+    public static final float MAX_SPEED = 4f;
+
+    private static final long LATE_DROP_NANOS = 50_000_000L;
+    private static final long DECODE_AHEAD_US = 1_000_000L;
+    private static final long POLL_MS = 2;
+
+    /** Callbacks, on the decoder thread or (frames) the main thread. */
+    public interface Listener {
+        void onVideoSize(int width, int height);
+
+        /** A new frame is ready for {@link #latch}. */
+        void onFrameAvailable();
+    }
+
+    private static final class Slot {
+        final int texture;
+        final SurfaceTexture surfaceTexture;
+        final Surface surface;
+        final AtomicBoolean frameAvailable = new AtomicBoolean();
+        // Guarded by slots.
+        long ptsUs = -1;
+        boolean pending;
+        long lastUsed;
+        long showSeq;
+
+        Slot(int texture) {
+            this.texture = texture;
+            surfaceTexture = new SurfaceTexture(texture);
+            surface = new Surface(surfaceTexture);
+        }
+    }
+
+    private final String path;
+    private final Listener listener;
+    private final Slot[] slots;
+    // Guarded by slots.
+    private int displayed;
+    private long useCounter;
+    private long showCounter;
+
+    private final HandlerThread thread = new HandlerThread("VideoPlayer");
+    private Handler handler;
+    private volatile long positionUs;
+
+    // Decoder thread.
+    private MediaExtractor extractor;
+    private MediaCodec codec;
+    private long[] frameTimes = new long[0];
+    private Surface outputSurface;
+    private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    private boolean inputDone;
+    private boolean outputDone;
+    private int heldIndex = -1;
+    private long heldPtsUs;
+    private long decodedPtsUs = -1;
+    // Frame to decode up to and show, or -1.
+    private long seekTargetUs = -1;
+    // Set after showing a cached frame: the decoder is somewhere else.
+    private boolean decoderMoved;
+    private boolean playing;
+    private float speed = 1f;
+    private long anchorPtsUs;
+    private long anchorNanos;
+    private int framesRendered;
+    private int framesDropped;
+    private int cacheHits;
+
+    /**
+     * Sets up the texture pool; call on the GL thread.
+     *
+     * @param textures external textures to decode into, the cache size; only the first is used
+     *                 before API 23.
+     */
+    public VideoPlayer(String path, int[] textures, Listener listener) {
+        this.path = path;
+        this.listener = listener;
+        int count = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ? textures.length : 1;
+        slots = new Slot[count];
+        for (int i = 0; i < count; i++) {
+            Slot slot = new Slot(textures[i]);
+            slot.surfaceTexture.setOnFrameAvailableListener(st -> {
+                slot.frameAvailable.set(true);
+                listener.onFrameAvailable();
+            });
+            slots[i] = slot;
+        }
+    }
+
+    /** Opens the file and starts playing from {@code startUs} at {@code speed}. */
+    public void start(long startUs, float speed) {
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        handler.post(() -> {
+            try {
+                open();
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Failed to open " + path, e);
+                teardown();
+                return;
+            }
+            this.speed = clampSpeed(speed);
+            playing = true;
+            seek(startUs);
+        });
+    }
+
+    /** Stops decoding and releases everything but the textures; call with the GL thread paused. */
+    public void release() {
+        handler.post(this::teardown);
+        thread.quitSafely();
+        try {
+            thread.join(500);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Slot slot : slots) {
+            slot.surface.release();
+            slot.surfaceTexture.release();
+        }
+    }
+
+    // --- GL thread ----------------------------------------------------------------------
+
+    /**
+     * Latches newly decoded frames and picks the one to show; call before drawing.
+     *
+     * @return whether the frame to show changed.
+     */
+    public boolean latch() {
+        boolean latched = false;
+        for (Slot slot : slots) {
+            if (slot.frameAvailable.getAndSet(false)) {
+                slot.surfaceTexture.updateTexImage();
+                latched = true;
+                synchronized (slots) {
+                    slot.pending = false;
+                }
+            }
+        }
+        synchronized (slots) {
+            int newest = displayed;
+            for (int i = 0; i < slots.length; i++) {
+                if (!slots[i].pending && slots[i].showSeq > slots[newest].showSeq) {
+                    newest = i;
+                }
+            }
+            boolean changed = latched || newest != displayed;
+            displayed = newest;
+            return changed;
+        }
+    }
+
+    /** The external texture holding the frame to show. */
+    public int getTexture() {
+        synchronized (slots) {
+            return slots[displayed].texture;
+        }
+    }
+
+    // --- transport (any thread) ---------------------------------------------------------
+
+    /** Presentation time of the frame last shown. */
+    public long getPositionUs() {
+        return positionUs;
+    }
+
+    public void togglePlayPause() {
+        handler.post(() -> {
+            if (playing) {
+                playing = false;
+            } else {
+                play();
+            }
+        });
+    }
+
+    /** Multiplies the speed by {@code factor}, within [{@link #MIN_SPEED}, {@link #MAX_SPEED}]. */
+    public void scaleSpeed(float factor) {
+        handler.post(() -> {
+            speed = clampSpeed(speed * factor);
+            reanchor(positionUs);
+            Log.i(TAG, String.format(Locale.US, "Speed %.2fx", speed));
+        });
+    }
+
+    /** Shows the frame at or before {@code timeUs}; playback goes on from there if playing. */
+    public void seekTo(long timeUs) {
+        handler.post(() -> seek(timeUs));
+    }
+
+    /** Pauses and moves {@code frames} frames forward (or back, if negative). */
+    public void step(int frames) {
+        handler.post(() -> {
+            playing = false;
+            int i = indexAtOrBefore(positionUs) + frames;
+            if (frameTimes.length > 0) {
+                seek(frameTimes[Math.max(0, Math.min(frameTimes.length - 1, i))]);
+            }
+        });
+    }
+
+    private static float clampSpeed(float speed) {
+        return Math.max(MIN_SPEED, Math.min(MAX_SPEED, speed));
+    }
+
+    // --- decoder thread -----------------------------------------------------------------
+
+    private final Runnable work = this::doWork;
+
+    private void open() throws IOException {
+        extractor = new MediaExtractor();
+        extractor.setDataSource(path);
+        MediaFormat format = null;
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat f = extractor.getTrackFormat(i);
+            String mime = f.getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("video/")) {
+                extractor.selectTrack(i);
+                format = f;
+                break;
+            }
+        }
+        if (format == null) {
+            throw new IOException("No video track in " + path);
+        }
+        buildIndex();
+
+        codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+        outputSurface = slots[0].surface;
+        codec.configure(format, outputSurface, null, 0);
+        codec.start();
+        int width = format.getInteger(MediaFormat.KEY_WIDTH);
+        int height = format.getInteger(MediaFormat.KEY_HEIGHT);
+        Log.i(TAG, String.format(Locale.US, "Playing %s: %dx%d, %d frames, %d cached",
+                path, width, height, frameTimes.length, slots.length));
+        listener.onVideoSize(width, height);
+    }
+
+    /** Presentation times of every frame, from the container's sample table (no decoding). */
+    private void buildIndex() {
+        long[] times = new long[1024];
+        int count = 0;
+        for (long t = extractor.getSampleTime(); t >= 0; t = extractor.getSampleTime()) {
+            if (count == times.length) {
+                times = Arrays.copyOf(times, count * 2);
+            }
+            times[count++] = t;
+            extractor.advance();
+        }
+        frameTimes = Arrays.copyOf(times, count);
+        Arrays.sort(frameTimes); // decode order differs with B-frames
+        extractor.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+    }
+
+    private int indexAtOrBefore(long timeUs) {
+        int i = Arrays.binarySearch(frameTimes, timeUs);
+        return i >= 0 ? i : Math.max(0, -i - 2);
+    }
+
+    private void play() {
+        playing = true;
+        int i = indexAtOrBefore(positionUs);
+        if (outputDone && heldIndex < 0 && i == frameTimes.length - 1) {
+            seek(frameTimes.length > 0 ? frameTimes[0] : 0); // from the start again
+        } else if (decoderMoved && i + 1 < frameTimes.length) {
+            seek(frameTimes[i + 1]);
+        } else {
+            reanchor(positionUs);
+            schedule(0);
+        }
+    }
+
+    private void seek(long timeUs) {
+        if (codec == null || frameTimes.length == 0) {
+            return;
+        }
+        long frameUs = frameTimes[indexAtOrBefore(timeUs)];
+        if (showCached(frameUs)) {
+            cacheHits++;
+            decoderMoved = true;
+            reanchor(frameUs);
+            if (playing) {
+                play();
+            }
+            return;
+        }
+        if (!decoderMoved && frameUs > decodedPtsUs && frameUs - decodedPtsUs <= DECODE_AHEAD_US) {
+            seekTargetUs = frameUs; // just ahead: keep decoding
+        } else {
+            // Flushing invalidates a held output buffer; it is simply dropped.
+            codec.flush();
+            heldIndex = -1;
+            extractor.seekTo(frameUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            inputDone = false;
+            outputDone = false;
+            decodedPtsUs = -1;
+            decoderMoved = false;
+            seekTargetUs = frameUs;
+        }
+        schedule(0);
+    }
+
+    /** Shows a frame still in the texture pool, if it is. */
+    private boolean showCached(long ptsUs) {
+        boolean hit = false;
+        synchronized (slots) {
+            for (Slot slot : slots) {
+                if (!slot.pending && slot.ptsUs == ptsUs) {
+                    slot.showSeq = ++showCounter;
+                    slot.lastUsed = ++useCounter;
+                    positionUs = ptsUs;
+                    hit = true;
+                    break;
+                }
+            }
+        }
+        if (hit) {
+            listener.onFrameAvailable();
+        }
+        return hit;
+    }
+
+    private void reanchor(long ptsUs) {
+        anchorPtsUs = ptsUs;
+        anchorNanos = System.nanoTime();
+    }
+
+    private void schedule(long delayMs) {
+        handler.removeCallbacks(work);
+        handler.postDelayed(work, delayMs);
+    }
+
+    private void doWork() {
+        if (codec == null) {
+            return;
+        }
+        boolean progress = false;
+        if (!inputDone) {
+            int index = codec.dequeueInputBuffer(0);
+            if (index >= 0) {
+                ByteBuffer buffer = codec.getInputBuffer(index);
+                int size = extractor.readSampleData(buffer, 0);
+                if (size < 0) {
+                    codec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    inputDone = true;
+                } else {
+                    codec.queueInputBuffer(index, 0, size, extractor.getSampleTime(), 0);
+                    extractor.advance();
+                }
+                progress = true;
+            }
+        }
+        if (heldIndex < 0 && !outputDone) {
+            int index = codec.dequeueOutputBuffer(info, 0);
+            if (index >= 0) {
+                outputDone = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                if (info.size > 0) {
+                    heldIndex = index;
+                    heldPtsUs = info.presentationTimeUs;
+                } else {
+                    codec.releaseOutputBuffer(index, false);
+                }
+                progress = true;
+            }
+        }
+
+        long delayMs = POLL_MS;
+        if (heldIndex >= 0) {
+            long now = System.nanoTime();
+            long dueNanos = anchorNanos + (long) ((heldPtsUs - anchorPtsUs) * 1000 / speed);
+            if (seekTargetUs >= 0 && heldPtsUs < seekTargetUs) {
+                release(false); // decoding up to the target
+                progress = true;
+            } else if (seekTargetUs >= 0) {
+                if (render()) {
+                    seekTargetUs = -1;
+                    reanchor(decodedPtsUs);
+                    progress = true;
+                }
+            } else if (playing && now - dueNanos > LATE_DROP_NANOS) {
+                release(false);
+                framesDropped++;
+                progress = true;
+            } else if (playing && dueNanos <= now) {
+                progress |= render();
+            } else if (playing) {
+                delayMs = Math.max(1, (dueNanos - now) / 1_000_000L);
+            } else {
+                return; // paused on the next frame
+            }
+        } else if (outputDone) {
+            if (seekTargetUs >= 0 || playing) {
+                seekTargetUs = -1;
+                playing = false;
+                Log.i(TAG, String.format(Locale.US,
+                        "End of stream: %d frames shown, %d dropped late, %d from the cache",
+                        framesRendered, framesDropped, cacheHits));
+            }
+            return;
+        } else if (!playing && seekTargetUs < 0) {
+            return;
+        }
+        schedule(progress ? 0 : delayMs);
+    }
+
+    private void release(boolean show) {
+        codec.releaseOutputBuffer(heldIndex, show);
+        heldIndex = -1;
+        decodedPtsUs = heldPtsUs;
+    }
+
+    /** Renders the held frame into the least recently used free slot; false if none is free. */
+    private boolean render() {
+        Slot target = null;
+        synchronized (slots) {
+            for (int i = 0; i < slots.length; i++) {
+                Slot slot = slots[i];
+                boolean showing = slots.length > 1
+                        && (i == displayed || slot.showSeq == showCounter);
+                if (!slot.pending && !showing
+                        && (target == null || slot.lastUsed < target.lastUsed)) {
+                    target = slot;
+                }
+            }
+            if (target == null) {
+                return false; // wait for the GL thread to latch
+            }
+            target.pending = true;
+            target.ptsUs = heldPtsUs;
+            target.lastUsed = ++useCounter;
+            target.showSeq = ++showCounter;
+        }
+        if (target.surface != outputSurface) {
+            codec.setOutputSurface(target.surface);
+            outputSurface = target.surface;
+        }
+        positionUs = heldPtsUs;
+        release(true);
+        framesRendered++;
+        return true;
+    }
+
+    private void teardown() {
+        handler.removeCallbacks(work);
+        if (codec != null) {
+            try {
+                codec.stop();
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "MediaCodec.stop failed", e);
+            }
+            codec.release();
+            codec = null;
+        }
+        if (extractor != null) {
+            extractor.release();
+            extractor = null;
+        }
+    }
+}
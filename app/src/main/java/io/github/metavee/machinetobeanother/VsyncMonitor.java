@@ -0,0 +1,88 @@
+package io.github.metavee.machinetobeanother;
+
+import android.view.Choreographer;
+
+/**
+ * Follows the display's vsync through {@link Choreographer}: counts refreshes and tracks the
+ * latest vsync timestamp and the measured refresh period, so the GL thread can relate its own
+ * frames to what the panel actually shows.
+ *
+ * <p>{@link #start} and {@link #stop} must be called on the main thread (Choreographer is
+ * per-looper); the getters may be read from any thread. Timestamps are in the {@link
+ * System#nanoTime} time base, the same as {@code SurfaceTexture.getTimestamp()}.
+ */
+public final class VsyncMonitor implements Choreographer.FrameCallback {
+
+    private volatile long lastVsyncNanos;
+    private volatile long refreshPeriodNanos;
+    private volatile long vsyncCount;
+
+    private boolean running;
+
+    /** @param refreshRateHz the display's nominal refresh rate, used until one is measured. */
+    public VsyncMonitor(float refreshRateHz) {
+        refreshPeriodNanos = (long) (1e9 / (refreshRateHz > 1f ? refreshRateHz : 60f));
+    }
+
+    public void start() {
+        if (!running) {
+            running = true;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    public void stop() {
+        if (running) {
+            running = false;
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        long previous = lastVsyncNanos;
+        if (previous != 0) {
+            long delta = frameTimeNanos - previous;
+            long period = refreshPeriodNanos;
+            // Only consecutive vsyncs refine the period; a missed callback spans several.
+            if (delta > period / 2 && delta < period + period / 2) {
+                refreshPeriodNanos = period + (delta - period) / 16;
+            }
+        }
+        lastVsyncNanos = frameTimeNanos;
+        vsyncCount++;
+        if (running) {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    /** Timestamp of the most recent vsync, or 0 before the first one. */
+    public long getLastVsyncNanos() {
+        return lastVsyncNanos;
+    }
+
+    public long getRefreshPeriodNanos() {
+        return refreshPeriodNanos;
+    }
+
+    /**
+     * The first vsync strictly after {@code nanos}, extrapolated from the last vsync and the
+     * measured period (or {@code nanos} plus one period before the first vsync is seen).
+     */
+    public long nextVsyncAfter(long nanos) {
+        long period = refreshPeriodNanos;
+        long last = lastVsyncNanos;
+        if (last == 0) {
+            return nanos + period;
+        }
+        if (nanos < last) {
+            return last;
+        }
+        return last + ((nanos - last) / period + 1) * period;
+    }
+
+    /** Number of vsyncs seen since this monitor was created. */
+    public long getVsyncCount() {
+        return vsyncCount;
+    }
+}
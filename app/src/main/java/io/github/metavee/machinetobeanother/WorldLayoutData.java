@@ -17,84 +17,61 @@
 package io.github.metavee.machinetobeanother;
 
 /**
- * Contains vertex, normal and color data.
+ * Contains the passthrough quad's vertex data and texture mapping.
  */
 public final class WorldLayoutData {
 
-    // S, T (or X, Y)
-    // Texture coordinate data.
-    // Because images have a Y axis pointing downward (values increase as you move down the image) while
-    // OpenGL has a Y axis pointing upward, we adjust for that here by flipping the Y axis.
-    // What's more is that the texture coordinates are the same for every face.
-
-    public static float[] getRectTextureCoords(float aspect_ratio, boolean LR_invert) {
-        float left = (1f - aspect_ratio) / 2;
-        float right = 1f - left;
-
-        if (LR_invert) {
-            return new float[] {
-                    right, 0f,
-                    right, 1f,
-                    left, 0f,
-                    right, 1f,
-                    left, 1f,
-                    left, 0f
-            };
-        } else {
-            return new float[] {
-                    left, 0f,
-                    left, 1f,
-                    right, 0f,
-                    left, 1f,
-                    right, 1f,
-                    right, 0f
-            };
-        }
-    }
-
     // Z (in model space) of the passthrough quad. Combined with the model translation and the
     // camera position it fixes the quad's distance from the eye, which the life-size passthrough
     // uses to size the quad to the camera's field of view.
     public static final float RECT_Z = 1.0f;
 
-    public static final float[] RECT_COORDS = getRectCoords(1.75f, 1.75f);
+    // Half-width and half-height of the default (center-cropped) passthrough quad.
+    public static final float RECT_HALF_SIZE = 1.75f;
 
-    /** Builds the quad vertices (two triangles) with the given half-width and half-height. */
-    public static float[] getRectCoords(float halfX, float halfY) {
-        return new float[] {
-            -halfX,  halfY, RECT_Z,
-            -halfX, -halfY, RECT_Z,
-             halfX,  halfY, RECT_Z,
-            -halfX, -halfY, RECT_Z,
-             halfX, -halfY, RECT_Z,
-             halfX,  halfY, RECT_Z,
-        };
-    }
+    public static final int RECT_POSITION_SIZE = 3;
+    public static final int RECT_TEX_COORD_SIZE = 2;
+    public static final int RECT_VERTEX_STRIDE = (RECT_POSITION_SIZE + RECT_TEX_COORD_SIZE) * 4;
+    public static final int RECT_VERTEX_COUNT = 6;
+
+    /**
+     * The passthrough quad (two triangles), uploaded once to a vertex buffer: X, Y, Z followed by
+     * quad-local S, T per vertex. It spans [-1, 1] in X and Y; the model matrix scales it to the
+     * actual half-extents (default or life-size), so changing size never touches vertex data.
+     *
+     * <p>S, T run from the quad's bottom-left (0, 0) to its top-right (1, 1). They are mapped to
+     * camera texture coordinates by {@link #getTextureTransform} in the vertex shader, so the crop
+     * and the mirror flip are uniforms too.
+     */
+    public static final float[] RECT_VERTICES = {
+        -1f,  1f, RECT_Z,   0f, 1f,
+        -1f, -1f, RECT_Z,   0f, 0f,
+         1f,  1f, RECT_Z,   1f, 1f,
+        -1f, -1f, RECT_Z,   0f, 0f,
+         1f, -1f, RECT_Z,   1f, 0f,
+         1f,  1f, RECT_Z,   1f, 1f,
+    };
 
     /**
-     * Texture coordinates that show the full camera frame (no crop), matching the vertex winding
-     * of {@link #getRectCoords}. Used by the life-size passthrough, where the quad itself is
-     * sized to the camera's field of view instead of cropping the image to a square.
+     * The mapping from quad-local coordinates (s, t in [0, 1], origin at the quad's bottom-left)
+     * to camera texture coordinates. Because images have a Y axis pointing downward while OpenGL's
+     * points upward, T is flipped. With {@code fullFrame} the whole camera frame is shown (the
+     * life-size passthrough, where the quad itself is sized to the camera's field of view);
+     * otherwise the frame is center-cropped to a square using {@code aspect_ratio} (height /
+     * width). {@code LR_invert} mirrors the image left/right.
+     *
+     * <p>Shared by the quad's vertex shader and the fused passthrough-distortion pass, which
+     * samples the camera texture without drawing the quad itself.
+     *
+     * @return {scaleS, scaleT, offsetS, offsetT}
      */
-    public static float[] getFullTextureCoords(boolean LR_invert) {
+    public static float[] getTextureTransform(float aspect_ratio, boolean fullFrame, boolean LR_invert) {
+        float left = fullFrame ? 0f : (1f - aspect_ratio) / 2;
+        float right = 1f - left;
         if (LR_invert) {
-            return new float[] {
-                    1f, 0f,
-                    1f, 1f,
-                    0f, 0f,
-                    1f, 1f,
-                    0f, 1f,
-                    0f, 0f
-            };
+            return new float[] {left - right, -1f, right, 1f};
         } else {
-            return new float[] {
-                    0f, 0f,
-                    0f, 1f,
-                    1f, 0f,
-                    0f, 1f,
-                    1f, 1f,
-                    1f, 0f
-            };
+            return new float[] {right - left, -1f, left, 1f};
         }
     }
 
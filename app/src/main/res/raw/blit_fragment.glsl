@@ -0,0 +1,12 @@
+// Fragment shader for the recording blit: samples the captured frame, scaled with bilinear
+// filtering to the encoder's size.
+
+precision mediump float;
+
+uniform sampler2D u_Texture;
+
+varying vec2 v_TexCoordinate;
+
+void main() {
+    gl_FragColor = texture2D(u_Texture, v_TexCoordinate);
+}
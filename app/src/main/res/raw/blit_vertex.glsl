@@ -0,0 +1,12 @@
+// Vertex shader for the recording blit: a full-viewport quad in normalized device coordinates
+// that copies the captured frame into the video encoder's input surface (see FrameRecorder).
+
+attribute vec2 a_Position;
+attribute vec2 a_TexCoordinate;
+
+varying vec2 v_TexCoordinate;
+
+void main() {
+    gl_Position = vec4(a_Position, 0.0, 1.0);
+    v_TexCoordinate = a_TexCoordinate;
+}
@@ -0,0 +1,25 @@
+// Vertex shader for the fused passthrough-distortion pass. Uses the same distortion mesh
+// as distortion_vertex.glsl, but instead of addressing an off-screen eye render it maps the
+// mesh's rendered-FOV coordinate straight onto the passthrough quad and from there into
+// camera-texture space, so the camera image is sampled directly (see DistortionRenderer).
+
+attribute vec2 a_Position;
+attribute vec2 a_TexCoordinate;
+
+// Multiplier for a_Position: 1, except for normalized-short meshes, which store positions
+// scaled into [-1, 1].
+uniform float u_PositionScale;
+
+// Rendered-FOV coordinate -> quad-local coordinate ([0, 1] over the quad): xy scale, zw offset.
+uniform vec4 u_QuadTransform;
+// Quad-local coordinate -> camera texture coordinate (crop and mirror): xy scale, zw offset.
+uniform vec4 u_TexTransform;
+
+varying vec2 v_QuadCoordinate;
+varying vec2 v_TexCoordinate;
+
+void main() {
+    gl_Position = vec4(a_Position * u_PositionScale, 0.0, 1.0);
+    v_QuadCoordinate = a_TexCoordinate * u_QuadTransform.xy + u_QuadTransform.zw;
+    v_TexCoordinate = v_QuadCoordinate * u_TexTransform.xy + u_TexTransform.zw;
+}
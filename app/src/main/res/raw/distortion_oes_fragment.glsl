@@ -0,0 +1,23 @@
+// Fragment shader for the fused passthrough-distortion pass: the samplerExternalOES variant of
+// distortion_fragment.glsl. Samples the camera (or video) texture directly through the
+// distortion mesh, with no intermediate eye framebuffer. Outside the passthrough quad it
+// outputs the background color the eye buffer would have been cleared to.
+
+#extension GL_OES_EGL_image_external : require
+precision mediump float;
+
+uniform samplerExternalOES u_Texture;
+
+varying vec2 v_QuadCoordinate;
+varying vec2 v_TexCoordinate;
+
+// Matches the frame clear color set in TextureTestActivity.
+const vec4 BACKGROUND = vec4(0.1, 0.1, 0.1, 0.5);
+
+void main() {
+    if (any(lessThan(v_QuadCoordinate, vec2(0.0))) || any(greaterThan(v_QuadCoordinate, vec2(1.0)))) {
+        gl_FragColor = BACKGROUND;
+    } else {
+        gl_FragColor = texture2D(u_Texture, v_TexCoordinate);
+    }
+}
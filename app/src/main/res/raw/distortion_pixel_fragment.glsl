@@ -0,0 +1,42 @@
+// Fragment shader for the per-pixel lens-distortion pass: distorts the pixel's screen
+// tan-angle radially, r -> r * (1 + k1 r^2 + k2 r^4 + ...), to find where it lies in the eye's
+// rendered (wider) FOV, and samples the off-screen eye render there. Outside the rendered FOV
+// it outputs the frame's clear color, as the mesh pass leaves it.
+
+// The table lookup is highp throughout, sampler included: at mediump (fp16) r^2 and the
+// decoded 16-bit factor keep only 11 bits, several pixels at the edge of the FOV, and a lowp
+// sampler may return the bytes at 8-bit precision. DistortionRenderer only uses this shader
+// where highp is available.
+#ifdef GL_FRAGMENT_PRECISION_HIGH
+#define LOOKUP highp
+#else
+#define LOOKUP mediump
+#endif
+precision mediump float;
+
+uniform sampler2D u_Texture;
+// The distortion factor 1 + k1 r^2 + k2 r^4 + ... against r^2 (RadialDistortion's table),
+// 16-bit fixed point in luminance (high byte) and alpha (low).
+uniform LOOKUP sampler2D u_Distortion;
+// r^2 -> table coordinate: xy scale, offset. Decoded table value -> factor: zw scale, offset.
+uniform LOOKUP vec4 u_DistortionMap;
+
+varying LOOKUP vec2 v_Tan;
+varying LOOKUP vec4 v_TexMap;
+varying vec4 v_OutMap;
+
+// Matches the frame clear color set in TextureTestActivity.
+const vec4 BACKGROUND = vec4(0.1, 0.1, 0.1, 0.5);
+
+void main() {
+    LOOKUP float r2 = dot(v_Tan, v_Tan);
+    LOOKUP vec4 entry = texture2D(u_Distortion, vec2(r2 * u_DistortionMap.x + u_DistortionMap.y, 0.5));
+    LOOKUP float factor = (entry.r + entry.a / 256.0) * u_DistortionMap.z + u_DistortionMap.w;
+    LOOKUP vec2 distorted = v_Tan * factor;
+    LOOKUP vec2 fov = distorted * v_TexMap.xy + v_TexMap.zw;
+    if (any(lessThan(fov, vec2(0.0))) || any(greaterThan(fov, vec2(1.0)))) {
+        gl_FragColor = BACKGROUND;
+    } else {
+        gl_FragColor = texture2D(u_Texture, fov * v_OutMap.xy + v_OutMap.zw);
+    }
+}
@@ -0,0 +1,48 @@
+// Fragment shader for the per-pixel fused passthrough pass: the samplerExternalOES variant of
+// distortion_pixel_fragment.glsl. Maps the distorted rendered-FOV coordinate onto the
+// passthrough quad and into camera-texture space, as distortion_direct_vertex.glsl does per
+// vertex, and samples the camera (or video) texture directly.
+
+#extension GL_OES_EGL_image_external : require
+// The table lookup is highp throughout, sampler included: at mediump (fp16) r^2 and the
+// decoded 16-bit factor keep only 11 bits, several pixels at the edge of the FOV, and a lowp
+// sampler may return the bytes at 8-bit precision. DistortionRenderer only uses this shader
+// where highp is available.
+#ifdef GL_FRAGMENT_PRECISION_HIGH
+#define LOOKUP highp
+#else
+#define LOOKUP mediump
+#endif
+precision mediump float;
+
+uniform samplerExternalOES u_Texture;
+// The distortion factor 1 + k1 r^2 + k2 r^4 + ... against r^2 (RadialDistortion's table),
+// 16-bit fixed point in luminance (high byte) and alpha (low).
+uniform LOOKUP sampler2D u_Distortion;
+// r^2 -> table coordinate: xy scale, offset. Decoded table value -> factor: zw scale, offset.
+uniform LOOKUP vec4 u_DistortionMap;
+// Rendered-FOV coordinate -> quad-local coordinate ([0, 1] over the quad): xy scale, zw offset.
+uniform vec4 u_QuadTransform;
+// Quad-local coordinate -> camera texture coordinate (crop and mirror): xy scale, zw offset.
+uniform vec4 u_TexTransform;
+
+varying LOOKUP vec2 v_Tan;
+varying LOOKUP vec4 v_TexMap;
+
+// Matches the frame clear color set in TextureTestActivity.
+const vec4 BACKGROUND = vec4(0.1, 0.1, 0.1, 0.5);
+
+void main() {
+    LOOKUP float r2 = dot(v_Tan, v_Tan);
+    LOOKUP vec4 entry = texture2D(u_Distortion, vec2(r2 * u_DistortionMap.x + u_DistortionMap.y, 0.5));
+    LOOKUP float factor = (entry.r + entry.a / 256.0) * u_DistortionMap.z + u_DistortionMap.w;
+    LOOKUP vec2 distorted = v_Tan * factor;
+    LOOKUP vec2 fov = distorted * v_TexMap.xy + v_TexMap.zw;
+    LOOKUP vec2 quad = fov * u_QuadTransform.xy + u_QuadTransform.zw;
+    if (any(lessThan(fov, vec2(0.0))) || any(greaterThan(fov, vec2(1.0)))
+            || any(lessThan(quad, vec2(0.0))) || any(greaterThan(quad, vec2(1.0)))) {
+        gl_FragColor = BACKGROUND;
+    } else {
+        gl_FragColor = texture2D(u_Texture, quad * u_TexTransform.xy + u_TexTransform.zw);
+    }
+}
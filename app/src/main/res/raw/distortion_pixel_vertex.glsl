@@ -0,0 +1,30 @@
+// Vertex shader for the per-pixel lens-distortion pass. Instead of a pre-distorted mesh, each
+// eye is a plain quad over its viewport, and the fragment shader applies the distortion at
+// every pixel (see DistortionRenderer). This passes on each pixel's physical screen tan-angle
+// and the eye's mappings, picked per vertex so one draw can cover both eyes of the atlas.
+
+attribute vec2 a_Position;
+// Position across the eye's viewport, [0, 1].
+attribute vec2 a_Local;
+// 0 left, 1 right.
+attribute float a_Eye;
+
+// Per eye, viewport coordinate -> screen tan-angle: xy scale, zw offset.
+uniform vec4 u_ScreenTan[2];
+// Per eye, distorted tan-angle -> rendered-FOV coordinate ([0, 1] over the eye): xy scale, zw
+// offset.
+uniform vec4 u_TexMap[2];
+// Per eye, rendered-FOV coordinate -> where the fragment shader samples: xy scale, zw offset.
+uniform vec4 u_OutMap[2];
+
+varying vec2 v_Tan;
+varying vec4 v_TexMap;
+varying vec4 v_OutMap;
+
+void main() {
+    int eye = int(a_Eye + 0.5);
+    gl_Position = vec4(a_Position, 0.0, 1.0);
+    v_Tan = a_Local * u_ScreenTan[eye].xy + u_ScreenTan[eye].zw;
+    v_TexMap = u_TexMap[eye];
+    v_OutMap = u_OutMap[eye];
+}
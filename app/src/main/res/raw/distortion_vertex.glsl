@@ -6,9 +6,16 @@
 attribute vec2 a_Position;
 attribute vec2 a_TexCoordinate;
 
+// Multiplier for a_Position: 1, except for normalized-short meshes, which store positions
+// scaled into [-1, 1].
+uniform float u_PositionScale;
+
+// Fraction of the eye buffer actually rendered (dynamic resolution); (1, 1) at full size.
+uniform vec2 u_TexScale;
+
 varying vec2 v_TexCoordinate;
 
 void main() {
-    gl_Position = vec4(a_Position, 0.0, 1.0);
-    v_TexCoordinate = a_TexCoordinate;
+    gl_Position = vec4(a_Position * u_PositionScale, 0.0, 1.0);
+    v_TexCoordinate = a_TexCoordinate * u_TexScale;
 }
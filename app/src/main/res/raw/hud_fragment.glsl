@@ -0,0 +1,12 @@
+// Fragment shader for the performance HUD overlay: the HUD text, rendered into an ordinary 2D
+// texture, blended over the distorted eye image.
+
+precision mediump float;
+
+uniform sampler2D u_Texture;
+
+varying vec2 v_TexCoordinate;
+
+void main() {
+    gl_FragColor = texture2D(u_Texture, v_TexCoordinate);
+}
@@ -0,0 +1,12 @@
+// Vertex shader for the performance HUD overlay: a textured quad already in normalized device
+// coordinates over one eye's viewport (see PerfHud).
+
+attribute vec2 a_Position;
+attribute vec2 a_TexCoordinate;
+
+varying vec2 v_TexCoordinate;
+
+void main() {
+    gl_Position = vec4(a_Position, 0.0, 1.0);
+    v_TexCoordinate = a_TexCoordinate;
+}
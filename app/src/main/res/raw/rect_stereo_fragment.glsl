@@ -0,0 +1,16 @@
+#version 300 es
+// ES 3.0 stereo variant of rect_fragment.glsl. Each eye is kept to its half before
+// rasterization (clip distance or scissor), so there is no per-fragment test here.
+
+#extension GL_OES_EGL_image_external_essl3 : require
+precision mediump float;
+
+uniform samplerExternalOES u_Texture;
+
+in vec2 v_TexCoordinate;
+
+out vec4 fragColor;
+
+void main() {
+    fragColor = texture(u_Texture, v_TexCoordinate);
+}
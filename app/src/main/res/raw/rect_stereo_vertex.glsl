@@ -0,0 +1,32 @@
+#version 300 es
+// ES 3.0 stereo variant of rect_vertex.glsl: draws the passthrough quad for both eyes in one
+// instanced draw (instance 0 left, 1 right) across a side-by-side target. Each instance uses
+// its eye's MVP and is squeezed into its half of the viewport (see StereoRectRenderer).
+#ifdef GL_EXT_clip_cull_distance
+#extension GL_EXT_clip_cull_distance : enable
+#endif
+
+uniform mat4 u_EyeMVP[2];
+// Quad-local coordinate -> camera texture coordinate (crop and mirror): xy scale, zw offset.
+uniform vec4 u_TexTransform;
+// Eye of instance 0: 0 for the instanced draw; 0 or 1 for one eye per draw (no clip distance).
+uniform int u_FirstEye;
+
+in vec4 a_Position;
+in vec2 a_TexCoordinate;
+
+out vec2 v_TexCoordinate;
+
+void main() {
+    int eye = gl_InstanceID + u_FirstEye;
+    vec4 clip = u_EyeMVP[eye] * a_Position;
+    // NDC x in [-1, 1] -> the eye's half: [-1, 0] left, [0, 1] right.
+    clip.x = 0.5 * clip.x + (eye == 0 ? -0.5 : 0.5) * clip.w;
+    gl_Position = clip;
+#ifdef GL_EXT_clip_cull_distance
+    // Clipping only bounds the whole side-by-side target; this plane (clip x = 0) keeps each
+    // eye out of the other's half, ahead of rasterization.
+    gl_ClipDistance[0] = eye == 0 ? -clip.x : clip.x;
+#endif
+    v_TexCoordinate = a_TexCoordinate * u_TexTransform.xy + u_TexTransform.zw;
+}
@@ -15,6 +15,9 @@
  */
 
 uniform mat4 u_MVP;
+// Quad-local coordinate -> camera texture coordinate (crop and mirror): xy scale, zw offset.
+// See WorldLayoutData.getTextureTransform.
+uniform vec4 u_TexTransform;
 
 attribute vec4 a_Position;
 attribute vec2 a_TexCoordinate;
@@ -23,5 +26,5 @@ varying vec2 v_TexCoordinate;
 
 void main() {
    gl_Position = u_MVP * a_Position;
-   v_TexCoordinate = a_TexCoordinate;
+   v_TexCoordinate = a_TexCoordinate * u_TexTransform.xy + u_TexTransform.zw;
 }
@@ -0,0 +1,47 @@
+package io.github.metavee.machinetobeanother;
+
+import static org.junit.Assert.assertEquals;
+
+import android.util.Range;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/** Frame-rate range choice of {@link Camera2Source}, with and without the exposure cap. */
+@RunWith(RobolectricTestRunner.class)
+public class Camera2SourceTest {
+
+    // A typical back camera's CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES.
+    @SuppressWarnings("unchecked")
+    private static final Range<Integer>[] RANGES = new Range[] {
+            Range.create(15, 15), Range.create(15, 30), Range.create(24, 24),
+            Range.create(7, 30), Range.create(30, 30), Range.create(10, 60),
+    };
+
+    @Test
+    public void fastestRangeWithoutCap() {
+        assertEquals(Range.create(10, 60), Camera2Source.chooseFpsRange(RANGES, 60, false));
+        assertEquals(Range.create(30, 30), Camera2Source.chooseFpsRange(RANGES, 30, false));
+    }
+
+    @Test
+    public void highestMinimumWithCap() {
+        // [10, 60] could expose for up to 100 ms a frame in dim light; [30, 30] stops at 33 ms.
+        assertEquals(Range.create(30, 30), Camera2Source.chooseFpsRange(RANGES, 60, true));
+        assertEquals(Range.create(24, 24), Camera2Source.chooseFpsRange(RANGES, 25, true));
+    }
+
+    @Test
+    public void highestMaximumBreaksTies() {
+        @SuppressWarnings("unchecked")
+        Range<Integer>[] ranges = new Range[] {Range.create(30, 30), Range.create(30, 60)};
+        assertEquals(Range.create(30, 60), Camera2Source.chooseFpsRange(ranges, 60, true));
+    }
+
+    @Test
+    public void slowestRangeWhenNoneFits() {
+        assertEquals(Range.create(15, 15), Camera2Source.chooseFpsRange(RANGES, 10, true));
+        assertEquals(Range.create(15, 15), Camera2Source.chooseFpsRange(RANGES, 10, false));
+    }
+}
@@ -0,0 +1,261 @@
+package io.github.metavee.machinetobeanother;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Geometry of the adaptive distortion mesh, read back from the buffers {@link DistortionMesh}
+ * uploads: each eye's triangles tile the texture square with every inner edge shared (no cracks,
+ * no T-junctions), the interpolated screen positions stay within the tolerance of the exact
+ * inverse distortion, the indices stay in range, and the triangle order beats a uniform grid's in
+ * the vertex cache.
+ */
+public class DistortionMeshTest {
+
+    // A 1920x1080 phone at about 400 dpi, landscape, as in DistortionRendererTest.
+    private static final int EYE_WIDTH = 960;
+    private static final int EYE_HEIGHT = 1080;
+    private static final float SCREEN_WIDTH_METERS = 0.1219f;
+    private static final float SCREEN_HEIGHT_METERS = 0.0686f;
+
+    // Barycentric sample points per triangle: the centroid, towards each corner, the edge
+    // midpoints, and a few off the builder's own sampling grid.
+    private static final float[][] SAMPLES = {
+            {1f / 3, 1f / 3, 1f / 3},
+            {2f / 3, 1f / 6, 1f / 6}, {1f / 6, 2f / 3, 1f / 6}, {1f / 6, 1f / 6, 2f / 3},
+            {0.5f, 0.5f, 0f}, {0f, 0.5f, 0.5f}, {0.5f, 0f, 0.5f},
+            {0.1f, 0.3f, 0.6f}, {0.45f, 0.45f, 0.1f}, {0.25f, 0.75f, 0f},
+    };
+    // For float rounding, and the error between the builder's samples.
+    private static final float ERROR_SLACK_PX = 0.02f;
+    // Texture coordinates are exact multiples of a power-of-two lattice, so they key exactly.
+    private static final float KEY_SCALE = 4096f;
+
+    private static CardboardProfile.EyeParams[] eyes(CardboardProfile profile) {
+        return new CardboardProfile.EyeParams[] {
+                profile.eyeParams(0, SCREEN_WIDTH_METERS, SCREEN_HEIGHT_METERS),
+                profile.eyeParams(1, SCREEN_WIDTH_METERS, SCREEN_HEIGHT_METERS),
+        };
+    }
+
+    private static DistortionMesh build(float[] coefficients, float tolerancePx) {
+        CardboardProfile.EyeParams[] eyes = eyes(CardboardProfile.getDefault());
+        RadialDistortion distortion = RadialDistortion.forEyes(coefficients, eyes);
+        return DistortionMesh.build(eyes, distortion, EYE_WIDTH, EYE_HEIGHT, tolerancePx,
+                DistortionMesh.FORMAT_FLOAT);
+    }
+
+    @Test
+    public void tilesWithoutCracksOrTJunctions() {
+        for (float tolerance : new float[] {0.5f, 2f, 8f}) {
+            DistortionMesh mesh = build(CardboardProfile.getDefault().distortionCoeffs, tolerance);
+            for (int eye = 0; eye < 2; eye++) {
+                assertTiles(readVertices(mesh), readIndices(mesh, mesh.eyeFirstIndex(eye),
+                        mesh.eyeIndexCount[eye]), mesh.eyeFirstVertex(eye));
+            }
+        }
+    }
+
+    @Test
+    public void errorWithinTolerance() {
+        float[][] lenses = {
+                CardboardProfile.getDefault().distortionCoeffs,
+                {0.1f},
+                {0.6f, 1.2f, 0.3f},
+        };
+        for (float[] coefficients : lenses) {
+            for (float tolerance : new float[] {0.25f, 0.5f, 2f}) {
+                CardboardProfile.EyeParams[] eyes = eyes(CardboardProfile.getDefault());
+                RadialDistortion distortion = RadialDistortion.forEyes(coefficients, eyes);
+                DistortionMesh mesh = DistortionMesh.build(eyes, distortion, EYE_WIDTH, EYE_HEIGHT,
+                        tolerance, DistortionMesh.FORMAT_FLOAT);
+                float[] vertices = readVertices(mesh);
+                float worst = 0f;
+                for (int eye = 0; eye < 2; eye++) {
+                    worst = Math.max(worst, sampledError(eyes[eye], distortion, vertices,
+                            readIndices(mesh, mesh.eyeFirstIndex(eye), mesh.eyeIndexCount[eye]),
+                            mesh.eyeFirstVertex(eye)));
+                }
+                assertTrue(worst + " px at tolerance " + tolerance,
+                        worst <= tolerance + ERROR_SLACK_PX);
+            }
+        }
+    }
+
+    @Test
+    public void indicesInBounds() {
+        DistortionMesh mesh = build(CardboardProfile.getDefault().distortionCoeffs, 0.5f);
+        int vertexCount = readVertices(mesh).length / 4;
+        assertEquals(mesh.vertexCount(), vertexCount);
+        assertEquals(mesh.indexCount(), mesh.indices.capacity() / 2);
+        for (int eye = 0; eye < 2; eye++) {
+            assertInRange(readIndices(mesh, mesh.eyeFirstIndex(eye), mesh.eyeIndexCount[eye]),
+                    mesh.eyeVertexCount[eye]);
+        }
+        assertInRange(readIndices(mesh, mesh.atlasFirstIndex(), mesh.atlasIndexCount()),
+                mesh.eyeVertexCount[0] + mesh.eyeVertexCount[1]);
+        assertTrue(mesh.atlasFirstVertex() + mesh.eyeVertexCount[0] + mesh.eyeVertexCount[1]
+                <= vertexCount);
+    }
+
+    @Test
+    public void vertexCacheBeatsUniformGrid() {
+        DistortionMesh mesh = build(CardboardProfile.getDefault().distortionCoeffs, 0.5f);
+        // A row-major grid with about as many vertices.
+        int side = (int) Math.round(Math.sqrt(mesh.eyeVertexCount[0])) - 1;
+        int[] grid = new int[6 * side * side];
+        int n = 0;
+        for (int y = 0; y < side; y++) {
+            for (int x = 0; x < side; x++) {
+                int bl = y * (side + 1) + x;
+                int tl = bl + side + 1;
+                grid[n++] = bl;
+                grid[n++] = tl;
+                grid[n++] = bl + 1;
+                grid[n++] = bl + 1;
+                grid[n++] = tl;
+                grid[n++] = tl + 1;
+            }
+        }
+        float gridAcmr = DistortionMesh.measureAcmr(grid, (side + 1) * (side + 1));
+        assertTrue(mesh.acmr + " vs " + gridAcmr, mesh.acmr < gridAcmr);
+    }
+
+    // --- helpers ------------------------------------------------------------------------
+
+    private static float[] readVertices(DistortionMesh mesh) {
+        ByteBuffer buffer = mesh.vertices.duplicate().order(mesh.vertices.order());
+        buffer.position(0);
+        float[] out = new float[buffer.capacity() / 4];
+        buffer.asFloatBuffer().get(out);
+        return out;
+    }
+
+    private static int[] readIndices(DistortionMesh mesh, int first, int count) {
+        ShortBuffer buffer = mesh.indices.duplicate().order(mesh.indices.order()).asShortBuffer();
+        int[] out = new int[count];
+        for (int k = 0; k < count; k++) {
+            out[k] = buffer.get(first + k) & 0xffff;
+        }
+        return out;
+    }
+
+    private static void assertInRange(int[] indices, int vertexCount) {
+        assertEquals(0, indices.length % 3);
+        for (int index : indices) {
+            assertTrue(index + " of " + vertexCount, index >= 0 && index < vertexCount);
+        }
+    }
+
+    /**
+     * Every triangle is wound the same way and they cover the unit texture square exactly, and
+     * each directed edge inside it meets its reverse: a crack or a T-junction leaves an edge with
+     * no twin.
+     */
+    private static void assertTiles(float[] vertices, int[] indices, int firstVertex) {
+        Map<Long, Integer> edges = new HashMap<>();
+        double area = 0;
+        float sign = 0f;
+        for (int t = 0; t < indices.length; t += 3) {
+            int a = firstVertex + indices[t];
+            int b = firstVertex + indices[t + 1];
+            int c = firstVertex + indices[t + 2];
+            float cross = (u(vertices, b) - u(vertices, a)) * (v(vertices, c) - v(vertices, a))
+                    - (v(vertices, b) - v(vertices, a)) * (u(vertices, c) - u(vertices, a));
+            assertTrue("degenerate triangle " + t / 3, cross != 0f);
+            if (sign == 0f) {
+                sign = Math.signum(cross);
+            }
+            assertEquals("winding of triangle " + t / 3, sign, Math.signum(cross), 0f);
+            area += Math.abs(cross) / 2.0;
+            addEdge(edges, vertices, a, b);
+            addEdge(edges, vertices, b, c);
+            addEdge(edges, vertices, c, a);
+        }
+        assertEquals(1.0, area, 1e-4);
+        for (Map.Entry<Long, Integer> edge : edges.entrySet()) {
+            long key = edge.getKey();
+            long reverse = (key << 32) | (key >>> 32);
+            if (edges.containsKey(reverse)) {
+                assertEquals(1, (int) edge.getValue());
+                continue;
+            }
+            // Unmatched: must lie on the border of the square.
+            float au = lattice((int) (key >>> 48));
+            float av = lattice((int) (key >>> 32) & 0xffff);
+            float bu = lattice((int) (key >>> 16) & 0xffff);
+            float bv = lattice((int) key & 0xffff);
+            assertTrue("crack or T-junction at (" + au + ", " + av + ")-(" + bu + ", " + bv + ")",
+                    (au == bu && (au == 0f || au == 1f)) || (av == bv && (av == 0f || av == 1f)));
+        }
+    }
+
+    private static void addEdge(Map<Long, Integer> edges, float[] vertices, int a, int b) {
+        long key = ((long) point(vertices, a) << 32) | point(vertices, b);
+        edges.merge(key, 1, Integer::sum);
+    }
+
+    private static long point(float[] vertices, int vertex) {
+        return ((long) Math.round(u(vertices, vertex) * KEY_SCALE) << 16)
+                | Math.round(v(vertices, vertex) * KEY_SCALE);
+    }
+
+    private static float lattice(int coordinate) {
+        return coordinate / KEY_SCALE;
+    }
+
+    private static float u(float[] vertices, int vertex) {
+        return vertices[4 * vertex + 2];
+    }
+
+    private static float v(float[] vertices, int vertex) {
+        return vertices[4 * vertex + 3];
+    }
+
+    /**
+     * The largest distance, in pixels, between the screen position the triangles interpolate and
+     * the exact one, at the {@link #SAMPLES} points of every triangle.
+     */
+    private static float sampledError(CardboardProfile.EyeParams ep, RadialDistortion distortion,
+                                      float[] vertices, int[] indices, int firstVertex) {
+        float worst = 0f;
+        float[] exact = new float[2];
+        for (int t = 0; t < indices.length; t += 3) {
+            for (float[] w : SAMPLES) {
+                float x = 0f;
+                float y = 0f;
+                float u = 0f;
+                float v = 0f;
+                for (int k = 0; k < 3; k++) {
+                    int n = 4 * (firstVertex + indices[t + k]);
+                    x += w[k] * vertices[n];
+                    y += w[k] * vertices[n + 1];
+                    u += w[k] * vertices[n + 2];
+                    v += w[k] * vertices[n + 3];
+                }
+                screenPosition(ep, distortion, u, v, exact);
+                float ex = (x - exact[0]) * EYE_WIDTH / 2f;
+                float ey = (y - exact[1]) * EYE_HEIGHT / 2f;
+                worst = Math.max(worst, (float) Math.sqrt(ex * ex + ey * ey));
+            }
+        }
+        return worst;
+    }
+
+    /** Where texture coordinate (u, v) lands on the screen, in NDC. */
+    private static void screenPosition(CardboardProfile.EyeParams ep, RadialDistortion distortion,
+                                       float u, float v, float[] out) {
+        float px = u * (ep.txLeft + ep.txRight) - ep.txLeft;
+        float py = v * (ep.txBottom + ep.txTop) - ep.txBottom;
+        float scale = distortion.inverseFactor(px * px + py * py);
+        out[0] = 2f * (scale * px + ep.sxLeft) / (ep.sxLeft + ep.sxRight) - 1f;
+        out[1] = 2f * (scale * py + ep.sxBottom) / (ep.sxBottom + ep.sxTop) - 1f;
+    }
+}
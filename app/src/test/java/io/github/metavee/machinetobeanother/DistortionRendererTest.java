@@ -0,0 +1,165 @@
+package io.github.metavee.machinetobeanother;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+/**
+ * Per-frame GL call budgets of the distortion pass, driven headless through {@link RecordingGl}
+ * on a {@link NoOpGl}: everything is uploaded in {@link DistortionRenderer#configure}, so a
+ * frame is only binds, uniforms and draws, with no uploads and no {@code glGetError} round
+ * trips.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DistortionRendererTest {
+
+    // A 1920x1080 phone at about 400 dpi, landscape.
+    private static final int EYE_WIDTH = 960;
+    private static final int EYE_HEIGHT = 1080;
+    private static final float SCREEN_WIDTH_METERS = 0.1219f;
+    private static final float SCREEN_HEIGHT_METERS = 0.0686f;
+
+    private final float[] quadTransform = {1f, 1f, 0f, 0f};
+    private final float[] texTransform = {1f, 1f, 0f, 0f};
+
+    private Context context;
+    private RecordingGl gl;
+    private CardboardProfile.EyeParams[] eyes;
+    private float[] coefficients;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+        gl = new RecordingGl();
+        CardboardProfile profile = CardboardProfile.getDefault();
+        eyes = new CardboardProfile.EyeParams[] {
+                profile.eyeParams(0, SCREEN_WIDTH_METERS, SCREEN_HEIGHT_METERS),
+                profile.eyeParams(1, SCREEN_WIDTH_METERS, SCREEN_HEIGHT_METERS),
+        };
+        coefficients = profile.distortionCoeffs;
+    }
+
+    private DistortionRenderer configured(int technique, boolean atlas) {
+        DistortionRenderer renderer = new DistortionRenderer(context, gl);
+        renderer.init();
+        renderer.setTechnique(technique);
+        renderer.setAtlasMode(atlas);
+        renderer.configure(EYE_WIDTH, EYE_HEIGHT, eyes, coefficients);
+        assertTrue(renderer.isReady());
+        assertEquals(technique == DistortionRenderer.TECHNIQUE_PER_PIXEL, renderer.isPerPixel());
+        gl.reset();
+        return renderer;
+    }
+
+    private void assertFrame(int draws, int framebufferBinds) {
+        assertEquals(gl.toString(), draws, gl.getDrawCalls());
+        assertEquals(gl.toString(), framebufferBinds, gl.getCount("glBindFramebuffer"));
+        assertEquals(gl.toString(), 0, gl.getUploads());
+        assertEquals(gl.toString(), 0, gl.getErrorChecks());
+        assertEquals(gl.toString(), 0, gl.getCount("glGenBuffers") + gl.getCount("glGenTextures")
+                + gl.getCount("glGenFramebuffers"));
+    }
+
+    @Test
+    public void configureUploadsMeshAndTable() {
+        DistortionRenderer renderer = new DistortionRenderer(context, gl);
+        renderer.init();
+        renderer.setTechnique(DistortionRenderer.TECHNIQUE_MESH);
+        gl.reset();
+        renderer.configure(EYE_WIDTH, EYE_HEIGHT, eyes, coefficients);
+        // Vertex and index buffers, the eye buffer and the per-pixel lookup table.
+        assertEquals(gl.toString(), 2, gl.getCount("glBufferData"));
+        assertEquals(gl.toString(), 2, gl.getCount("glTexImage2D"));
+        assertEquals(gl.toString(), 0, gl.getDrawCalls());
+    }
+
+    @Test
+    public void perEyeMeshFrame() {
+        DistortionRenderer renderer = configured(DistortionRenderer.TECHNIQUE_MESH, false);
+        for (int eye = 0; eye < 2; eye++) {
+            renderer.bindEyeBuffer();
+            renderer.renderEye(eye, eye * EYE_WIDTH);
+        }
+        assertFrame(2, 4);
+        assertEquals(2, gl.getCount("glDrawElements"));
+    }
+
+    @Test
+    public void atlasMeshFrame() {
+        DistortionRenderer renderer = configured(DistortionRenderer.TECHNIQUE_MESH, true);
+        renderer.bindEyeBuffer();
+        for (int eye = 0; eye < 2; eye++) {
+            renderer.setAtlasViewport(eye);
+        }
+        renderer.renderAtlas();
+        assertFrame(1, 2);
+        assertEquals(1, renderer.getSavedDrawCalls());
+        assertEquals(2, renderer.getSavedFramebufferBinds());
+    }
+
+    @Test
+    public void directMeshFrame() {
+        DistortionRenderer renderer = configured(DistortionRenderer.TECHNIQUE_MESH, false);
+        assertTrue(renderer.isDirectSupported());
+        for (int eye = 0; eye < 2; eye++) {
+            renderer.renderEyeDirect(eye, eye * EYE_WIDTH, 1, quadTransform, texTransform);
+        }
+        assertFrame(2, 2);
+    }
+
+    @Test
+    public void perPixelFrames() {
+        DistortionRenderer renderer = configured(DistortionRenderer.TECHNIQUE_PER_PIXEL, false);
+        for (int eye = 0; eye < 2; eye++) {
+            renderer.bindEyeBuffer();
+            renderer.renderEye(eye, eye * EYE_WIDTH);
+        }
+        assertFrame(2, 4);
+        assertEquals(2, gl.getCount("glDrawArrays"));
+
+        gl.reset();
+        for (int eye = 0; eye < 2; eye++) {
+            renderer.renderEyeDirect(eye, eye * EYE_WIDTH, 1, quadTransform, texTransform);
+        }
+        assertFrame(2, 2);
+        assertEquals(2, gl.getCount("glDrawArrays"));
+
+        renderer = configured(DistortionRenderer.TECHNIQUE_PER_PIXEL, true);
+        renderer.bindEyeBuffer();
+        renderer.renderAtlas();
+        assertFrame(1, 2);
+    }
+
+    @Test
+    public void benchmarkDoesNotPickTheFusedTechnique() {
+        // The benchmark only times the eye-buffer paths; the fused pass keeps the mesh.
+        DistortionRenderer renderer = configured(DistortionRenderer.TECHNIQUE_AUTO, false);
+        assertFalse(renderer.isDirectPerPixel());
+        for (int eye = 0; eye < 2; eye++) {
+            renderer.renderEyeDirect(eye, eye * EYE_WIDTH, 1, quadTransform, texTransform);
+        }
+        assertFrame(2, 2);
+        assertEquals(0, gl.getCount("glDrawArrays"));
+
+        assertTrue(configured(DistortionRenderer.TECHNIQUE_PER_PIXEL, false).isDirectPerPixel());
+        assertFalse(configured(DistortionRenderer.TECHNIQUE_MESH, false).isDirectPerPixel());
+    }
+
+    @Test
+    public void resolutionScaleCostsNoUploads() {
+        DistortionRenderer renderer = configured(DistortionRenderer.TECHNIQUE_MESH, true);
+        renderer.setResolutionScale(0.5f);
+        renderer.bindEyeBuffer();
+        renderer.renderAtlas();
+        assertFrame(1, 2);
+        assertEquals(0, gl.getCount("glRenderbufferStorage"));
+    }
+}
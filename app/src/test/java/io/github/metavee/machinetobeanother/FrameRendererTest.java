@@ -0,0 +1,117 @@
+package io.github.metavee.machinetobeanother;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.opengl.Matrix;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+/**
+ * Whole-frame GL budgets of {@link FrameRenderer}, driven headless through {@link RecordingGl}
+ * on a {@link NoOpGl}: a release frame (no error checks) draws both eyes within {@link
+ * #MAX_DRAWS_PER_FRAME} draw calls, uploads nothing and never calls {@code glGetError}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class FrameRendererTest {
+
+    // The per-eye FBO path: the quad and the distortion pass for each eye.
+    private static final int MAX_DRAWS_PER_FRAME = 4;
+
+    // A 1920x1080 phone at about 400 dpi, landscape.
+    private static final int SURFACE_WIDTH = 1920;
+    private static final int SURFACE_HEIGHT = 1080;
+    private static final float SCREEN_WIDTH_METERS = 0.1219f;
+    private static final float SCREEN_HEIGHT_METERS = 0.0686f;
+
+    private Context context;
+    private RecordingGl gl;
+    private CardboardProfile.EyeParams[] eyes;
+    private float[] coefficients;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+        gl = new RecordingGl();
+        CardboardProfile profile = CardboardProfile.getDefault();
+        eyes = new CardboardProfile.EyeParams[] {
+                profile.eyeParams(0, SCREEN_WIDTH_METERS, SCREEN_HEIGHT_METERS),
+                profile.eyeParams(1, SCREEN_WIDTH_METERS, SCREEN_HEIGHT_METERS),
+        };
+        coefficients = profile.distortionCoeffs;
+    }
+
+    private FrameRenderer renderer(boolean checkErrors, boolean fused, boolean atlas,
+                                   boolean distort) {
+        FrameRenderer renderer = new FrameRenderer(context, gl,
+                new FrameProfiler(gl), checkErrors);
+        renderer.init();
+        renderer.setSurfaceSize(SURFACE_WIDTH, SURFACE_HEIGHT);
+        renderer.setCameraTexture(1);
+        renderer.setFusedPassthrough(fused);
+        float[] projection = new float[16];
+        for (int eye = 0; eye < 2; eye++) {
+            Matrix.frustumM(projection, 0, -0.1f, 0.1f, -0.1f, 0.1f, 0.1f, 100f);
+            renderer.setEyeProjection(eye, projection);
+        }
+        float[] model = new float[16];
+        Matrix.setIdentityM(model, 0);
+        Matrix.translateM(model, 0, 0f, 0f, -3.5f);
+        renderer.setModel(model);
+        if (distort) {
+            DistortionRenderer distortion = new DistortionRenderer(context, gl);
+            distortion.init();
+            distortion.setAtlasMode(atlas);
+            distortion.configure(SURFACE_WIDTH / 2, SURFACE_HEIGHT, eyes, coefficients);
+            assertTrue(distortion.isReady());
+            renderer.setDistortionRenderer(distortion);
+        }
+        gl.reset();
+        return renderer;
+    }
+
+    private void assertReleaseFrame(int draws) {
+        assertTrue(gl.toString(), gl.getDrawCalls() <= MAX_DRAWS_PER_FRAME);
+        assertEquals(gl.toString(), draws, gl.getDrawCalls());
+        assertEquals(gl.toString(), 0, gl.getUploads());
+        assertEquals(gl.toString(), 0, gl.getErrorChecks());
+        assertEquals(gl.toString(), 0, gl.getCount("glGenBuffers") + gl.getCount("glGenTextures")
+                + gl.getCount("glGenFramebuffers"));
+    }
+
+    @Test
+    public void fusedFrame() {
+        renderer(false, true, false, true).drawFrame(false, 0);
+        assertReleaseFrame(2);
+    }
+
+    @Test
+    public void atlasFrame() {
+        renderer(false, false, true, true).drawFrame(false, 0);
+        // Both eyes into the atlas, then one distortion draw.
+        assertReleaseFrame(3);
+    }
+
+    @Test
+    public void perEyeFrame() {
+        renderer(false, false, false, true).drawFrame(false, 0);
+        assertReleaseFrame(4);
+    }
+
+    @Test
+    public void undistortedFrame() {
+        renderer(false, true, false, false).drawFrame(false, 0);
+        assertReleaseFrame(2);
+    }
+
+    @Test
+    public void debugFrameChecksErrors() {
+        renderer(true, false, false, true).drawFrame(false, 0);
+        assertTrue(gl.toString(), gl.getErrorChecks() > 0);
+    }
+}
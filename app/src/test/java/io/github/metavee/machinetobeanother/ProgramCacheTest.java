@@ -0,0 +1,83 @@
+package io.github.metavee.machinetobeanother;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Locale;
+
+/** Pruning of {@link ProgramCache}'s directory: the size bound and stray files. */
+@RunWith(RobolectricTestRunner.class)
+public class ProgramCacheTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("programs").toFile();
+        dir.deleteOnExit();
+    }
+
+    private File entry(int i, long lastUsedMillis) throws IOException {
+        File f = file(String.format(Locale.US, "%064x", i));
+        assertTrue(f.setLastModified(lastUsedMillis));
+        return f;
+    }
+
+    private File file(String name) throws IOException {
+        File f = new File(dir, name);
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(1);
+        }
+        f.deleteOnExit();
+        return f;
+    }
+
+    @Test
+    public void keepsEverythingWithinTheBound() throws IOException {
+        File driver = file("driver");
+        File a = entry(1, 1_000_000L);
+        File b = entry(2, 2_000_000L);
+        assertEquals(0, ProgramCache.prune(dir, 2));
+        assertTrue(driver.exists());
+        assertTrue(a.exists());
+        assertTrue(b.exists());
+    }
+
+    @Test
+    public void dropsLeastRecentlyUsed() throws IOException {
+        File driver = file("driver");
+        File oldest = entry(1, 1_000_000L);
+        File newest = entry(2, 4_000_000L);
+        File old = entry(3, 2_000_000L);
+        File recent = entry(4, 3_000_000L);
+        assertEquals(2, ProgramCache.prune(dir, 2));
+        assertFalse(oldest.exists());
+        assertFalse(old.exists());
+        assertTrue(recent.exists());
+        assertTrue(newest.exists());
+        assertTrue(driver.exists());
+    }
+
+    @Test
+    public void deletesStrayFiles() throws IOException {
+        File driver = file("driver");
+        File key = entry(1, 1_000_000L);
+        File tmp = file(key.getName() + ".tmp");
+        File unknown = file("notes.txt");
+        assertEquals(2, ProgramCache.prune(dir, ProgramCache.MAX_ENTRIES));
+        assertFalse(tmp.exists());
+        assertFalse(unknown.exists());
+        assertTrue(key.exists());
+        assertTrue(driver.exists());
+    }
+}